@@ -0,0 +1,40 @@
+package de.axeluhl.kostal.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.SavingsPerDischarge;
+
+/**
+ * Throughput of {@link Battery#charge(double, long, long)} over the steps of a synthetic history, isolated from
+ * parsing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatteryBenchmark {
+    @Benchmark
+    @OperationsPerInvocation(HistoryData.LINES)
+    public Battery charge(HistoryData data) {
+        final Battery battery = new Battery(/* minSOCPercent */ 5, /* maxChargePowerInWatts */ 5600,
+                /* reducedChargePowerInWatts */ 3400, /* socPercentWhereReducedChargePowerStarts */ 99.5,
+                /* capacityInWattHours */ 10240, /* energyContainedInWattHours */ 5120, SavingsPerDischarge.FUNCTION);
+        final long[] times = data.timesInMillis;
+        final double[] powers = data.powersAvailableForChargingInWatts;
+        for (int i = 1; i < times.length; i++) {
+            battery.charge(powers[i - 1], times[i - 1], times[i] - times[i - 1]);
+        }
+        return battery;
+    }
+}
@@ -0,0 +1,68 @@
+package de.axeluhl.kostal.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.axeluhl.kostal.BinaryHistoryWriter;
+import de.axeluhl.kostal.test.SyntheticHistory;
+
+/**
+ * A deterministic week of synthetic readings at 5s resolution, in text form, in binary form and as primitive arrays,
+ * shared by all benchmarks. All benchmarks process exactly {@link #LINES} readings per invocation and declare so with
+ * {@link org.openjdk.jmh.annotations.OperationsPerInvocation}, so scores are per line and the {@code -prof gc}
+ * allocation figures are bytes per line.
+ */
+@State(Scope.Benchmark)
+public class HistoryData {
+    static final long SEED = 4711;
+
+    static final long START_IN_MILLIS = 1704067200000l; // 2024-01-01T00:00:00Z
+
+    static final int DAYS = 7;
+
+    static final long STEP_IN_MILLIS = 5000;
+
+    static final int LINES = (int) (DAYS * 24l * 3600l * 1000l / STEP_IN_MILLIS);
+
+    byte[] text;
+
+    Path binaryFile;
+
+    long[] timesInMillis;
+
+    double[] powersAvailableForChargingInWatts;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long lines = new SyntheticHistory(SEED, START_IN_MILLIS, DAYS, STEP_IN_MILLIS).writeText(out);
+        if (lines != LINES) {
+            throw new IllegalStateException("Expected " + LINES + " lines but generated " + lines);
+        }
+        text = out.toByteArray();
+        binaryFile = Files.createTempFile("history", ".kbh");
+        try (final BinaryHistoryWriter writer = new BinaryHistoryWriter(binaryFile)) {
+            writer.append(new SyntheticHistory(SEED, START_IN_MILLIS, DAYS, STEP_IN_MILLIS));
+        }
+        timesInMillis = new long[LINES];
+        powersAvailableForChargingInWatts = new double[LINES];
+        final SyntheticHistory history = new SyntheticHistory(SEED, START_IN_MILLIS, DAYS, STEP_IN_MILLIS);
+        for (int i = 0; history.next(); i++) {
+            timesInMillis[i] = history.getTimeInMillis();
+            powersAvailableForChargingInWatts[i] = history.getPvProductionInWatts() - history.getHomeOwnConsumptionInWatts();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(binaryFile);
+    }
+}
@@ -0,0 +1,68 @@
+package de.axeluhl.kostal.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.axeluhl.kostal.ReadingParser;
+
+/**
+ * Parsing throughput of {@link ReadingParser}, compared to the regular expression split that parsing was based on
+ * before.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    @Benchmark
+    @OperationsPerInvocation(HistoryData.LINES)
+    public void readingParser(HistoryData data, Blackhole blackhole) throws IOException {
+        final ReadingParser parser = new ReadingParser(new ByteArrayInputStream(data.text));
+        while (parser.next()) {
+            blackhole.consume(parser.getTimeInMillis());
+            blackhole.consume(parser.getHomeOwnConsumptionInWatts());
+            blackhole.consume(parser.getPvProductionInWatts());
+            blackhole.consume(parser.getTotalActivePowerInWatts());
+            blackhole.consume(parser.getBatterySOC());
+            blackhole.consume(parser.getBatteryChargeInWatts());
+        }
+    }
+
+    /**
+     * The line-by-line approach using {@link String#split(String)} and boxing parsers, as a baseline
+     */
+    @Benchmark
+    @OperationsPerInvocation(HistoryData.LINES)
+    public void splitBaseline(HistoryData data, Blackhole blackhole) throws IOException {
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(data.text), StandardCharsets.US_ASCII));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.trim().isEmpty()) {
+                final String[] fields = line.split("[ \t]+");
+                blackhole.consume(Instant.ofEpochMilli(Long.valueOf(fields[0]) / 1000000l));
+                blackhole.consume(Double.valueOf(fields[1]));
+                blackhole.consume(Double.valueOf(fields[2]));
+                blackhole.consume(Double.valueOf(fields[3]));
+                blackhole.consume(Integer.valueOf(fields[4]));
+                blackhole.consume(Double.valueOf(fields[5]));
+            }
+        }
+    }
+}
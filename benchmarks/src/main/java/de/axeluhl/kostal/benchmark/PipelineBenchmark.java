@@ -0,0 +1,50 @@
+package de.axeluhl.kostal.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.axeluhl.kostal.AggregateBatteryDischarge;
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.BinaryHistoryReader;
+import de.axeluhl.kostal.SavingsPerDischarge;
+
+/**
+ * End-to-end throughput of {@link AggregateBatteryDischarge#aggregateBatteryDischarge(Battery, de.axeluhl.kostal.ReadingSource)}
+ * from text and from a binary history file.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+    private static Battery createBattery() {
+        return new Battery(/* minSOCPercent */ 5, /* maxChargePowerInWatts */ 5600,
+                /* reducedChargePowerInWatts */ 3400, /* socPercentWhereReducedChargePowerStarts */ 99.5,
+                /* capacityInWattHours */ 10240, /* energyContainedInWattHours */ 0, SavingsPerDischarge.FUNCTION);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HistoryData.LINES)
+    public Battery fromText(HistoryData data) throws IOException {
+        return new AggregateBatteryDischarge().aggregateBatteryDischarge(createBattery(), new ByteArrayInputStream(data.text));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HistoryData.LINES)
+    public Battery fromBinary(HistoryData data) throws IOException {
+        try (final BinaryHistoryReader reader = new BinaryHistoryReader(data.binaryFile)) {
+            return new AggregateBatteryDischarge().aggregateBatteryDischarge(createBattery(), reader);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package de.axeluhl.kostal.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.axeluhl.kostal.PriceCurve;
+import de.axeluhl.kostal.SortedPriceCurve;
+import de.axeluhl.kostal.Tariff;
+
+/**
+ * Cost of a price lookup per reading for the built-in {@link Tariff tariffs} and for a dynamic tariff with a price per
+ * 15 minutes over a year, using binary search and using a {@link SortedPriceCurve#cursor() cursor}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TariffBenchmark {
+    private static final long FIFTEEN_MINUTES_IN_MILLIS = 15l * 60l * 1000l;
+
+    private SortedPriceCurve spotPrices;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final int intervals = 366 * 96;
+        final long[] starts = new long[intervals];
+        final double[] prices = new double[intervals];
+        for (int i = 0; i < intervals; i++) {
+            starts[i] = HistoryData.START_IN_MILLIS + i * FIFTEEN_MINUTES_IN_MILLIS;
+            prices[i] = 25 + 10 * Math.sin(i / 17.0);
+        }
+        spotPrices = new SortedPriceCurve(starts, prices);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HistoryData.LINES)
+    public double fixedTariff(HistoryData data) {
+        double sum = 0;
+        for (final long time : data.timesInMillis) {
+            sum += Tariff.getCents(time, 1.0);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HistoryData.LINES)
+    public double spotPricesBinarySearch(HistoryData data) {
+        double sum = 0;
+        for (final long time : data.timesInMillis) {
+            sum += spotPrices.getCents(time, 1.0);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HistoryData.LINES)
+    public double spotPricesCursor(HistoryData data) {
+        final PriceCurve cursor = spotPrices.cursor();
+        double sum = 0;
+        for (final long time : data.timesInMillis) {
+            sum += cursor.getCents(time, 1.0);
+        }
+        return sum;
+    }
+}
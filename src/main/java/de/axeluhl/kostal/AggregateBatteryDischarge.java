@@ -1,13 +1,23 @@
 package de.axeluhl.kostal;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
-import java.time.Duration;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -27,78 +37,48 @@ import org.apache.commons.cli.ParseException;
  * where the time stamp in the first column has nanosecond precision, the default for InfluxDB output.
  * <p>
  * 
- * The {@link #main(String[])} method will dump an extended format to the standard output, augmenting the input by
- * additional columns for an inferred battery SOC and an inferred battery charge/discharge power, based on an assumption
- * of how much capacity the battery has.
+ * The {@link #main(String[])} method prints the savings the virtual battery achieved over all readings. With
+ * {@code --augment}, it additionally dumps an extended format, augmenting each reading by additional columns for the
+ * virtual battery's energy, SOC, effective charge/discharge power and accumulated savings, based on an assumption of
+ * how much capacity the battery has; see {@link AugmentedReadingWriter}.
  */
 public class AggregateBatteryDischarge {
-    private static final int DEFAULT_CAPACITY_IN_WATT_HOURS = 10240;
-    private static final double DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS = 99.5;
-    private static final int DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS = 3400;
-    private static final int DEFAULT_MAX_CHARGE_POWER_IN_WATTS = 5600;
-    private static final int DEFAULT_MIN_SOC_PERCENT = 5;
+    static final int DEFAULT_CAPACITY_IN_WATT_HOURS = 10240;
+    static final double DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS = 99.5;
+    static final int DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS = 3400;
+    static final int DEFAULT_MAX_CHARGE_POWER_IN_WATTS = 5600;
+    static final int DEFAULT_MIN_SOC_PERCENT = 5;
 
-    private static class Reading {
-        private final Instant time;
+    /**
+     * How long shutting down a daemon waits for the replay to stop and write its checkpoint; reading from stdin can't
+     * be interrupted
+     */
+    private static final long CHECKPOINT_TIMEOUT_IN_MILLIS = 5000;
 
-        private final double homeOwnConsumptionInWatts;
+    private ReplayListener replayListener;
 
-        private final double pvProductionInWatts;
+    private final boolean hasSavingsFingerprint;
 
-        private final double totalActivePowerInWatts;
+    private final long savingsFingerprint;
 
-        private final int batterySOC;
-
-        private final double batteryChargeInWatts;
-
-        static Reading parse(String line) {
-            final String[] fields = line.split("[ \t]+");
-            return new Reading(Instant.ofEpochMilli(Long.valueOf(fields[0]) / 1000000l), // convert from nanos to millis
-                    Double.valueOf(fields[1]), Double.valueOf(fields[2]), Double.valueOf(fields[3]),
-                    Integer.valueOf(fields[4]), Double.valueOf(fields[4]));
-        }
-
-        Reading(Instant time, double homeOwnConsumptionInWatts, double pvProductionInWatts, double totalActivePowerInWatts,
-                int batterySOC, double batteryChargeInWatts) {
-            super();
-            this.time = time;
-            this.homeOwnConsumptionInWatts = homeOwnConsumptionInWatts;
-            this.pvProductionInWatts = pvProductionInWatts;
-            this.totalActivePowerInWatts = totalActivePowerInWatts;
-            this.batterySOC = batterySOC;
-            this.batteryChargeInWatts = batteryChargeInWatts;
-        }
-
-        public Instant getTime() {
-            return time;
-        }
-
-        public double getHomeOwnConsumptionInWatts() {
-            return homeOwnConsumptionInWatts;
-        }
-
-        public double getPvProductionInWatts() {
-            return pvProductionInWatts;
-        }
-
-        public double getTotalActivePowerInWatts() {
-            return totalActivePowerInWatts;
-        }
-
-        public int getBatterySOC() {
-            return batterySOC;
-        }
-
-        public double getBatteryChargeInWatts() {
-            return batteryChargeInWatts;
-        }
+    /**
+     * Creates an aggregator for replays without checkpoints; see {@link #AggregateBatteryDischarge(long)} for replays
+     * that return or resume from {@link BatteryCheckpoint checkpoints}
+     */
+    public AggregateBatteryDischarge() {
+        this.hasSavingsFingerprint = false;
+        this.savingsFingerprint = 0;
+    }
 
-        @Override
-        public String toString() {
-            return "Reading [time=" + time + ", homeOwnConsumptionInWatts=" + homeOwnConsumptionInWatts
-                    + ", pvProductionInWatts=" + pvProductionInWatts + ", totalActivePowerInWatts=" + getTotalActivePowerInWatts()
-                    + ", batterySOC=" + batterySOC + ", batteryChargeInWatts=" + getBatteryChargeInWatts() + "]";
-        }
+    /**
+     * @param savingsFingerprint
+     *            the fingerprint of the tariff and compensation that the savings functions of the batteries replayed
+     *            were created from, see {@link BatteryCheckpoint#savingsFingerprint(SortedPriceCurve, SortedPriceCurve)};
+     *            it is recorded in the checkpoints returned and must match that of a checkpoint resumed from
+     */
+    public AggregateBatteryDischarge(long savingsFingerprint) {
+        this.hasSavingsFingerprint = true;
+        this.savingsFingerprint = savingsFingerprint;
     }
 
     public static void main(String[] args) throws IOException {
@@ -141,8 +121,110 @@ public class AggregateBatteryDischarge {
                 .longOpt("file")
                 .hasArg()
                 .argName("inputFile")
-                .type(FileInputStream.class)
-                .desc("input file from which to read inverter states; defaults to stdin")
+                .desc("input file from which to read inverter states, or directory of such files, each possibly gzip-compressed;"
+                        + " defaults to stdin; see "+PipelinedFileReadingSource.class.getName())
+                .build();
+        final Option binaryFile = Option.builder("b")
+                .longOpt("binaryFile")
+                .hasArg()
+                .argName("binaryFile")
+                .desc("binary history file as written by "+BinaryHistoryWriter.class.getName()+"; used instead of --file")
+                .build();
+        final Option influxUrl = Option.builder()
+                .longOpt("influxUrl")
+                .hasArg()
+                .argName("influxUrl")
+                .desc("base URL of an InfluxDB 1.x server, such as http://localhost:8086, to query the \""+InfluxDbReadingSource.DEFAULT_MEASUREMENT
+                        +"\" measurement of the \""+InfluxDbReadingSource.DEFAULT_DATABASE+"\" database from; used instead of --file")
+                .build();
+        final Option kostalLogs = KostalLogReadingSource.createLogsOption();
+        final Option kostalLogColumns = KostalLogReadingSource.createColumnsOption();
+        final Option from = Option.builder()
+                .longOpt("from")
+                .hasArg()
+                .argName("from")
+                .desc("ignore readings before this UTC date (yyyy-mm-dd) or ISO-8601 instant; only with --binaryFile or --influxUrl,"
+                        + " where it defaults to "+InfluxDbReadingSource.DEFAULT_NUMBER_OF_DAYS+" days before --to")
+                .build();
+        final Option to = Option.builder()
+                .longOpt("to")
+                .hasArg()
+                .argName("to")
+                .desc("ignore readings at or after this UTC date (yyyy-mm-dd) or ISO-8601 instant; only with --binaryFile or --influxUrl,"
+                        + " where it defaults to now")
+                .build();
+        final Option tariffFile = Option.builder()
+                .longOpt("tariffFile")
+                .hasArg()
+                .argName("tariffFile")
+                .desc("file with one line per price interval, giving start time and price in cents per kWh; defaults to the built-in tariffs")
+                .build();
+        final Option compensationFile = Option.builder()
+                .longOpt("compensationFile")
+                .hasArg()
+                .argName("compensationFile")
+                .desc("file with one line per compensation interval, giving start time and compensation in cents per kWh; defaults to the built-in compensation")
+                .build();
+        final Option checkpointFile = Option.builder()
+                .longOpt("checkpoint")
+                .hasArg()
+                .argName("checkpointFile")
+                .desc("resume from this checkpoint file if it exists, and write the state reached to it at the end")
+                .build();
+        final Option rollupsFile = Option.builder()
+                .longOpt("rollups")
+                .hasArg()
+                .argName("rollupsFile")
+                .desc("write hourly, daily and monthly rollups of savings, energy flows and cycles to this file; JSON if its name ends with .json, CSV otherwise")
+                .build();
+        final Option zone = Option.builder()
+                .longOpt("zone")
+                .hasArg()
+                .argName("zoneId")
+                .desc("time zone for the --rollups periods and the --daemon windows, such as Europe/Berlin; defaults to the system time zone")
+                .build();
+        final Option metricsFile = Option.builder()
+                .longOpt("metrics")
+                .hasArg()
+                .argName("metricsFile")
+                .desc("write throughput and data quality metrics as JSON to this file, or to stderr for \"-\"; see "+ReplayMetrics.class.getName())
+                .build();
+        final Option augmentFile = Option.builder()
+                .longOpt("augment")
+                .hasArg()
+                .argName("outputFile")
+                .desc("write each reading augmented by the virtual battery's energy, SOC, effective power and savings to this file,"
+                        + " gzip-compressed if its name ends with .gz, or to stdout for \"-\"; see "+AugmentedReadingWriter.class.getName())
+                .build();
+        final Option lineProtocol = Option.builder()
+                .longOpt("lineProtocol")
+                .hasArg()
+                .argName("measurement")
+                .desc("write --augment output as InfluxDB line protocol for this measurement, such as "+AugmentedReadingWriter.DEFAULT_MEASUREMENT)
+                .build();
+        final Option lenient = Option.builder()
+                .longOpt("lenient")
+                .desc("skip and count malformed lines of text input instead of failing")
+                .build();
+        final Option parallel = Option.builder()
+                .longOpt("parallel")
+                .desc("replay day-sized chunks of the history on all cores, mapping them from a --binaryFile one by one, and holding"
+                        + " all readings of other sources in memory at 12 bytes each; see "+ParallelReplay.class.getName())
+                .build();
+        final Option daemon = Option.builder()
+                .longOpt("daemon")
+                .hasArg()
+                .argName("httpPort")
+                .type(Number.class)
+                .desc("keep running, following --file as it grows, or reading from --socket or stdin, and answer GET requests on this local"
+                        + " HTTP port with the savings of the last 15 minutes, today and the month to date as JSON; see "+AggregationDaemon.class.getName())
+                .build();
+        final Option socket = Option.builder()
+                .longOpt("socket")
+                .hasArg()
+                .argName("port")
+                .type(Number.class)
+                .desc("with --daemon, accept connections on this local port and read readings from them")
                 .build();
         final Option helpOption = Option.builder("h")
                 .longOpt("help")
@@ -158,6 +240,24 @@ public class AggregateBatteryDischarge {
                 .addOption(reducedChargePowerInWatts)
                 .addOption(socPercentWhereReducedChargePowerStarts)
                 .addOption(inputFile)
+                .addOption(binaryFile)
+                .addOption(influxUrl)
+                .addOption(kostalLogs)
+                .addOption(kostalLogColumns)
+                .addOption(from)
+                .addOption(to)
+                .addOption(tariffFile)
+                .addOption(compensationFile)
+                .addOption(checkpointFile)
+                .addOption(rollupsFile)
+                .addOption(zone)
+                .addOption(metricsFile)
+                .addOption(augmentFile)
+                .addOption(lineProtocol)
+                .addOption(lenient)
+                .addOption(parallel)
+                .addOption(daemon)
+                .addOption(socket)
                 .addOption(helpOption)
                 .addOption(helpOption2);
         final CommandLineParser commandLineParser = new DefaultParser();
@@ -167,44 +267,374 @@ public class AggregateBatteryDischarge {
                 HelpFormatter formatter = new HelpFormatter();
                 formatter.printHelp(AggregateBatteryDischarge.class.getName(), options);
             } else {
+                final SortedPriceCurve tariff = loadTariff(commandLine.getOptionValue(tariffFile));
+                final SortedPriceCurve compensation = loadCompensation(commandLine.getOptionValue(compensationFile));
+                final long savingsFingerprint = BatteryCheckpoint.savingsFingerprint(tariff, compensation);
                 final Battery virtualBattery = new Battery(
                         commandLine.hasOption(minSOCPercent) ? ((Number) commandLine.getParsedOptionValue(minSOCPercent)).intValue() : DEFAULT_MIN_SOC_PERCENT,
                         commandLine.hasOption(maxChargePowerInWatts) ? ((Number) commandLine.getParsedOptionValue(maxChargePowerInWatts)).doubleValue() : DEFAULT_MAX_CHARGE_POWER_IN_WATTS,
                         commandLine.hasOption(reducedChargePowerInWatts) ? ((Number) commandLine.getParsedOptionValue(reducedChargePowerInWatts)).doubleValue() : DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS,
                         commandLine.hasOption(socPercentWhereReducedChargePowerStarts) ? ((Number) commandLine.getParsedOptionValue(socPercentWhereReducedChargePowerStarts)).doubleValue() : DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS,
                         commandLine.hasOption(capacityInWattHours) ? ((Number) commandLine.getParsedOptionValue(capacityInWattHours)).doubleValue() : DEFAULT_CAPACITY_IN_WATT_HOURS,
-                        /* energyContained */ 0, SavingsPerDischarge.FUNCTION);
-                new AggregateBatteryDischarge().aggregateBatteryDischarge(virtualBattery,
-                        new InputStreamReader(commandLine.hasOption(inputFile) ? (FileInputStream) commandLine.getParsedOptionValue(inputFile) : System.in));
-                System.out.println(String.format("Aggregated discharge savings in EUR: %1.2f", virtualBattery.getSavingsInCents()/100.0));
+                        /* energyContained */ 0, createSavingsFunction(tariff, compensation, /* forConcurrentUse */ commandLine.hasOption(parallel)));
+                if (commandLine.hasOption(inputFile) && !Files.exists(Paths.get(commandLine.getOptionValue(inputFile)))) {
+                    throw new ParseException("Unable to find file: " + commandLine.getOptionValue(inputFile));
+                }
+                if ((commandLine.hasOption(from) || commandLine.hasOption(to)) && !commandLine.hasOption(binaryFile) && !commandLine.hasOption(influxUrl)) {
+                    throw new IllegalArgumentException("--from and --to only apply to --binaryFile or --influxUrl");
+                }
+                if (commandLine.hasOption(lineProtocol) && !commandLine.hasOption(augmentFile)) {
+                    throw new IllegalArgumentException("--lineProtocol only applies to --augment output");
+                }
+                final boolean augmentToStdout = "-".equals(commandLine.getOptionValue(augmentFile));
+                if (commandLine.hasOption(daemon)) {
+                    if (commandLine.hasOption(binaryFile) || commandLine.hasOption(influxUrl) || commandLine.hasOption(kostalLogs) || commandLine.hasOption(parallel)
+                            || commandLine.hasOption(rollupsFile) || commandLine.hasOption(metricsFile) || commandLine.hasOption(augmentFile)) {
+                        throw new IllegalArgumentException("--daemon only reads from --file, --socket or stdin, and serves its own rollups");
+                    }
+                    if (commandLine.hasOption(inputFile) && commandLine.hasOption(socket)) {
+                        throw new IllegalArgumentException("--daemon reads either from --file or from --socket");
+                    }
+                    runDaemon(virtualBattery, ((Number) commandLine.getParsedOptionValue(daemon)).intValue(),
+                            commandLine.getOptionValue(inputFile),
+                            commandLine.hasOption(socket) ? ((Number) commandLine.getParsedOptionValue(socket)).intValue() : -1,
+                            commandLine.hasOption(zone) ? ZoneId.of(commandLine.getOptionValue(zone)) : ZoneId.systemDefault(),
+                            commandLine.hasOption(checkpointFile) ? Paths.get(commandLine.getOptionValue(checkpointFile)) : null,
+                            savingsFingerprint);
+                    return;
+                }
+                final ReadingSource source;
+                if (commandLine.hasOption(binaryFile)) {
+                    final BinaryHistoryReader binaryHistoryReader = new BinaryHistoryReader(Paths.get(commandLine.getOptionValue(binaryFile)));
+                    binaryHistoryReader.setRange(
+                            commandLine.hasOption(from) ? parseTimeInMillis(commandLine.getOptionValue(from)) : Long.MIN_VALUE,
+                            commandLine.hasOption(to) ? parseTimeInMillis(commandLine.getOptionValue(to)) : Long.MAX_VALUE);
+                    source = binaryHistoryReader;
+                } else if (commandLine.hasOption(influxUrl)) {
+                    final long toInMillis = commandLine.hasOption(to) ? parseTimeInMillis(commandLine.getOptionValue(to)) : System.currentTimeMillis();
+                    source = new InfluxDbReadingSource(commandLine.getOptionValue(influxUrl),
+                            commandLine.hasOption(from) ? parseTimeInMillis(commandLine.getOptionValue(from))
+                                    : toInMillis - InfluxDbReadingSource.DEFAULT_NUMBER_OF_DAYS * InfluxDbReadingSource.DEFAULT_CHUNK_DURATION_IN_MILLIS,
+                            toInMillis);
+                } else if (commandLine.hasOption(kostalLogs)) {
+                    source = new KostalLogReadingSource(PipelinedFileReadingSource.listFiles(Paths.get(commandLine.getOptionValue(kostalLogs))),
+                            KostalLogReadingSource.parseColumns(commandLine.getOptionValue(kostalLogColumns, "")));
+                } else if (commandLine.hasOption(inputFile)) {
+                    source = new PipelinedFileReadingSource(Paths.get(commandLine.getOptionValue(inputFile)), commandLine.hasOption(lenient));
+                } else {
+                    final ReadingParser parser = new ReadingParser(System.in);
+                    parser.setLenient(commandLine.hasOption(lenient));
+                    source = parser;
+                }
+                final Path checkpoint = commandLine.hasOption(checkpointFile) ? Paths.get(commandLine.getOptionValue(checkpointFile)) : null;
+                if (commandLine.hasOption(parallel)) {
+                    if (checkpoint != null && Files.exists(checkpoint)) {
+                        throw new IllegalArgumentException("A parallel replay can't resume from checkpoint " + checkpoint);
+                    }
+                    if (commandLine.hasOption(rollupsFile) || commandLine.hasOption(metricsFile) || commandLine.hasOption(augmentFile)) {
+                        throw new IllegalArgumentException("Rollups, metrics and augmented output are only available for a sequential replay");
+                    }
+                    final ParallelReplay.History loaded;
+                    if (source instanceof BinaryHistoryReader) {
+                        loaded = ParallelReplay.History.map((BinaryHistoryReader) source);
+                    } else {
+                        try (final ReadingSource readings = source) {
+                            loaded = ParallelReplay.History.load(readings);
+                        }
+                    }
+                    try (final ParallelReplay.History history = loaded) {
+                        final ParallelReplay.Result result = new ParallelReplay(virtualBattery.getMinSOCPercent(),
+                                virtualBattery.getMaxChargePowerInWatts(), virtualBattery.getReducedChargePowerInWatts(),
+                                virtualBattery.getSocPercentWhereReducedChargePowerStarts(), virtualBattery.getCapacityInWattHours(),
+                                virtualBattery.getSavingsFunctionInCentsPerWattHourDischarged(),
+                                ParallelReplay.DEFAULT_TOLERANCE_IN_WATT_HOURS).replay(history);
+                        virtualBattery.setEnergyContainedInWattHours(result.getEnergyContainedInWattHours());
+                        virtualBattery.setSavingsInCents(result.getSavingsInCents());
+                        if (checkpoint != null && history.getNumberOfChunks() > 0) {
+                            new BatteryCheckpoint(virtualBattery, savingsFingerprint, result.getLastTimestampInMillis(),
+                                    result.getLastPowerAvailableForChargingInWatts()).save(checkpoint);
+                        }
+                    }
+                } else {
+                    final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge(savingsFingerprint);
+                    final BatteryCheckpoint resumeFrom = checkpoint != null && Files.exists(checkpoint) ? BatteryCheckpoint.load(checkpoint) : null;
+                    final BatteryCheckpoint reached;
+                    final Rollups rollups = commandLine.hasOption(rollupsFile)
+                            ? new Rollups(commandLine.hasOption(zone) ? ZoneId.of(commandLine.getOptionValue(zone)) : ZoneId.systemDefault())
+                            : null;
+                    final ReplayMetrics metrics = commandLine.hasOption(metricsFile) ? new ReplayMetrics() : null;
+                    aggregator.setReplayListener(rollups == null ? metrics : rollups.andThen(metrics));
+                    final ReadingSource metered = metrics == null ? source : metrics.meter(source);
+                    if (commandLine.hasOption(augmentFile)) {
+                        final AugmentedReadingWriter augmentedWriter;
+                        try {
+                            augmentedWriter = openAugmentedWriter(commandLine.getOptionValue(augmentFile), virtualBattery,
+                                    commandLine.getOptionValue(lineProtocol));
+                        } catch (IOException | RuntimeException e) {
+                            metered.close();
+                            throw e;
+                        }
+                        try (final ReadingSource readings = augmentedWriter.augment(metered, resumeFrom)) {
+                            reached = aggregator.aggregateBatteryDischarge(virtualBattery, readings, resumeFrom);
+                        } finally {
+                            if (augmentToStdout) {
+                                augmentedWriter.flush();
+                            } else {
+                                augmentedWriter.close();
+                            }
+                        }
+                    } else {
+                        try (final ReadingSource readings = metered) {
+                            reached = aggregator.aggregateBatteryDischarge(virtualBattery, readings, resumeFrom);
+                        }
+                    }
+                    if (metrics != null) {
+                        metrics.commitSummaryEvent();
+                        final String metricsFileName = commandLine.getOptionValue(metricsFile);
+                        if (metricsFileName.equals("-")) {
+                            metrics.writeJson(new OutputStreamWriter(System.err, StandardCharsets.UTF_8));
+                        } else {
+                            try (final Writer out = Files.newBufferedWriter(Paths.get(metricsFileName), StandardCharsets.UTF_8)) {
+                                metrics.writeJson(out);
+                            }
+                        }
+                    }
+                    if (rollups != null) {
+                        final String rollupsFileName = commandLine.getOptionValue(rollupsFile);
+                        try (final Writer out = Files.newBufferedWriter(Paths.get(rollupsFileName), StandardCharsets.UTF_8)) {
+                            if (rollupsFileName.endsWith(".json")) {
+                                rollups.writeJson(out);
+                            } else {
+                                rollups.writeCsv(out);
+                            }
+                        }
+                    }
+                    if (checkpoint != null && reached != null) {
+                        reached.save(checkpoint);
+                    }
+                }
+                if (source instanceof InfluxDbReadingSource && ((InfluxDbReadingSource) source).getNumberOfSkippedLines() > 0) {
+                    System.err.println("Skipped " + ((InfluxDbReadingSource) source).getNumberOfSkippedLines() + " InfluxDB rows with null values");
+                }
+                // keeps augmented output on stdout free of anything else
+                (augmentToStdout ? System.err : System.out).println(String.format("Aggregated discharge savings in EUR: %1.2f", virtualBattery.getSavingsInCents()/100.0));
             }
         } catch (ParseException e) {
             System.err.println("Parsing failed. Reason: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the {@code --augment} output, gzip-compressed if {@code fileName} ends with {@code .gz}, or standard output
+     * for {@code "-"}; a file opened is closed again if the writer can't be constructed, e.g., for an empty
+     * {@code measurement}
+     */
+    private static AugmentedReadingWriter openAugmentedWriter(String fileName, Battery virtualBattery, String measurement) throws IOException {
+        if ("-".equals(fileName)) {
+            return new AugmentedReadingWriter(System.out, virtualBattery, measurement);
+        }
+        final OutputStream out = Files.newOutputStream(Paths.get(fileName));
+        try {
+            return new AugmentedReadingWriter(fileName.endsWith(".gz") ? new GZIPOutputStream(out) : out, virtualBattery, measurement);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs an {@link AggregationDaemon} until the JVM is shut down, e.g., by {@code SIGTERM}. Readings come from the
+     * {@code file} followed if not {@code null}, else from connections to the local {@code socketPort} if not negative,
+     * else from stdin, after whose end the daemon keeps answering queries. The {@code checkpoint}, if not {@code null},
+     * is resumed from if it exists and written on shutdown, together with the {@link LiveWindows} in a file of the
+     * same name with suffix {@code .windows}; it must have been written for the same {@code savingsFingerprint}.
+     */
+    private static void runDaemon(Battery virtualBattery, int httpPort, String file, int socketPort, ZoneId zone,
+            Path checkpoint, long savingsFingerprint) throws IOException {
+        final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge(savingsFingerprint);
+        final LiveWindows windows = new LiveWindows(zone);
+        final Path windowsFile = checkpoint == null ? null : checkpoint.resolveSibling(checkpoint.getFileName() + ".windows");
+        BatteryCheckpoint resumeFrom = null;
+        if (checkpoint != null && Files.exists(checkpoint)) {
+            resumeFrom = BatteryCheckpoint.load(checkpoint);
+            if (Files.exists(windowsFile)) {
+                windows.restore(windowsFile);
+            }
+        }
+        final AggregationDaemon daemon = new AggregationDaemon(aggregator, virtualBattery, windows, httpPort, resumeFrom);
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+                mainThread.join(CHECKPOINT_TIMEOUT_IN_MILLIS); // lets the main thread write the checkpoint
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }));
+        System.err.println("Answering queries on http://localhost:" + daemon.getHttpPort() + "/");
+        try {
+            if (file != null) {
+                daemon.follow(Paths.get(file));
+            } else if (socketPort >= 0) {
+                daemon.serve(new ServerSocket(socketPort, /* backlog */ 1, InetAddress.getLoopbackAddress()));
+            } else {
+                daemon.consume(System.in);
+                daemon.awaitClose();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final BatteryCheckpoint reached = daemon.getCheckpoint();
+        if (checkpoint != null && reached != null) {
+            reached.save(checkpoint);
+            windows.save(windowsFile);
+        }
+    }
+
+    /**
+     * Creates a savings function from the tariff and compensation files given, falling back to the built-in
+     * {@link Tariff#CURVE tariffs} and {@link IngestionCompensation#CURVE compensations} for {@code null} file names.
+     * Unless {@code forConcurrentUse} is set, the function uses {@link SortedPriceCurve#cursor() cursors} and must
+     * therefore be used by a single thread.
+     */
+    static SavingsPerDischarge createSavingsFunction(String tariffFile, String compensationFile, boolean forConcurrentUse) throws IOException {
+        return createSavingsFunction(loadTariff(tariffFile), loadCompensation(compensationFile), forConcurrentUse);
+    }
+
+    static SavingsPerDischarge createSavingsFunction(SortedPriceCurve tariff, SortedPriceCurve compensation, boolean forConcurrentUse) {
+        return forConcurrentUse ? SavingsPerDischarge.forPriceCurves(tariff, compensation)
+                : SavingsPerDischarge.forPriceCurves(tariff.cursor(), compensation.cursor());
+    }
+
+    /**
+     * @return the tariffs from {@code tariffFile}, or the built-in {@link Tariff#CURVE} for {@code null}
+     */
+    static SortedPriceCurve loadTariff(String tariffFile) throws IOException {
+        return tariffFile == null ? Tariff.CURVE : SortedPriceCurve.load(Paths.get(tariffFile));
+    }
+
+    /**
+     * @return the compensations from {@code compensationFile}, or the built-in {@link IngestionCompensation#CURVE} for
+     *         {@code null}
+     */
+    static SortedPriceCurve loadCompensation(String compensationFile) throws IOException {
+        return compensationFile == null ? IngestionCompensation.CURVE : SortedPriceCurve.load(Paths.get(compensationFile));
+    }
+
+    /**
+     * Accepts a UTC date such as {@code 2023-01-01} or an ISO-8601 instant such as {@code 2023-01-01T08:00:00Z}
+     */
+    static long parseTimeInMillis(String timePoint) {
+        try {
+            return LocalDate.parse(timePoint).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return Instant.parse(timePoint).toEpochMilli();
         }
     }
 
     public Battery aggregateBatteryDischarge(Battery virtualBattery, Reader in) throws IOException {
-        final BufferedReader reader = new BufferedReader(in);
+        return aggregateBatteryDischarge(virtualBattery, new ReadingParser(in));
+    }
+
+    public Battery aggregateBatteryDischarge(Battery virtualBattery, InputStream in) throws IOException {
+        return aggregateBatteryDischarge(virtualBattery, new ReadingParser(in));
+    }
+
+    /**
+     * Replays the {@code readings} through the {@code virtualBattery}. The battery's SOC is initialized from the first
+     * reading; then, for each subsequent reading, the battery is charged with the PV surplus (or discharged with the
+     * deficit) of the previous reading for the duration between the two readings.
+     */
+    public Battery aggregateBatteryDischarge(Battery virtualBattery, ReadingSource readings) throws IOException {
+        replay(virtualBattery, readings, null);
+        return virtualBattery;
+    }
+
+    /**
+     * Like {@link #aggregateBatteryDischarge(Battery, ReadingSource)}, but continues the replay that reached
+     * {@code resumeFrom} unless it is {@code null}: the {@code virtualBattery}'s state is restored from the checkpoint,
+     * its last reading's surplus is applied up to the first reading, and readings not later than the checkpoint's last
+     * time stamp are skipped. Passing the checkpoint returned with the readings that follow therefore produces exactly
+     * the result of a single replay of all readings. This object keeps no state between calls.
+     *
+     * @return the state after the last reading processed, to be passed to the next call or
+     *         {@link BatteryCheckpoint#save(Path) saved}; {@code resumeFrom} if there were no readings to process
+     * @throws IllegalArgumentException
+     *             if the checkpoint was computed with battery parameters different from those of
+     *             {@code virtualBattery} or with a different {@link #AggregateBatteryDischarge(long) savings
+     *             fingerprint}
+     * @throws IllegalStateException
+     *             if this aggregator was constructed without a savings fingerprint
+     */
+    public BatteryCheckpoint aggregateBatteryDischarge(Battery virtualBattery, ReadingSource readings, BatteryCheckpoint resumeFrom) throws IOException {
+        if (!hasSavingsFingerprint) {
+            throw new IllegalStateException("Replays with checkpoints need an aggregator constructed with a savings fingerprint");
+        }
+        return replay(virtualBattery, readings, resumeFrom);
+    }
+
+    private BatteryCheckpoint replay(Battery virtualBattery, ReadingSource readings, BatteryCheckpoint resumeFrom) throws IOException {
         boolean virtualBatterySOCInitialized = false;
-        Instant lastTimestamp = null;
-        double lastPowerAvailableForChargingInWatts = 0.0;
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (!line.trim().isEmpty()) {
-                final Reading reading = Reading.parse(line);
-                if (!virtualBatterySOCInitialized) {
-                    virtualBattery.setSOCPercent(reading.getBatterySOC());
-                    virtualBatterySOCInitialized = true;
-                }
-                if (lastTimestamp != null) {
-                    virtualBattery.charge(lastPowerAvailableForChargingInWatts, lastTimestamp,
-                            Duration.between(lastTimestamp, reading.getTime()));
-                }
-                lastTimestamp = reading.getTime();
-                lastPowerAvailableForChargingInWatts = reading.getPvProductionInWatts()
-                        - reading.getHomeOwnConsumptionInWatts();
+        long lastTimestampInMillis = Long.MIN_VALUE;
+        double lastPvProductionInWatts = 0;
+        double lastHomeOwnConsumptionInWatts = 0;
+        double lastPowerAvailableForChargingInWatts = 0;
+        if (resumeFrom != null) {
+            resumeFrom.restore(virtualBattery, savingsFingerprint);
+            virtualBatterySOCInitialized = true;
+            lastTimestampInMillis = resumeFrom.getLastTimestampInMillis();
+            lastPowerAvailableForChargingInWatts = resumeFrom.getLastPowerAvailableForChargingInWatts();
+            // the checkpoint only knows the surplus; split it into production and consumption as if only one was present
+            lastPvProductionInWatts = Math.max(0, lastPowerAvailableForChargingInWatts);
+            lastHomeOwnConsumptionInWatts = Math.max(0, -lastPowerAvailableForChargingInWatts);
+        }
+        final long resumedAfterTimeInMillis = lastTimestampInMillis;
+        while (readings.next()) {
+            if (!virtualBatterySOCInitialized) {
+                virtualBattery.setSOCPercent(readings.getBatterySOC());
+                virtualBatterySOCInitialized = true;
+            } else if (readings.getTimeInMillis() <= resumedAfterTimeInMillis) {
+                continue; // already accounted for by the checkpoint
+            } else if (replayListener == null) {
+                virtualBattery.charge(lastPowerAvailableForChargingInWatts, lastTimestampInMillis,
+                        readings.getTimeInMillis() - lastTimestampInMillis);
+            } else {
+                final double energyBeforeInWattHours = virtualBattery.getEnergyContainedInWattHours();
+                final double savingsBeforeInCents = virtualBattery.getSavingsInCents();
+                virtualBattery.charge(lastPowerAvailableForChargingInWatts, lastTimestampInMillis,
+                        readings.getTimeInMillis() - lastTimestampInMillis);
+                replayListener.stepReplayed(lastTimestampInMillis, readings.getTimeInMillis() - lastTimestampInMillis,
+                        lastPvProductionInWatts, lastHomeOwnConsumptionInWatts,
+                        virtualBattery.getEnergyContainedInWattHours() - energyBeforeInWattHours,
+                        virtualBattery.getSavingsInCents() - savingsBeforeInCents, virtualBattery);
             }
+            lastTimestampInMillis = readings.getTimeInMillis();
+            lastPvProductionInWatts = readings.getPvProductionInWatts();
+            lastHomeOwnConsumptionInWatts = readings.getHomeOwnConsumptionInWatts();
+            lastPowerAvailableForChargingInWatts = lastPvProductionInWatts - lastHomeOwnConsumptionInWatts;
         }
-        return virtualBattery;
+        if (!virtualBatterySOCInitialized || lastTimestampInMillis == resumedAfterTimeInMillis) {
+            return resumeFrom;
+        }
+        return new BatteryCheckpoint(virtualBattery, savingsFingerprint, lastTimestampInMillis, lastPowerAvailableForChargingInWatts);
+    }
+
+    /**
+     * Sets a listener to be notified of each step replayed, or {@code null} to remove it. After resuming from a
+     * checkpoint, the first step is reported with the surplus stored in the checkpoint as either PV production
+     * or home own consumption.
+     */
+    public void setReplayListener(ReplayListener replayListener) {
+        this.replayListener = replayListener;
+    }
+
+    /**
+     * @return whether this aggregator was {@link #AggregateBatteryDischarge(long) constructed with a savings
+     *         fingerprint} and can therefore replay with checkpoints
+     */
+    public boolean hasSavingsFingerprint() {
+        return hasSavingsFingerprint;
     }
 }
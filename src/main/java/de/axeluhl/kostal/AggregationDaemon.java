@@ -0,0 +1,308 @@
+package de.axeluhl.kostal;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps a replay by {@link AggregateBatteryDischarge} running for as long as readings keep coming, so that current
+ * savings figures don't require starting a JVM and re-reading the history each time. Readings are consumed from a
+ * file that is {@link #follow(Path) followed} as it grows, like {@code tail -F} does, from connections to a local
+ * {@link #serve(ServerSocket) socket}, or from any other {@link #consume(InputStream) stream}; malformed lines are
+ * skipped. The {@link LiveWindows} of the replay are served as JSON to {@code GET} requests on a local HTTP port.
+ * <p>
+ *
+ * Memory doesn't grow with uptime: the replay keeps only the last reading, the windows are fixed-size ring buffers and
+ * the parser reuses its buffer. A query only sums a few hundred buckets under the lock of the windows, which the
+ * replay holds for just one step at a time.
+ */
+public class AggregationDaemon implements Closeable {
+    /**
+     * How long to wait before looking for more data at the end of a followed file
+     */
+    static final long POLL_INTERVAL_IN_MILLIS = 500;
+
+    private final AggregateBatteryDischarge aggregator;
+
+    private final Battery virtualBattery;
+
+    private final LiveWindows windows;
+
+    private final HttpServer httpServer;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * Where the replay has got to after the last stream {@link #consume(InputStream) consumed}, and where the next one
+     * continues; {@code null} before the first reading
+     */
+    private volatile BatteryCheckpoint checkpoint;
+
+    /**
+     * The socket {@link #serve(ServerSocket) served}, and the connection currently consumed from it; closed to
+     * interrupt blocking calls when {@link #close() closing}
+     */
+    private volatile ServerSocket serverSocket;
+
+    private volatile Socket connection;
+
+    /**
+     * A stream of the contents of a file that, at the end of the file, waits for more data to be appended instead of
+     * ending. When the file is truncated or replaced, as by log rotation, it continues at the start of the new
+     * contents. It ends when the daemon is {@link AggregationDaemon#close() closed}.
+     */
+    private class FollowingInputStream extends InputStream {
+        private final Path file;
+
+        private FileChannel channel;
+
+        private Object fileKey;
+
+        FollowingInputStream(Path file) throws IOException {
+            this.file = file;
+            open();
+        }
+
+        private void open() throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (!isStopped()) {
+                final int read = channel.read(ByteBuffer.wrap(b, off, len));
+                if (read > 0) {
+                    return read;
+                }
+                if (!reopenIfRotated()) {
+                    try {
+                        stopped.await(POLL_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Called at the end of the file
+         *
+         * @return whether there is new data to read because the file was truncated or replaced
+         */
+        private boolean reopenIfRotated() throws IOException {
+            final BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                return false; // moved away, and not re-created yet
+            }
+            if (!Objects.equals(attributes.fileKey(), fileKey)) {
+                channel.close();
+                open();
+                return true;
+            }
+            if (attributes.size() < channel.position()) {
+                channel.position(0);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Starts answering HTTP requests on the loopback interface
+     *
+     * @param httpPort
+     *            the port to listen on, or 0 for any free port, see {@link #getHttpPort()}
+     */
+    public AggregationDaemon(AggregateBatteryDischarge aggregator, Battery virtualBattery, LiveWindows windows,
+            int httpPort) throws IOException {
+        this(aggregator, virtualBattery, windows, httpPort, /* resumeFrom */ null);
+    }
+
+    /**
+     * Like {@link #AggregationDaemon(AggregateBatteryDischarge, Battery, LiveWindows, int)}, but continues the replay
+     * where {@code resumeFrom} left off, see
+     * {@link AggregateBatteryDischarge#aggregateBatteryDischarge(Battery, ReadingSource, BatteryCheckpoint)}
+     */
+    public AggregationDaemon(AggregateBatteryDischarge aggregator, Battery virtualBattery, LiveWindows windows,
+            int httpPort, BatteryCheckpoint resumeFrom) throws IOException {
+        if (!aggregator.hasSavingsFingerprint()) {
+            throw new IllegalArgumentException("The daemon's aggregator needs a savings fingerprint to keep its checkpoint");
+        }
+        this.aggregator = aggregator;
+        this.virtualBattery = virtualBattery;
+        this.windows = windows;
+        this.checkpoint = resumeFrom;
+        aggregator.setReplayListener(windows);
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+        httpServer.createContext("/", this::handle);
+        httpServer.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final byte[] body = windows.toJson().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public int getHttpPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public boolean isStopped() {
+        return stopped.getCount() == 0;
+    }
+
+    /**
+     * @return where the replay has got to, for resuming it later; {@code null} if no reading has been replayed yet
+     */
+    public BatteryCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Replays the readings from {@code in} until it ends, or until {@link #close() closed}, continuing where the
+     * previous stream consumed left off
+     */
+    public void consume(InputStream in) throws IOException {
+        consume(in, /* terminatedLinesOnly */ false);
+    }
+
+    private void consume(InputStream in, boolean terminatedLinesOnly) throws IOException {
+        final ReadingParser parser = new ReadingParser(new FilterInputStream(in) {
+            // a connection closed by close() ends the stream rather than the replay, so that its checkpoint is kept
+            @Override
+            public int read() throws IOException {
+                try {
+                    return super.read();
+                } catch (IOException e) {
+                    if (isStopped()) {
+                        return -1;
+                    }
+                    throw e;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return super.read(b, off, len);
+                } catch (IOException e) {
+                    if (isStopped()) {
+                        return -1;
+                    }
+                    throw e;
+                }
+            }
+        });
+        parser.setLenient(true);
+        parser.setTerminatedLinesOnly(terminatedLinesOnly);
+        checkpoint = aggregator.aggregateBatteryDischarge(virtualBattery, parser, checkpoint);
+    }
+
+    /**
+     * Replays the readings of {@code file}, from its start and then as they are appended, until {@link #close()
+     * closed}. Only lines terminated by a line feed are replayed, so that a line still being written when closing
+     * isn't parsed with a truncated last column.
+     */
+    public void follow(Path file) throws IOException {
+        try (final FollowingInputStream in = new FollowingInputStream(file)) {
+            consume(in, /* terminatedLinesOnly */ true);
+        }
+    }
+
+    /**
+     * Accepts one connection after the other on {@code serverSocket} and replays the readings sent on each, until
+     * {@link #close() closed}
+     */
+    public void serve(ServerSocket serverSocket) throws IOException {
+        this.serverSocket = serverSocket;
+        try {
+            while (!isStopped()) {
+                try (final Socket socket = serverSocket.accept()) {
+                    connection = socket;
+                    consume(socket.getInputStream());
+                } catch (SocketException e) {
+                    if (!isStopped()) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Blocks until {@link #close() closed}, e.g., to keep answering queries after a stream {@link #consume(InputStream)
+     * consumed} has ended
+     */
+    public void awaitClose() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Stops consuming readings and answering queries
+     */
+    @Override
+    public void close() throws IOException {
+        stopped.countDown();
+        httpServer.stop(0);
+        // a followed file notices the stop itself
+        final ServerSocket currentServerSocket = serverSocket;
+        if (currentServerSocket != null) {
+            currentServerSocket.close();
+        }
+        final Socket currentConnection = connection;
+        if (currentConnection != null) {
+            currentConnection.close();
+        }
+    }
+}
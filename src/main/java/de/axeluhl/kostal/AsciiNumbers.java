@@ -0,0 +1,253 @@
+package de.axeluhl.kostal;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses decimal numbers straight from ASCII bytes without creating {@link String} objects. The common case of numbers
+ * with no more than 15 significant digits and a small decimal exponent is handled by an exact fast path; everything
+ * else falls back to {@link Double#parseDouble(String)} so that results are always identical to those of the JDK
+ * parsers.
+ * <p>
+ *
+ * The reverse direction, {@link #formatLong(long, byte[], int)} and {@link #formatDouble(double, int, byte[], int)},
+ * writes numbers into a byte array, again without intermediate objects for all but non-finite and very large values.
+ */
+final class AsciiNumbers {
+    /**
+     * Powers of ten that are exactly representable as {@code double}
+     */
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+            1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * Powers of ten up to the largest that fits into a {@code long}
+     */
+    private static final long[] LONG_POWERS_OF_TEN = { 1l, 10l, 100l, 1000l, 10000l, 100000l, 1000000l, 10000000l,
+            100000000l, 1000000000l, 10000000000l, 100000000000l, 1000000000000l, 10000000000000l, 100000000000000l,
+            1000000000000000l, 10000000000000000l, 100000000000000000l, 1000000000000000000l };
+
+    /**
+     * The ASCII digits of 00 to 99, two bytes per number
+     */
+    private static final byte[] DIGIT_PAIRS = new byte[200];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            DIGIT_PAIRS[2 * i] = (byte) ('0' + i / 10);
+            DIGIT_PAIRS[2 * i + 1] = (byte) ('0' + i % 10);
+        }
+    }
+
+    /**
+     * Mantissas up to this value can be represented exactly as a {@code double}
+     */
+    private static final long MAX_EXACT_MANTISSA = 1l << 53;
+
+    private AsciiNumbers() {
+    }
+
+    static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Parses the decimal integer in {@code bytes[from..to)}, with an optional leading sign.
+     *
+     * @throws NumberFormatException
+     *             if the range does not contain a valid {@code long}
+     */
+    static long parseLong(byte[] bytes, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        if (i >= to) {
+            throw numberFormatException(bytes, from, to);
+        }
+        long result = 0;
+        while (i < to) {
+            final byte b = bytes[i++];
+            if (!isDigit(b)) {
+                throw numberFormatException(bytes, from, to);
+            }
+            final int digit = b - '0';
+            if (result > (Long.MAX_VALUE - digit) / 10) {
+                // overflow, or Long.MIN_VALUE; let the JDK decide
+                return Long.parseLong(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parses the decimal floating point number in {@code bytes[from..to)}, with an optional leading sign, an optional
+     * fraction and an optional exponent.
+     *
+     * @throws NumberFormatException
+     *             if the range does not contain a valid number
+     */
+    static double parseDouble(byte[] bytes, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean exact = true;
+        while (i < to && isDigit(bytes[i])) {
+            if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                mantissa = mantissa * 10 + (bytes[i] - '0');
+            } else {
+                exact = false;
+            }
+            digits++;
+            i++;
+        }
+        if (i < to && bytes[i] == '.') {
+            i++;
+            while (i < to && isDigit(bytes[i])) {
+                if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                    mantissa = mantissa * 10 + (bytes[i] - '0');
+                    exponent--;
+                } else if (bytes[i] != '0') {
+                    exact = false;
+                }
+                digits++;
+                i++;
+            }
+        }
+        if (digits == 0) {
+            return slowParseDouble(bytes, from, to);
+        }
+        if (i < to && (bytes[i] == 'e' || bytes[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            if (i >= to) {
+                throw numberFormatException(bytes, from, to);
+            }
+            int explicitExponent = 0;
+            while (i < to && isDigit(bytes[i])) {
+                if (explicitExponent < 10000) {
+                    explicitExponent = explicitExponent * 10 + (bytes[i] - '0');
+                }
+                i++;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (i != to) {
+            throw numberFormatException(bytes, from, to);
+        }
+        if (!exact || exponent < -POWERS_OF_TEN.length + 1 || exponent > POWERS_OF_TEN.length - 1) {
+            return slowParseDouble(bytes, from, to);
+        }
+        final double result = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        return negative ? -result : result;
+    }
+
+    /**
+     * Writes {@code value} in decimal to {@code bytes} at {@code position}, which must have room for 20 bytes
+     *
+     * @return the position after the last byte written
+     */
+    static int formatLong(long value, byte[] bytes, int position) {
+        if (value == Long.MIN_VALUE) {
+            return formatSlowly(Long.toString(value), bytes, position);
+        }
+        if (value < 0) {
+            bytes[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        while (digits < LONG_POWERS_OF_TEN.length && value >= LONG_POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        writeDigits(value, bytes, position + digits);
+        return position + digits;
+    }
+
+    /**
+     * Writes the digits of the non-negative {@code value} backwards, ending just before {@code end}, two at a time so
+     * that long time stamps take half the divisions
+     */
+    private static void writeDigits(long value, byte[] bytes, int end) {
+        int i = end;
+        while (value >= 100) {
+            final int pair = 2 * (int) (value % 100);
+            value /= 100;
+            bytes[--i] = DIGIT_PAIRS[pair + 1];
+            bytes[--i] = DIGIT_PAIRS[pair];
+        }
+        if (value >= 10) {
+            bytes[--i] = DIGIT_PAIRS[2 * (int) value + 1];
+            bytes[--i] = DIGIT_PAIRS[2 * (int) value];
+        } else {
+            bytes[--i] = (byte) ('0' + value);
+        }
+    }
+
+    /**
+     * Writes {@code value} rounded to {@code decimals} fractional digits to {@code bytes} at {@code position}, without
+     * trailing zeros in the fraction and without the decimal point for integral results, so that {@code 1500.0}
+     * becomes {@code 1500} and {@code 0.25} becomes {@code 0.25}. Non-finite values and values too large for the
+     * fast path are written as by {@link Double#toString(double)}. {@code bytes} must have room for 32 bytes.
+     *
+     * @param decimals
+     *            between 0 and 15
+     * @return the position after the last byte written
+     */
+    static int formatDouble(double value, int decimals, byte[] bytes, int position) {
+        final double scale = POWERS_OF_TEN[decimals];
+        final double scaled = value * scale;
+        if (!(Math.abs(scaled) < MAX_EXACT_MANTISSA)) {
+            return formatSlowly(Double.toString(value), bytes, position);
+        }
+        long rounded = Math.round(scaled);
+        if (rounded < 0) {
+            bytes[position++] = '-';
+            rounded = -rounded;
+        }
+        final long unit = (long) scale;
+        position = formatLong(rounded / unit, bytes, position);
+        long fraction = rounded % unit;
+        if (fraction != 0) {
+            int digits = decimals;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            bytes[position] = '.';
+            // leading zeros of the fraction, which writeDigits doesn't produce
+            for (int i = position + 1; i <= position + digits; i++) {
+                bytes[i] = '0';
+            }
+            writeDigits(fraction, bytes, position + digits + 1);
+            position += digits + 1;
+        }
+        return position;
+    }
+
+    private static int formatSlowly(String value, byte[] bytes, int position) {
+        for (int i = 0; i < value.length(); i++) {
+            bytes[position++] = (byte) value.charAt(i);
+        }
+        return position;
+    }
+
+    private static double slowParseDouble(byte[] bytes, int from, int to) {
+        return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+    }
+
+    private static NumberFormatException numberFormatException(byte[] bytes, int from, int to) {
+        return new NumberFormatException("For input string: \"" + new String(bytes, from, to - from, StandardCharsets.US_ASCII) + "\"");
+    }
+}
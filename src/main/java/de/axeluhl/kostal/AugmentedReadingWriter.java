@@ -0,0 +1,269 @@
+package de.axeluhl.kostal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes each reading replayed by {@link AggregateBatteryDischarge#aggregateBatteryDischarge(Battery, ReadingSource)}
+ * back out, augmented by the state of the virtual battery after the step that ends at the reading: the energy
+ * contained, the SOC, the effective power at which the battery was charged (positive) or discharged (negative) during
+ * the step, and the savings accumulated so far. A reading is written when the replay asks for the next one, i.e., after
+ * the replay has charged the battery up to the reading's time stamp, so an {@link #augment(ReadingSource) augmented}
+ * source needs neither a {@link ReplayListener} nor a second pass.
+ * <p>
+ *
+ * Two formats are supported. By default, lines have the whitespace-separated columns of the input format described in
+ * {@link AggregateBatteryDischarge}, followed by
+ *
+ * <ol start="7">
+ * <li>virtual battery energy contained in Watt-hours</li>
+ * <li>virtual battery SOC in percent</li>
+ * <li>virtual battery effective charge power in Watts</li>
+ * <li>virtual battery savings accumulated in cents</li>
+ * </ol>
+ *
+ * so that the output can again be read by a {@link ReadingParser}, which ignores the additional columns. Alternatively,
+ * lines are written in InfluxDB line protocol, with the input columns as fields of the names that
+ * {@link InfluxDbReadingSource} queries and the additional columns as fields {@code Virtual battery energy},
+ * {@code Virtual battery SOC}, {@code Virtual battery power} and {@code Virtual battery savings}, so that the results can
+ * be written to a measurement of their own and replayed or charted from there. Line protocol cannot represent
+ * {@code NaN} or infinite values, so fields with such values are omitted from the line.
+ * <p>
+ *
+ * Lines are assembled in a reusable byte buffer with the number formatting of {@link AsciiNumbers}, so that writing a
+ * line creates no objects; numbers are rounded to {@value #DECIMALS} fractional digits. Instances are not safe for
+ * concurrent use.
+ */
+public class AugmentedReadingWriter implements Closeable {
+    public static final String DEFAULT_MEASUREMENT = "virtualBattery";
+
+    private static final int DECIMALS = 3;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final long NANOS_PER_MILLI = 1000000l;
+
+    /**
+     * Upper bound for the length of a formatted number, see {@link AsciiNumbers#formatDouble(double, int, byte[], int)}
+     */
+    private static final int MAX_NUMBER_LENGTH = 32;
+
+    private static final String[] FIELD_NAMES = { "Home own consumption", "PV production", "Total active power (powermeter)",
+            "Battery actual SOC", "Battery Charge", "Virtual battery energy", "Virtual battery SOC", "Virtual battery power",
+            "Virtual battery savings" };
+
+    private final OutputStream out;
+
+    private final Battery virtualBattery;
+
+    private final byte[] buffer;
+
+    private int position;
+
+    /**
+     * For line protocol, the measurement and the separator preceding the first field of a line; {@code null} for the
+     * whitespace-separated format
+     */
+    private final byte[] measurementPrefix;
+
+    /**
+     * For line protocol, the bytes preceding each field's value, i.e., the field's key and the equal sign; {@code null}
+     * for the whitespace-separated format
+     */
+    private final byte[][] fieldPrefixes;
+
+    /**
+     * For line protocol, whether a field has been written to the current line, so that the next one needs a comma
+     */
+    private boolean hasField;
+
+    private final int maxLineLength;
+
+    private boolean hasLastReading;
+
+    private long lastTimeInMillis;
+
+    private double lastEnergyInWattHours;
+
+    /**
+     * Writes the whitespace-separated format
+     */
+    public AugmentedReadingWriter(OutputStream out, Battery virtualBattery) {
+        this(out, virtualBattery, null);
+    }
+
+    /**
+     * @param measurement
+     *            the measurement to write InfluxDB line protocol for, or {@code null} for the whitespace-separated
+     *            format
+     */
+    public AugmentedReadingWriter(OutputStream out, Battery virtualBattery, String measurement) {
+        this.out = out;
+        this.virtualBattery = virtualBattery;
+        this.buffer = new byte[BUFFER_SIZE];
+        int prefixesLength = 0;
+        if (measurement == null) {
+            measurementPrefix = null;
+            fieldPrefixes = null;
+        } else {
+            if (measurement.isEmpty()) {
+                throw new IllegalArgumentException("The measurement name must not be empty");
+            }
+            measurementPrefix = (escapeMeasurement(measurement) + " ").getBytes(StandardCharsets.UTF_8);
+            prefixesLength += measurementPrefix.length;
+            fieldPrefixes = new byte[FIELD_NAMES.length][];
+            for (int i = 0; i < FIELD_NAMES.length; i++) {
+                fieldPrefixes[i] = (escapeFieldKey(FIELD_NAMES[i]) + "=").getBytes(StandardCharsets.UTF_8);
+                prefixesLength += fieldPrefixes[i].length + 1;
+            }
+        }
+        maxLineLength = prefixesLength + (FIELD_NAMES.length + 1) * (MAX_NUMBER_LENGTH + 1) + 1;
+    }
+
+    /**
+     * Escapes commas and spaces as required for measurement names in line protocol
+     */
+    private static String escapeMeasurement(String measurement) {
+        return measurement.replace(",", "\\,").replace(" ", "\\ ");
+    }
+
+    /**
+     * Escapes commas, spaces and equal signs as required for field keys in line protocol
+     */
+    private static String escapeFieldKey(String fieldKey) {
+        return escapeMeasurement(fieldKey).replace("=", "\\=");
+    }
+
+    /**
+     * @return a source delivering the readings of {@code readings} while writing each of them, augmented by the state
+     *         of the virtual battery, once the replay moves on to the next reading or reaches the end; closing the
+     *         source {@link #flush() flushes} this writer
+     */
+    public ReadingSource augment(ReadingSource readings) {
+        return augment(readings, /* resumeFrom */ null);
+    }
+
+    /**
+     * Like {@link #augment(ReadingSource)}, for a replay that
+     * {@link AggregateBatteryDischarge#aggregateBatteryDischarge(Battery, ReadingSource, BatteryCheckpoint) resumes}
+     * from {@code resumeFrom} unless it is {@code null}: readings not later than the checkpoint, which the replay
+     * skips, aren't written either, and the effective power of the first reading written is computed from the
+     * checkpoint's energy
+     */
+    public ReadingSource augment(ReadingSource readings, BatteryCheckpoint resumeFrom) {
+        final long resumedAfterTimeInMillis = resumeFrom == null ? Long.MIN_VALUE : resumeFrom.getLastTimestampInMillis();
+        if (resumeFrom != null) {
+            hasLastReading = true;
+            lastTimeInMillis = resumeFrom.getLastTimestampInMillis();
+            lastEnergyInWattHours = resumeFrom.getEnergyContainedInWattHours();
+        }
+        return new ForwardingReadingSource(readings) {
+            private boolean pending;
+
+            @Override
+            public boolean next() throws IOException {
+                if (pending) {
+                    pending = false;
+                    write(source);
+                }
+                final boolean result = source.next();
+                if (result) {
+                    pending = resumeFrom == null || source.getTimeInMillis() > resumedAfterTimeInMillis;
+                } else {
+                    flush();
+                }
+                return result;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    if (pending) {
+                        pending = false;
+                        write(source);
+                    }
+                    flush();
+                } finally {
+                    source.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes the current reading of {@code reading}, augmented by the current state of the virtual battery
+     */
+    public void write(ReadingSource reading) throws IOException {
+        if (buffer.length - position < maxLineLength) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        final long timeInMillis = reading.getTimeInMillis();
+        final double energyInWattHours = virtualBattery.getEnergyContainedInWattHours();
+        final double powerInWatts = hasLastReading && timeInMillis > lastTimeInMillis
+                ? (energyInWattHours - lastEnergyInWattHours) * 3600000.0 / (timeInMillis - lastTimeInMillis) : 0;
+        hasLastReading = true;
+        lastTimeInMillis = timeInMillis;
+        lastEnergyInWattHours = energyInWattHours;
+        if (fieldPrefixes == null) {
+            position = AsciiNumbers.formatLong(timeInMillis * NANOS_PER_MILLI, buffer, position);
+        } else {
+            System.arraycopy(measurementPrefix, 0, buffer, position, measurementPrefix.length);
+            position += measurementPrefix.length;
+            hasField = false;
+        }
+        put(0, reading.getHomeOwnConsumptionInWatts());
+        put(1, reading.getPvProductionInWatts());
+        put(2, reading.getTotalActivePowerInWatts());
+        put(3, reading.getBatterySOC()); // always finite, so a line-protocol line never lacks fields
+        put(4, reading.getBatteryChargeInWatts());
+        put(5, energyInWattHours);
+        put(6, 100.0 * energyInWattHours / virtualBattery.getCapacityInWattHours());
+        put(7, powerInWatts);
+        put(8, virtualBattery.getSavingsInCents());
+        if (fieldPrefixes != null) {
+            buffer[position++] = ' ';
+            position = AsciiNumbers.formatLong(timeInMillis * NANOS_PER_MILLI, buffer, position);
+        }
+        buffer[position++] = '\n';
+    }
+
+    /**
+     * Appends a field's value; in line protocol, which has no representation for them, a non-finite value omits the
+     * field
+     */
+    private void put(int field, double value) {
+        if (fieldPrefixes == null) {
+            buffer[position++] = ' ';
+        } else {
+            if (!Double.isFinite(value)) {
+                return;
+            }
+            if (hasField) {
+                buffer[position++] = ',';
+            }
+            hasField = true;
+            final byte[] prefix = fieldPrefixes[field];
+            System.arraycopy(prefix, 0, buffer, position, prefix.length);
+            position += prefix.length;
+        }
+        position = AsciiNumbers.formatDouble(value, DECIMALS, buffer, position);
+    }
+
+    public void flush() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -2,8 +2,6 @@ package de.axeluhl.kostal;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.function.BiFunction;
 
 /**
  * Simulates a battery to which energy can be charged, and from which energy can be consumed. The battery assumes a loss
@@ -12,8 +10,8 @@ import java.util.function.BiFunction;
  * charge state on.
  * <p>
  * 
- * Discharge energy is mapped to cost saved by assuming a constant compensation per energy ingested and a time-dependent
- * cost of power obtained from the grid. The savings can then be computed by multiplying the energy discharged by the
+ * Discharge energy is mapped to cost saved by a {@link SavingsPerDischarge} function, typically combining a
+ * time-dependent compensation per energy ingested and a time-dependent cost of power obtained from the grid. The savings can then be computed by multiplying the energy discharged by the
  * cost equivalent of that energy at the time of discharge, subtracting the ingestion compensation for that energy.
  * These cost savings are aggregated across the life time of this {@link Battery} object across all its
  * {@link #charge(double, Duration)} invocations.
@@ -33,7 +31,29 @@ public class Battery {
      * of energy from the battery, the battery SOC decreases by 1kWh * {@link #DISCHARGE_LOSS_FACTOR}.
      */
     public static final double DISCHARGE_LOSS_FACTOR = 1.015;
+
+    /**
+     * Bit of {@link #getLastClamping()}: the power was capped at {@link #getMaxChargePowerInWatts()}
+     */
+    public static final int CLAMPED_BY_MAX_POWER = 1;
+
+    /**
+     * Bit of {@link #getLastClamping()}: the power was capped at {@link #getReducedChargePowerInWatts()}
+     */
+    public static final int CLAMPED_BY_REDUCED_CHARGE_POWER = 2;
+
+    /**
+     * Bit of {@link #getLastClamping()}: charging stopped at {@link #getCapacityInWattHours() full capacity}
+     */
+    public static final int CLAMPED_BY_CAPACITY = 4;
+
+    /**
+     * Bit of {@link #getLastClamping()}: discharging stopped at the {@link #getMinSOCPercent() minimum SOC}
+     */
+    public static final int CLAMPED_BY_MIN_SOC = 8;
     
+    private final int minSOCPercent;
+
     private final double minEnergyContainedInWattHours;
 
     private final double maxChargePowerInWatts;
@@ -44,15 +64,18 @@ public class Battery {
 
     private final double capacityInWattHours;
     
-    private final BiFunction<Instant, Double, Double> savingsFunctionInCentsPerWattHourDischarged;
+    private final SavingsPerDischarge savingsFunctionInCentsPerWattHourDischarged;
 
     private double energyContainedInWattHours;
     
     private double savingsInCents;
 
+    private int lastClamping;
+
     public Battery(int minSOCPercent, double maxChargePowerInWatts, double reducedChargePowerInWatts, double socPercentWhereReducedChargePowerStarts, double capacityInWattHours,
-            double energyContainedInWattHours, BiFunction<Instant, Double, Double> savingsFunctionInCentsPerWattHourDischarged) {
+            double energyContainedInWattHours, SavingsPerDischarge savingsFunctionInCentsPerWattHourDischarged) {
         super();
+        this.minSOCPercent = minSOCPercent;
         this.minEnergyContainedInWattHours = capacityInWattHours * minSOCPercent / 100.0;
         this.maxChargePowerInWatts = maxChargePowerInWatts;
         this.reducedChargePowerInWatts = reducedChargePowerInWatts;
@@ -63,14 +86,38 @@ public class Battery {
         this.savingsInCents = 0.0;
     }
 
+    /**
+     * @return the minimum SOC this battery was constructed with; deriving it from the minimum energy instead could
+     *         round it down, e.g., 7% of 10240Wh back to 6%
+     */
     public int getMinSOCPercent() {
-        return (int) (minEnergyContainedInWattHours / capacityInWattHours * 100.0);
+        return minSOCPercent;
+    }
+
+    /**
+     * @return the energy below which this battery doesn't discharge, i.e., the {@link #getMinSOCPercent() minimum SOC}
+     *         of the {@link #getCapacityInWattHours() capacity}
+     */
+    public double getMinEnergyContainedInWattHours() {
+        return minEnergyContainedInWattHours;
     }
 
     public double getMaxChargePowerInWatts() {
         return maxChargePowerInWatts;
     }
 
+    public double getReducedChargePowerInWatts() {
+        return reducedChargePowerInWatts;
+    }
+
+    public double getSocPercentWhereReducedChargePowerStarts() {
+        return socPercentWhereReducedChargePowerStarts;
+    }
+
+    public SavingsPerDischarge getSavingsFunctionInCentsPerWattHourDischarged() {
+        return savingsFunctionInCentsPerWattHourDischarged;
+    }
+
     public double getCapacityInWattHours() {
         return capacityInWattHours;
     }
@@ -79,6 +126,10 @@ public class Battery {
         return energyContainedInWattHours;
     }
 
+    public void setEnergyContainedInWattHours(double energyContainedInWattHours) {
+        this.energyContainedInWattHours = energyContainedInWattHours;
+    }
+
     public int getSOCPercent() {
         return (int) Math.round(100.0 * energyContainedInWattHours / capacityInWattHours);
     }
@@ -98,27 +149,69 @@ public class Battery {
      *            use negative numbers to reflect discharging; wil be capped at +/- {@link #getMaxChargePowerInWatts()}.
      */
     public void charge(double powerInWatts, Instant when, Duration duration) {
-        final double effectivePowerInWattsAfterCapping = Math.signum(powerInWatts)
-                * Math.min(Math.abs(powerInWatts), energyContainedInWattHours / capacityInWattHours * 100.0 > socPercentWhereReducedChargePowerStarts ? reducedChargePowerInWatts : maxChargePowerInWatts);
+        charge(powerInWatts, when.toEpochMilli(), duration.toMillis());
+    }
+
+    /**
+     * Same as {@link #charge(double, Instant, Duration)}, but with time point and duration passed as primitive
+     * milliseconds so that callers iterating over many readings don't need to create {@link Instant} and
+     * {@link Duration} objects. As with {@link Duration#get(java.time.temporal.TemporalUnit)
+     * Duration.get(ChronoUnit.SECONDS)}, the duration is truncated to full seconds.
+     * 
+     * @param whenInMillis
+     *            time point in milliseconds since the epoch at which charging/discharging starts
+     * @param durationInMillis
+     *            the duration of charging/discharging in milliseconds
+     */
+    public void charge(double powerInWatts, long whenInMillis, long durationInMillis) {
+        final boolean reduced = energyContainedInWattHours / capacityInWattHours * 100.0 > socPercentWhereReducedChargePowerStarts;
+        final double powerLimitInWatts = reduced ? reducedChargePowerInWatts : maxChargePowerInWatts;
+        final double effectivePowerInWattsAfterCapping = Math.signum(powerInWatts) * Math.min(Math.abs(powerInWatts), powerLimitInWatts);
+        int clamping = Math.abs(powerInWatts) > powerLimitInWatts ? (reduced ? CLAMPED_BY_REDUCED_CHARGE_POWER : CLAMPED_BY_MAX_POWER) : 0;
         final double lossFactor = powerInWatts >= 0 ? CHARGE_LOSS_FACTOR : DISCHARGE_LOSS_FACTOR;
         final double energyToAddAfterCappingInWattHours = effectivePowerInWattsAfterCapping * lossFactor / 3600.0
-                * duration.get(ChronoUnit.SECONDS);
+                * Math.floorDiv(durationInMillis, 1000l);
         final double effectiveEnergyToAddInWattHours;
         if (powerInWatts < 0) {
             // don't discharge below min SOC
-            effectiveEnergyToAddInWattHours = -Math.min(-energyToAddAfterCappingInWattHours, energyContainedInWattHours-minEnergyContainedInWattHours);
-            savingsInCents += savingsFunctionInCentsPerWattHourDischarged.apply(when, -effectiveEnergyToAddInWattHours);
+            final double availableInWattHours = energyContainedInWattHours-minEnergyContainedInWattHours;
+            if (-energyToAddAfterCappingInWattHours > availableInWattHours) {
+                clamping |= CLAMPED_BY_MIN_SOC;
+            }
+            effectiveEnergyToAddInWattHours = -Math.min(-energyToAddAfterCappingInWattHours, availableInWattHours);
+            savingsInCents += savingsFunctionInCentsPerWattHourDischarged.getSavingsInCents(whenInMillis, -effectiveEnergyToAddInWattHours);
         } else {
             // don't charge beyond capacity
-            effectiveEnergyToAddInWattHours = Math.min(energyToAddAfterCappingInWattHours, capacityInWattHours-energyContainedInWattHours);
+            final double headroomInWattHours = capacityInWattHours-energyContainedInWattHours;
+            if (energyToAddAfterCappingInWattHours > headroomInWattHours) {
+                clamping |= CLAMPED_BY_CAPACITY;
+            }
+            effectiveEnergyToAddInWattHours = Math.min(energyToAddAfterCappingInWattHours, headroomInWattHours);
         }
         energyContainedInWattHours += effectiveEnergyToAddInWattHours;
+        lastClamping = clamping;
+    }
+
+    /**
+     * @return the limits that applied during the last {@link #charge(double, long, long) charge} as a combination of
+     *         the bits {@link #CLAMPED_BY_MAX_POWER}, {@link #CLAMPED_BY_REDUCED_CHARGE_POWER},
+     *         {@link #CLAMPED_BY_CAPACITY} and {@link #CLAMPED_BY_MIN_SOC}; 0 if the power was applied in full
+     */
+    public int getLastClamping() {
+        return lastClamping;
     }
     
     public double getSavingsInCents() {
         return savingsInCents;
     }
 
+    /**
+     * Sets the savings accumulated so far, e.g., when resuming from a {@link BatteryCheckpoint}
+     */
+    public void setSavingsInCents(double savingsInCents) {
+        this.savingsInCents = savingsInCents;
+    }
+
     @Override
     public String toString() {
         return "Battery [minSOCPercent=" + getMinSOCPercent() + ", maxChargePowerInWatts=" + maxChargePowerInWatts
@@ -0,0 +1,138 @@
+package de.axeluhl.kostal;
+
+/**
+ * A bank of many virtual batteries, each with its own parameters and state, stored as one primitive array per
+ * property. Advancing a range of batteries over a sequence of charge/discharge steps applies exactly the arithmetic of
+ * {@link Battery#charge(double, long, long)} to each of them, but without an object or a savings function call per
+ * battery and step: the savings per Watt hour discharged are passed in per step, evaluated once for all batteries.
+ * This assumes that the savings function is linear in the energy discharged, which is the case for
+ * {@link SavingsPerDischarge#FUNCTION}.
+ * <p>
+ *
+ * Disjoint ranges of batteries may be advanced concurrently by different threads.
+ */
+public class BatteryBank {
+    private final int[] minSOCPercents;
+
+    private final double[] minEnergiesContainedInWattHours;
+
+    private final double[] maxChargePowersInWatts;
+
+    private final double[] reducedChargePowersInWatts;
+
+    private final double[] socPercentsWhereReducedChargePowerStarts;
+
+    private final double[] capacitiesInWattHours;
+
+    private final double[] energiesContainedInWattHours;
+
+    private final double[] savingsInCents;
+
+    public BatteryBank(int size) {
+        minSOCPercents = new int[size];
+        minEnergiesContainedInWattHours = new double[size];
+        maxChargePowersInWatts = new double[size];
+        reducedChargePowersInWatts = new double[size];
+        socPercentsWhereReducedChargePowerStarts = new double[size];
+        capacitiesInWattHours = new double[size];
+        energiesContainedInWattHours = new double[size];
+        savingsInCents = new double[size];
+    }
+
+    public int size() {
+        return capacitiesInWattHours.length;
+    }
+
+    /**
+     * Configures battery {@code i} with the same parameters as those of the {@link Battery} constructor and resets its
+     * savings.
+     */
+    public void set(int i, int minSOCPercent, double maxChargePowerInWatts, double reducedChargePowerInWatts,
+            double socPercentWhereReducedChargePowerStarts, double capacityInWattHours, double energyContainedInWattHours) {
+        minSOCPercents[i] = minSOCPercent;
+        minEnergiesContainedInWattHours[i] = capacityInWattHours * minSOCPercent / 100.0;
+        maxChargePowersInWatts[i] = maxChargePowerInWatts;
+        reducedChargePowersInWatts[i] = reducedChargePowerInWatts;
+        socPercentsWhereReducedChargePowerStarts[i] = socPercentWhereReducedChargePowerStarts;
+        capacitiesInWattHours[i] = capacityInWattHours;
+        energiesContainedInWattHours[i] = energyContainedInWattHours;
+        savingsInCents[i] = 0.0;
+    }
+
+    /**
+     * Sets the state of charge of all batteries, like {@link Battery#setSOCPercent(int)} does for a single one
+     */
+    public void setSOCPercent(int batterySOC) {
+        for (int i = 0; i < size(); i++) {
+            energiesContainedInWattHours[i] = batterySOC * capacitiesInWattHours[i] / 100.0;
+        }
+    }
+
+    /**
+     * Advances the batteries with indices {@code [fromBattery, toBattery)} over {@code numberOfSteps} steps.
+     *
+     * @param powersInWatts
+     *            the power to charge (positive) or discharge (negative) with during each step
+     * @param durationsInSeconds
+     *            the duration of each step, truncated to full seconds as in {@link Battery#charge(double, long, long)}
+     * @param savingsInCentsPerWattHourDischarged
+     *            what discharging one Watt hour saves during each step
+     */
+    public void charge(int fromBattery, int toBattery, double[] powersInWatts, long[] durationsInSeconds,
+            double[] savingsInCentsPerWattHourDischarged, int numberOfSteps) {
+        for (int i = fromBattery; i < toBattery; i++) {
+            final double minEnergyContainedInWattHours = minEnergiesContainedInWattHours[i];
+            final double maxChargePowerInWatts = maxChargePowersInWatts[i];
+            final double reducedChargePowerInWatts = reducedChargePowersInWatts[i];
+            final double socPercentWhereReducedChargePowerStarts = socPercentsWhereReducedChargePowerStarts[i];
+            final double capacityInWattHours = capacitiesInWattHours[i];
+            double energyContainedInWattHours = energiesContainedInWattHours[i];
+            double savings = savingsInCents[i];
+            for (int step = 0; step < numberOfSteps; step++) {
+                final double powerInWatts = powersInWatts[step];
+                final double effectivePowerInWattsAfterCapping = Math.signum(powerInWatts)
+                        * Math.min(Math.abs(powerInWatts), energyContainedInWattHours / capacityInWattHours * 100.0 > socPercentWhereReducedChargePowerStarts ? reducedChargePowerInWatts : maxChargePowerInWatts);
+                final double lossFactor = powerInWatts >= 0 ? Battery.CHARGE_LOSS_FACTOR : Battery.DISCHARGE_LOSS_FACTOR;
+                final double energyToAddAfterCappingInWattHours = effectivePowerInWattsAfterCapping * lossFactor / 3600.0
+                        * durationsInSeconds[step];
+                if (powerInWatts < 0) {
+                    final double effectiveEnergyToAddInWattHours = -Math.min(-energyToAddAfterCappingInWattHours, energyContainedInWattHours-minEnergyContainedInWattHours);
+                    savings += savingsInCentsPerWattHourDischarged[step] * -effectiveEnergyToAddInWattHours;
+                    energyContainedInWattHours += effectiveEnergyToAddInWattHours;
+                } else {
+                    energyContainedInWattHours += Math.min(energyToAddAfterCappingInWattHours, capacityInWattHours-energyContainedInWattHours);
+                }
+            }
+            energiesContainedInWattHours[i] = energyContainedInWattHours;
+            savingsInCents[i] = savings;
+        }
+    }
+
+    public int getMinSOCPercent(int i) {
+        return minSOCPercents[i];
+    }
+
+    public double getMaxChargePowerInWatts(int i) {
+        return maxChargePowersInWatts[i];
+    }
+
+    public double getReducedChargePowerInWatts(int i) {
+        return reducedChargePowersInWatts[i];
+    }
+
+    public double getSocPercentWhereReducedChargePowerStarts(int i) {
+        return socPercentsWhereReducedChargePowerStarts[i];
+    }
+
+    public double getCapacityInWattHours(int i) {
+        return capacitiesInWattHours[i];
+    }
+
+    public double getEnergyContainedInWattHours(int i) {
+        return energiesContainedInWattHours[i];
+    }
+
+    public double getSavingsInCents(int i) {
+        return savingsInCents[i];
+    }
+}
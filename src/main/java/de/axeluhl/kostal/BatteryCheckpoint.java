@@ -0,0 +1,206 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The state of an {@link AggregateBatteryDischarge} replay after its last reading: the virtual {@link Battery}'s
+ * energy and accumulated savings, the last reading's time stamp and the power it had available for charging, and the
+ * battery parameters and the {@link #savingsFingerprint(SortedPriceCurve, SortedPriceCurve) fingerprint} of the tariff
+ * and compensation the state was computed with. A follow-up run can
+ * {@link AggregateBatteryDischarge#aggregateBatteryDischarge(Battery, ReadingSource, BatteryCheckpoint) resume} from it
+ * with only the readings that arrived since, e.g., a day's worth, instead of replaying the whole history.
+ * <p>
+ *
+ * Checkpoints are stored as a properties file. Numbers are written with {@link Double#toString(double)} which
+ * round-trips exactly, so a resumed replay produces the same result as an uninterrupted one.
+ */
+public class BatteryCheckpoint {
+    private static final String MIN_SOC_PERCENT = "minSOCPercent";
+    private static final String MAX_CHARGE_POWER_IN_WATTS = "maxChargePowerInWatts";
+    private static final String REDUCED_CHARGE_POWER_IN_WATTS = "reducedChargePowerInWatts";
+    private static final String SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS = "socPercentWhereReducedChargePowerStarts";
+    private static final String CAPACITY_IN_WATT_HOURS = "capacityInWattHours";
+    private static final String ENERGY_CONTAINED_IN_WATT_HOURS = "energyContainedInWattHours";
+    private static final String SAVINGS_IN_CENTS = "savingsInCents";
+    private static final String LAST_TIMESTAMP_IN_MILLIS = "lastTimestampInMillis";
+    private static final String LAST_POWER_AVAILABLE_FOR_CHARGING_IN_WATTS = "lastPowerAvailableForChargingInWatts";
+    private static final String SAVINGS_FINGERPRINT = "savingsFingerprint";
+
+    private final int minSOCPercent;
+
+    private final double maxChargePowerInWatts;
+
+    private final double reducedChargePowerInWatts;
+
+    private final double socPercentWhereReducedChargePowerStarts;
+
+    private final double capacityInWattHours;
+
+    private final double energyContainedInWattHours;
+
+    private final double savingsInCents;
+
+    private final long lastTimestampInMillis;
+
+    private final double lastPowerAvailableForChargingInWatts;
+
+    private final long savingsFingerprint;
+
+    /**
+     * @param savingsFingerprint
+     *            identifies the tariff and compensation that {@code battery}'s savings function was created from, see
+     *            {@link #savingsFingerprint(SortedPriceCurve, SortedPriceCurve)}
+     */
+    public BatteryCheckpoint(Battery battery, long savingsFingerprint, long lastTimestampInMillis,
+            double lastPowerAvailableForChargingInWatts) {
+        this(battery.getMinSOCPercent(), battery.getMaxChargePowerInWatts(), battery.getReducedChargePowerInWatts(),
+                battery.getSocPercentWhereReducedChargePowerStarts(), battery.getCapacityInWattHours(),
+                battery.getEnergyContainedInWattHours(), battery.getSavingsInCents(), lastTimestampInMillis,
+                lastPowerAvailableForChargingInWatts, savingsFingerprint);
+    }
+
+    private BatteryCheckpoint(int minSOCPercent, double maxChargePowerInWatts, double reducedChargePowerInWatts,
+            double socPercentWhereReducedChargePowerStarts, double capacityInWattHours,
+            double energyContainedInWattHours, double savingsInCents, long lastTimestampInMillis,
+            double lastPowerAvailableForChargingInWatts, long savingsFingerprint) {
+        this.minSOCPercent = minSOCPercent;
+        this.maxChargePowerInWatts = maxChargePowerInWatts;
+        this.reducedChargePowerInWatts = reducedChargePowerInWatts;
+        this.socPercentWhereReducedChargePowerStarts = socPercentWhereReducedChargePowerStarts;
+        this.capacityInWattHours = capacityInWattHours;
+        this.energyContainedInWattHours = energyContainedInWattHours;
+        this.savingsInCents = savingsInCents;
+        this.lastTimestampInMillis = lastTimestampInMillis;
+        this.lastPowerAvailableForChargingInWatts = lastPowerAvailableForChargingInWatts;
+        this.savingsFingerprint = savingsFingerprint;
+    }
+
+    /**
+     * @return a fingerprint of the savings function created from {@code tariff} and {@code compensation}
+     */
+    public static long savingsFingerprint(SortedPriceCurve tariff, SortedPriceCurve compensation) {
+        return 31l * tariff.getFingerprint() + compensation.getFingerprint();
+    }
+
+    public static BatteryCheckpoint load(Path file) throws IOException {
+        final Properties properties = new Properties();
+        try (final InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        try {
+            return new BatteryCheckpoint(Integer.parseInt(get(properties, MIN_SOC_PERCENT, file)),
+                    Double.parseDouble(get(properties, MAX_CHARGE_POWER_IN_WATTS, file)),
+                    Double.parseDouble(get(properties, REDUCED_CHARGE_POWER_IN_WATTS, file)),
+                    Double.parseDouble(get(properties, SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS, file)),
+                    Double.parseDouble(get(properties, CAPACITY_IN_WATT_HOURS, file)),
+                    Double.parseDouble(get(properties, ENERGY_CONTAINED_IN_WATT_HOURS, file)),
+                    Double.parseDouble(get(properties, SAVINGS_IN_CENTS, file)),
+                    Long.parseLong(get(properties, LAST_TIMESTAMP_IN_MILLIS, file)),
+                    Double.parseDouble(get(properties, LAST_POWER_AVAILABLE_FOR_CHARGING_IN_WATTS, file)),
+                    Long.parseLong(get(properties, SAVINGS_FINGERPRINT, file)));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed checkpoint file " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static String get(Properties properties, String key, Path file) throws IOException {
+        final String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IOException("Checkpoint file " + file + " lacks property " + key);
+        }
+        return value.trim();
+    }
+
+    /**
+     * Writes this checkpoint to {@code file}, replacing it atomically where the file system supports it, so that an
+     * interrupted run doesn't leave a corrupt checkpoint behind.
+     */
+    public void save(Path file) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty(MIN_SOC_PERCENT, Integer.toString(minSOCPercent));
+        properties.setProperty(MAX_CHARGE_POWER_IN_WATTS, Double.toString(maxChargePowerInWatts));
+        properties.setProperty(REDUCED_CHARGE_POWER_IN_WATTS, Double.toString(reducedChargePowerInWatts));
+        properties.setProperty(SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS, Double.toString(socPercentWhereReducedChargePowerStarts));
+        properties.setProperty(CAPACITY_IN_WATT_HOURS, Double.toString(capacityInWattHours));
+        properties.setProperty(ENERGY_CONTAINED_IN_WATT_HOURS, Double.toString(energyContainedInWattHours));
+        properties.setProperty(SAVINGS_IN_CENTS, Double.toString(savingsInCents));
+        properties.setProperty(LAST_TIMESTAMP_IN_MILLIS, Long.toString(lastTimestampInMillis));
+        properties.setProperty(LAST_POWER_AVAILABLE_FOR_CHARGING_IN_WATTS, Double.toString(lastPowerAvailableForChargingInWatts));
+        properties.setProperty(SAVINGS_FINGERPRINT, Long.toString(savingsFingerprint));
+        final Path absoluteFile = file.toAbsolutePath();
+        final Path temporaryFile = Files.createTempFile(absoluteFile.getParent(), absoluteFile.getFileName().toString(), ".tmp");
+        try {
+            try (final OutputStream out = Files.newOutputStream(temporaryFile)) {
+                properties.store(out, "Battery checkpoint written by " + AggregateBatteryDischarge.class.getName());
+            }
+            try {
+                Files.move(temporaryFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * Sets {@code battery}'s energy and savings to those of this checkpoint
+     *
+     * @throws IllegalArgumentException
+     *             if {@code battery}'s parameters or the {@code savingsFingerprint} of the tariff and compensation its
+     *             savings function was created from differ from those this checkpoint was computed with
+     */
+    public void restore(Battery battery, long savingsFingerprint) {
+        if (savingsFingerprint != this.savingsFingerprint) {
+            throw new IllegalArgumentException("The tariff or compensation differs from the one the checkpoint was computed with: " + this);
+        }
+        if (battery.getMinSOCPercent() != minSOCPercent
+                || battery.getMaxChargePowerInWatts() != maxChargePowerInWatts
+                || battery.getReducedChargePowerInWatts() != reducedChargePowerInWatts
+                || battery.getSocPercentWhereReducedChargePowerStarts() != socPercentWhereReducedChargePowerStarts
+                || battery.getCapacityInWattHours() != capacityInWattHours) {
+            throw new IllegalArgumentException("Battery parameters " + battery
+                    + " don't match those the checkpoint was computed with: " + this);
+        }
+        battery.setEnergyContainedInWattHours(energyContainedInWattHours);
+        battery.setSavingsInCents(savingsInCents);
+    }
+
+    public long getLastTimestampInMillis() {
+        return lastTimestampInMillis;
+    }
+
+    public double getLastPowerAvailableForChargingInWatts() {
+        return lastPowerAvailableForChargingInWatts;
+    }
+
+    public double getEnergyContainedInWattHours() {
+        return energyContainedInWattHours;
+    }
+
+    public double getSavingsInCents() {
+        return savingsInCents;
+    }
+
+    public long getSavingsFingerprint() {
+        return savingsFingerprint;
+    }
+
+    @Override
+    public String toString() {
+        return "BatteryCheckpoint [minSOCPercent=" + minSOCPercent + ", maxChargePowerInWatts=" + maxChargePowerInWatts
+                + ", reducedChargePowerInWatts=" + reducedChargePowerInWatts
+                + ", socPercentWhereReducedChargePowerStarts=" + socPercentWhereReducedChargePowerStarts
+                + ", capacityInWattHours=" + capacityInWattHours + ", energyContainedInWattHours="
+                + energyContainedInWattHours + ", savingsInCents=" + savingsInCents + ", lastTimestampInMillis="
+                + lastTimestampInMillis + ", lastPowerAvailableForChargingInWatts="
+                + lastPowerAvailableForChargingInWatts + ", savingsFingerprint=" + savingsFingerprint + "]";
+    }
+}
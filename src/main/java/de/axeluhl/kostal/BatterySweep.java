@@ -0,0 +1,323 @@
+package de.axeluhl.kostal;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Replays a history of readings once for a whole grid of battery configurations, producing the savings each
+ * configuration would have achieved. The readings are converted into batches of charge/discharge steps; each batch is
+ * then applied to a {@link BatteryBank} holding one virtual battery per configuration, with the bank split across the
+ * cores of a {@link ForkJoinPool}. While one batch is being simulated, the next one is parsed.
+ * <p>
+ *
+ * The results are the same as those of running {@link AggregateBatteryDischarge} once per configuration, up to
+ * rounding differences caused by evaluating the savings function once per Watt hour and step instead of once per
+ * battery and step; see {@link BatteryBank}.
+ * <p>
+ *
+ * Parameter ranges on the command line are given as a single value, a comma-separated list of values, or as
+ * {@code from:to:step} with {@code to} inclusive.
+ */
+public class BatterySweep {
+    private static final int STEPS_PER_BATCH = 1 << 16;
+
+    /**
+     * Batteries per fork/join leaf task; large enough to amortize the task overhead over a batch of steps
+     */
+    private static final int BATTERIES_PER_TASK = 8;
+
+    private final ForkJoinPool pool;
+
+    private final BatteryBank bank;
+
+    private final SavingsPerDischarge savingsFunctionInCentsPerWattHourDischarged;
+
+    /**
+     * A batch of charge/discharge steps derived from consecutive readings
+     */
+    private static class Steps {
+        private final double[] powersInWatts = new double[STEPS_PER_BATCH];
+
+        private final long[] durationsInSeconds = new long[STEPS_PER_BATCH];
+
+        private final double[] savingsInCentsPerWattHourDischarged = new double[STEPS_PER_BATCH];
+
+        private int size;
+    }
+
+    private class ChargeTask extends RecursiveAction {
+        private static final long serialVersionUID = -4405683932640327165L;
+
+        private final int fromBattery;
+
+        private final int toBattery;
+
+        private final Steps steps;
+
+        ChargeTask(int fromBattery, int toBattery, Steps steps) {
+            this.fromBattery = fromBattery;
+            this.toBattery = toBattery;
+            this.steps = steps;
+        }
+
+        @Override
+        protected void compute() {
+            if (toBattery - fromBattery <= BATTERIES_PER_TASK) {
+                bank.charge(fromBattery, toBattery, steps.powersInWatts, steps.durationsInSeconds,
+                        steps.savingsInCentsPerWattHourDischarged, steps.size);
+            } else {
+                final int middle = (fromBattery + toBattery) >>> 1;
+                invokeAll(new ChargeTask(fromBattery, middle, steps), new ChargeTask(middle, toBattery, steps));
+            }
+        }
+    }
+
+    public BatterySweep(BatteryBank bank, SavingsPerDischarge savingsFunctionInCentsPerWattHourDischarged) {
+        this(bank, savingsFunctionInCentsPerWattHourDischarged, ForkJoinPool.commonPool());
+    }
+
+    public BatterySweep(BatteryBank bank, SavingsPerDischarge savingsFunctionInCentsPerWattHourDischarged, ForkJoinPool pool) {
+        this.bank = bank;
+        this.savingsFunctionInCentsPerWattHourDischarged = savingsFunctionInCentsPerWattHourDischarged;
+        this.pool = pool;
+    }
+
+    /**
+     * Builds a bank with one battery for each combination of the parameter values given, in row-major order with the
+     * last parameter varying fastest. All batteries start out empty.
+     *
+     * @throws IllegalArgumentException
+     *             if a minimum SOC isn't a whole percentage, as {@link Battery} expects
+     */
+    public static BatteryBank createBank(double[] minSOCPercents, double[] maxChargePowersInWatts,
+            double[] reducedChargePowersInWatts, double[] socPercentsWhereReducedChargePowerStarts,
+            double[] capacitiesInWattHours) {
+        final BatteryBank bank = new BatteryBank(minSOCPercents.length * maxChargePowersInWatts.length
+                * reducedChargePowersInWatts.length * socPercentsWhereReducedChargePowerStarts.length
+                * capacitiesInWattHours.length);
+        for (final double minSOCPercent : minSOCPercents) {
+            if (minSOCPercent != Math.rint(minSOCPercent)) {
+                throw new IllegalArgumentException("The minimum SOC must be a whole percentage, not " + minSOCPercent);
+            }
+        }
+        int i = 0;
+        for (final double minSOCPercent : minSOCPercents) {
+            for (final double maxChargePowerInWatts : maxChargePowersInWatts) {
+                for (final double reducedChargePowerInWatts : reducedChargePowersInWatts) {
+                    for (final double socPercentWhereReducedChargePowerStarts : socPercentsWhereReducedChargePowerStarts) {
+                        for (final double capacityInWattHours : capacitiesInWattHours) {
+                            bank.set(i++, (int) minSOCPercent, maxChargePowerInWatts, reducedChargePowerInWatts,
+                                    socPercentWhereReducedChargePowerStarts, capacityInWattHours, /* energyContained */ 0);
+                        }
+                    }
+                }
+            }
+        }
+        return bank;
+    }
+
+    /**
+     * Replays all {@code readings} through all batteries of the bank, initializing their SOC from the first reading the
+     * same way {@link AggregateBatteryDischarge#aggregateBatteryDischarge(Battery, ReadingSource)} does.
+     */
+    public BatteryBank sweep(ReadingSource readings) throws IOException {
+        Steps filling = new Steps();
+        Steps simulating = new Steps();
+        ForkJoinTask<Void> pending = null;
+        boolean initialized = false;
+        long lastTimestampInMillis = 0;
+        double lastPowerAvailableForChargingInWatts = 0.0;
+        while (readings.next()) {
+            if (!initialized) {
+                bank.setSOCPercent(readings.getBatterySOC());
+                initialized = true;
+            } else {
+                final int i = filling.size++;
+                filling.powersInWatts[i] = lastPowerAvailableForChargingInWatts;
+                filling.durationsInSeconds[i] = Math.floorDiv(readings.getTimeInMillis() - lastTimestampInMillis, 1000l);
+                filling.savingsInCentsPerWattHourDischarged[i] = lastPowerAvailableForChargingInWatts < 0
+                        ? savingsFunctionInCentsPerWattHourDischarged.getSavingsInCents(lastTimestampInMillis, 1.0)
+                        : 0.0;
+                if (filling.size == STEPS_PER_BATCH) {
+                    if (pending != null) {
+                        pending.join();
+                    }
+                    pending = pool.submit(new ChargeTask(0, bank.size(), filling));
+                    final Steps swap = simulating;
+                    simulating = filling;
+                    filling = swap;
+                    filling.size = 0;
+                }
+            }
+            lastTimestampInMillis = readings.getTimeInMillis();
+            lastPowerAvailableForChargingInWatts = readings.getPvProductionInWatts()
+                    - readings.getHomeOwnConsumptionInWatts();
+        }
+        if (pending != null) {
+            pending.join();
+        }
+        if (filling.size > 0) {
+            pool.invoke(new ChargeTask(0, bank.size(), filling));
+        }
+        return bank;
+    }
+
+    /**
+     * Writes one CSV line per battery of the bank, preceded by a header line
+     */
+    public static void printResults(BatteryBank bank, PrintStream out) {
+        out.println("minSOCPercent,maxChargePowerInWatts,reducedChargePowerInWatts,socPercentWhereReducedChargePowerStarts,capacityInWattHours,energyContainedInWattHours,savingsInEUR");
+        for (int i = 0; i < bank.size(); i++) {
+            out.println(String.format(Locale.US, "%d,%s,%s,%s,%s,%1.2f,%1.2f", bank.getMinSOCPercent(i),
+                    bank.getMaxChargePowerInWatts(i), bank.getReducedChargePowerInWatts(i),
+                    bank.getSocPercentWhereReducedChargePowerStarts(i), bank.getCapacityInWattHours(i),
+                    bank.getEnergyContainedInWattHours(i), bank.getSavingsInCents(i) / 100.0));
+        }
+    }
+
+    /**
+     * Parses a single value, a comma-separated list of values, or an inclusive range of the form
+     * {@code from:to:step}.
+     */
+    public static double[] parseRange(String range) {
+        final String[] fromToStep = range.split(":");
+        if (fromToStep.length == 3) {
+            final double from = Double.parseDouble(fromToStep[0]);
+            final double to = Double.parseDouble(fromToStep[1]);
+            final double step = Double.parseDouble(fromToStep[2]);
+            if (step <= 0 || to < from) {
+                throw new IllegalArgumentException("Invalid range " + range);
+            }
+            final List<Double> values = new ArrayList<>();
+            // tolerate rounding errors accumulated by repeatedly adding a fractional step
+            for (int i = 0; from + i * step <= to + step * 1e-9; i++) {
+                values.add(from + i * step);
+            }
+            return values.stream().mapToDouble(Double::doubleValue).toArray();
+        } else if (fromToStep.length == 1) {
+            final String[] values = range.split(",");
+            final double[] result = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                result[i] = Double.parseDouble(values[i].trim());
+            }
+            return result;
+        } else {
+            throw new IllegalArgumentException("Invalid range " + range);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final Option minSOCPercent = Option.builder("m")
+                .longOpt("minSOCPercent")
+                .hasArg()
+                .argName("range")
+                .desc("minimum state of charge (SOC) in percent; defaults to "+AggregateBatteryDischarge.DEFAULT_MIN_SOC_PERCENT)
+                .build();
+        final Option maxChargePowerInWatts = Option.builder("x")
+                .longOpt("maxChargePowerInWatts")
+                .hasArg()
+                .argName("range")
+                .desc("maximum charge power in Watts; defaults to "+AggregateBatteryDischarge.DEFAULT_MAX_CHARGE_POWER_IN_WATTS)
+                .build();
+        final Option capacityInWattHours = Option.builder("c")
+                .longOpt("capacityInWattHours")
+                .hasArg()
+                .argName("range")
+                .desc("capacity in Watt-Hours; defaults to "+AggregateBatteryDischarge.DEFAULT_CAPACITY_IN_WATT_HOURS)
+                .build();
+        final Option reducedChargePowerInWatts = Option.builder("r")
+                .longOpt("reducedChargePowerInWatts")
+                .hasArg()
+                .argName("range")
+                .desc("reduced charge power in Watts; defaults to "+AggregateBatteryDischarge.DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS)
+                .build();
+        final Option socPercentWhereReducedChargePowerStarts = Option.builder("s")
+                .longOpt("socPercentWhereReducedChargePowerStarts")
+                .hasArg()
+                .argName("range")
+                .desc("state of charge (SOC, in percent) where reduced charge power starts; defaults to "+AggregateBatteryDischarge.DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS)
+                .build();
+        final Option inputFile = Option.builder("f")
+                .longOpt("file")
+                .hasArg()
+                .argName("inputFile")
+                .type(FileInputStream.class)
+                .desc("input file from which to read inverter states; defaults to stdin")
+                .build();
+        final Option binaryFile = Option.builder("b")
+                .longOpt("binaryFile")
+                .hasArg()
+                .argName("binaryFile")
+                .desc("binary history file as written by "+BinaryHistoryWriter.class.getName()+"; used instead of --file")
+                .build();
+        final Option tariffFile = Option.builder()
+                .longOpt("tariffFile")
+                .hasArg()
+                .argName("tariffFile")
+                .desc("file with one line per price interval, giving start time and price in cents per kWh; defaults to the built-in tariffs")
+                .build();
+        final Option compensationFile = Option.builder()
+                .longOpt("compensationFile")
+                .hasArg()
+                .argName("compensationFile")
+                .desc("file with one line per compensation interval, giving start time and compensation in cents per kWh; defaults to the built-in compensation")
+                .build();
+        final Option helpOption = Option.builder("h")
+                .longOpt("help")
+                .desc("display help message; ranges are given as a single value, a comma-separated list, or from:to:step")
+                .build();
+        final Options options = new Options()
+                .addOption(minSOCPercent)
+                .addOption(maxChargePowerInWatts)
+                .addOption(capacityInWattHours)
+                .addOption(reducedChargePowerInWatts)
+                .addOption(socPercentWhereReducedChargePowerStarts)
+                .addOption(inputFile)
+                .addOption(binaryFile)
+                .addOption(tariffFile)
+                .addOption(compensationFile)
+                .addOption(helpOption);
+        final CommandLineParser commandLineParser = new DefaultParser();
+        try {
+            final CommandLine commandLine = commandLineParser.parse(options, args);
+            if (commandLine.hasOption(helpOption)) {
+                new HelpFormatter().printHelp(BatterySweep.class.getName(), options);
+            } else {
+                final BatteryBank bank = createBank(
+                        parseRange(commandLine.getOptionValue(minSOCPercent, ""+AggregateBatteryDischarge.DEFAULT_MIN_SOC_PERCENT)),
+                        parseRange(commandLine.getOptionValue(maxChargePowerInWatts, ""+AggregateBatteryDischarge.DEFAULT_MAX_CHARGE_POWER_IN_WATTS)),
+                        parseRange(commandLine.getOptionValue(reducedChargePowerInWatts, ""+AggregateBatteryDischarge.DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS)),
+                        parseRange(commandLine.getOptionValue(socPercentWhereReducedChargePowerStarts, ""+AggregateBatteryDischarge.DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS)),
+                        parseRange(commandLine.getOptionValue(capacityInWattHours, ""+AggregateBatteryDischarge.DEFAULT_CAPACITY_IN_WATT_HOURS)));
+                try (final ReadingSource readings = commandLine.hasOption(binaryFile)
+                        ? new BinaryHistoryReader(Paths.get(commandLine.getOptionValue(binaryFile)))
+                        : new ReadingParser(commandLine.hasOption(inputFile) ? (FileInputStream) commandLine.getParsedOptionValue(inputFile) : System.in)) {
+                    new BatterySweep(bank, AggregateBatteryDischarge.createSavingsFunction(
+                            commandLine.getOptionValue(tariffFile), commandLine.getOptionValue(compensationFile),
+                            /* forConcurrentUse */ false)).sweep(readings);
+                }
+                printResults(bank, System.out);
+            }
+        } catch (ParseException e) {
+            System.err.println("Parsing failed. Reason: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
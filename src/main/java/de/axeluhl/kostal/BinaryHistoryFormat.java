@@ -0,0 +1,75 @@
+package de.axeluhl.kostal;
+
+import java.nio.ByteOrder;
+
+/**
+ * Describes the layout of the compact columnar files written by {@link BinaryHistoryWriter} and read by
+ * {@link BinaryHistoryReader}.
+ * <p>
+ *
+ * A file consists of a header, a sequence of blocks, one per UTC day that has readings, and a block index followed by
+ * a trailer at the end of the file. All numbers are stored in {@link #BYTE_ORDER little endian} byte order.
+ *
+ * <pre>
+ * header:  int magic, int version
+ * block:   int[n] time delta in millis relative to the block's first time stamp
+ *          float[n] home own consumption, float[n] PV production, float[n] total active power,
+ *          float[n] battery charge, short[n] battery SOC
+ * index:   per block: long start of UTC day in millis, long first time stamp in millis, long byte offset, int n
+ * trailer: long index offset, int number of blocks, long total number of readings, int magic
+ * </pre>
+ *
+ * The {@code float} columns keep about seven significant digits which is well beyond the resolution of the inverter's
+ * power measurements.
+ */
+final class BinaryHistoryFormat {
+    static final int MAGIC = 0x4B424831; // "KBH1"
+
+    static final int VERSION = 1;
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    static final int INDEX_ENTRY_SIZE = 3 * Long.BYTES + Integer.BYTES;
+
+    static final int TRAILER_SIZE = 2 * Long.BYTES + 2 * Integer.BYTES;
+
+    /**
+     * Number of bytes a single reading occupies across all columns of a block
+     */
+    static final int BYTES_PER_READING = 5 * Integer.BYTES + Short.BYTES;
+
+    static final long MILLIS_PER_DAY = 24l * 3600l * 1000l;
+
+    private BinaryHistoryFormat() {
+    }
+
+    static long startOfUtcDay(long timeInMillis) {
+        return Math.floorDiv(timeInMillis, MILLIS_PER_DAY) * MILLIS_PER_DAY;
+    }
+
+    static long homeOwnConsumptionOffset(int n) {
+        return (long) Integer.BYTES * n;
+    }
+
+    static long pvProductionOffset(int n) {
+        return (long) (Integer.BYTES + Float.BYTES) * n;
+    }
+
+    static long totalActivePowerOffset(int n) {
+        return (long) (Integer.BYTES + 2 * Float.BYTES) * n;
+    }
+
+    static long batteryChargeOffset(int n) {
+        return (long) (Integer.BYTES + 3 * Float.BYTES) * n;
+    }
+
+    static long batterySOCOffset(int n) {
+        return (long) (Integer.BYTES + 4 * Float.BYTES) * n;
+    }
+
+    static long blockSize(int n) {
+        return (long) BYTES_PER_READING * n;
+    }
+}
@@ -0,0 +1,269 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads a file in the format described by {@link BinaryHistoryFormat} by memory-mapping it and decoding the values of
+ * the current reading straight from the mapped columns. Only the block index is read into the heap. The file is mapped
+ * in segments of up to {@link #MAX_SEGMENT_SIZE} bytes, each starting at a block boundary, so files larger than what a
+ * single {@link MappedByteBuffer} can address are supported.
+ * <p>
+ *
+ * {@link #setRange(long, long)} restricts the readings delivered to a time range; the first block of the range is found
+ * by a binary search on the block index, so no data outside the range is touched.
+ */
+public class BinaryHistoryReader implements ReadingSource {
+    private static final long MAX_SEGMENT_SIZE = 1l << 30;
+
+    private final FileChannel channel;
+
+    private final long[] blockDayStartsInMillis;
+
+    private final long[] blockFirstTimesInMillis;
+
+    private final long[] blockOffsets;
+
+    private final int[] blockSizes;
+
+    private final long numberOfReadings;
+
+    private MappedByteBuffer segment;
+
+    private long segmentStart;
+
+    private long segmentEnd;
+
+    private long fromTimeInMillis = Long.MIN_VALUE;
+
+    private long toTimeInMillis = Long.MAX_VALUE;
+
+    /**
+     * Index of the block that the current reading belongs to; {@link #blockSizes}{@code .length} once exhausted
+     */
+    private int block;
+
+    private int blockSize;
+
+    private long blockFirstTimeInMillis;
+
+    /**
+     * Position of the current block's first byte within {@link #segment}
+     */
+    private int blockPositionInSegment;
+
+    /**
+     * Index of the current reading within the current block
+     */
+    private int reading;
+
+    private long timeInMillis;
+
+    public BinaryHistoryReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final long fileSize = channel.size();
+            final ByteBuffer header = read(0, BinaryHistoryFormat.HEADER_SIZE);
+            if (fileSize < BinaryHistoryFormat.HEADER_SIZE + BinaryHistoryFormat.TRAILER_SIZE
+                    || header.getInt() != BinaryHistoryFormat.MAGIC) {
+                throw new IOException("Not a binary history file: " + file);
+            }
+            final int version = header.getInt();
+            if (version != BinaryHistoryFormat.VERSION) {
+                throw new IOException("Unsupported binary history version " + version + " in " + file);
+            }
+            final ByteBuffer trailer = read(fileSize - BinaryHistoryFormat.TRAILER_SIZE, BinaryHistoryFormat.TRAILER_SIZE);
+            final long indexOffset = trailer.getLong();
+            final int numberOfBlocks = trailer.getInt();
+            numberOfReadings = trailer.getLong();
+            if (trailer.getInt() != BinaryHistoryFormat.MAGIC) {
+                throw new IOException("Binary history file " + file + " is truncated or wasn't closed properly");
+            }
+            final ByteBuffer index = read(indexOffset, numberOfBlocks * BinaryHistoryFormat.INDEX_ENTRY_SIZE);
+            blockDayStartsInMillis = new long[numberOfBlocks];
+            blockFirstTimesInMillis = new long[numberOfBlocks];
+            blockOffsets = new long[numberOfBlocks];
+            blockSizes = new int[numberOfBlocks];
+            for (int i = 0; i < numberOfBlocks; i++) {
+                blockDayStartsInMillis[i] = index.getLong();
+                blockFirstTimesInMillis[i] = index.getLong();
+                blockOffsets[i] = index.getLong();
+                blockSizes[i] = index.getInt();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        setRange(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        final ByteBuffer result = ByteBuffer.allocate(length).order(BinaryHistoryFormat.BYTE_ORDER);
+        while (result.hasRemaining()) {
+            if (channel.read(result, offset + result.position()) < 0) {
+                throw new IOException("Unexpected end of binary history file");
+            }
+        }
+        ((Buffer) result).flip(); // Buffer's flip(), as ByteBuffer's covariant override doesn't exist on Java 8
+        return result;
+    }
+
+    /**
+     * Restricts the readings delivered by subsequent calls to {@link #next()} to the time range
+     * {@code [fromTimeInMillis, toTimeInMillis)} and positions the cursor before the first reading of that range.
+     */
+    public void setRange(long fromTimeInMillis, long toTimeInMillis) {
+        this.fromTimeInMillis = fromTimeInMillis;
+        this.toTimeInMillis = toTimeInMillis;
+        if (fromTimeInMillis == Long.MIN_VALUE) {
+            block = -1; // next() will advance to the first block
+        } else {
+            final int searchResult = Arrays.binarySearch(blockDayStartsInMillis,
+                    BinaryHistoryFormat.startOfUtcDay(fromTimeInMillis));
+            block = (searchResult >= 0 ? searchResult : -searchResult - 1) - 1;
+        }
+        blockSize = 0;
+        reading = 0;
+    }
+
+    public long getFromTimeInMillis() {
+        return fromTimeInMillis;
+    }
+
+    public long getToTimeInMillis() {
+        return toTimeInMillis;
+    }
+
+    /**
+     * @return the total number of readings in the file, regardless of any {@link #setRange(long, long) range}
+     */
+    public long getNumberOfReadings() {
+        return numberOfReadings;
+    }
+
+    public int getNumberOfBlocks() {
+        return blockSizes.length;
+    }
+
+    /**
+     * @return the start of the UTC day whose readings the block with index {@code block} holds
+     */
+    public long getBlockDayStartInMillis(int block) {
+        return blockDayStartsInMillis[block];
+    }
+
+    public int getBlockSize(int block) {
+        return blockSizes[block];
+    }
+
+    public long getBlockFirstTimeInMillis(int block) {
+        return blockFirstTimesInMillis[block];
+    }
+
+    /**
+     * Decodes the time stamps of the readings of the block with index {@code block}, regardless of any
+     * {@link #setRange(long, long) range}, and their power available for charging, i.e., the PV production minus the
+     * home own consumption, into arrays that must hold at least {@link #getBlockSize(int)} values. The block is mapped
+     * on its own, independently of the cursor, so unlike {@link #next()} this may be called concurrently.
+     */
+    public void readBlock(int block, long[] timesInMillis, double[] powersAvailableForChargingInWatts) throws IOException {
+        final int size = blockSizes[block];
+        final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, blockOffsets[block], BinaryHistoryFormat.blockSize(size));
+        buffer.order(BinaryHistoryFormat.BYTE_ORDER);
+        final int homeOwnConsumptionOffset = (int) BinaryHistoryFormat.homeOwnConsumptionOffset(size);
+        final int pvProductionOffset = (int) BinaryHistoryFormat.pvProductionOffset(size);
+        for (int i = 0; i < size; i++) {
+            timesInMillis[i] = blockFirstTimesInMillis[block] + buffer.getInt(Integer.BYTES * i);
+            powersAvailableForChargingInWatts[i] = (double) buffer.getFloat(pvProductionOffset + Float.BYTES * i)
+                    - (double) buffer.getFloat(homeOwnConsumptionOffset + Float.BYTES * i);
+        }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (true) {
+            if (reading + 1 < blockSize) {
+                reading++;
+            } else if (block + 1 < blockSizes.length) {
+                enterBlock(block + 1);
+            } else {
+                block = blockSizes.length;
+                blockSize = 0;
+                return false;
+            }
+            timeInMillis = blockFirstTimeInMillis + segment.getInt(blockPositionInSegment + Integer.BYTES * reading);
+            if (timeInMillis >= toTimeInMillis) {
+                block = blockSizes.length;
+                blockSize = 0;
+                return false;
+            }
+            if (timeInMillis >= fromTimeInMillis) {
+                return true;
+            }
+        }
+    }
+
+    private void enterBlock(int newBlock) throws IOException {
+        block = newBlock;
+        blockSize = blockSizes[block];
+        blockFirstTimeInMillis = blockFirstTimesInMillis[block];
+        final long blockStart = blockOffsets[block];
+        final long blockEnd = blockStart + BinaryHistoryFormat.blockSize(blockSize);
+        if (segment == null || blockStart < segmentStart || blockEnd > segmentEnd) {
+            segmentStart = blockStart;
+            segmentEnd = Math.min(channel.size(), blockStart + Math.max(MAX_SEGMENT_SIZE, blockEnd - blockStart));
+            segment = channel.map(MapMode.READ_ONLY, segmentStart, segmentEnd - segmentStart);
+            segment.order(BinaryHistoryFormat.BYTE_ORDER);
+        }
+        blockPositionInSegment = (int) (blockStart - segmentStart);
+        reading = 0;
+    }
+
+    @Override
+    public long getTimeInMillis() {
+        return timeInMillis;
+    }
+
+    @Override
+    public double getHomeOwnConsumptionInWatts() {
+        return segment.getFloat(blockPositionInSegment
+                + (int) BinaryHistoryFormat.homeOwnConsumptionOffset(blockSize) + Float.BYTES * reading);
+    }
+
+    @Override
+    public double getPvProductionInWatts() {
+        return segment.getFloat(blockPositionInSegment
+                + (int) BinaryHistoryFormat.pvProductionOffset(blockSize) + Float.BYTES * reading);
+    }
+
+    @Override
+    public double getTotalActivePowerInWatts() {
+        return segment.getFloat(blockPositionInSegment
+                + (int) BinaryHistoryFormat.totalActivePowerOffset(blockSize) + Float.BYTES * reading);
+    }
+
+    @Override
+    public int getBatterySOC() {
+        return segment.getShort(blockPositionInSegment
+                + (int) BinaryHistoryFormat.batterySOCOffset(blockSize) + Short.BYTES * reading);
+    }
+
+    @Override
+    public double getBatteryChargeInWatts() {
+        return segment.getFloat(blockPositionInSegment
+                + (int) BinaryHistoryFormat.batteryChargeOffset(blockSize) + Float.BYTES * reading);
+    }
+
+    @Override
+    public void close() throws IOException {
+        segment = null;
+        channel.close();
+    }
+}
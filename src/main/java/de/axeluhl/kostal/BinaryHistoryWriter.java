@@ -0,0 +1,259 @@
+package de.axeluhl.kostal;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Converts readings into the columnar format described by {@link BinaryHistoryFormat}. Readings are collected per UTC
+ * day in primitive arrays; when a reading for a later day arrives, the day's block is written, so memory use is bounded
+ * by one day's worth of readings. The block index is written by {@link #close()}, so the file is only usable after it
+ * has been closed.
+ * <p>
+ *
+ * Readings are expected in ascending time order. A reading that belongs to an earlier day than the block currently
+ * being collected is appended to the current block, keeping the file readable in the order the readings were received.
+ * <p>
+ *
+ * The {@link #main(String[])} method converts the text output of {@code kostal-aggregateBatteryUse} once, so that
+ * subsequent runs of {@link AggregateBatteryDischarge} can use the {@code --binaryFile} option instead of parsing the
+ * text again.
+ */
+public class BinaryHistoryWriter implements Closeable {
+    private static final int INITIAL_BLOCK_CAPACITY = 17280; // a day at 5s resolution
+
+    private final FileChannel channel;
+
+    private long position;
+
+    private int[] timeDeltasInMillis = new int[INITIAL_BLOCK_CAPACITY];
+
+    private float[] homeOwnConsumptionInWatts = new float[INITIAL_BLOCK_CAPACITY];
+
+    private float[] pvProductionInWatts = new float[INITIAL_BLOCK_CAPACITY];
+
+    private float[] totalActivePowerInWatts = new float[INITIAL_BLOCK_CAPACITY];
+
+    private float[] batteryChargeInWatts = new float[INITIAL_BLOCK_CAPACITY];
+
+    private short[] batterySOC = new short[INITIAL_BLOCK_CAPACITY];
+
+    private int blockSize;
+
+    private long blockDayStartInMillis;
+
+    private long blockFirstTimeInMillis;
+
+    private long[] indexDayStartsInMillis = new long[64];
+
+    private long[] indexFirstTimesInMillis = new long[64];
+
+    private long[] indexOffsets = new long[64];
+
+    private int[] indexSizes = new int[64];
+
+    private int numberOfBlocks;
+
+    private long numberOfReadings;
+
+    public BinaryHistoryWriter(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        final ByteBuffer header = ByteBuffer.allocate(BinaryHistoryFormat.HEADER_SIZE).order(BinaryHistoryFormat.BYTE_ORDER);
+        header.putInt(BinaryHistoryFormat.MAGIC).putInt(BinaryHistoryFormat.VERSION);
+        // flip() and position(int) are called on Buffer; ByteBuffer only overrides them covariantly from Java 9 on
+        ((Buffer) header).flip();
+        write(header);
+    }
+
+    public void append(long timeInMillis, double homeOwnConsumptionInWatts, double pvProductionInWatts,
+            double totalActivePowerInWatts, int batterySOC, double batteryChargeInWatts) throws IOException {
+        final long dayStartInMillis = BinaryHistoryFormat.startOfUtcDay(timeInMillis);
+        if (blockSize > 0 && dayStartInMillis > blockDayStartInMillis) {
+            flushBlock();
+        }
+        if (blockSize == 0) {
+            blockDayStartInMillis = dayStartInMillis;
+            blockFirstTimeInMillis = timeInMillis;
+        }
+        if (blockSize == timeDeltasInMillis.length) {
+            growBlock();
+        }
+        timeDeltasInMillis[blockSize] = Math.toIntExact(timeInMillis - blockFirstTimeInMillis);
+        this.homeOwnConsumptionInWatts[blockSize] = (float) homeOwnConsumptionInWatts;
+        this.pvProductionInWatts[blockSize] = (float) pvProductionInWatts;
+        this.totalActivePowerInWatts[blockSize] = (float) totalActivePowerInWatts;
+        this.batteryChargeInWatts[blockSize] = (float) batteryChargeInWatts;
+        this.batterySOC[blockSize] = (short) batterySOC;
+        blockSize++;
+        numberOfReadings++;
+    }
+
+    /**
+     * Appends all remaining readings from {@code readings}
+     *
+     * @return the number of readings appended
+     */
+    public long append(ReadingSource readings) throws IOException {
+        long count = 0;
+        while (readings.next()) {
+            append(readings.getTimeInMillis(), readings.getHomeOwnConsumptionInWatts(), readings.getPvProductionInWatts(),
+                    readings.getTotalActivePowerInWatts(), readings.getBatterySOC(), readings.getBatteryChargeInWatts());
+            count++;
+        }
+        return count;
+    }
+
+    private void growBlock() {
+        final int newCapacity = 2 * timeDeltasInMillis.length;
+        timeDeltasInMillis = Arrays.copyOf(timeDeltasInMillis, newCapacity);
+        homeOwnConsumptionInWatts = Arrays.copyOf(homeOwnConsumptionInWatts, newCapacity);
+        pvProductionInWatts = Arrays.copyOf(pvProductionInWatts, newCapacity);
+        totalActivePowerInWatts = Arrays.copyOf(totalActivePowerInWatts, newCapacity);
+        batteryChargeInWatts = Arrays.copyOf(batteryChargeInWatts, newCapacity);
+        batterySOC = Arrays.copyOf(batterySOC, newCapacity);
+    }
+
+    private void flushBlock() throws IOException {
+        if (numberOfBlocks == indexOffsets.length) {
+            final int newCapacity = 2 * indexOffsets.length;
+            indexDayStartsInMillis = Arrays.copyOf(indexDayStartsInMillis, newCapacity);
+            indexFirstTimesInMillis = Arrays.copyOf(indexFirstTimesInMillis, newCapacity);
+            indexOffsets = Arrays.copyOf(indexOffsets, newCapacity);
+            indexSizes = Arrays.copyOf(indexSizes, newCapacity);
+        }
+        indexDayStartsInMillis[numberOfBlocks] = blockDayStartInMillis;
+        indexFirstTimesInMillis[numberOfBlocks] = blockFirstTimeInMillis;
+        indexOffsets[numberOfBlocks] = position;
+        indexSizes[numberOfBlocks] = blockSize;
+        numberOfBlocks++;
+        final ByteBuffer block = ByteBuffer.allocate(Math.toIntExact(BinaryHistoryFormat.blockSize(blockSize)))
+                .order(BinaryHistoryFormat.BYTE_ORDER);
+        block.asIntBuffer().put(timeDeltasInMillis, 0, blockSize);
+        ((Buffer) block).position(Math.toIntExact(BinaryHistoryFormat.homeOwnConsumptionOffset(blockSize)));
+        block.asFloatBuffer().put(homeOwnConsumptionInWatts, 0, blockSize);
+        ((Buffer) block).position(Math.toIntExact(BinaryHistoryFormat.pvProductionOffset(blockSize)));
+        block.asFloatBuffer().put(pvProductionInWatts, 0, blockSize);
+        ((Buffer) block).position(Math.toIntExact(BinaryHistoryFormat.totalActivePowerOffset(blockSize)));
+        block.asFloatBuffer().put(totalActivePowerInWatts, 0, blockSize);
+        ((Buffer) block).position(Math.toIntExact(BinaryHistoryFormat.batteryChargeOffset(blockSize)));
+        block.asFloatBuffer().put(batteryChargeInWatts, 0, blockSize);
+        ((Buffer) block).position(Math.toIntExact(BinaryHistoryFormat.batterySOCOffset(blockSize)));
+        block.asShortBuffer().put(batterySOC, 0, blockSize);
+        ((Buffer) block).position(0);
+        write(block);
+        blockSize = 0;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes the last block, the block index and the trailer, then closes the file. Does nothing if the file was
+     * already closed, e.g., by {@link #abort()}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            if (blockSize > 0) {
+                flushBlock();
+            }
+            final long indexOffset = position;
+            final ByteBuffer index = ByteBuffer
+                    .allocate(numberOfBlocks * BinaryHistoryFormat.INDEX_ENTRY_SIZE + BinaryHistoryFormat.TRAILER_SIZE)
+                    .order(BinaryHistoryFormat.BYTE_ORDER);
+            for (int i = 0; i < numberOfBlocks; i++) {
+                index.putLong(indexDayStartsInMillis[i]).putLong(indexFirstTimesInMillis[i]).putLong(indexOffsets[i])
+                        .putInt(indexSizes[i]);
+            }
+            index.putLong(indexOffset).putInt(numberOfBlocks).putLong(numberOfReadings).putInt(BinaryHistoryFormat.MAGIC);
+            ((Buffer) index).flip();
+            write(index);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes the file without writing the last block, the block index and the trailer, e.g., because reading the
+     * input failed, so that a {@link BinaryHistoryReader} rejects the incomplete file instead of taking it for a
+     * complete history
+     */
+    public void abort() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Converts text input or exported log data to a binary history file. If reading the input fails, no output file
+     * is left behind.
+     */
+    public static void main(String[] args) throws IOException {
+        final Option inputFile = Option.builder("f")
+                .longOpt("file")
+                .hasArg()
+                .argName("inputFile")
+                .type(FileInputStream.class)
+                .desc("input file from which to read inverter states in text form; defaults to stdin")
+                .build();
+        final Option kostalLogs = KostalLogReadingSource.createLogsOption();
+        final Option kostalLogColumns = KostalLogReadingSource.createColumnsOption();
+        final Option outputFile = Option.builder("o")
+                .longOpt("output")
+                .hasArg()
+                .argName("outputFile")
+                .required()
+                .desc("binary history file to write")
+                .build();
+        final Options options = new Options()
+                .addOption(inputFile)
+                .addOption(kostalLogs)
+                .addOption(kostalLogColumns)
+                .addOption(outputFile);
+        final CommandLineParser commandLineParser = new DefaultParser();
+        try {
+            final CommandLine commandLine = commandLineParser.parse(options, args);
+            final Path output = Paths.get(commandLine.getOptionValue(outputFile));
+            try (final ReadingSource readings = commandLine.hasOption(kostalLogs)
+                    ? new KostalLogReadingSource(PipelinedFileReadingSource.listFiles(Paths.get(commandLine.getOptionValue(kostalLogs))),
+                            KostalLogReadingSource.parseColumns(commandLine.getOptionValue(kostalLogColumns, "")))
+                    : new ReadingParser(commandLine.hasOption(inputFile) ? (FileInputStream) commandLine.getParsedOptionValue(inputFile) : System.in)) {
+                final BinaryHistoryWriter writer = new BinaryHistoryWriter(output);
+                final long count;
+                try {
+                    count = writer.append(readings);
+                } catch (IOException | RuntimeException e) {
+                    writer.abort();
+                    Files.deleteIfExists(output);
+                    throw e;
+                }
+                writer.close();
+                System.err.println("Converted " + count + " readings");
+            }
+        } catch (ParseException e) {
+            System.err.println("Parsing failed. Reason: " + e.getMessage());
+            new HelpFormatter().printHelp(BinaryHistoryWriter.class.getName(), options);
+        }
+    }
+}
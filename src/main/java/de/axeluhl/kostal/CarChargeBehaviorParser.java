@@ -0,0 +1,449 @@
+package de.axeluhl.kostal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses the output of {@code kostal-dumpCarChargeBehavior}, which selects the five inverter fields of the
+ * {@link InfluxDbReadingSource#DEFAULT_MEASUREMENT pv} measurement together with the wallbox fields of the
+ * {@value #WALLBOX_MEASUREMENT} measurement, and splits it into {@link #getInverterReadings() inverter readings} and
+ * {@link #getWallboxReadings() wallbox readings}, e.g., for a {@link WallboxJoin}. The columns are:
+ *
+ * <ol>
+ * <li>time stamp in nanoseconds since the epoch</li>
+ * <li>home own consumption in Watts</li>
+ * <li>PV production in Watts</li>
+ * <li>total active power (powermeter) in Watts</li>
+ * <li>battery SOC in percent</li>
+ * <li>battery charge in Watts</li>
+ * <li>{@code CurrentPhase1} in Amperes</li>
+ * <li>{@code CurrentPhase2} in Amperes</li>
+ * <li>{@code CurrentPhase3} in Amperes</li>
+ * <li>{@code Socket1CableState}, an integer</li>
+ * <li>{@code Socket1Mode3State}, the IEC 61851 state: either its letter {@code A} to {@code F}, or its index {@code 0}
+ * to {@code 5}</li>
+ * </ol>
+ * <p>
+ *
+ * The {@code influx} command line client prints the result of each query as one block per measurement, in the order
+ * of the measurement names, each block headed by a {@code name:} line, a line with the column names and a line
+ * underlining them. In a block, the columns of the other measurement are empty, so a row has six whitespace-separated
+ * columns. Rows with all eleven columns provide both readings. Since the script drops the first three lines of each
+ * query's output, the {@value #WALLBOX_MEASUREMENT} block of each query, which comes first, is not named, and neither is
+ * the {@link InfluxDbReadingSource#DEFAULT_MEASUREMENT pv} block of a query without wallbox readings. A row of six
+ * columns is therefore recognized as a wallbox row by the letter of its Mode 3 state in the last column, which also
+ * marks the start of an unnamed wallbox block; other rows of six columns are inverter rows, unless a {@code name:}
+ * line has explicitly started a {@value #WALLBOX_MEASUREMENT} block, in which the Mode 3 state may also be given by its
+ * index. Blank lines, headers and underlines are skipped, and so are malformed lines in
+ * {@link #setLenient(boolean) lenient} mode.
+ * <p>
+ *
+ * Each query returns the wallbox block of a day before the inverter block of the same day, while a join consumes both
+ * in time order. The rows of one kind read while looking for the next row of the other kind are therefore queued in
+ * primitive arrays; the queues hold at most one query's worth of rows. Like {@link ReadingParser}, lines are parsed in
+ * a re-used byte buffer, creating no objects per line.
+ */
+public class CarChargeBehaviorParser implements Closeable {
+    public static final String WALLBOX_MEASUREMENT = "ebox";
+
+    private static final int INVERTER_ROW_COLUMNS = 6;
+
+    private static final int COMBINED_ROW_COLUMNS = 11;
+
+    private static final long NANOS_PER_MILLI = 1000000l;
+
+    private static final byte[] NAME_PREFIX = "name:".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] TIME_HEADER = "time".getBytes(StandardCharsets.US_ASCII);
+
+    private final InputStream in;
+
+    private final byte[] readBuffer = new byte[1 << 16];
+
+    private int readPosition;
+
+    private int readLimit;
+
+    private byte[] line = new byte[256];
+
+    /**
+     * Room for one more column than a combined row has, to detect rows with too many columns
+     */
+    private final int[] columnBounds = new int[2 * (COMBINED_ROW_COLUMNS + 1)];
+
+    private boolean lenient;
+
+    private long numberOfMalformedLines;
+
+    /**
+     * The measurement of the block the current line belongs to, if known
+     */
+    private String measurement;
+
+    /**
+     * Whether {@link #measurement} was set by a {@code name:} line
+     */
+    private boolean explicitlyNamed;
+
+    private final ReadingBatch inverterQueue = new ReadingBatch();
+
+    private final WallboxQueue wallboxQueue = new WallboxQueue();
+
+    private final Inverter inverterReadings = new Inverter();
+
+    private final Wallbox wallboxReadings = new Wallbox();
+
+    /**
+     * Wallbox rows in primitive arrays, consumed from {@link #head}
+     */
+    private static class WallboxQueue {
+        private long[] timesInMillis = new long[1024];
+
+        private double[] currentsInAmperes = new double[3 * 1024];
+
+        private int[] cableStates = new int[1024];
+
+        private char[] mode3States = new char[1024];
+
+        private int head;
+
+        private int size;
+
+        void append(long timeInMillis, double current1, double current2, double current3, int cableState, char mode3State) {
+            if (head == size) {
+                head = size = 0;
+            }
+            if (size == timesInMillis.length) {
+                timesInMillis = Arrays.copyOf(timesInMillis, 2 * size);
+                currentsInAmperes = Arrays.copyOf(currentsInAmperes, 6 * size);
+                cableStates = Arrays.copyOf(cableStates, 2 * size);
+                mode3States = Arrays.copyOf(mode3States, 2 * size);
+            }
+            timesInMillis[size] = timeInMillis;
+            currentsInAmperes[3 * size] = current1;
+            currentsInAmperes[3 * size + 1] = current2;
+            currentsInAmperes[3 * size + 2] = current3;
+            cableStates[size] = cableState;
+            mode3States[size] = mode3State;
+            size++;
+        }
+
+        boolean isEmpty() {
+            return head == size;
+        }
+    }
+
+    private class Inverter implements ReadingSource {
+        @Override
+        public boolean next() throws IOException {
+            while (!inverterQueue.next()) {
+                inverterQueue.clear();
+                if (!readRow()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public long getTimeInMillis() {
+            return inverterQueue.getTimeInMillis();
+        }
+
+        @Override
+        public double getHomeOwnConsumptionInWatts() {
+            return inverterQueue.getHomeOwnConsumptionInWatts();
+        }
+
+        @Override
+        public double getPvProductionInWatts() {
+            return inverterQueue.getPvProductionInWatts();
+        }
+
+        @Override
+        public double getTotalActivePowerInWatts() {
+            return inverterQueue.getTotalActivePowerInWatts();
+        }
+
+        @Override
+        public int getBatterySOC() {
+            return inverterQueue.getBatterySOC();
+        }
+
+        @Override
+        public double getBatteryChargeInWatts() {
+            return inverterQueue.getBatteryChargeInWatts();
+        }
+
+        @Override
+        public void close() throws IOException {
+            CarChargeBehaviorParser.this.close();
+        }
+    }
+
+    /**
+     * Copies the current reading out of the {@link #wallboxQueue} as appending to the queue may overwrite it
+     */
+    private class Wallbox implements WallboxReadingSource {
+        private long timeInMillis;
+
+        private double currentPhase1InAmperes;
+
+        private double currentPhase2InAmperes;
+
+        private double currentPhase3InAmperes;
+
+        private int cableState;
+
+        private char mode3State;
+
+        @Override
+        public boolean next() throws IOException {
+            while (wallboxQueue.isEmpty()) {
+                if (!readRow()) {
+                    return false;
+                }
+            }
+            final int i = wallboxQueue.head++;
+            timeInMillis = wallboxQueue.timesInMillis[i];
+            currentPhase1InAmperes = wallboxQueue.currentsInAmperes[3 * i];
+            currentPhase2InAmperes = wallboxQueue.currentsInAmperes[3 * i + 1];
+            currentPhase3InAmperes = wallboxQueue.currentsInAmperes[3 * i + 2];
+            cableState = wallboxQueue.cableStates[i];
+            mode3State = wallboxQueue.mode3States[i];
+            return true;
+        }
+
+        @Override
+        public long getTimeInMillis() {
+            return timeInMillis;
+        }
+
+        @Override
+        public double getCurrentPhase1InAmperes() {
+            return currentPhase1InAmperes;
+        }
+
+        @Override
+        public double getCurrentPhase2InAmperes() {
+            return currentPhase2InAmperes;
+        }
+
+        @Override
+        public double getCurrentPhase3InAmperes() {
+            return currentPhase3InAmperes;
+        }
+
+        @Override
+        public int getCableState() {
+            return cableState;
+        }
+
+        @Override
+        public char getMode3State() {
+            return mode3State;
+        }
+
+        @Override
+        public void close() throws IOException {
+            CarChargeBehaviorParser.this.close();
+        }
+    }
+
+    public CarChargeBehaviorParser(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * In lenient mode, lines that are neither blank, nor headers, nor well-formed are skipped rather than causing a
+     * {@link NumberFormatException}
+     */
+    public void setLenient(boolean lenient) {
+        this.lenient = lenient;
+    }
+
+    public long getNumberOfMalformedLines() {
+        return numberOfMalformedLines;
+    }
+
+    /**
+     * @return the inverter readings of the input; closing them closes this parser
+     */
+    public ReadingSource getInverterReadings() {
+        return inverterReadings;
+    }
+
+    /**
+     * @return the wallbox readings of the input; closing them closes this parser
+     */
+    public WallboxReadingSource getWallboxReadings() {
+        return wallboxReadings;
+    }
+
+    /**
+     * Reads lines up to and including the next row, appending its readings to the queues
+     *
+     * @return {@code false} at the end of the input
+     */
+    private boolean readRow() throws IOException {
+        int length;
+        while ((length = readLine()) >= 0) {
+            final int columns = tokenize(length);
+            if (columns == 0 || startsWith(length, TIME_HEADER) || line[columnBounds[0]] == '-') {
+                continue; // blank line, header, or underline
+            }
+            if (startsWith(length, NAME_PREFIX)) {
+                measurement = new String(line, columnBounds[0] + NAME_PREFIX.length, length - columnBounds[0] - NAME_PREFIX.length, StandardCharsets.US_ASCII).trim();
+                explicitlyNamed = true;
+                continue;
+            }
+            try {
+                parseRow(columns, length);
+                return true;
+            } catch (NumberFormatException e) {
+                if (!lenient) {
+                    throw e;
+                }
+                numberOfMalformedLines++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the next line, without its line feed, to the start of {@link #line}
+     *
+     * @return the length of the line, or -1 at the end of the input
+     */
+    private int readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (readPosition == readLimit) {
+                readLimit = in.read(readBuffer);
+                readPosition = 0;
+                if (readLimit < 0) {
+                    readLimit = 0;
+                    return length == 0 ? -1 : length;
+                }
+            }
+            final byte b = readBuffer[readPosition++];
+            if (b == '\n') {
+                return length;
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, 2 * length);
+            }
+            line[length++] = b;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * @return the number of whitespace-separated columns of the line, up to one more than a combined row has
+     */
+    private int tokenize(int length) {
+        int column = 0;
+        int i = 0;
+        while (column < columnBounds.length / 2) {
+            while (i < length && isWhitespace(line[i])) {
+                i++;
+            }
+            if (i >= length) {
+                break;
+            }
+            columnBounds[2 * column] = i;
+            while (i < length && !isWhitespace(line[i])) {
+                i++;
+            }
+            columnBounds[2 * column + 1] = i;
+            column++;
+        }
+        return column;
+    }
+
+    /**
+     * @return whether the line, from its first column on, starts with {@code prefix}
+     */
+    private boolean startsWith(int length, byte[] prefix) {
+        final int start = columnBounds[0];
+        if (length - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void parseRow(int columns, int length) {
+        final boolean inverter;
+        final boolean wallbox;
+        if (columns == COMBINED_ROW_COLUMNS) {
+            inverter = wallbox = true;
+        } else if (columns == INVERTER_ROW_COLUMNS) {
+            final byte last = line[columnBounds[2 * columns - 2]];
+            if (columnBounds[2 * columns - 1] - columnBounds[2 * columns - 2] == 1 && last >= 'A' && last <= 'F') {
+                measurement = WALLBOX_MEASUREMENT;
+                explicitlyNamed = false;
+            } else if (WALLBOX_MEASUREMENT.equals(measurement) && !explicitlyNamed) {
+                measurement = null; // an unnamed wallbox block ends with the first row without a Mode 3 letter
+            }
+            wallbox = WALLBOX_MEASUREMENT.equals(measurement);
+            inverter = !wallbox;
+        } else {
+            throw new NumberFormatException("Expected " + INVERTER_ROW_COLUMNS + " or " + COMBINED_ROW_COLUMNS
+                    + " columns but got " + columns + " in line \""
+                    + new String(line, 0, length, StandardCharsets.US_ASCII).trim() + "\"");
+        }
+        final long timeInMillis = AsciiNumbers.parseLong(line, columnBounds[0], columnBounds[1]) / NANOS_PER_MILLI;
+        // the wallbox columns follow the inverter columns of a combined row
+        final int w = inverter ? 2 * INVERTER_ROW_COLUMNS : 2;
+        char mode3State = 0;
+        double current1 = 0;
+        double current2 = 0;
+        double current3 = 0;
+        int cableState = 0;
+        if (wallbox) {
+            if (columnBounds[w + 9] - columnBounds[w + 8] != 1) {
+                throw new NumberFormatException("Expected a Mode 3 state in line \"" + new String(line, 0, length, StandardCharsets.US_ASCII).trim() + "\"");
+            }
+            final byte state = line[columnBounds[w + 8]];
+            if (state >= 'A' && state <= 'F') {
+                mode3State = (char) state;
+            } else if (state >= '0' && state <= '5') {
+                mode3State = (char) ('A' + state - '0');
+            } else {
+                throw new NumberFormatException("Unknown Mode 3 state " + (char) state);
+            }
+            current1 = AsciiNumbers.parseDouble(line, columnBounds[w], columnBounds[w + 1]);
+            current2 = AsciiNumbers.parseDouble(line, columnBounds[w + 2], columnBounds[w + 3]);
+            current3 = AsciiNumbers.parseDouble(line, columnBounds[w + 4], columnBounds[w + 5]);
+            cableState = (int) AsciiNumbers.parseLong(line, columnBounds[w + 6], columnBounds[w + 7]);
+        }
+        if (inverter) {
+            // parsed completely before anything is queued, so that a malformed row leaves no trace
+            final double homeOwnConsumption = AsciiNumbers.parseDouble(line, columnBounds[2], columnBounds[3]);
+            final double pvProduction = AsciiNumbers.parseDouble(line, columnBounds[4], columnBounds[5]);
+            final double totalActivePower = AsciiNumbers.parseDouble(line, columnBounds[6], columnBounds[7]);
+            final int batterySOC = (int) Math.round(AsciiNumbers.parseDouble(line, columnBounds[8], columnBounds[9]));
+            final double batteryCharge = AsciiNumbers.parseDouble(line, columnBounds[10], columnBounds[11]);
+            inverterQueue.append(timeInMillis, homeOwnConsumption, pvProduction, totalActivePower, batterySOC, batteryCharge);
+        }
+        if (wallbox) {
+            wallboxQueue.append(timeInMillis, current1, current2, current3, cableState, mode3State);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,420 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Simulates how PV surplus is shared between charging a car at the wallbox and charging a {@link Battery}, based on
+ * the inverter and wallbox readings {@link WallboxJoin joined} by time. The inverter's home own consumption includes the
+ * car; the consumption without the car is what remains after subtracting the car charge power recorded by the wallbox.
+ * <p>
+ *
+ * The energy the car was recorded to charge is taken as its demand: it accumulates as energy owed to the car, which
+ * the simulated car charging pays off. Depending on the {@link Priority}, PV surplus goes to the car or to the battery
+ * first. Whatever is owed and not covered by surplus is charged right away, from the grid or, if
+ * {@code batteryDischargesIntoCar}, from the battery, so the car never gets its energy later than recorded. While a
+ * vehicle is connected, it may also take surplus ahead of its recorded demand, up to {@code carBufferInWattHours},
+ * which is where diverting surplus to the car can save energy from the grid.
+ * <p>
+ *
+ * Each simulation accumulates the grid import and export with their cost and compensation, and the car energy by
+ * source. {@link #replay(WallboxJoin, CarChargingSimulation...)} runs any number of simulations in one pass, such as one
+ * per {@link Priority}, each with its own battery. As in {@link AggregateBatteryDischarge}, the values of a reading
+ * apply until the next reading, and the duration of each inverter step is truncated to full seconds, also where
+ * wallbox readings split it into several steps.
+ */
+public class CarChargingSimulation {
+    /**
+     * Three phases at 16A
+     */
+    public static final double DEFAULT_MAX_CAR_CHARGE_POWER_IN_WATTS = 3 * 16 * WallboxReadingSource.VOLTAGE_IN_VOLTS;
+
+    public static final double DEFAULT_CAR_BUFFER_IN_WATT_HOURS = 10000;
+
+    public static enum Priority {
+        /**
+         * The car charges exactly as recorded; the battery gets the surplus left; the baseline for the other priorities
+         */
+        RECORDED,
+
+        /**
+         * Surplus goes to the car first, up to its maximum charge power and buffer; the battery gets the rest
+         */
+        CAR_FIRST,
+
+        /**
+         * Surplus goes to the battery first; the car gets what the battery can't take
+         */
+        BATTERY_FIRST
+    }
+
+    private final Priority priority;
+
+    private final Battery battery;
+
+    private final double maxCarChargePowerInWatts;
+
+    private final double carBufferInWattHours;
+
+    private final boolean batteryDischargesIntoCar;
+
+    private final PriceCurve tariff;
+
+    private final PriceCurve compensation;
+
+    /**
+     * Recorded car energy not delivered by the simulation yet; negative if the car was charged ahead of its demand
+     */
+    private double carEnergyOwedInWattHours;
+
+    private double gridImportInWattHours;
+
+    private double gridExportInWattHours;
+
+    private double gridImportInCents;
+
+    private double gridExportInCents;
+
+    private double carRecordedInWattHours;
+
+    private double carFromSurplusInWattHours;
+
+    private double carFromGridOrBatteryInWattHours;
+
+    /**
+     * @param tariff
+     *            the price of energy obtained from the grid; a {@link SortedPriceCurve#cursor() cursor} is fine as
+     *            steps come in time order
+     * @param compensation
+     *            the compensation for energy fed into the grid
+     */
+    public CarChargingSimulation(Priority priority, Battery battery, double maxCarChargePowerInWatts,
+            double carBufferInWattHours, boolean batteryDischargesIntoCar, PriceCurve tariff, PriceCurve compensation) {
+        if (maxCarChargePowerInWatts < 0 || carBufferInWattHours < 0) {
+            throw new IllegalArgumentException("Car charge power and buffer must not be negative");
+        }
+        this.priority = priority;
+        this.battery = battery;
+        this.maxCarChargePowerInWatts = maxCarChargePowerInWatts;
+        this.carBufferInWattHours = carBufferInWattHours;
+        this.batteryDischargesIntoCar = batteryDischargesIntoCar;
+        this.tariff = tariff;
+        this.compensation = compensation;
+    }
+
+    /**
+     * Replays {@code readings} through all {@code simulations} in one pass. Each simulation's battery is initialized
+     * with the SOC of the first reading. The sub-second remainders of steps ending at a wallbox-only time stamp are
+     * carried into the next step, so that each inverter step counts as many full seconds as without the wallbox
+     * readings.
+     */
+    public static void replay(WallboxJoin readings, CarChargingSimulation... simulations) throws IOException {
+        if (!readings.next()) {
+            return;
+        }
+        for (final CarChargingSimulation simulation : simulations) {
+            simulation.battery.setSOCPercent(readings.getBatterySOC());
+        }
+        long lastTimeInMillis = readings.getTimeInMillis();
+        double lastPvProductionInWatts = readings.getPvProductionInWatts();
+        double lastHomeOwnConsumptionInWatts = readings.getHomeOwnConsumptionInWatts();
+        double lastCarChargePowerInWatts = readings.getCarChargePowerInWatts();
+        boolean lastVehicleConnected = readings.isVehicleConnected();
+        long carriedInMillis = 0;
+        while (readings.next()) {
+            final long durationInMillis = readings.getTimeInMillis() - lastTimeInMillis + carriedInMillis;
+            final long countedInMillis = Math.floorDiv(durationInMillis, 1000l) * 1000l;
+            carriedInMillis = readings.isInverterReading() ? 0 : durationInMillis - countedInMillis;
+            for (final CarChargingSimulation simulation : simulations) {
+                simulation.step(lastTimeInMillis, countedInMillis, lastPvProductionInWatts,
+                        lastHomeOwnConsumptionInWatts, lastCarChargePowerInWatts, lastVehicleConnected);
+            }
+            lastTimeInMillis = readings.getTimeInMillis();
+            lastPvProductionInWatts = readings.getPvProductionInWatts();
+            lastHomeOwnConsumptionInWatts = readings.getHomeOwnConsumptionInWatts();
+            lastCarChargePowerInWatts = readings.getCarChargePowerInWatts();
+            lastVehicleConnected = readings.isVehicleConnected();
+        }
+    }
+
+    /**
+     * Simulates one step during which the readings were constant
+     *
+     * @param homeOwnConsumptionInWatts
+     *            the consumption including the car
+     * @param carChargePowerInWatts
+     *            the car charge power recorded by the wallbox
+     */
+    public void step(long startInMillis, long durationInMillis, double pvProductionInWatts,
+            double homeOwnConsumptionInWatts, double carChargePowerInWatts, boolean vehicleConnected) {
+        final double hours = Math.floorDiv(durationInMillis, 1000l) / 3600.0;
+        if (hours <= 0) {
+            return;
+        }
+        final double consumptionWithoutCarInWatts = Math.max(0, homeOwnConsumptionInWatts - carChargePowerInWatts);
+        final double surplusInWatts = pvProductionInWatts - consumptionWithoutCarInWatts;
+        carRecordedInWattHours += carChargePowerInWatts * hours;
+        double batteryPowerInWatts = Double.NaN; // power going into the battery, if already charged
+        final double carFromSurplusInWatts;
+        final double carFromGridOrBatteryInWatts;
+        if (priority == Priority.RECORDED) {
+            carFromSurplusInWatts = Math.min(Math.max(0, surplusInWatts), carChargePowerInWatts);
+            carFromGridOrBatteryInWatts = carChargePowerInWatts - carFromSurplusInWatts;
+        } else {
+            carEnergyOwedInWattHours += carChargePowerInWatts * hours;
+            final double carMaxInWatts = vehicleConnected
+                    ? Math.min(maxCarChargePowerInWatts, Math.max(0, carEnergyOwedInWattHours + carBufferInWattHours) / hours)
+                    : 0;
+            double surplusForCarInWatts = Math.max(0, surplusInWatts);
+            if (priority == Priority.BATTERY_FIRST && surplusInWatts > 0) {
+                batteryPowerInWatts = chargeBattery(surplusInWatts, startInMillis, durationInMillis, hours);
+                surplusForCarInWatts -= batteryPowerInWatts;
+            }
+            carFromSurplusInWatts = Math.min(surplusForCarInWatts, carMaxInWatts);
+            carFromGridOrBatteryInWatts = Math.min(Math.max(0, carEnergyOwedInWattHours / hours - carFromSurplusInWatts),
+                    carMaxInWatts - carFromSurplusInWatts);
+            carEnergyOwedInWattHours -= (carFromSurplusInWatts + carFromGridOrBatteryInWatts) * hours;
+        }
+        if (Double.isNaN(batteryPowerInWatts)) {
+            batteryPowerInWatts = chargeBattery(surplusInWatts - carFromSurplusInWatts
+                    - (batteryDischargesIntoCar ? carFromGridOrBatteryInWatts : 0), startInMillis, durationInMillis, hours);
+        }
+        carFromSurplusInWattHours += carFromSurplusInWatts * hours;
+        carFromGridOrBatteryInWattHours += carFromGridOrBatteryInWatts * hours;
+        final double gridEnergyInWattHours = (consumptionWithoutCarInWatts + carFromSurplusInWatts
+                + carFromGridOrBatteryInWatts + batteryPowerInWatts - pvProductionInWatts) * hours;
+        if (gridEnergyInWattHours > 0) {
+            gridImportInWattHours += gridEnergyInWattHours;
+            gridImportInCents += tariff.getCents(startInMillis, gridEnergyInWattHours);
+        } else {
+            gridExportInWattHours -= gridEnergyInWattHours;
+            gridExportInCents += compensation.getCents(startInMillis, -gridEnergyInWattHours);
+        }
+    }
+
+    /**
+     * @return the power actually going into (positive) or coming out of (negative) the battery, before its losses
+     */
+    private double chargeBattery(double powerInWatts, long startInMillis, long durationInMillis, double hours) {
+        final double energyBeforeInWattHours = battery.getEnergyContainedInWattHours();
+        battery.charge(powerInWatts, startInMillis, durationInMillis);
+        final double energyAddedInWattHours = battery.getEnergyContainedInWattHours() - energyBeforeInWattHours;
+        return energyAddedInWattHours / (energyAddedInWattHours >= 0 ? Battery.CHARGE_LOSS_FACTOR : Battery.DISCHARGE_LOSS_FACTOR) / hours;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public Battery getBattery() {
+        return battery;
+    }
+
+    public double getGridImportInWattHours() {
+        return gridImportInWattHours;
+    }
+
+    public double getGridExportInWattHours() {
+        return gridExportInWattHours;
+    }
+
+    /**
+     * @return the cost of the grid import minus the compensation for the grid export
+     */
+    public double getNetGridCostInCents() {
+        return gridImportInCents - gridExportInCents;
+    }
+
+    public double getCarRecordedInWattHours() {
+        return carRecordedInWattHours;
+    }
+
+    public double getCarFromSurplusInWattHours() {
+        return carFromSurplusInWattHours;
+    }
+
+    public double getCarFromGridOrBatteryInWattHours() {
+        return carFromGridOrBatteryInWattHours;
+    }
+
+    /**
+     * @return the recorded car energy not delivered by the end of the replay, e.g., because no vehicle was connected;
+     *         negative if the car was charged ahead of its recorded demand
+     */
+    public double getCarEnergyOwedInWattHours() {
+        return carEnergyOwedInWattHours;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%-13s import %9.1f kWh, export %9.1f kWh, net grid cost %9.2f EUR, car from surplus %8.1f kWh,"
+                + " from grid/battery %8.1f kWh, owed %7.1f kWh, battery savings %8.2f EUR", priority,
+                gridImportInWattHours / 1000, gridExportInWattHours / 1000, getNetGridCostInCents() / 100,
+                carFromSurplusInWattHours / 1000, carFromGridOrBatteryInWattHours / 1000,
+                carEnergyOwedInWattHours / 1000, battery.getSavingsInCents() / 100);
+    }
+
+    /**
+     * Replays the inverter readings joined with the wallbox readings dumped by {@code kostal-dumpCarChargeBehavior} to
+     * a file or stdin, once per {@link Priority}, and prints one line of results per priority.
+     */
+    public static void main(String[] args) throws IOException {
+        final Option minSOCPercent = Option.builder("m")
+                .longOpt("minSOCPercent")
+                .hasArg()
+                .argName("minSOCPercent")
+                .type(Number.class)
+                .desc("minimum state of charge (SOC) in percent; defaults to "+AggregateBatteryDischarge.DEFAULT_MIN_SOC_PERCENT)
+                .build();
+        final Option maxChargePowerInWatts = Option.builder("x")
+                .longOpt("maxChargePowerInWatts")
+                .hasArg()
+                .argName("maxChargePowerInWatts")
+                .type(Number.class)
+                .desc("maximum charge power in Watts; defaults to "+AggregateBatteryDischarge.DEFAULT_MAX_CHARGE_POWER_IN_WATTS)
+                .build();
+        final Option capacityInWattHours = Option.builder("c")
+                .longOpt("capacityInWattHours")
+                .hasArg()
+                .argName("capacityInWattHours")
+                .type(Number.class)
+                .desc("capacity in Watt-Hours; defaults to "+AggregateBatteryDischarge.DEFAULT_CAPACITY_IN_WATT_HOURS)
+                .build();
+        final Option reducedChargePowerInWatts = Option.builder("r")
+                .longOpt("reducedChargePowerInWatts")
+                .hasArg()
+                .argName("reducedChargePowerInWatts")
+                .type(Number.class)
+                .desc("reduced charge power in Watts; defaults to "+AggregateBatteryDischarge.DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS)
+                .build();
+        final Option socPercentWhereReducedChargePowerStarts = Option.builder("s")
+                .longOpt("socPercentWhereReducedChargePowerStarts")
+                .hasArg()
+                .argName("socPercentWhereReducedChargePowerStarts")
+                .type(Number.class)
+                .desc("state of charge (SOC, in percent) where reduced charge power starts; defaults to "+AggregateBatteryDischarge.DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS)
+                .build();
+        final Option inputFile = Option.builder("f")
+                .longOpt("file")
+                .hasArg()
+                .argName("inputFile")
+                .desc("file, possibly gzip-compressed, with the output of kostal-dumpCarChargeBehavior; defaults to stdin; see "+CarChargeBehaviorParser.class.getName())
+                .build();
+        final Option maxCarChargePowerInWatts = Option.builder()
+                .longOpt("maxCarChargePowerInWatts")
+                .hasArg()
+                .argName("maxCarChargePowerInWatts")
+                .type(Number.class)
+                .desc("maximum car charge power in Watts; defaults to "+DEFAULT_MAX_CAR_CHARGE_POWER_IN_WATTS)
+                .build();
+        final Option carBufferInWattHours = Option.builder()
+                .longOpt("carBufferInWattHours")
+                .hasArg()
+                .argName("carBufferInWattHours")
+                .type(Number.class)
+                .desc("energy the car may take ahead of its recorded demand; defaults to "+DEFAULT_CAR_BUFFER_IN_WATT_HOURS)
+                .build();
+        final Option noBatteryDischargeIntoCar = Option.builder()
+                .longOpt("noBatteryDischargeIntoCar")
+                .desc("charge the car from the grid only when surplus doesn't suffice, never from the battery")
+                .build();
+        final Option maxWallboxAgeInSeconds = Option.builder()
+                .longOpt("maxWallboxAgeInSeconds")
+                .hasArg()
+                .argName("maxWallboxAgeInSeconds")
+                .type(Number.class)
+                .desc("how long a wallbox reading is carried forward; defaults to "+WallboxJoin.DEFAULT_MAX_WALLBOX_AGE_IN_MILLIS/1000)
+                .build();
+        final Option tariffFile = Option.builder()
+                .longOpt("tariffFile")
+                .hasArg()
+                .argName("tariffFile")
+                .desc("file with one line per price interval, giving start time and price in cents per kWh; defaults to the built-in tariffs")
+                .build();
+        final Option compensationFile = Option.builder()
+                .longOpt("compensationFile")
+                .hasArg()
+                .argName("compensationFile")
+                .desc("file with one line per compensation interval, giving start time and compensation in cents per kWh; defaults to the built-in compensation")
+                .build();
+        final Option lenient = Option.builder()
+                .longOpt("lenient")
+                .desc("skip malformed lines instead of failing")
+                .build();
+        final Option helpOption = Option.builder("h")
+                .longOpt("help")
+                .desc("display help message")
+                .build();
+        final Options options = new Options()
+                .addOption(minSOCPercent)
+                .addOption(maxChargePowerInWatts)
+                .addOption(capacityInWattHours)
+                .addOption(reducedChargePowerInWatts)
+                .addOption(socPercentWhereReducedChargePowerStarts)
+                .addOption(inputFile)
+                .addOption(maxCarChargePowerInWatts)
+                .addOption(carBufferInWattHours)
+                .addOption(noBatteryDischargeIntoCar)
+                .addOption(maxWallboxAgeInSeconds)
+                .addOption(tariffFile)
+                .addOption(compensationFile)
+                .addOption(lenient)
+                .addOption(helpOption);
+        final CommandLineParser commandLineParser = new DefaultParser();
+        try {
+            final CommandLine commandLine = commandLineParser.parse(options, args);
+            if (commandLine.hasOption(helpOption)) {
+                new HelpFormatter().printHelp(CarChargingSimulation.class.getName(), options);
+                return;
+            }
+            final SortedPriceCurve tariff = commandLine.hasOption(tariffFile)
+                    ? SortedPriceCurve.load(Paths.get(commandLine.getOptionValue(tariffFile))) : Tariff.CURVE;
+            final SortedPriceCurve compensationCurve = commandLine.hasOption(compensationFile)
+                    ? SortedPriceCurve.load(Paths.get(commandLine.getOptionValue(compensationFile))) : IngestionCompensation.CURVE;
+            final Priority[] priorities = Priority.values();
+            final CarChargingSimulation[] simulations = new CarChargingSimulation[priorities.length];
+            for (int i = 0; i < priorities.length; i++) {
+                final Battery battery = new Battery(
+                        commandLine.hasOption(minSOCPercent) ? ((Number) commandLine.getParsedOptionValue(minSOCPercent)).intValue() : AggregateBatteryDischarge.DEFAULT_MIN_SOC_PERCENT,
+                        commandLine.hasOption(maxChargePowerInWatts) ? ((Number) commandLine.getParsedOptionValue(maxChargePowerInWatts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_MAX_CHARGE_POWER_IN_WATTS,
+                        commandLine.hasOption(reducedChargePowerInWatts) ? ((Number) commandLine.getParsedOptionValue(reducedChargePowerInWatts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS,
+                        commandLine.hasOption(socPercentWhereReducedChargePowerStarts) ? ((Number) commandLine.getParsedOptionValue(socPercentWhereReducedChargePowerStarts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS,
+                        commandLine.hasOption(capacityInWattHours) ? ((Number) commandLine.getParsedOptionValue(capacityInWattHours)).doubleValue() : AggregateBatteryDischarge.DEFAULT_CAPACITY_IN_WATT_HOURS,
+                        /* energyContained */ 0, SavingsPerDischarge.forPriceCurves(tariff.cursor(), compensationCurve.cursor()));
+                simulations[i] = new CarChargingSimulation(priorities[i], battery,
+                        commandLine.hasOption(maxCarChargePowerInWatts) ? ((Number) commandLine.getParsedOptionValue(maxCarChargePowerInWatts)).doubleValue() : DEFAULT_MAX_CAR_CHARGE_POWER_IN_WATTS,
+                        commandLine.hasOption(carBufferInWattHours) ? ((Number) commandLine.getParsedOptionValue(carBufferInWattHours)).doubleValue() : DEFAULT_CAR_BUFFER_IN_WATT_HOURS,
+                        !commandLine.hasOption(noBatteryDischargeIntoCar), tariff.cursor(), compensationCurve.cursor());
+            }
+            try (final InputStream in = commandLine.hasOption(inputFile) ? PipelinedFileReadingSource.open(Paths.get(commandLine.getOptionValue(inputFile))) : System.in;
+                    final CarChargeBehaviorParser parser = new CarChargeBehaviorParser(in);
+                    final WallboxJoin readings = new WallboxJoin(parser.getInverterReadings(), parser.getWallboxReadings(),
+                            commandLine.hasOption(maxWallboxAgeInSeconds) ? ((Number) commandLine.getParsedOptionValue(maxWallboxAgeInSeconds)).longValue() * 1000
+                                    : WallboxJoin.DEFAULT_MAX_WALLBOX_AGE_IN_MILLIS)) {
+                parser.setLenient(commandLine.hasOption(lenient));
+                replay(readings, simulations);
+                if (parser.getNumberOfMalformedLines() > 0) {
+                    System.err.println("Skipped " + parser.getNumberOfMalformedLines() + " malformed lines");
+                }
+            }
+            final PrintStream out = System.out;
+            out.println(String.format(Locale.US, "Recorded car charging: %1.1f kWh", simulations[0].getCarRecordedInWattHours() / 1000));
+            for (final CarChargingSimulation simulation : simulations) {
+                out.println(simulation);
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
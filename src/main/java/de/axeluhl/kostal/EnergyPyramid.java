@@ -0,0 +1,549 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Energy-preserving downsamples of a history of readings at several resolutions, by default one minute, 15 minutes and
+ * one hour, for approximate what-if simulations that take milliseconds instead of the seconds to minutes a replay of
+ * the raw readings takes.
+ * <p>
+ *
+ * Each level divides time into buckets aligned to multiples of its bucket length since the epoch. Per bucket, it keeps
+ * the PV surplus energy and the deficit energy separately, together with the time during which there was a surplus or
+ * a deficit, respectively, and whether the surplus or the deficit came first. Netting surplus against deficit would
+ * hide battery activity: a bucket with a sunny and a cloudy half would otherwise look as if the battery had done
+ * nothing. The energy of a step between two readings is computed exactly as {@link Battery#charge(double, long, long)}
+ * would, from the power of the earlier reading and the step duration truncated to full seconds; a step spanning more
+ * than one bucket is split in proportion to time. Buckets without readings are omitted.
+ * <p>
+ *
+ * {@link #replay(int, Battery)} simulates a battery at one level by charging it with each bucket's surplus at the
+ * bucket's average surplus power and discharging it with the deficit at the average deficit power, in the order
+ * observed. Averaging shaves off power peaks that exceed the battery's power limits, and the order within a bucket is
+ * only approximated, so results deviate from a replay of the raw readings; the {@link #main(String[])} method reports
+ * this deviation when asked to {@code --verify}. Savings are evaluated at the start of each bucket.
+ * <p>
+ *
+ * A pyramid can be {@link #save(Path) saved} and {@link #load(Path) loaded} in a compact binary form, little endian:
+ *
+ * <pre>
+ * header: int magic, int version, int initial SOC percent, int number of levels
+ * level:  int bucket length in seconds, int n, long[n] bucket starts in millis, float[n] surplus Wh, float[n] deficit Wh,
+ *         float[n] surplus seconds, float[n] deficit seconds, byte[n] 1 if the deficit came first, 0 otherwise
+ * </pre>
+ */
+public class EnergyPyramid {
+    private static final int MAGIC = 0x4B455031; // "KEP1"
+
+    private static final int VERSION = 1;
+
+    private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    public static final int[] DEFAULT_BUCKET_LENGTHS_IN_SECONDS = { 60, 900, 3600 };
+
+    /**
+     * The deviation from the full-resolution savings that is always tolerated, so that a history without savings, for
+     * which a relative deviation is undefined, can still be judged by its absolute deviation
+     */
+    public static final double ABSOLUTE_TOLERANCE_IN_CENTS = 1;
+
+    private final Level[] levels;
+
+    private int initialSOCPercent;
+
+    private boolean initialized;
+
+    private long lastTimestampInMillis;
+
+    private double lastPowerAvailableForChargingInWatts;
+
+    /**
+     * The buckets of one resolution, as parallel primitive arrays
+     */
+    private static class Level {
+        private final int bucketLengthInSeconds;
+
+        private final long bucketLengthInMillis;
+
+        private long[] bucketStartsInMillis;
+
+        private float[] surplusInWattHours;
+
+        private float[] deficitInWattHours;
+
+        private float[] surplusSeconds;
+
+        private float[] deficitSeconds;
+
+        private boolean[] deficitFirst;
+
+        private int size;
+
+        Level(int bucketLengthInSeconds, int capacity) {
+            this.bucketLengthInSeconds = bucketLengthInSeconds;
+            this.bucketLengthInMillis = 1000l * bucketLengthInSeconds;
+            bucketStartsInMillis = new long[capacity];
+            surplusInWattHours = new float[capacity];
+            deficitInWattHours = new float[capacity];
+            surplusSeconds = new float[capacity];
+            deficitSeconds = new float[capacity];
+            deficitFirst = new boolean[capacity];
+        }
+
+        /**
+         * @return the index of the bucket starting at {@code bucketStartInMillis}, appending it if it is later than the
+         *         last bucket; time stamps earlier than the last bucket are accounted for in the last bucket
+         */
+        private int getBucket(long bucketStartInMillis) {
+            if (size > 0 && bucketStartInMillis <= bucketStartsInMillis[size - 1]) {
+                return size - 1;
+            }
+            if (size == bucketStartsInMillis.length) {
+                final int newCapacity = Math.max(16, 2 * size);
+                bucketStartsInMillis = Arrays.copyOf(bucketStartsInMillis, newCapacity);
+                surplusInWattHours = Arrays.copyOf(surplusInWattHours, newCapacity);
+                deficitInWattHours = Arrays.copyOf(deficitInWattHours, newCapacity);
+                surplusSeconds = Arrays.copyOf(surplusSeconds, newCapacity);
+                deficitSeconds = Arrays.copyOf(deficitSeconds, newCapacity);
+                deficitFirst = Arrays.copyOf(deficitFirst, newCapacity);
+            }
+            bucketStartsInMillis[size] = bucketStartInMillis;
+            return size++;
+        }
+
+        void add(long startInMillis, long durationInMillis, double powerInWatts) {
+            if (powerInWatts == 0 || durationInMillis <= 0) {
+                return;
+            }
+            final double energyInWattHours = powerInWatts * Math.floorDiv(durationInMillis, 1000l) / 3600.0;
+            final long endInMillis = startInMillis + durationInMillis;
+            long time = startInMillis;
+            while (time < endInMillis) {
+                final long bucketStartInMillis = Math.floorDiv(time, bucketLengthInMillis) * bucketLengthInMillis;
+                final long partEndInMillis = Math.min(endInMillis, bucketStartInMillis + bucketLengthInMillis);
+                final double fraction = (double) (partEndInMillis - time) / durationInMillis;
+                final int bucket = getBucket(bucketStartInMillis);
+                if (powerInWatts > 0) {
+                    surplusInWattHours[bucket] += energyInWattHours * fraction;
+                    surplusSeconds[bucket] += (partEndInMillis - time) / 1000.0;
+                } else {
+                    if (surplusSeconds[bucket] == 0 && deficitSeconds[bucket] == 0) {
+                        deficitFirst[bucket] = true;
+                    }
+                    deficitInWattHours[bucket] -= energyInWattHours * fraction;
+                    deficitSeconds[bucket] += (partEndInMillis - time) / 1000.0;
+                }
+                time = partEndInMillis;
+            }
+        }
+    }
+
+    public EnergyPyramid() {
+        this(DEFAULT_BUCKET_LENGTHS_IN_SECONDS);
+    }
+
+    /**
+     * @param bucketLengthsInSeconds
+     *            the bucket lengths of the levels, each a multiple of one second
+     */
+    public EnergyPyramid(int... bucketLengthsInSeconds) {
+        levels = new Level[bucketLengthsInSeconds.length];
+        for (int i = 0; i < bucketLengthsInSeconds.length; i++) {
+            if (bucketLengthsInSeconds[i] <= 0) {
+                throw new IllegalArgumentException("Bucket lengths must be positive but got " + bucketLengthsInSeconds[i]);
+            }
+            levels[i] = new Level(bucketLengthsInSeconds[i], 1024);
+        }
+    }
+
+    private EnergyPyramid(Level[] levels, int initialSOCPercent) {
+        this.levels = levels;
+        this.initialSOCPercent = initialSOCPercent;
+        this.initialized = true;
+    }
+
+    /**
+     * Adds a reading; readings are expected in ascending time order. The first reading determines the initial SOC, the
+     * same way {@link AggregateBatteryDischarge#aggregateBatteryDischarge(Battery, ReadingSource)} initializes it.
+     */
+    public void add(long timeInMillis, double pvProductionInWatts, double homeOwnConsumptionInWatts, int batterySOC) {
+        if (!initialized) {
+            initialSOCPercent = batterySOC;
+            initialized = true;
+        } else {
+            for (final Level level : levels) {
+                level.add(lastTimestampInMillis, timeInMillis - lastTimestampInMillis, lastPowerAvailableForChargingInWatts);
+            }
+        }
+        lastTimestampInMillis = timeInMillis;
+        lastPowerAvailableForChargingInWatts = pvProductionInWatts - homeOwnConsumptionInWatts;
+    }
+
+    /**
+     * Adds all remaining readings from {@code readings}
+     */
+    public EnergyPyramid addAll(ReadingSource readings) throws IOException {
+        while (readings.next()) {
+            add(readings.getTimeInMillis(), readings.getPvProductionInWatts(), readings.getHomeOwnConsumptionInWatts(),
+                    readings.getBatterySOC());
+        }
+        return this;
+    }
+
+    /**
+     * @return a source delivering the readings of {@code readings} while adding each of them to this pyramid, so that
+     *         the pyramid can be built in the same pass as, e.g., a {@link BatterySweep}
+     */
+    public ReadingSource addWhileReading(ReadingSource readings) {
+        return new ForwardingReadingSource(readings) {
+            @Override
+            public boolean next() throws IOException {
+                final boolean result = source.next();
+                if (result) {
+                    add(source.getTimeInMillis(), source.getPvProductionInWatts(), source.getHomeOwnConsumptionInWatts(),
+                            source.getBatterySOC());
+                }
+                return result;
+            }
+        };
+    }
+
+    public int getNumberOfLevels() {
+        return levels.length;
+    }
+
+    public int getBucketLengthInSeconds(int level) {
+        return levels[level].bucketLengthInSeconds;
+    }
+
+    public int getNumberOfBuckets(int level) {
+        return levels[level].size;
+    }
+
+    public double getSurplusInWattHours(int level, int bucket) {
+        return levels[level].surplusInWattHours[bucket];
+    }
+
+    public double getDeficitInWattHours(int level, int bucket) {
+        return levels[level].deficitInWattHours[bucket];
+    }
+
+    public int getInitialSOCPercent() {
+        return initialSOCPercent;
+    }
+
+    /**
+     * Simulates {@code battery} at the given level, starting at the initial SOC of the history
+     *
+     * @return {@code battery}, holding the resulting energy and the savings
+     */
+    public Battery replay(int level, Battery battery) {
+        final Level l = levels[level];
+        battery.setSOCPercent(initialSOCPercent);
+        for (int bucket = 0; bucket < l.size; bucket++) {
+            replayBucket(level, bucket, battery, l.bucketStartsInMillis[bucket]);
+        }
+        return battery;
+    }
+
+    /**
+     * Tells whether savings obtained from a pyramid level deviate from the full-resolution savings by no more than
+     * {@code relativeTolerance} of the latter, or by no more than {@link #ABSOLUTE_TOLERANCE_IN_CENTS} where that is
+     * more lenient; the absolute bound in particular decides for a baseline of zero savings.
+     */
+    public static boolean isWithinTolerance(double savingsInCents, double fullResolutionSavingsInCents, double relativeTolerance) {
+        return Math.abs(savingsInCents - fullResolutionSavingsInCents)
+                <= Math.max(relativeTolerance * Math.abs(fullResolutionSavingsInCents), ABSOLUTE_TOLERANCE_IN_CENTS);
+    }
+
+    long getBucketStartInMillis(int level, int bucket) {
+        return levels[level].bucketStartsInMillis[bucket];
+    }
+
+    /**
+     * Charges and discharges {@code battery} with one bucket the way {@link #replay(int, Battery)} does, but evaluates
+     * the savings at {@code timeInMillis} instead of the bucket's start, e.g., for a bucket moved to another day. Only
+     * reads the pyramid, so several threads may replay buckets of the same pyramid concurrently.
+     */
+    void replayBucket(int level, int bucket, Battery battery, long timeInMillis) {
+        final Level l = levels[level];
+        if (l.deficitFirst[bucket]) {
+            discharge(l, bucket, battery, timeInMillis);
+            charge(l, bucket, battery, timeInMillis);
+        } else {
+            charge(l, bucket, battery, timeInMillis);
+            discharge(l, bucket, battery, timeInMillis);
+        }
+    }
+
+    private static void charge(Level level, int bucket, Battery battery, long timeInMillis) {
+        if (level.surplusInWattHours[bucket] > 0) {
+            // whole seconds, as Battery.charge truncates to them; the power is chosen such that the energy is preserved
+            final long seconds = Math.max(1, Math.round(level.surplusSeconds[bucket]));
+            battery.charge(level.surplusInWattHours[bucket] * 3600.0 / seconds, timeInMillis, 1000l * seconds);
+        }
+    }
+
+    private static void discharge(Level level, int bucket, Battery battery, long timeInMillis) {
+        if (level.deficitInWattHours[bucket] > 0) {
+            final long seconds = Math.max(1, Math.round(level.deficitSeconds[bucket]));
+            battery.charge(-level.deficitInWattHours[bucket] * 3600.0 / seconds, timeInMillis, 1000l * seconds);
+        }
+    }
+
+    public void save(Path file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer header = ByteBuffer.allocate(4 * Integer.BYTES).order(BYTE_ORDER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(initialSOCPercent).putInt(levels.length);
+            // through Buffer, which has the only flip() and position(int) a Java 8 runtime knows
+            ((Buffer) header).flip();
+            write(channel, header);
+            for (final Level level : levels) {
+                final int n = level.size;
+                final ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + n * (Long.BYTES + 4 * Float.BYTES + 1)).order(BYTE_ORDER);
+                buffer.putInt(level.bucketLengthInSeconds).putInt(n);
+                buffer.asLongBuffer().put(level.bucketStartsInMillis, 0, n);
+                ((Buffer) buffer).position(buffer.position() + n * Long.BYTES);
+                for (final float[] column : new float[][] { level.surplusInWattHours, level.deficitInWattHours, level.surplusSeconds, level.deficitSeconds }) {
+                    buffer.asFloatBuffer().put(column, 0, n);
+                    ((Buffer) buffer).position(buffer.position() + n * Float.BYTES);
+                }
+                for (int i = 0; i < n; i++) {
+                    buffer.put((byte) (level.deficitFirst[i] ? 1 : 0));
+                }
+                ((Buffer) buffer).flip();
+                write(channel, buffer);
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public static EnergyPyramid load(Path file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer header = read(channel, 4 * Integer.BYTES);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + " is not an energy pyramid file of version " + VERSION);
+            }
+            final int initialSOCPercent = header.getInt();
+            final Level[] levels = new Level[header.getInt()];
+            for (int l = 0; l < levels.length; l++) {
+                final ByteBuffer levelHeader = read(channel, 2 * Integer.BYTES);
+                final int bucketLengthInSeconds = levelHeader.getInt();
+                final int n = levelHeader.getInt();
+                final Level level = new Level(bucketLengthInSeconds, n);
+                final ByteBuffer buffer = read(channel, n * (Long.BYTES + 4 * Float.BYTES + 1));
+                buffer.asLongBuffer().get(level.bucketStartsInMillis);
+                ((Buffer) buffer).position(buffer.position() + n * Long.BYTES);
+                for (final float[] column : new float[][] { level.surplusInWattHours, level.deficitInWattHours, level.surplusSeconds, level.deficitSeconds }) {
+                    buffer.asFloatBuffer().get(column);
+                    ((Buffer) buffer).position(buffer.position() + n * Float.BYTES);
+                }
+                for (int i = 0; i < n; i++) {
+                    level.deficitFirst[i] = buffer.get() != 0;
+                }
+                level.size = n;
+                levels[l] = level;
+            }
+            return new EnergyPyramid(levels, initialSOCPercent);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, int bytes) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(bytes).order(BYTE_ORDER);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of energy pyramid file");
+            }
+        }
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    /**
+     * Simulates each capacity given at each level of a pyramid and prints the savings and the time the simulation took
+     * as CSV. The pyramid is built from the readings given with {@code --file} or {@code --binaryFile}, or loaded from
+     * the {@code --pyramid} file if no readings are given; when building, the pyramid is saved to the {@code --pyramid}
+     * file for subsequent runs. With {@code --verify}, the readings are additionally replayed at full resolution in
+     * the same pass, and the deviation of each level's savings from the full-resolution savings is reported in EUR and,
+     * unless the full-resolution savings are zero, in percent of them.
+     */
+    public static void main(String[] args) throws IOException {
+        final Option minSOCPercent = Option.builder("m")
+                .longOpt("minSOCPercent")
+                .hasArg()
+                .argName("minSOCPercent")
+                .type(Number.class)
+                .desc("minimum state of charge (SOC) in percent; defaults to "+AggregateBatteryDischarge.DEFAULT_MIN_SOC_PERCENT)
+                .build();
+        final Option maxChargePowerInWatts = Option.builder("x")
+                .longOpt("maxChargePowerInWatts")
+                .hasArg()
+                .argName("maxChargePowerInWatts")
+                .type(Number.class)
+                .desc("maximum charge power in Watts; defaults to "+AggregateBatteryDischarge.DEFAULT_MAX_CHARGE_POWER_IN_WATTS)
+                .build();
+        final Option capacityInWattHours = Option.builder("c")
+                .longOpt("capacityInWattHours")
+                .hasArg()
+                .argName("range")
+                .desc("capacities in Watt-Hours as a single value, a comma-separated list, or from:to:step; defaults to "+AggregateBatteryDischarge.DEFAULT_CAPACITY_IN_WATT_HOURS)
+                .build();
+        final Option reducedChargePowerInWatts = Option.builder("r")
+                .longOpt("reducedChargePowerInWatts")
+                .hasArg()
+                .argName("reducedChargePowerInWatts")
+                .type(Number.class)
+                .desc("reduced charge power in Watts; defaults to "+AggregateBatteryDischarge.DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS)
+                .build();
+        final Option socPercentWhereReducedChargePowerStarts = Option.builder("s")
+                .longOpt("socPercentWhereReducedChargePowerStarts")
+                .hasArg()
+                .argName("socPercentWhereReducedChargePowerStarts")
+                .type(Number.class)
+                .desc("state of charge (SOC, in percent) where reduced charge power starts; defaults to "+AggregateBatteryDischarge.DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS)
+                .build();
+        final Option inputFile = Option.builder("f")
+                .longOpt("file")
+                .hasArg()
+                .argName("inputFile")
+                .desc("input file from which to read inverter states; use - for stdin")
+                .build();
+        final Option binaryFile = Option.builder("b")
+                .longOpt("binaryFile")
+                .hasArg()
+                .argName("binaryFile")
+                .desc("binary history file as written by "+BinaryHistoryWriter.class.getName()+"; used instead of --file")
+                .build();
+        final Option pyramidFile = Option.builder("y")
+                .longOpt("pyramid")
+                .hasArg()
+                .argName("pyramidFile")
+                .desc("file to save the pyramid built from the readings to, or to load it from if no readings are given")
+                .build();
+        final Option verify = Option.builder()
+                .longOpt("verify")
+                .desc("also replay the readings at full resolution and report the deviation of each level")
+                .build();
+        final Option tariffFile = Option.builder()
+                .longOpt("tariffFile")
+                .hasArg()
+                .argName("tariffFile")
+                .desc("file with one line per price interval, giving start time and price in cents per kWh; defaults to the built-in tariffs")
+                .build();
+        final Option compensationFile = Option.builder()
+                .longOpt("compensationFile")
+                .hasArg()
+                .argName("compensationFile")
+                .desc("file with one line per compensation interval, giving start time and compensation in cents per kWh; defaults to the built-in compensation")
+                .build();
+        final Option helpOption = Option.builder("h")
+                .longOpt("help")
+                .desc("display help message")
+                .build();
+        final Options options = new Options()
+                .addOption(minSOCPercent)
+                .addOption(maxChargePowerInWatts)
+                .addOption(capacityInWattHours)
+                .addOption(reducedChargePowerInWatts)
+                .addOption(socPercentWhereReducedChargePowerStarts)
+                .addOption(inputFile)
+                .addOption(binaryFile)
+                .addOption(pyramidFile)
+                .addOption(verify)
+                .addOption(tariffFile)
+                .addOption(compensationFile)
+                .addOption(helpOption);
+        final CommandLineParser commandLineParser = new DefaultParser();
+        try {
+            final CommandLine commandLine = commandLineParser.parse(options, args);
+            if (commandLine.hasOption(helpOption)) {
+                new HelpFormatter().printHelp(EnergyPyramid.class.getName(), options);
+                return;
+            }
+            final int minSOC = commandLine.hasOption(minSOCPercent) ? ((Number) commandLine.getParsedOptionValue(minSOCPercent)).intValue() : AggregateBatteryDischarge.DEFAULT_MIN_SOC_PERCENT;
+            final double maxCharge = commandLine.hasOption(maxChargePowerInWatts) ? ((Number) commandLine.getParsedOptionValue(maxChargePowerInWatts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_MAX_CHARGE_POWER_IN_WATTS;
+            final double reducedCharge = commandLine.hasOption(reducedChargePowerInWatts) ? ((Number) commandLine.getParsedOptionValue(reducedChargePowerInWatts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS;
+            final double socThreshold = commandLine.hasOption(socPercentWhereReducedChargePowerStarts) ? ((Number) commandLine.getParsedOptionValue(socPercentWhereReducedChargePowerStarts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS;
+            final double[] capacities = BatterySweep.parseRange(commandLine.getOptionValue(capacityInWattHours, ""+AggregateBatteryDischarge.DEFAULT_CAPACITY_IN_WATT_HOURS));
+            final boolean hasReadings = commandLine.hasOption(inputFile) || commandLine.hasOption(binaryFile);
+            if (!hasReadings && !commandLine.hasOption(pyramidFile)) {
+                throw new IllegalArgumentException("Need readings from --file or --binaryFile, or a --pyramid file to load");
+            }
+            if (!hasReadings && commandLine.hasOption(verify)) {
+                throw new IllegalArgumentException("--verify needs readings from --file or --binaryFile");
+            }
+            final EnergyPyramid pyramid;
+            BatteryBank fullResolution = null;
+            if (hasReadings) {
+                pyramid = new EnergyPyramid();
+                try (final ReadingSource readings = commandLine.hasOption(binaryFile)
+                        ? new BinaryHistoryReader(Paths.get(commandLine.getOptionValue(binaryFile)))
+                        : new ReadingParser("-".equals(commandLine.getOptionValue(inputFile)) ? System.in : Files.newInputStream(Paths.get(commandLine.getOptionValue(inputFile))))) {
+                    if (commandLine.hasOption(verify)) {
+                        fullResolution = BatterySweep.createBank(new double[] { minSOC }, new double[] { maxCharge },
+                                new double[] { reducedCharge }, new double[] { socThreshold }, capacities);
+                        new BatterySweep(fullResolution, AggregateBatteryDischarge.createSavingsFunction(
+                                commandLine.getOptionValue(tariffFile), commandLine.getOptionValue(compensationFile),
+                                /* forConcurrentUse */ false)).sweep(pyramid.addWhileReading(readings));
+                    } else {
+                        pyramid.addAll(readings);
+                    }
+                }
+                if (commandLine.hasOption(pyramidFile)) {
+                    pyramid.save(Paths.get(commandLine.getOptionValue(pyramidFile)));
+                }
+            } else {
+                pyramid = load(Paths.get(commandLine.getOptionValue(pyramidFile)));
+            }
+            final SavingsPerDischarge savingsFunction = AggregateBatteryDischarge.createSavingsFunction(
+                    commandLine.getOptionValue(tariffFile), commandLine.getOptionValue(compensationFile), /* forConcurrentUse */ false);
+            final PrintStream out = System.out;
+            out.println("capacityInWattHours,bucketLengthInSeconds,savingsInEUR,millis" + (fullResolution == null ? "" : ",fullResolutionSavingsInEUR,deviationInEUR,deviationPercent"));
+            for (int c = 0; c < capacities.length; c++) {
+                for (int level = 0; level < pyramid.getNumberOfLevels(); level++) {
+                    final long start = System.nanoTime();
+                    final Battery battery = pyramid.replay(level, new Battery(minSOC, maxCharge, reducedCharge,
+                            socThreshold, capacities[c], /* energyContained */ 0, savingsFunction));
+                    final double millis = (System.nanoTime() - start) / 1e6;
+                    if (fullResolution == null) {
+                        out.println(String.format(Locale.US, "%s,%d,%1.2f,%1.3f", capacities[c], pyramid.getBucketLengthInSeconds(level),
+                                battery.getSavingsInCents() / 100.0, millis));
+                    } else {
+                        final double fullResolutionSavingsInCents = fullResolution.getSavingsInCents(c);
+                        final double deviationInCents = battery.getSavingsInCents() - fullResolutionSavingsInCents;
+                        out.println(String.format(Locale.US, "%s,%d,%1.2f,%1.3f,%1.2f,%1.2f,%s", capacities[c], pyramid.getBucketLengthInSeconds(level),
+                                battery.getSavingsInCents() / 100.0, millis, fullResolutionSavingsInCents / 100.0, deviationInCents / 100.0,
+                                fullResolutionSavingsInCents == 0 ? "" : String.format(Locale.US, "%1.3f", 100.0 * deviationInCents / fullResolutionSavingsInCents)));
+                    }
+                }
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
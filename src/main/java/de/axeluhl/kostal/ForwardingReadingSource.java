@@ -0,0 +1,56 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+
+/**
+ * Delivers the readings of another {@link ReadingSource}. Subclasses override {@link #next()} to act on each reading
+ * as it passes, e.g., to record, count or write it, so that this can happen in the same pass as a replay consuming
+ * the readings. Closing this source closes the source it forwards.
+ */
+public class ForwardingReadingSource implements ReadingSource {
+    protected final ReadingSource source;
+
+    public ForwardingReadingSource(ReadingSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        return source.next();
+    }
+
+    @Override
+    public long getTimeInMillis() {
+        return source.getTimeInMillis();
+    }
+
+    @Override
+    public double getHomeOwnConsumptionInWatts() {
+        return source.getHomeOwnConsumptionInWatts();
+    }
+
+    @Override
+    public double getPvProductionInWatts() {
+        return source.getPvProductionInWatts();
+    }
+
+    @Override
+    public double getTotalActivePowerInWatts() {
+        return source.getTotalActivePowerInWatts();
+    }
+
+    @Override
+    public int getBatterySOC() {
+        return source.getBatterySOC();
+    }
+
+    @Override
+    public double getBatteryChargeInWatts() {
+        return source.getBatteryChargeInWatts();
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,410 @@
+package de.axeluhl.kostal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Streams readings directly from the {@code /query} endpoint of an InfluxDB 1.x server, replacing the
+ * {@code kostal-dumpBatteryUse} script that starts one {@code influx} CLI process per day and pipes its text output
+ * through {@code tail} into {@link AggregateBatteryDischarge}.
+ * <p>
+ *
+ * The time range is split into chunks, by default one day each, and one query is issued per chunk, asking for a
+ * chunked, gzip-compressed CSV response with nanosecond time stamps. Each response is parsed by a
+ * {@link ReadingParser#forInfluxDbCsv(InputStream) CSV parser} while it is being received, on one of a fixed number
+ * of worker threads, into a {@link ReadingBatch}. Up to {@code maxRequestsInFlight} chunks are requested ahead of the
+ * one being consumed, so downloading, parsing and the simulation consuming this source overlap, while memory use stays
+ * bounded by {@code maxRequestsInFlight+1} chunks. Consumed batches are re-used for later chunks.
+ * <p>
+ *
+ * Credentials, if the server requires them, are taken from the {@code INFLUX_USERNAME} and {@code INFLUX_PASSWORD}
+ * environment variables, just like the {@code influx} CLI does.
+ */
+public class InfluxDbReadingSource implements ReadingSource {
+    public static final String DEFAULT_DATABASE = "kostal";
+
+    public static final String DEFAULT_MEASUREMENT = "pv";
+
+    public static final long DEFAULT_CHUNK_DURATION_IN_MILLIS = 24l * 3600l * 1000l;
+
+    public static final int DEFAULT_MAX_REQUESTS_IN_FLIGHT = 4;
+
+    /**
+     * The number of days the {@code kostal-dumpBatteryUse} script streams
+     */
+    static final int DEFAULT_NUMBER_OF_DAYS = 3650;
+
+    /**
+     * Number of points per chunk of a chunked InfluxDB response
+     */
+    private static final int RESPONSE_CHUNK_SIZE = 10000;
+
+    private static final int CONNECT_TIMEOUT_IN_MILLIS = 30000;
+
+    private static final int READ_TIMEOUT_IN_MILLIS = 300000;
+
+    private static final String FIELDS = "\"Home own consumption\", \"PV production\", \"Total active power (powermeter)\", "
+            + "\"Battery actual SOC\", \"Battery Charge\"";
+
+    private final String queryUrlPrefix;
+
+    private final String measurement;
+
+    private final long toInMillis;
+
+    private final long chunkDurationInMillis;
+
+    private final int maxRequestsInFlight;
+
+    private final String authorization;
+
+    private final ExecutorService executor;
+
+    /**
+     * Responses requested but not consumed yet, in time order
+     */
+    private final Queue<Future<ReadingBatch>> pendingBatches;
+
+    /**
+     * Batches consumed already, ready to be filled again by the workers
+     */
+    private final Queue<ReadingBatch> freeBatches;
+
+    private long nextChunkStartInMillis;
+
+    private ReadingBatch currentBatch;
+
+    /**
+     * Rows skipped by the workers' parsers because of a {@code null} value or a malformed line
+     */
+    private final AtomicLong numberOfSkippedLines = new AtomicLong();
+
+    /**
+     * Uses the default database, measurement, chunk duration and number of requests in flight
+     */
+    public InfluxDbReadingSource(String baseUrl, long fromInMillis, long toInMillis) {
+        this(baseUrl, DEFAULT_DATABASE, DEFAULT_MEASUREMENT, fromInMillis, toInMillis, DEFAULT_CHUNK_DURATION_IN_MILLIS,
+                DEFAULT_MAX_REQUESTS_IN_FLIGHT);
+    }
+
+    /**
+     * @param baseUrl
+     *            the server's base URL, such as {@code http://localhost:8086}
+     * @param fromInMillis
+     *            start of the time range to query, inclusive, in milliseconds since the epoch
+     * @param toInMillis
+     *            end of the time range to query, exclusive, in milliseconds since the epoch
+     * @param maxRequestsInFlight
+     *            number of chunks requested ahead of the one being consumed; also the number of worker threads
+     */
+    public InfluxDbReadingSource(String baseUrl, String database, String measurement, long fromInMillis, long toInMillis,
+            long chunkDurationInMillis, int maxRequestsInFlight) {
+        if (chunkDurationInMillis <= 0 || maxRequestsInFlight <= 0) {
+            throw new IllegalArgumentException("Chunk duration and number of requests in flight must be positive");
+        }
+        this.queryUrlPrefix = (baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl)
+                + "/query?db=" + encode(database) + "&epoch=ns&chunked=true&chunk_size=" + RESPONSE_CHUNK_SIZE + "&q=";
+        this.measurement = measurement;
+        this.nextChunkStartInMillis = fromInMillis;
+        this.toInMillis = toInMillis;
+        this.chunkDurationInMillis = chunkDurationInMillis;
+        this.maxRequestsInFlight = maxRequestsInFlight;
+        final String username = System.getenv("INFLUX_USERNAME");
+        this.authorization = username == null ? null
+                : "Basic " + Base64.getEncoder().encodeToString((username + ":" + (System.getenv("INFLUX_PASSWORD") == null
+                        ? "" : System.getenv("INFLUX_PASSWORD"))).getBytes(StandardCharsets.UTF_8));
+        this.executor = Executors.newFixedThreadPool(maxRequestsInFlight, runnable -> {
+            final Thread thread = new Thread(runnable, InfluxDbReadingSource.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pendingBatches = new ArrayDeque<>(maxRequestsInFlight);
+        this.freeBatches = new ConcurrentLinkedQueue<>();
+        requestChunks();
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+    }
+
+    /**
+     * Fills up the queue of pending requests until {@link #maxRequestsInFlight} are pending or the end of the time
+     * range has been reached
+     */
+    private void requestChunks() {
+        while (pendingBatches.size() < maxRequestsInFlight && nextChunkStartInMillis < toInMillis) {
+            final long chunkStartInMillis = nextChunkStartInMillis;
+            final long chunkEndInMillis = toInMillis - chunkStartInMillis <= chunkDurationInMillis ? toInMillis
+                    : chunkStartInMillis + chunkDurationInMillis;
+            pendingBatches.add(executor.submit(() -> query(chunkStartInMillis, chunkEndInMillis)));
+            nextChunkStartInMillis = chunkEndInMillis;
+        }
+    }
+
+    private String getQuery(long fromInMillis, long toInMillis) {
+        return "SELECT " + FIELDS + " FROM \"" + measurement.replace("\"", "\\\"") + "\" WHERE time >= " + fromInMillis
+                + "ms AND time < " + toInMillis + "ms";
+    }
+
+    private ReadingBatch query(long fromInMillis, long toInMillis) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(queryUrlPrefix + encode(getQuery(fromInMillis, toInMillis))).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_IN_MILLIS);
+        connection.setRequestProperty("Accept", "application/csv");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        try {
+            final int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("InfluxDB query for [" + fromInMillis + ", " + toInMillis + ") failed with status "
+                        + status + ": " + readFully(connection.getErrorStream()));
+            }
+            final InputStream body = "gzip".equalsIgnoreCase(connection.getContentEncoding())
+                    ? new GZIPInputStream(connection.getInputStream(), 1 << 16) : connection.getInputStream();
+            ReadingBatch batch = freeBatches.poll();
+            if (batch == null) {
+                batch = new ReadingBatch();
+            } else {
+                batch.clear();
+            }
+            try (final ReadingParser parser = ReadingParser.forInfluxDbCsv(body)) {
+                batch.append(parser);
+                numberOfSkippedLines.addAndGet(parser.getNumberOfSkippedLines());
+            }
+            return batch;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        try (final InputStream toRead = in) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = toRead.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8).trim();
+        }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (currentBatch == null || !currentBatch.next()) {
+            if (currentBatch != null) {
+                freeBatches.add(currentBatch);
+                currentBatch = null;
+            }
+            final Future<ReadingBatch> pending = pendingBatches.poll();
+            if (pending == null) {
+                return false;
+            }
+            currentBatch = await(pending);
+            requestChunks();
+        }
+        return true;
+    }
+
+    private static ReadingBatch await(Future<ReadingBatch> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for InfluxDB response");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public long getTimeInMillis() {
+        return currentBatch.getTimeInMillis();
+    }
+
+    @Override
+    public double getHomeOwnConsumptionInWatts() {
+        return currentBatch.getHomeOwnConsumptionInWatts();
+    }
+
+    @Override
+    public double getPvProductionInWatts() {
+        return currentBatch.getPvProductionInWatts();
+    }
+
+    @Override
+    public double getTotalActivePowerInWatts() {
+        return currentBatch.getTotalActivePowerInWatts();
+    }
+
+    @Override
+    public int getBatterySOC() {
+        return currentBatch.getBatterySOC();
+    }
+
+    @Override
+    public double getBatteryChargeInWatts() {
+        return currentBatch.getBatteryChargeInWatts();
+    }
+
+    /**
+     * @return the number of rows of the responses received so far that were skipped, mostly because they had a
+     *         {@code null} value, as InfluxDB reports for fields missing at a time stamp; see
+     *         {@link ReadingParser#getNumberOfSkippedLines()}
+     */
+    public long getNumberOfSkippedLines() {
+        return numberOfSkippedLines.get();
+    }
+
+    /**
+     * Cancels all pending requests and stops the worker threads
+     */
+    @Override
+    public void close() {
+        for (final Future<ReadingBatch> pending : pendingBatches) {
+            pending.cancel(/* mayInterruptIfRunning */ true);
+        }
+        pendingBatches.clear();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Pulls readings from InfluxDB and writes them to a binary history file for use with the {@code --binaryFile}
+     * option of {@link AggregateBatteryDischarge}, or to the standard output in the text format understood by
+     * {@link ReadingParser} if no output file is specified.
+     */
+    public static void main(String[] args) throws IOException {
+        final Option url = Option.builder("u")
+                .longOpt("influxUrl")
+                .hasArg()
+                .argName("influxUrl")
+                .required()
+                .desc("base URL of the InfluxDB 1.x server, such as http://localhost:8086")
+                .build();
+        final Option database = Option.builder("d")
+                .longOpt("database")
+                .hasArg()
+                .argName("database")
+                .desc("database to query; defaults to "+DEFAULT_DATABASE)
+                .build();
+        final Option measurementOption = Option.builder("m")
+                .longOpt("measurement")
+                .hasArg()
+                .argName("measurement")
+                .desc("measurement to query; defaults to "+DEFAULT_MEASUREMENT)
+                .build();
+        final Option from = Option.builder()
+                .longOpt("from")
+                .hasArg()
+                .argName("from")
+                .desc("UTC date (yyyy-mm-dd) or ISO-8601 instant of the first reading to query; defaults to "+DEFAULT_NUMBER_OF_DAYS+" days before --to")
+                .build();
+        final Option to = Option.builder()
+                .longOpt("to")
+                .hasArg()
+                .argName("to")
+                .desc("UTC date (yyyy-mm-dd) or ISO-8601 instant up to which to query, exclusive; defaults to now")
+                .build();
+        final Option requestsInFlight = Option.builder("n")
+                .longOpt("requestsInFlight")
+                .hasArg()
+                .argName("requestsInFlight")
+                .type(Number.class)
+                .desc("number of day-sized queries to run ahead; defaults to "+DEFAULT_MAX_REQUESTS_IN_FLIGHT)
+                .build();
+        final Option outputFile = Option.builder("o")
+                .longOpt("output")
+                .hasArg()
+                .argName("binaryFile")
+                .desc("binary history file to write; defaults to writing text to stdout")
+                .build();
+        final Options options = new Options()
+                .addOption(url)
+                .addOption(database)
+                .addOption(measurementOption)
+                .addOption(from)
+                .addOption(to)
+                .addOption(requestsInFlight)
+                .addOption(outputFile);
+        final CommandLineParser parser = new DefaultParser();
+        try {
+            final CommandLine commandLine = parser.parse(options, args);
+            final long toInMillis = commandLine.hasOption(to) ? AggregateBatteryDischarge.parseTimeInMillis(commandLine.getOptionValue(to)) : System.currentTimeMillis();
+            final long fromInMillis = commandLine.hasOption(from) ? AggregateBatteryDischarge.parseTimeInMillis(commandLine.getOptionValue(from))
+                    : toInMillis - DEFAULT_NUMBER_OF_DAYS * DEFAULT_CHUNK_DURATION_IN_MILLIS;
+            try (final InfluxDbReadingSource readings = new InfluxDbReadingSource(commandLine.getOptionValue(url),
+                    commandLine.getOptionValue(database, DEFAULT_DATABASE), commandLine.getOptionValue(measurementOption, DEFAULT_MEASUREMENT),
+                    fromInMillis, toInMillis, DEFAULT_CHUNK_DURATION_IN_MILLIS,
+                    commandLine.hasOption(requestsInFlight) ? ((Number) commandLine.getParsedOptionValue(requestsInFlight)).intValue() : DEFAULT_MAX_REQUESTS_IN_FLIGHT)) {
+                if (commandLine.hasOption(outputFile)) {
+                    try (final BinaryHistoryWriter writer = new BinaryHistoryWriter(Paths.get(commandLine.getOptionValue(outputFile)))) {
+                        writer.append(readings);
+                    }
+                } else {
+                    final PrintStream out = new PrintStream(System.out, /* autoFlush */ false, StandardCharsets.US_ASCII.name());
+                    while (readings.next()) {
+                        out.print(readings.getTimeInMillis() * 1000000l);
+                        out.print(' ');
+                        out.print(readings.getHomeOwnConsumptionInWatts());
+                        out.print(' ');
+                        out.print(readings.getPvProductionInWatts());
+                        out.print(' ');
+                        out.print(readings.getTotalActivePowerInWatts());
+                        out.print(' ');
+                        out.print(readings.getBatterySOC());
+                        out.print(' ');
+                        out.println(readings.getBatteryChargeInWatts());
+                    }
+                    out.flush();
+                }
+                if (readings.getNumberOfSkippedLines() > 0) {
+                    System.err.println("Skipped " + readings.getNumberOfSkippedLines() + " rows with null values");
+                }
+            }
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp(InfluxDbReadingSource.class.getName(), options);
+        }
+    }
+}
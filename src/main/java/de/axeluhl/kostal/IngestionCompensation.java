@@ -1,14 +1,44 @@
 package de.axeluhl.kostal;
 
+import java.time.Instant;
+
+/**
+ * The compensation paid per energy fed into the grid, per time range. Literals are ascending in their
+ * {@link #getStartsAt()} time points; {@link #CURVE} provides the indexed lookup of the compensation in effect at a
+ * given time.
+ */
 public enum IngestionCompensation {
-    COMPENSATION_2020(9.6);
+    COMPENSATION_2020(Instant.ofEpochSecond(0), 9.6);
     
+    /**
+     * The price curve formed by all compensations; safe for concurrent use
+     */
+    public static final SortedPriceCurve CURVE = createCurve();
+
+    private final Instant startsAt;
+
     private double centsPerKilowattHour;
 
-    IngestionCompensation(double centsPerKilowattHour) {
+    IngestionCompensation(Instant startsAt, double centsPerKilowattHour) {
+        this.startsAt = startsAt;
         this.centsPerKilowattHour = centsPerKilowattHour;
     }
     
+    private static SortedPriceCurve createCurve() {
+        final IngestionCompensation[] compensations = values();
+        final long[] startsInMillis = new long[compensations.length];
+        final double[] centsPerKWh = new double[compensations.length];
+        for (int i = 0; i < compensations.length; i++) {
+            startsInMillis[i] = compensations[i].getStartsAt().toEpochMilli();
+            centsPerKWh[i] = compensations[i].centsPerKilowattHour;
+        }
+        return new SortedPriceCurve(startsInMillis, centsPerKWh);
+    }
+
+    public Instant getStartsAt() {
+        return startsAt;
+    }
+
     public double getCompensationInCents(double energyInWattHours) {
         return energyInWattHours / 1000.0 * centsPerKilowattHour;
     }
@@ -0,0 +1,451 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+
+import org.apache.commons.cli.Option;
+
+/**
+ * Reads the tab-separated log data exported by the inverter's web interface, the format that the {@code import-logs}
+ * script converts to InfluxDB line protocol. Such an export starts with a few lines of metadata and a header line whose
+ * first column is {@code Zeit}, followed by one line per logging interval whose first column is the time in seconds
+ * since the epoch. Lines whose first column isn't a number are skipped. Columns are separated by tabs; empty columns
+ * and columns holding {@code -} have no value.
+ * <p>
+ *
+ * Of the 50+ columns, only those needed for the {@link Field fields} of a {@link ReadingSource} are decoded: each
+ * field is projected from a column spec, which is a {@code +}-separated list of columns to add up, each given by its
+ * name in the header line or by its 1-based index with a leading {@code #}, as in the {@code import-logs} script, and
+ * optionally negated by a leading {@code -}. An empty spec projects to 0. Columns without a value add nothing; a
+ * battery SOC without a value is carried forward from the previous reading delivered, which may come from a
+ * different file. Names are resolved for each file separately,
+ * so exports of different firmware versions may be mixed.
+ * <p>
+ *
+ * The files are parsed in parallel into {@link ReadingBatch batches} holding only the projected fields, about 44 bytes
+ * per reading. The batches are then merged into a single time-ordered stream. Exports covering overlapping periods,
+ * such as repeated exports of the last months, are common, so a reading whose time stamp isn't later than that of the
+ * previous reading delivered is skipped and counted, see {@link #getNumberOfSkippedReadings()}.
+ */
+public class KostalLogReadingSource implements ReadingSource {
+    /**
+     * The fields of a {@link ReadingSource} and the column specs projecting them by default. The DC inputs 1 and 2 are
+     * the PV strings, as input 3 is where a battery is connected, and the battery SOC is in column 48, both as in the
+     * {@code import-logs} script. The home consumption is the sum of the consumption covered by PV, battery and grid.
+     * The export has no power meter and battery power columns, so those fields are 0 unless specified otherwise.
+     */
+    public static enum Field {
+        HOME_OWN_CONSUMPTION("home", "HC1 P+HC2 P+HC3 P"),
+        PV_PRODUCTION("pv", "#4+#9"),
+        TOTAL_ACTIVE_POWER("grid", ""),
+        BATTERY_SOC("soc", "#48"),
+        BATTERY_CHARGE("battery", "");
+
+        private final String key;
+
+        private final String defaultColumns;
+
+        private Field(String key, String defaultColumns) {
+            this.key = key;
+            this.defaultColumns = defaultColumns;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getDefaultColumns() {
+            return defaultColumns;
+        }
+    }
+
+    private static final String HEADER_FIRST_COLUMN = "Zeit";
+
+    private static final int NUMBER_OF_FIELDS = Field.values().length;
+
+    /**
+     * The SOC stored in a batch for a line without a SOC value, to be replaced by the SOC carried forward when merging
+     */
+    private static final int MISSING_SOC = -1;
+
+    private final PriorityQueue<ReadingBatch> heads;
+
+    private long numberOfSkippedReadings;
+
+    private long timeInMillis = Long.MIN_VALUE;
+
+    private double homeOwnConsumptionInWatts;
+
+    private double pvProductionInWatts;
+
+    private double totalActivePowerInWatts;
+
+    private int batterySOC;
+
+    private double batteryChargeInWatts;
+
+    /**
+     * Parses all {@code files} in parallel; the files may be gzip-compressed
+     *
+     * @param columns
+     *            column specs overriding the {@link Field#getDefaultColumns() defaults}, e.g., as
+     *            {@link #parseColumns(String) parsed} from a command line
+     * @throws IllegalArgumentException
+     *             if a column spec names a column that a file's header doesn't have
+     */
+    public KostalLogReadingSource(List<Path> files, Map<Field, String> columns) throws IOException {
+        final String[] specs = new String[NUMBER_OF_FIELDS];
+        for (final Field field : Field.values()) {
+            specs[field.ordinal()] = columns.getOrDefault(field, field.getDefaultColumns());
+        }
+        final List<ReadingBatch> batches;
+        try {
+            batches = files.parallelStream().map(file -> {
+                try (final InputStream in = PipelinedFileReadingSource.open(file)) {
+                    return new LogParser(file, in, specs).parse();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        heads = new PriorityQueue<>(Math.max(1, batches.size()), Comparator.comparingLong(ReadingBatch::getTimeInMillis));
+        for (final ReadingBatch batch : batches) {
+            if (batch.next()) {
+                heads.add(batch);
+            }
+        }
+    }
+
+    /**
+     * @return the {@code --kostalLogs} option of the command line tools reading exported log data, taking a file or
+     *         directory to {@link PipelinedFileReadingSource#listFiles(Path) list the files} of
+     */
+    public static Option createLogsOption() {
+        return Option.builder()
+                .longOpt("kostalLogs")
+                .hasArg()
+                .argName("fileOrDirectory")
+                .desc("log data file exported from the inverter, or directory of such files, read in parallel; used instead of --file; see "
+                        +KostalLogReadingSource.class.getName())
+                .build();
+    }
+
+    /**
+     * @return the {@code --kostalLogColumns} option accompanying {@link #createLogsOption()}, whose value is to be
+     *         passed to {@link #parseColumns(String)}
+     */
+    public static Option createColumnsOption() {
+        return Option.builder()
+                .longOpt("kostalLogColumns")
+                .hasArg()
+                .argName("columns")
+                .desc("columns of --kostalLogs to project, such as \"pv=#4+#9+#14,home=HC1 P+HC2 P+HC3 P\"; keys are home, pv, grid, soc, battery")
+                .build();
+    }
+
+    /**
+     * Parses column specs in the form {@code key=spec,key=spec}, such as {@code home=HC1 P+HC2 P+HC3 P,pv=#4+#9+#14},
+     * where the keys are those of the {@link Field fields}
+     */
+    public static Map<Field, String> parseColumns(String columns) {
+        final Map<Field, String> result = new EnumMap<>(Field.class);
+        if (columns.trim().isEmpty()) {
+            return result;
+        }
+        for (final String assignment : columns.split(",")) {
+            final int equals = assignment.indexOf('=');
+            final String key = equals < 0 ? assignment.trim() : assignment.substring(0, equals).trim();
+            Field match = null;
+            for (final Field field : Field.values()) {
+                if (field.getKey().equals(key)) {
+                    match = field;
+                }
+            }
+            if (equals < 0 || match == null) {
+                throw new IllegalArgumentException("Expected key=columns with a key out of home, pv, grid, soc, battery but got \"" + assignment + "\"");
+            }
+            result.put(match, assignment.substring(equals + 1).trim());
+        }
+        return result;
+    }
+
+    /**
+     * Parses one file into a batch, decoding only the columns projected
+     */
+    private static class LogParser {
+        private final Path file;
+
+        private final InputStream in;
+
+        private final String[] specs;
+
+        private final byte[] readBuffer = new byte[1 << 16];
+
+        private int readPosition;
+
+        private int readLimit;
+
+        private byte[] line = new byte[1024];
+
+        /**
+         * For each field, the 0-based indices of the columns to add up, and whether to negate them; {@code null}
+         * until resolved against the header, or right away if a spec only uses indices
+         */
+        private int[][] fieldColumns;
+
+        private boolean[][] fieldNegations;
+
+        /**
+         * Bounds of the columns of the current line; only those up to {@link #maxColumn} are recorded
+         */
+        private int[] columnStarts;
+
+        private int[] columnEnds;
+
+        private int maxColumn;
+
+        LogParser(Path file, InputStream in, String[] specs) {
+            this.file = file;
+            this.in = in;
+            this.specs = specs;
+            resolve(null);
+        }
+
+        /**
+         * Resolves the column specs against the {@code header} names, or against indices only if {@code header} is
+         * {@code null}, in which case resolution is deferred if names are used
+         */
+        private void resolve(Map<String, Integer> header) {
+            final int[][] columns = new int[NUMBER_OF_FIELDS][];
+            final boolean[][] negations = new boolean[NUMBER_OF_FIELDS][];
+            int max = 0;
+            for (int field = 0; field < NUMBER_OF_FIELDS; field++) {
+                final String[] terms = specs[field].trim().isEmpty() ? new String[0] : specs[field].split("\\+");
+                columns[field] = new int[terms.length];
+                negations[field] = new boolean[terms.length];
+                for (int i = 0; i < terms.length; i++) {
+                    String term = terms[i].trim();
+                    if (term.startsWith("-")) {
+                        negations[field][i] = true;
+                        term = term.substring(1).trim();
+                    }
+                    if (term.startsWith("#")) {
+                        columns[field][i] = Integer.parseInt(term.substring(1)) - 1;
+                        if (columns[field][i] < 0) {
+                            throw new IllegalArgumentException("Column indices start at 1: " + term);
+                        }
+                    } else if (header == null) {
+                        return; // wait for the header
+                    } else {
+                        final Integer column = header.get(term);
+                        if (column == null) {
+                            throw new IllegalArgumentException("No column \"" + term + "\" in " + file + "; columns are " + header.keySet());
+                        }
+                        columns[field][i] = column;
+                    }
+                    max = Math.max(max, columns[field][i]);
+                }
+            }
+            fieldColumns = columns;
+            fieldNegations = negations;
+            maxColumn = max;
+            columnStarts = new int[max + 1];
+            columnEnds = new int[max + 1];
+        }
+
+        ReadingBatch parse() throws IOException {
+            final ReadingBatch batch = new ReadingBatch();
+            final double[] values = new double[NUMBER_OF_FIELDS];
+            int length;
+            while ((length = readLine()) >= 0) {
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                int firstColumnEnd = 0;
+                while (firstColumnEnd < length && line[firstColumnEnd] != '\t') {
+                    firstColumnEnd++;
+                }
+                if (firstColumnEnd == 0 || !AsciiNumbers.isDigit(line[0])) {
+                    if (new String(line, 0, firstColumnEnd, StandardCharsets.ISO_8859_1).trim().equals(HEADER_FIRST_COLUMN)) {
+                        resolve(parseHeader(length));
+                    }
+                    continue;
+                }
+                if (fieldColumns == null) {
+                    throw new IllegalArgumentException("No header line starting with " + HEADER_FIRST_COLUMN + " before the first reading in " + file);
+                }
+                final int columns = splitColumns(length);
+                for (int field = 0; field < NUMBER_OF_FIELDS; field++) {
+                    double sum = Double.NaN;
+                    for (int i = 0; i < fieldColumns[field].length; i++) {
+                        final int column = fieldColumns[field][i];
+                        if (column < columns && hasValue(column)) {
+                            final double value = AsciiNumbers.parseDouble(line, columnStarts[column], columnEnds[column]);
+                            sum = (Double.isNaN(sum) ? 0 : sum) + (fieldNegations[field][i] ? -value : value);
+                        }
+                    }
+                    values[field] = sum;
+                }
+                final int soc = Double.isNaN(values[Field.BATTERY_SOC.ordinal()]) ? MISSING_SOC
+                        : (int) Math.round(values[Field.BATTERY_SOC.ordinal()]);
+                batch.append(AsciiNumbers.parseLong(line, 0, firstColumnEnd) * 1000l,
+                        orZero(values[Field.HOME_OWN_CONSUMPTION.ordinal()]), orZero(values[Field.PV_PRODUCTION.ordinal()]),
+                        orZero(values[Field.TOTAL_ACTIVE_POWER.ordinal()]), soc, orZero(values[Field.BATTERY_CHARGE.ordinal()]));
+            }
+            return batch;
+        }
+
+        private static double orZero(double value) {
+            return Double.isNaN(value) ? 0 : value;
+        }
+
+        private boolean hasValue(int column) {
+            final int start = columnStarts[column];
+            final int end = columnEnds[column];
+            return end > start && !(end - start == 1 && line[start] == '-');
+        }
+
+        /**
+         * Records the bounds of the columns up to {@link #maxColumn}, trimmed of blanks
+         *
+         * @return the number of columns recorded
+         */
+        private int splitColumns(int length) {
+            int column = 0;
+            int start = 0;
+            for (int i = 0; i <= length && column <= maxColumn; i++) {
+                if (i == length || line[i] == '\t') {
+                    int s = start;
+                    int e = i;
+                    while (s < e && line[s] == ' ') {
+                        s++;
+                    }
+                    while (e > s && line[e - 1] == ' ') {
+                        e--;
+                    }
+                    columnStarts[column] = s;
+                    columnEnds[column] = e;
+                    column++;
+                    start = i + 1;
+                }
+            }
+            return column;
+        }
+
+        private Map<String, Integer> parseHeader(int length) {
+            final Map<String, Integer> header = new HashMap<>();
+            final String[] names = new String(line, 0, length, StandardCharsets.ISO_8859_1).split("\t");
+            for (int i = 0; i < names.length; i++) {
+                header.putIfAbsent(names[i].trim(), i);
+            }
+            return header;
+        }
+
+        private int readLine() throws IOException {
+            int length = 0;
+            while (true) {
+                if (readPosition == readLimit) {
+                    readLimit = in.read(readBuffer);
+                    readPosition = 0;
+                    if (readLimit < 0) {
+                        readLimit = 0;
+                        return length == 0 ? -1 : length;
+                    }
+                }
+                final byte b = readBuffer[readPosition++];
+                if (b == '\n') {
+                    return length;
+                }
+                if (length == line.length) {
+                    final byte[] newLine = new byte[2 * line.length];
+                    System.arraycopy(line, 0, newLine, 0, length);
+                    line = newLine;
+                }
+                line[length++] = b;
+            }
+        }
+    }
+
+    /**
+     * @return the number of readings skipped so far because they weren't later than the previous reading, e.g.,
+     *         because exports overlapped
+     */
+    public long getNumberOfSkippedReadings() {
+        return numberOfSkippedReadings;
+    }
+
+    @Override
+    public boolean next() {
+        ReadingBatch head;
+        while ((head = heads.poll()) != null) {
+            final long headTimeInMillis = head.getTimeInMillis();
+            final boolean later = headTimeInMillis > timeInMillis;
+            if (later) {
+                timeInMillis = headTimeInMillis;
+                homeOwnConsumptionInWatts = head.getHomeOwnConsumptionInWatts();
+                pvProductionInWatts = head.getPvProductionInWatts();
+                totalActivePowerInWatts = head.getTotalActivePowerInWatts();
+                if (head.getBatterySOC() != MISSING_SOC) {
+                    batterySOC = head.getBatterySOC();
+                } // else carried forward, across files, too; 0 until a SOC is known
+                batteryChargeInWatts = head.getBatteryChargeInWatts();
+            } else {
+                numberOfSkippedReadings++;
+            }
+            if (head.next()) {
+                heads.add(head);
+            }
+            if (later) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long getTimeInMillis() {
+        return timeInMillis;
+    }
+
+    @Override
+    public double getHomeOwnConsumptionInWatts() {
+        return homeOwnConsumptionInWatts;
+    }
+
+    @Override
+    public double getPvProductionInWatts() {
+        return pvProductionInWatts;
+    }
+
+    @Override
+    public double getTotalActivePowerInWatts() {
+        return totalActivePowerInWatts;
+    }
+
+    @Override
+    public int getBatterySOC() {
+        return batterySOC;
+    }
+
+    @Override
+    public double getBatteryChargeInWatts() {
+        return batteryChargeInWatts;
+    }
+
+    @Override
+    public void close() {
+        heads.clear();
+    }
+}
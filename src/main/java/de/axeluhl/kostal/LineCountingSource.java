@@ -0,0 +1,17 @@
+package de.axeluhl.kostal;
+
+/**
+ * A {@link ReadingSource} that parses readings from lines of text and counts the lines it read and those it skipped as
+ * malformed, so that metrics such as {@link ReplayMetrics} can report the data quality of the input.
+ */
+public interface LineCountingSource extends ReadingSource {
+    /**
+     * @return the number of lines read so far, including blank, header and malformed lines
+     */
+    long getNumberOfLines();
+
+    /**
+     * @return the number of lines skipped so far in lenient mode because they were malformed
+     */
+    long getNumberOfMalformedLines();
+}
@@ -0,0 +1,362 @@
+package de.axeluhl.kostal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Keeps the sums of a live replay over the last 15 minutes, the current day and the current month of a time zone, in
+ * ring buffers of fixed size, so that memory and cost per step don't grow with the time the replay keeps running. All
+ * windows end at the last reading; the current day and month are those of the last reading in the time zone.
+ * <p>
+ *
+ * The last 15 minutes are summed from buckets of {@value #RECENT_BUCKET_LENGTH_IN_SECONDS} seconds, the current day from quarter-hour buckets and the current month from day buckets. A bucket is recycled
+ * when a step falls into a later bucket mapping to the same ring position; buckets whose start is outside of the
+ * window queried are ignored. As in {@link Rollups}, a step is accounted for entirely in the buckets in which it
+ * starts, with the same energy flows, so the last 15 minutes are exact to within a bucket length.
+ * <p>
+ *
+ * All methods are synchronized: a replay thread reports steps while other threads, e.g., those of an HTTP server,
+ * query the windows. The windows can be {@link #save(Path) saved} next to a {@link BatteryCheckpoint} and
+ * {@link #restore(Path) restored} with it, so that a resumed replay continues the current day and month.
+ */
+public class LiveWindows implements ReplayListener {
+    private static final long RECENT_WINDOW_IN_MILLIS = 15l * 60l * 1000l;
+
+    static final int RECENT_BUCKET_LENGTH_IN_SECONDS = 10;
+
+    private static final long RECENT_BUCKET_LENGTH_IN_MILLIS = 1000l * RECENT_BUCKET_LENGTH_IN_SECONDS;
+
+    /**
+     * Enough buckets for the window plus the partial bucket at its start
+     */
+    private static final int RECENT_BUCKETS = (int) (RECENT_WINDOW_IN_MILLIS / RECENT_BUCKET_LENGTH_IN_MILLIS) + 1;
+
+    private static final long QUARTER_HOUR_IN_MILLIS = 15l * 60l * 1000l;
+
+    /**
+     * Enough quarter hours for the longest day, when daylight saving time ends
+     */
+    private static final int QUARTER_HOUR_BUCKETS = 25 * 4;
+
+    private static final int DAY_BUCKETS = 31;
+
+    /**
+     * Only the energy flows are kept per bucket
+     */
+    private static final int NUMBER_OF_METRICS = StepMetrics.NUMBER_OF_FLOW_METRICS;
+
+    private static final int MAGIC = 0x4B4C5731; // "KLW1"
+
+    /**
+     * A ring of buckets, each identified by its start, with the sums in row-major order
+     */
+    private static class Ring {
+        private final long[] bucketStartsInMillis;
+
+        private final double[] sums;
+
+        Ring(int size) {
+            bucketStartsInMillis = new long[size];
+            Arrays.fill(bucketStartsInMillis, Long.MIN_VALUE);
+            sums = new double[size * NUMBER_OF_METRICS];
+        }
+
+        void add(int position, long bucketStartInMillis, double[] step) {
+            final int offset = position * NUMBER_OF_METRICS;
+            if (bucketStartsInMillis[position] != bucketStartInMillis) {
+                bucketStartsInMillis[position] = bucketStartInMillis;
+                Arrays.fill(sums, offset, offset + NUMBER_OF_METRICS, 0);
+            }
+            for (int metric = 0; metric < NUMBER_OF_METRICS; metric++) {
+                sums[offset + metric] += step[metric];
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(bucketStartsInMillis.length);
+            for (final long bucketStartInMillis : bucketStartsInMillis) {
+                out.writeLong(bucketStartInMillis);
+            }
+            for (final double sum : sums) {
+                out.writeDouble(sum);
+            }
+        }
+
+        void read(DataInputStream in) throws IOException {
+            if (in.readInt() != bucketStartsInMillis.length) {
+                throw new IOException("Number of buckets of saved windows doesn't match");
+            }
+            for (int position = 0; position < bucketStartsInMillis.length; position++) {
+                bucketStartsInMillis[position] = in.readLong();
+            }
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] = in.readDouble();
+            }
+        }
+
+        /**
+         * Adds the sums of all buckets starting in {@code [fromInMillis, toInMillis]} to {@code result}
+         */
+        void sum(long fromInMillis, long toInMillis, double[] result) {
+            for (int position = 0; position < bucketStartsInMillis.length; position++) {
+                if (bucketStartsInMillis[position] >= fromInMillis && bucketStartsInMillis[position] <= toInMillis) {
+                    for (int metric = 0; metric < NUMBER_OF_METRICS; metric++) {
+                        result[metric] += sums[position * NUMBER_OF_METRICS + metric];
+                    }
+                }
+            }
+        }
+    }
+
+    private final ZoneId zone;
+
+    private final Ring recent = new Ring(RECENT_BUCKETS);
+
+    private final Ring quarterHours = new Ring(QUARTER_HOUR_BUCKETS);
+
+    private final Ring days = new Ring(DAY_BUCKETS);
+
+    /**
+     * Sums of the current step
+     */
+    private final double[] step = new double[NUMBER_OF_METRICS];
+
+    private long dayStartInMillis = Long.MIN_VALUE;
+
+    private long dayEndInMillis = Long.MIN_VALUE;
+
+    private int dayPosition;
+
+    private long monthStartInMillis = Long.MIN_VALUE;
+
+    private long monthEndInMillis = Long.MIN_VALUE;
+
+    private long lastTimestampInMillis = Long.MIN_VALUE;
+
+    private double energyContainedInWattHours;
+
+    private double capacityInWattHours;
+
+    private double totalSavingsInCents;
+
+    private long steps;
+
+    public LiveWindows(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    @Override
+    public synchronized void stepReplayed(long startInMillis, long durationInMillis, double pvProductionInWatts,
+            double homeOwnConsumptionInWatts, double energyAddedInWattHours, double savingsInCents, Battery virtualBattery) {
+        StepMetrics.accountFlows(step, durationInMillis, pvProductionInWatts, homeOwnConsumptionInWatts, energyAddedInWattHours, savingsInCents);
+        final long recentBucketIndex = Math.floorDiv(startInMillis, RECENT_BUCKET_LENGTH_IN_MILLIS);
+        recent.add((int) Math.floorMod(recentBucketIndex, (long) RECENT_BUCKETS), recentBucketIndex * RECENT_BUCKET_LENGTH_IN_MILLIS, step);
+        final long quarterHourIndex = Math.floorDiv(startInMillis, QUARTER_HOUR_IN_MILLIS);
+        quarterHours.add((int) Math.floorMod(quarterHourIndex, (long) QUARTER_HOUR_BUCKETS), quarterHourIndex * QUARTER_HOUR_IN_MILLIS, step);
+        if (startInMillis >= dayEndInMillis || startInMillis < dayStartInMillis) {
+            // calendar arithmetic only when the day changes
+            final LocalDate day = Instant.ofEpochMilli(startInMillis).atZone(zone).toLocalDate();
+            dayStartInMillis = day.atStartOfDay(zone).toInstant().toEpochMilli();
+            dayEndInMillis = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            dayPosition = (int) Math.floorMod(day.toEpochDay(), (long) DAY_BUCKETS);
+        }
+        days.add(dayPosition, dayStartInMillis, step);
+        final long endInMillis = startInMillis + durationInMillis;
+        if (endInMillis > lastTimestampInMillis) {
+            if (endInMillis >= monthEndInMillis) {
+                final LocalDate monthStart = Instant.ofEpochMilli(endInMillis).atZone(zone).toLocalDate().withDayOfMonth(1);
+                monthStartInMillis = monthStart.atStartOfDay(zone).toInstant().toEpochMilli();
+                monthEndInMillis = monthStart.plusMonths(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            }
+            lastTimestampInMillis = endInMillis;
+        }
+        energyContainedInWattHours = virtualBattery.getEnergyContainedInWattHours();
+        capacityInWattHours = virtualBattery.getCapacityInWattHours();
+        totalSavingsInCents = virtualBattery.getSavingsInCents();
+        steps++;
+    }
+
+    public synchronized long getLastTimestampInMillis() {
+        return lastTimestampInMillis;
+    }
+
+    public synchronized long getSteps() {
+        return steps;
+    }
+
+    public synchronized double getTotalSavingsInCents() {
+        return totalSavingsInCents;
+    }
+
+    /**
+     * @return the sums of the last 15 minutes, indexed like {@link StepMetrics#METRIC_NAMES}
+     */
+    private double[] sumLast15Minutes() {
+        final double[] result = new double[NUMBER_OF_METRICS];
+        if (steps == 0) {
+            return result;
+        }
+        recent.sum(Math.floorDiv(lastTimestampInMillis - RECENT_WINDOW_IN_MILLIS, RECENT_BUCKET_LENGTH_IN_MILLIS) * RECENT_BUCKET_LENGTH_IN_MILLIS,
+                lastTimestampInMillis, result);
+        return result;
+    }
+
+    private double[] sumToday() {
+        final double[] result = new double[NUMBER_OF_METRICS];
+        if (steps == 0) {
+            return result;
+        }
+        final long todayStartInMillis = Instant.ofEpochMilli(lastTimestampInMillis).atZone(zone).toLocalDate().atStartOfDay(zone).toInstant().toEpochMilli();
+        quarterHours.sum(todayStartInMillis, lastTimestampInMillis, result);
+        return result;
+    }
+
+    private double[] sumMonthToDate() {
+        final double[] result = new double[NUMBER_OF_METRICS];
+        if (steps == 0) {
+            return result;
+        }
+        days.sum(monthStartInMillis, lastTimestampInMillis, result);
+        return result;
+    }
+
+    public synchronized double getSavingsInCentsLast15Minutes() {
+        return sumLast15Minutes()[StepMetrics.SAVINGS_IN_CENTS];
+    }
+
+    public synchronized double getSavingsInCentsToday() {
+        return sumToday()[StepMetrics.SAVINGS_IN_CENTS];
+    }
+
+    public synchronized double getSavingsInCentsMonthToDate() {
+        return sumMonthToDate()[StepMetrics.SAVINGS_IN_CENTS];
+    }
+
+    public synchronized double getGridImportInWattHoursToday() {
+        return sumToday()[StepMetrics.GRID_IMPORT];
+    }
+
+    /**
+     * Writes the windows to {@code file} in a binary form, replacing it atomically where the file system supports it
+     */
+    public synchronized void save(Path file) throws IOException {
+        final Path absoluteFile = file.toAbsolutePath();
+        final Path temporaryFile = Files.createTempFile(absoluteFile.getParent(), absoluteFile.getFileName().toString(), ".tmp");
+        try {
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(zone.getId());
+                out.writeLong(lastTimestampInMillis);
+                out.writeLong(monthStartInMillis);
+                out.writeLong(monthEndInMillis);
+                out.writeDouble(energyContainedInWattHours);
+                out.writeDouble(capacityInWattHours);
+                out.writeDouble(totalSavingsInCents);
+                out.writeLong(steps);
+                recent.write(out);
+                quarterHours.write(out);
+                days.write(out);
+            }
+            try {
+                Files.move(temporaryFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * Replaces the state of these windows by the state {@link #save(Path) saved} to {@code file}
+     *
+     * @throws IOException
+     *             if the file can't be read or was saved for a different time zone
+     */
+    public synchronized void restore(Path file) throws IOException {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " doesn't contain saved windows");
+            }
+            final String zoneId = in.readUTF();
+            if (!zoneId.equals(zone.getId())) {
+                throw new IOException("Windows in " + file + " were saved for time zone " + zoneId + ", not " + zone.getId());
+            }
+            lastTimestampInMillis = in.readLong();
+            monthStartInMillis = in.readLong();
+            monthEndInMillis = in.readLong();
+            energyContainedInWattHours = in.readDouble();
+            capacityInWattHours = in.readDouble();
+            totalSavingsInCents = in.readDouble();
+            steps = in.readLong();
+            recent.read(in);
+            quarterHours.read(in);
+            days.read(in);
+            dayStartInMillis = Long.MIN_VALUE;
+            dayEndInMillis = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * @return a JSON object with the battery's state after the last step, the total savings, and one object per
+     *         window with its sums; {@code null} for the time stamp if no step has been replayed yet. JSON can't
+     *         represent {@code NaN} or infinite numbers, which readings with such values may produce, so fields with
+     *         such values are omitted.
+     */
+    public synchronized String toJson() {
+        final StringBuilder result = new StringBuilder(1024);
+        result.append("{\"lastReading\": ");
+        if (lastTimestampInMillis == Long.MIN_VALUE) {
+            result.append("null");
+        } else {
+            result.append('"').append(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(ZonedDateTime.ofInstant(
+                    Instant.ofEpochMilli(lastTimestampInMillis), zone))).append('"');
+        }
+        result.append(", \"steps\": ").append(steps);
+        appendField(result, "energyContainedInWattHours", "%1.1f", energyContainedInWattHours);
+        appendField(result, "socPercent", "%1.1f", capacityInWattHours == 0 ? 0 : 100.0 * energyContainedInWattHours / capacityInWattHours);
+        appendField(result, "totalSavingsInCents", "%1.2f", totalSavingsInCents);
+        appendWindow(result, "last15Minutes", sumLast15Minutes());
+        appendWindow(result, "today", sumToday());
+        appendWindow(result, "monthToDate", sumMonthToDate());
+        return result.append("}\n").toString();
+    }
+
+    /**
+     * Appends a field following another one, unless {@code value} is {@code NaN} or infinite
+     */
+    private static void appendField(StringBuilder json, String name, String format, double value) {
+        if (Double.isFinite(value)) {
+            json.append(", \"").append(name).append("\": ").append(String.format(Locale.US, format, value));
+        }
+    }
+
+    private static void appendWindow(StringBuilder json, String name, double[] sums) {
+        json.append(", \"").append(name).append("\": {");
+        boolean first = true;
+        for (int metric = 0; metric < NUMBER_OF_METRICS; metric++) {
+            if (Double.isFinite(sums[metric])) {
+                if (!first) {
+                    json.append(", ");
+                }
+                json.append('"').append(StepMetrics.METRIC_NAMES[metric]).append("\": ").append(sums[metric]);
+                first = false;
+            }
+        }
+        json.append('}');
+    }
+}
@@ -0,0 +1,434 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Estimates the distribution of a battery's annual savings by simulating many synthetic years, each stitched together
+ * from days of the history in blocks of consecutive days (a block bootstrap), so that a few years of history yield a
+ * spread of outcomes rather than a single number.
+ * <p>
+ *
+ * The history is held once, as one level of an {@link EnergyPyramid}, and shared read-only by all simulated years;
+ * this class only adds an index of the local days in that level. For each day of a synthetic year, the days of the
+ * history from the same calendar month are the candidates, so that seasons are preserved; a month without history
+ * borrows from the nearest month that has some. A block starts at a random candidate day and continues with the
+ * following days of the history for up to {@code blockLengthInDays} days, keeping the weather of consecutive days
+ * correlated; a block ends early at the end of a month of the synthetic year, at the end of the history, and at a gap
+ * in it. Each bucket of a drawn day is {@link EnergyPyramid#replayBucket(int, int, Battery, long) replayed} at the same
+ * offset from the start of the synthetic day, so tariffs apply by the synthetic time; on a day shortened by the switch
+ * to daylight saving time, buckets beyond its end are dropped.
+ * <p>
+ *
+ * Years are simulated in parallel, each with a battery of its own and its own random stream
+ * {@link SplittableRandom#split() split} off a seeded generator in year order, so the results for a seed don't depend
+ * on the number of cores or the order in which years complete.
+ */
+public class MonteCarloSavings {
+    public static final int DEFAULT_NUMBER_OF_YEARS = 10000;
+
+    public static final int DEFAULT_BLOCK_LENGTH_IN_DAYS = 7;
+
+    /**
+     * Quarter hours, matching the resolution of dynamic tariffs while keeping ten thousand years at a few minutes
+     */
+    public static final int DEFAULT_BUCKET_LENGTH_IN_SECONDS = 900;
+
+    public static final double[] DEFAULT_PERCENTILES = { 5, 10, 25, 50, 75, 90, 95 };
+
+    private final EnergyPyramid pyramid;
+
+    private final int level;
+
+    private final ZoneId zone;
+
+    private final int blockLengthInDays;
+
+    /**
+     * The index of each day's first bucket in the pyramid level, with one more element holding the number of buckets
+     */
+    private final int[] dayFirstBuckets;
+
+    private final long[] dayStartsInMillis;
+
+    private final long[] epochDays;
+
+    /**
+     * Per month of the year, zero-based, the indices of the days that blocks may start with
+     */
+    private final int[][] candidateDays;
+
+    /**
+     * @param level
+     *            the level of {@code pyramid} to simulate with; its buckets should divide the days in {@code zone}, as
+     *            a bucket counts for the day it starts in
+     */
+    public MonteCarloSavings(EnergyPyramid pyramid, int level, ZoneId zone, int blockLengthInDays) {
+        if (blockLengthInDays <= 0) {
+            throw new IllegalArgumentException("The block length must be positive but got " + blockLengthInDays);
+        }
+        this.pyramid = pyramid;
+        this.level = level;
+        this.zone = zone;
+        this.blockLengthInDays = blockLengthInDays;
+        final int numberOfBuckets = pyramid.getNumberOfBuckets(level);
+        int[] firstBuckets = new int[64];
+        long[] epochDays = new long[64];
+        int numberOfDays = 0;
+        long lastEpochDay = Long.MIN_VALUE;
+        for (int bucket = 0; bucket < numberOfBuckets; bucket++) {
+            final long epochDay = Instant.ofEpochMilli(pyramid.getBucketStartInMillis(level, bucket)).atZone(zone).toLocalDate().toEpochDay();
+            if (epochDay != lastEpochDay) {
+                if (numberOfDays == firstBuckets.length) {
+                    firstBuckets = Arrays.copyOf(firstBuckets, 2 * numberOfDays);
+                    epochDays = Arrays.copyOf(epochDays, 2 * numberOfDays);
+                }
+                firstBuckets[numberOfDays] = bucket;
+                epochDays[numberOfDays++] = epochDay;
+                lastEpochDay = epochDay;
+            }
+        }
+        if (numberOfDays == 0) {
+            throw new IllegalArgumentException("No history to draw days from");
+        }
+        dayFirstBuckets = Arrays.copyOf(firstBuckets, numberOfDays + 1);
+        dayFirstBuckets[numberOfDays] = numberOfBuckets;
+        this.epochDays = Arrays.copyOf(epochDays, numberOfDays);
+        dayStartsInMillis = new long[numberOfDays];
+        final int[] daysPerMonth = new int[12];
+        for (int day = 0; day < numberOfDays; day++) {
+            final LocalDate date = LocalDate.ofEpochDay(epochDays[day]);
+            dayStartsInMillis[day] = date.atStartOfDay(zone).toInstant().toEpochMilli();
+            daysPerMonth[date.getMonthValue() - 1]++;
+        }
+        final int[][] daysByMonth = new int[12][];
+        for (int month = 0; month < 12; month++) {
+            daysByMonth[month] = new int[daysPerMonth[month]];
+            daysPerMonth[month] = 0;
+        }
+        for (int day = 0; day < numberOfDays; day++) {
+            final int month = LocalDate.ofEpochDay(epochDays[day]).getMonthValue() - 1;
+            daysByMonth[month][daysPerMonth[month]++] = day;
+        }
+        candidateDays = new int[12][];
+        for (int month = 0; month < 12; month++) {
+            for (int distance = 0; candidateDays[month] == null; distance++) {
+                if (daysByMonth[(month + distance) % 12].length > 0) {
+                    candidateDays[month] = daysByMonth[(month + distance) % 12];
+                } else if (daysByMonth[(month + 12 - distance) % 12].length > 0) {
+                    candidateDays[month] = daysByMonth[(month + 12 - distance) % 12];
+                }
+            }
+        }
+    }
+
+    public int getNumberOfDays() {
+        return epochDays.length;
+    }
+
+    /**
+     * Simulates {@code numberOfYears} synthetic instances of {@code year}, each starting at the initial SOC of the
+     * history
+     *
+     * @param batteries
+     *            called once per simulated year, possibly concurrently; must return a new battery each time, with a
+     *            savings function that may be used by the calling thread only
+     * @return the savings in cents of each simulated year, in the order of the years' random streams
+     */
+    public double[] simulate(int year, int numberOfYears, long seed, Supplier<Battery> batteries) {
+        final SplittableRandom random = new SplittableRandom(seed);
+        final SplittableRandom[] randoms = new SplittableRandom[numberOfYears];
+        for (int i = 0; i < numberOfYears; i++) {
+            randoms[i] = random.split();
+        }
+        final double[] savingsInCents = new double[numberOfYears];
+        IntStream.range(0, numberOfYears).parallel().forEach(i -> savingsInCents[i] = simulateYear(year, randoms[i], batteries.get()));
+        return savingsInCents;
+    }
+
+    private double simulateYear(int year, SplittableRandom random, Battery battery) {
+        battery.setSOCPercent(pyramid.getInitialSOCPercent());
+        int day = -1;
+        int remainingDaysInBlock = 0;
+        for (LocalDate date = LocalDate.of(year, 1, 1); date.getYear() == year; date = date.plusDays(1)) {
+            if (remainingDaysInBlock == 0 || date.getDayOfMonth() == 1 || day + 1 == epochDays.length
+                    || epochDays[day + 1] != epochDays[day] + 1) {
+                final int[] candidates = candidateDays[date.getMonthValue() - 1];
+                day = candidates[random.nextInt(candidates.length)];
+                remainingDaysInBlock = blockLengthInDays;
+            } else {
+                day++;
+            }
+            remainingDaysInBlock--;
+            final long startInMillis = date.atStartOfDay(zone).toInstant().toEpochMilli();
+            final long lengthInMillis = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - startInMillis;
+            for (int bucket = dayFirstBuckets[day]; bucket < dayFirstBuckets[day + 1]; bucket++) {
+                final long offsetInMillis = pyramid.getBucketStartInMillis(level, bucket) - dayStartsInMillis[day];
+                if (offsetInMillis < lengthInMillis) {
+                    pyramid.replayBucket(level, bucket, battery, startInMillis + offsetInMillis);
+                }
+            }
+        }
+        return battery.getSavingsInCents();
+    }
+
+    /**
+     * @param sorted
+     *            values in ascending order
+     * @return the {@code percent} percentile of {@code sorted}, interpolating linearly between neighboring values
+     */
+    public static double percentile(double[] sorted, double percent) {
+        final double position = percent / 100.0 * (sorted.length - 1);
+        final int lower = (int) Math.floor(position);
+        final int upper = Math.min(sorted.length - 1, lower + 1);
+        if (position == lower || sorted[lower] == sorted[upper]) {
+            return sorted[lower]; // also avoids infinity minus infinity and zero times infinity
+        }
+        return sorted[lower] + (position - lower) * (sorted[upper] - sorted[lower]);
+    }
+
+    /**
+     * Simulates synthetic years drawn from the readings given with {@code --file} or {@code --binaryFile}, or from a
+     * pyramid saved by {@link EnergyPyramid} with a level of {@code --bucketLengthInSeconds}, and prints percentiles of
+     * the annual savings as CSV; with a {@code --batteryCostInEUR}, the payback time in years at each percentile is
+     * printed, too. The time the simulation took goes to standard error.
+     */
+    public static void main(String[] args) throws IOException {
+        final Option minSOCPercent = Option.builder("m")
+                .longOpt("minSOCPercent")
+                .hasArg()
+                .argName("minSOCPercent")
+                .type(Number.class)
+                .desc("minimum state of charge (SOC) in percent; defaults to "+AggregateBatteryDischarge.DEFAULT_MIN_SOC_PERCENT)
+                .build();
+        final Option maxChargePowerInWatts = Option.builder("x")
+                .longOpt("maxChargePowerInWatts")
+                .hasArg()
+                .argName("maxChargePowerInWatts")
+                .type(Number.class)
+                .desc("maximum charge power in Watts; defaults to "+AggregateBatteryDischarge.DEFAULT_MAX_CHARGE_POWER_IN_WATTS)
+                .build();
+        final Option capacityInWattHours = Option.builder("c")
+                .longOpt("capacityInWattHours")
+                .hasArg()
+                .argName("capacityInWattHours")
+                .type(Number.class)
+                .desc("capacity in Watt-Hours; defaults to "+AggregateBatteryDischarge.DEFAULT_CAPACITY_IN_WATT_HOURS)
+                .build();
+        final Option reducedChargePowerInWatts = Option.builder("r")
+                .longOpt("reducedChargePowerInWatts")
+                .hasArg()
+                .argName("reducedChargePowerInWatts")
+                .type(Number.class)
+                .desc("reduced charge power in Watts; defaults to "+AggregateBatteryDischarge.DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS)
+                .build();
+        final Option socPercentWhereReducedChargePowerStarts = Option.builder("s")
+                .longOpt("socPercentWhereReducedChargePowerStarts")
+                .hasArg()
+                .argName("socPercentWhereReducedChargePowerStarts")
+                .type(Number.class)
+                .desc("state of charge (SOC, in percent) where reduced charge power starts; defaults to "+AggregateBatteryDischarge.DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS)
+                .build();
+        final Option inputFile = Option.builder("f")
+                .longOpt("file")
+                .hasArg()
+                .argName("fileOrDirectory")
+                .desc("input file from which to read inverter states, possibly gzipped, or a directory of such files")
+                .build();
+        final Option binaryFile = Option.builder("b")
+                .longOpt("binaryFile")
+                .hasArg()
+                .argName("binaryFile")
+                .desc("binary history file as written by "+BinaryHistoryWriter.class.getName()+"; used instead of --file")
+                .build();
+        final Option pyramidFile = Option.builder("y")
+                .longOpt("pyramid")
+                .hasArg()
+                .argName("pyramidFile")
+                .desc("pyramid file as saved by "+EnergyPyramid.class.getName()+"; used instead of --file")
+                .build();
+        final Option bucketLengthInSeconds = Option.builder()
+                .longOpt("bucketLengthInSeconds")
+                .hasArg()
+                .argName("bucketLengthInSeconds")
+                .type(Number.class)
+                .desc("resolution at which to simulate; defaults to "+DEFAULT_BUCKET_LENGTH_IN_SECONDS)
+                .build();
+        final Option numberOfYears = Option.builder("n")
+                .longOpt("years")
+                .hasArg()
+                .argName("numberOfYears")
+                .type(Number.class)
+                .desc("number of synthetic years to simulate; defaults to "+DEFAULT_NUMBER_OF_YEARS)
+                .build();
+        final Option blockLengthInDays = Option.builder()
+                .longOpt("blockLengthInDays")
+                .hasArg()
+                .argName("blockLengthInDays")
+                .type(Number.class)
+                .desc("maximum number of consecutive historical days drawn at once; defaults to "+DEFAULT_BLOCK_LENGTH_IN_DAYS)
+                .build();
+        final Option seed = Option.builder()
+                .longOpt("seed")
+                .hasArg()
+                .argName("seed")
+                .type(Number.class)
+                .desc("seed of the random numbers; defaults to the current time")
+                .build();
+        final Option zone = Option.builder()
+                .longOpt("zone")
+                .hasArg()
+                .argName("zoneId")
+                .desc("time zone defining the days; defaults to "+TimeControlPlanner.DEFAULT_ZONE)
+                .build();
+        final Option year = Option.builder()
+                .longOpt("year")
+                .hasArg()
+                .argName("year")
+                .type(Number.class)
+                .desc("calendar year to synthesize, determining tariffs and daylight saving time; defaults to the year of the last reading")
+                .build();
+        final Option batteryCostInEUR = Option.builder()
+                .longOpt("batteryCostInEUR")
+                .hasArg()
+                .argName("batteryCostInEUR")
+                .type(Number.class)
+                .desc("purchase price of the battery for computing payback times")
+                .build();
+        final Option tariffFile = Option.builder()
+                .longOpt("tariffFile")
+                .hasArg()
+                .argName("tariffFile")
+                .desc("file with one line per price interval, giving start time and price in cents per kWh; defaults to the built-in tariffs")
+                .build();
+        final Option compensationFile = Option.builder()
+                .longOpt("compensationFile")
+                .hasArg()
+                .argName("compensationFile")
+                .desc("file with one line per compensation interval, giving start time and compensation in cents per kWh; defaults to the built-in compensation")
+                .build();
+        final Option helpOption = Option.builder("h")
+                .longOpt("help")
+                .desc("display help message")
+                .build();
+        final Options options = new Options()
+                .addOption(minSOCPercent)
+                .addOption(maxChargePowerInWatts)
+                .addOption(capacityInWattHours)
+                .addOption(reducedChargePowerInWatts)
+                .addOption(socPercentWhereReducedChargePowerStarts)
+                .addOption(inputFile)
+                .addOption(binaryFile)
+                .addOption(pyramidFile)
+                .addOption(bucketLengthInSeconds)
+                .addOption(numberOfYears)
+                .addOption(blockLengthInDays)
+                .addOption(seed)
+                .addOption(zone)
+                .addOption(year)
+                .addOption(batteryCostInEUR)
+                .addOption(tariffFile)
+                .addOption(compensationFile)
+                .addOption(helpOption);
+        final CommandLineParser commandLineParser = new DefaultParser();
+        try {
+            final CommandLine commandLine = commandLineParser.parse(options, args);
+            if (commandLine.hasOption(helpOption)) {
+                new HelpFormatter().printHelp(MonteCarloSavings.class.getName(), options);
+                return;
+            }
+            final int minSOC = commandLine.hasOption(minSOCPercent) ? ((Number) commandLine.getParsedOptionValue(minSOCPercent)).intValue() : AggregateBatteryDischarge.DEFAULT_MIN_SOC_PERCENT;
+            final double maxCharge = commandLine.hasOption(maxChargePowerInWatts) ? ((Number) commandLine.getParsedOptionValue(maxChargePowerInWatts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_MAX_CHARGE_POWER_IN_WATTS;
+            final double capacity = commandLine.hasOption(capacityInWattHours) ? ((Number) commandLine.getParsedOptionValue(capacityInWattHours)).doubleValue() : AggregateBatteryDischarge.DEFAULT_CAPACITY_IN_WATT_HOURS;
+            final double reducedCharge = commandLine.hasOption(reducedChargePowerInWatts) ? ((Number) commandLine.getParsedOptionValue(reducedChargePowerInWatts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS;
+            final double socThreshold = commandLine.hasOption(socPercentWhereReducedChargePowerStarts) ? ((Number) commandLine.getParsedOptionValue(socPercentWhereReducedChargePowerStarts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS;
+            final int bucketLength = commandLine.hasOption(bucketLengthInSeconds) ? ((Number) commandLine.getParsedOptionValue(bucketLengthInSeconds)).intValue() : DEFAULT_BUCKET_LENGTH_IN_SECONDS;
+            final int years = commandLine.hasOption(numberOfYears) ? ((Number) commandLine.getParsedOptionValue(numberOfYears)).intValue() : DEFAULT_NUMBER_OF_YEARS;
+            final int blockLength = commandLine.hasOption(blockLengthInDays) ? ((Number) commandLine.getParsedOptionValue(blockLengthInDays)).intValue() : DEFAULT_BLOCK_LENGTH_IN_DAYS;
+            final long randomSeed = commandLine.hasOption(seed) ? ((Number) commandLine.getParsedOptionValue(seed)).longValue() : System.currentTimeMillis();
+            final ZoneId zoneId = ZoneId.of(commandLine.getOptionValue(zone, TimeControlPlanner.DEFAULT_ZONE));
+            if (years <= 0) {
+                throw new IllegalArgumentException("The number of years must be positive but got " + years);
+            }
+            final EnergyPyramid pyramid;
+            final int level;
+            if (commandLine.hasOption(pyramidFile)) {
+                if (commandLine.hasOption(inputFile) || commandLine.hasOption(binaryFile)) {
+                    throw new IllegalArgumentException("Use either --pyramid or readings from --file or --binaryFile");
+                }
+                pyramid = EnergyPyramid.load(Paths.get(commandLine.getOptionValue(pyramidFile)));
+                int found = -1;
+                for (int l = 0; l < pyramid.getNumberOfLevels(); l++) {
+                    if (pyramid.getBucketLengthInSeconds(l) == bucketLength) {
+                        found = l;
+                    }
+                }
+                if (found < 0) {
+                    throw new IllegalArgumentException("The pyramid has no level with buckets of " + bucketLength + "s");
+                }
+                level = found;
+            } else if (commandLine.hasOption(inputFile) || commandLine.hasOption(binaryFile)) {
+                pyramid = new EnergyPyramid(bucketLength);
+                level = 0;
+                try (final ReadingSource readings = commandLine.hasOption(binaryFile)
+                        ? new BinaryHistoryReader(Paths.get(commandLine.getOptionValue(binaryFile)))
+                        : new PipelinedFileReadingSource(Paths.get(commandLine.getOptionValue(inputFile)), /* lenient */ false)) {
+                    pyramid.addAll(readings);
+                }
+            } else {
+                throw new IllegalArgumentException("Need readings from --file or --binaryFile, or a --pyramid file");
+            }
+            if (pyramid.getNumberOfBuckets(level) == 0) {
+                throw new IllegalArgumentException("No readings to draw days from");
+            }
+            final int syntheticYear = commandLine.hasOption(year) ? ((Number) commandLine.getParsedOptionValue(year)).intValue()
+                    : Instant.ofEpochMilli(pyramid.getBucketStartInMillis(level, pyramid.getNumberOfBuckets(level) - 1)).atZone(zoneId).getYear();
+            final SortedPriceCurve tariff = commandLine.hasOption(tariffFile) ? SortedPriceCurve.load(Paths.get(commandLine.getOptionValue(tariffFile))) : Tariff.CURVE;
+            final SortedPriceCurve compensation = commandLine.hasOption(compensationFile) ? SortedPriceCurve.load(Paths.get(commandLine.getOptionValue(compensationFile))) : IngestionCompensation.CURVE;
+            final MonteCarloSavings monteCarlo = new MonteCarloSavings(pyramid, level, zoneId, blockLength);
+            final long start = System.nanoTime();
+            final double[] savingsInCents = monteCarlo.simulate(syntheticYear, years, randomSeed,
+                    () -> new Battery(minSOC, maxCharge, reducedCharge, socThreshold, capacity, /* energyContained */ 0,
+                            SavingsPerDischarge.forPriceCurves(tariff.cursor(), compensation.cursor())));
+            System.err.println(String.format(Locale.US, "Simulated %d years of %d from %d days of history in %1.1fs",
+                    years, syntheticYear, monteCarlo.getNumberOfDays(), (System.nanoTime() - start) / 1e9));
+            final double[] sorted = savingsInCents.clone();
+            Arrays.sort(sorted);
+            double[] paybackInYears = null;
+            if (commandLine.hasOption(batteryCostInEUR)) {
+                final double cost = ((Number) commandLine.getParsedOptionValue(batteryCostInEUR)).doubleValue();
+                paybackInYears = new double[sorted.length];
+                for (int i = 0; i < sorted.length; i++) {
+                    paybackInYears[i] = sorted[i] > 0 ? 100.0 * cost / sorted[i] : Double.POSITIVE_INFINITY;
+                }
+                Arrays.sort(paybackInYears);
+            }
+            final PrintStream out = System.out;
+            out.println("percentile,annualSavingsInEUR" + (paybackInYears == null ? "" : ",paybackInYears"));
+            for (final double percent : DEFAULT_PERCENTILES) {
+                // the savings at the p-th percentile pay back in the time at the (100-p)-th percentile of payback times
+                out.println(String.format(Locale.US, "%s,%1.2f", percent, percentile(sorted, percent) / 100.0)
+                        + (paybackInYears == null ? "" : String.format(Locale.US, ",%1.2f", percentile(paybackInYears, 100 - percent))));
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,496 @@
+package de.axeluhl.kostal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Replays a history through a virtual {@link Battery} using all cores, although each step depends on the energy left
+ * by the previous one. The history is split into one chunk of steps per UTC day. For a given battery configuration,
+ * a chunk maps the energy contained at its start to the energy contained at its end. This is the chunk's transfer
+ * function. It is monotone and piecewise linear in most places,
+ * with kinks where capacity or minimum SOC clamp the energy, and a jump where the reduced charge power sets in.
+ * <p>
+ *
+ * The replay proceeds in three phases:
+ * <ol>
+ * <li>In parallel, each chunk's transfer function is sampled at {@link #SAMPLES} equidistant start energies between
+ * zero and the capacity, using a {@link BatteryBank} with one battery per sample.</li>
+ * <li>Sequentially, the sampled functions are composed by linear interpolation, starting from the SOC of the first
+ * reading. This predicts the start energy of each chunk at negligible cost.</li>
+ * <li>In parallel, each chunk is replayed exactly from its predicted start energy. Where a chunk's exact end energy
+ * differs from the next chunk's predicted start energy by more than the tolerance, the start energies are corrected
+ * by a parareal iteration (the interpolated prediction of the new start plus the correction observed at the old
+ * one), and only the chunks whose start energy changed are replayed again. Since clamping at full or empty makes
+ * trajectories from different start energies merge, this usually converges after very few iterations. It is
+ * guaranteed to converge after at most as many iterations as there are chunks.</li>
+ * </ol>
+ * When the replay returns, every chunk's start energy is within the tolerance of the end energy that the exact
+ * replay of the previous chunk produced. With a tolerance of zero the result therefore equals that of
+ * {@link AggregateBatteryDischarge#aggregateBatteryDischarge(Battery, ReadingSource)}, up to the different order
+ * in which per-chunk savings are summed. With a tolerance {@code t} each chunk's savings deviate by at most about
+ * {@code t} Watt hours times the savings per Watt hour.
+ * <p>
+ *
+ * Chunks are obtained from the {@link History} when they are sampled or replayed, one per thread at a time, and
+ * dropped afterwards; what the replay keeps per chunk is its sampled transfer function, its start and end energy and
+ * its savings, about 1KB. A history {@link History#map(BinaryHistoryReader) mapped} from a binary history file
+ * therefore replays ten years in a few MB of heap, while a history {@link History#load(ReadingSource) loaded} from
+ * any other source holds all its steps in memory.
+ */
+public class ParallelReplay {
+    /**
+     * Number of start energies at which the transfer function of each chunk is sampled
+     */
+    public static final int SAMPLES = 129;
+
+    public static final double DEFAULT_TOLERANCE_IN_WATT_HOURS = 1e-9;
+
+    private static final long MILLIS_PER_DAY = 24l * 3600l * 1000l;
+
+    private final int minSOCPercent;
+
+    private final double maxChargePowerInWatts;
+
+    private final double reducedChargePowerInWatts;
+
+    private final double socPercentWhereReducedChargePowerStarts;
+
+    private final double capacityInWattHours;
+
+    private final SavingsPerDischarge savingsFunctionInCentsPerWattHourDischarged;
+
+    private final double toleranceInWattHours;
+
+    /**
+     * The steps of a history, split into one chunk per UTC day. Step {@code i} of a chunk charges with a power for the
+     * time between its start and the start of the next step, or the chunk's end for the last step. Chunks are
+     * {@link #getChunk(int) obtained} one at a time, so that a history need not hold them all in memory.
+     */
+    public static abstract class History implements Closeable {
+        private final int initialSOCPercent;
+
+        private final long lastTimestampInMillis;
+
+        private final double lastPowerAvailableForChargingInWatts;
+
+        History(int initialSOCPercent, long lastTimestampInMillis, double lastPowerAvailableForChargingInWatts) {
+            this.initialSOCPercent = initialSOCPercent;
+            this.lastTimestampInMillis = lastTimestampInMillis;
+            this.lastPowerAvailableForChargingInWatts = lastPowerAvailableForChargingInWatts;
+        }
+
+        /**
+         * Reads all readings into memory, at twelve bytes per step, i.e., about 750MB for ten years of readings taken
+         * every five seconds; use {@link #map(BinaryHistoryReader)} for histories of that size. Readings are expected
+         * in ascending time order.
+         */
+        public static History load(ReadingSource readings) throws IOException {
+            int numberOfChunks = 0;
+            long[] dayStarts = new long[64];
+            long[] starts = new long[64];
+            long[] ends = new long[64];
+            int[][] offsets = new int[64][];
+            double[][] powers = new double[64][];
+            int[] sizes = new int[64];
+            boolean initialized = false;
+            int initialSOCPercent = 0;
+            long lastTimestampInMillis = 0;
+            double lastPowerAvailableForChargingInWatts = 0;
+            while (readings.next()) {
+                if (!initialized) {
+                    initialSOCPercent = readings.getBatterySOC();
+                    initialized = true;
+                } else {
+                    final long dayStart = Math.floorDiv(lastTimestampInMillis, MILLIS_PER_DAY) * MILLIS_PER_DAY;
+                    if (numberOfChunks == 0 || dayStart > dayStarts[numberOfChunks - 1]) {
+                        if (numberOfChunks == dayStarts.length) {
+                            final int newCapacity = 2 * numberOfChunks;
+                            dayStarts = Arrays.copyOf(dayStarts, newCapacity);
+                            starts = Arrays.copyOf(starts, newCapacity);
+                            ends = Arrays.copyOf(ends, newCapacity);
+                            offsets = Arrays.copyOf(offsets, newCapacity);
+                            powers = Arrays.copyOf(powers, newCapacity);
+                            sizes = Arrays.copyOf(sizes, newCapacity);
+                        }
+                        dayStarts[numberOfChunks] = dayStart;
+                        starts[numberOfChunks] = lastTimestampInMillis;
+                        offsets[numberOfChunks] = new int[1024];
+                        powers[numberOfChunks] = new double[1024];
+                        numberOfChunks++;
+                    }
+                    final int chunk = numberOfChunks - 1;
+                    if (sizes[chunk] == offsets[chunk].length) {
+                        offsets[chunk] = Arrays.copyOf(offsets[chunk], 2 * sizes[chunk]);
+                        powers[chunk] = Arrays.copyOf(powers[chunk], 2 * sizes[chunk]);
+                    }
+                    offsets[chunk][sizes[chunk]] = Math.toIntExact(lastTimestampInMillis - starts[chunk]);
+                    powers[chunk][sizes[chunk]] = lastPowerAvailableForChargingInWatts;
+                    sizes[chunk]++;
+                    ends[chunk] = readings.getTimeInMillis();
+                }
+                lastTimestampInMillis = readings.getTimeInMillis();
+                lastPowerAvailableForChargingInWatts = readings.getPvProductionInWatts()
+                        - readings.getHomeOwnConsumptionInWatts();
+            }
+            final Chunk[] chunks = new Chunk[numberOfChunks];
+            for (int i = 0; i < numberOfChunks; i++) {
+                chunks[i] = new Chunk(starts[i], ends[i], Arrays.copyOf(offsets[i], sizes[i]), Arrays.copyOf(powers[i], sizes[i]));
+            }
+            return new History(initialSOCPercent, lastTimestampInMillis, lastPowerAvailableForChargingInWatts) {
+                @Override
+                public int getNumberOfChunks() {
+                    return chunks.length;
+                }
+
+                @Override
+                Chunk getChunk(int chunk) {
+                    return chunks[chunk];
+                }
+            };
+        }
+
+        /**
+         * Obtains the readings in the {@link BinaryHistoryReader#setRange(long, long) range} of {@code reader} one
+         * chunk at a time by {@link BinaryHistoryReader#readBlock(int, long[], double[]) decoding} the block of the
+         * chunk's day from the memory-mapped file, so that only the chunks being replayed occupy memory. The chunks
+         * are those that {@link #load(ReadingSource) loading} the readings would produce, except that there may be
+         * chunks without steps at the ends of the range. Closing the history closes {@code reader}.
+         */
+        public static History map(BinaryHistoryReader reader) throws IOException {
+            final long fromTimeInMillis = reader.getFromTimeInMillis();
+            final long toTimeInMillis = reader.getToTimeInMillis();
+            final int initialSOCPercent;
+            final int firstBlock;
+            final int lastBlock;
+            final long lastTimestampInMillis;
+            final double lastPowerAvailableForChargingInWatts;
+            try {
+                reader.setRange(fromTimeInMillis, toTimeInMillis);
+                if (!reader.next()) {
+                    reader.close();
+                    return load(new ReadingBatch(0));
+                }
+                initialSOCPercent = reader.getBatterySOC();
+                final long firstDayStartInMillis = Math.floorDiv(reader.getTimeInMillis(), MILLIS_PER_DAY) * MILLIS_PER_DAY;
+                int block = 0;
+                while (reader.getBlockDayStartInMillis(block) < firstDayStartInMillis) {
+                    block++;
+                }
+                firstBlock = block;
+                block = reader.getNumberOfBlocks() - 1;
+                while (reader.getBlockFirstTimeInMillis(block) >= toTimeInMillis) {
+                    block--;
+                }
+                lastBlock = block;
+                final long[] times = new long[reader.getBlockSize(lastBlock)];
+                final double[] powers = new double[times.length];
+                reader.readBlock(lastBlock, times, powers);
+                int last = times.length - 1;
+                while (times[last] >= toTimeInMillis) {
+                    last--;
+                }
+                lastTimestampInMillis = times[last];
+                lastPowerAvailableForChargingInWatts = powers[last];
+            } catch (IOException | RuntimeException e) {
+                reader.close();
+                throw e;
+            }
+            final int first = firstBlock;
+            final int numberOfChunks = lastBlock - firstBlock + 1;
+            return new History(initialSOCPercent, lastTimestampInMillis, lastPowerAvailableForChargingInWatts) {
+                @Override
+                public int getNumberOfChunks() {
+                    return numberOfChunks;
+                }
+
+                @Override
+                Chunk getChunk(int chunk) throws IOException {
+                    final int block = first + chunk;
+                    final int size = reader.getBlockSize(block);
+                    final long[] times = new long[size];
+                    final double[] powers = new double[size];
+                    reader.readBlock(block, times, powers);
+                    int from = 0;
+                    while (from < size && times[from] < fromTimeInMillis) {
+                        from++;
+                    }
+                    int to = size;
+                    while (to > from && times[to - 1] >= toTimeInMillis) {
+                        to--;
+                    }
+                    // the last step ends at the next reading in range, if there is one
+                    final boolean hasNext = chunk + 1 < numberOfChunks;
+                    final int numberOfSteps = hasNext ? to - from : Math.max(0, to - from - 1);
+                    final int[] offsets = new int[numberOfSteps];
+                    for (int step = 0; step < numberOfSteps; step++) {
+                        offsets[step] = Math.toIntExact(times[from + step] - times[from]);
+                    }
+                    return new Chunk(numberOfSteps == 0 ? 0 : times[from],
+                            hasNext ? reader.getBlockFirstTimeInMillis(block + 1) : times[Math.max(from, to - 1)],
+                            offsets, Arrays.copyOfRange(powers, from, from + numberOfSteps));
+                }
+
+                @Override
+                public void close() throws IOException {
+                    reader.close();
+                }
+            };
+        }
+
+        public abstract int getNumberOfChunks();
+
+        public int getInitialSOCPercent() {
+            return initialSOCPercent;
+        }
+
+        abstract Chunk getChunk(int chunk) throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    /**
+     * The steps of one chunk of a {@link History}
+     */
+    static class Chunk {
+        private final long startInMillis;
+
+        private final long endInMillis;
+
+        private final int[] stepOffsetsInMillis;
+
+        private final double[] stepPowersInWatts;
+
+        Chunk(long startInMillis, long endInMillis, int[] stepOffsetsInMillis, double[] stepPowersInWatts) {
+            this.startInMillis = startInMillis;
+            this.endInMillis = endInMillis;
+            this.stepOffsetsInMillis = stepOffsetsInMillis;
+            this.stepPowersInWatts = stepPowersInWatts;
+        }
+
+        private int getNumberOfSteps() {
+            return stepPowersInWatts.length;
+        }
+
+        private long getStepStartInMillis(int step) {
+            return startInMillis + stepOffsetsInMillis[step];
+        }
+
+        private long getStepDurationInMillis(int step) {
+            return (step + 1 < stepOffsetsInMillis.length ? getStepStartInMillis(step + 1) : endInMillis) - getStepStartInMillis(step);
+        }
+    }
+
+    /**
+     * The outcome of a {@link ParallelReplay#replay(History) replay}
+     */
+    public static class Result {
+        private final double energyContainedInWattHours;
+
+        private final double savingsInCents;
+
+        private final int iterations;
+
+        private final long lastTimestampInMillis;
+
+        private final double lastPowerAvailableForChargingInWatts;
+
+        Result(double energyContainedInWattHours, double savingsInCents, int iterations, long lastTimestampInMillis,
+                double lastPowerAvailableForChargingInWatts) {
+            this.energyContainedInWattHours = energyContainedInWattHours;
+            this.savingsInCents = savingsInCents;
+            this.iterations = iterations;
+            this.lastTimestampInMillis = lastTimestampInMillis;
+            this.lastPowerAvailableForChargingInWatts = lastPowerAvailableForChargingInWatts;
+        }
+
+        public double getEnergyContainedInWattHours() {
+            return energyContainedInWattHours;
+        }
+
+        public double getSavingsInCents() {
+            return savingsInCents;
+        }
+
+        /**
+         * @return the number of correction iterations needed until all chunk start energies were consistent
+         */
+        public int getIterations() {
+            return iterations;
+        }
+
+        public long getLastTimestampInMillis() {
+            return lastTimestampInMillis;
+        }
+
+        public double getLastPowerAvailableForChargingInWatts() {
+            return lastPowerAvailableForChargingInWatts;
+        }
+    }
+
+    /**
+     * @param savingsFunctionInCentsPerWattHourDischarged
+     *            must be safe for concurrent use, such as {@link SavingsPerDischarge#FUNCTION} or a function created by
+     *            {@link SavingsPerDischarge#forPriceCurves(PriceCurve, PriceCurve)} from {@link SortedPriceCurve}s
+     *            directly rather than from their cursors
+     */
+    public ParallelReplay(int minSOCPercent, double maxChargePowerInWatts, double reducedChargePowerInWatts,
+            double socPercentWhereReducedChargePowerStarts, double capacityInWattHours,
+            SavingsPerDischarge savingsFunctionInCentsPerWattHourDischarged, double toleranceInWattHours) {
+        this.minSOCPercent = minSOCPercent;
+        this.maxChargePowerInWatts = maxChargePowerInWatts;
+        this.reducedChargePowerInWatts = reducedChargePowerInWatts;
+        this.socPercentWhereReducedChargePowerStarts = socPercentWhereReducedChargePowerStarts;
+        this.capacityInWattHours = capacityInWattHours;
+        this.savingsFunctionInCentsPerWattHourDischarged = savingsFunctionInCentsPerWattHourDischarged;
+        this.toleranceInWattHours = toleranceInWattHours;
+    }
+
+    public Result replay(History history) throws IOException {
+        final int numberOfChunks = history.getNumberOfChunks();
+        final Battery initialBattery = createBattery();
+        initialBattery.setSOCPercent(history.getInitialSOCPercent());
+        if (numberOfChunks == 0) {
+            return new Result(initialBattery.getEnergyContainedInWattHours(), 0, 0, history.lastTimestampInMillis,
+                    history.lastPowerAvailableForChargingInWatts);
+        }
+        // each chunk's end energy, sampled at equidistant start energies between zero and the capacity
+        final double[][] transferFunctions = new double[numberOfChunks][];
+        forEachChunk(IntStream.range(0, numberOfChunks), chunk -> transferFunctions[chunk] = sampleTransferFunction(history.getChunk(chunk)));
+        // predicted start energies, and exact end energies and savings when replayed from them
+        final double[] startEnergiesInWattHours = new double[numberOfChunks];
+        final double[] endEnergiesInWattHours = new double[numberOfChunks];
+        final double[] savingsInCents = new double[numberOfChunks];
+        startEnergiesInWattHours[0] = initialBattery.getEnergyContainedInWattHours();
+        for (int chunk = 1; chunk < numberOfChunks; chunk++) {
+            startEnergiesInWattHours[chunk] = interpolate(transferFunctions[chunk - 1], startEnergiesInWattHours[chunk - 1]);
+        }
+        final boolean[] dirty = new boolean[numberOfChunks];
+        Arrays.fill(dirty, true);
+        int iterations = 0;
+        boolean consistent;
+        do {
+            forEachChunk(IntStream.range(0, numberOfChunks).filter(chunk -> dirty[chunk]), chunk -> {
+                final Battery battery = createBattery();
+                battery.setEnergyContainedInWattHours(startEnergiesInWattHours[chunk]);
+                replayChunk(history.getChunk(chunk), battery);
+                endEnergiesInWattHours[chunk] = battery.getEnergyContainedInWattHours();
+                savingsInCents[chunk] = battery.getSavingsInCents();
+                dirty[chunk] = false;
+            });
+            consistent = true;
+            // parareal correction: the interpolated prediction from the corrected predecessor start, plus the
+            // discrepancy between exact replay and prediction observed at the predecessor's previous start
+            double correctedPreviousStart = startEnergiesInWattHours[0];
+            double previousStart = startEnergiesInWattHours[0];
+            for (int chunk = 1; chunk < numberOfChunks; chunk++) {
+                final double[] previousTransfer = transferFunctions[chunk - 1];
+                final double start = startEnergiesInWattHours[chunk];
+                if (Math.abs(endEnergiesInWattHours[chunk - 1] - start) > toleranceInWattHours) {
+                    consistent = false;
+                }
+                // adding the difference last keeps the exact end energy unchanged where the predecessor start didn't change
+                final double correctedStart = clamp(endEnergiesInWattHours[chunk - 1]
+                        + (interpolate(previousTransfer, correctedPreviousStart) - interpolate(previousTransfer, previousStart)));
+                if (correctedStart != start) {
+                    startEnergiesInWattHours[chunk] = correctedStart;
+                    dirty[chunk] = true;
+                }
+                correctedPreviousStart = correctedStart;
+                previousStart = start;
+            }
+            if (!consistent) {
+                iterations++;
+                if (iterations > numberOfChunks) {
+                    // can't happen in exact arithmetic as each iteration makes at least one more chunk exact
+                    throw new IllegalStateException("Chunk start energies didn't converge after " + iterations + " iterations");
+                }
+            }
+        } while (!consistent);
+        double totalSavingsInCents = 0;
+        for (final double chunkSavingsInCents : savingsInCents) {
+            totalSavingsInCents += chunkSavingsInCents;
+        }
+        return new Result(endEnergiesInWattHours[numberOfChunks - 1], totalSavingsInCents, iterations,
+                history.lastTimestampInMillis, history.lastPowerAvailableForChargingInWatts);
+    }
+
+    private static interface ChunkAction {
+        void apply(int chunk) throws IOException;
+    }
+
+    /**
+     * Applies {@code action} to the {@code chunks} in parallel, passing on the first {@link IOException} thrown
+     */
+    private static void forEachChunk(IntStream chunks, ChunkAction action) throws IOException {
+        try {
+            chunks.parallel().forEach(chunk -> {
+                try {
+                    action.apply(chunk);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Battery createBattery() {
+        return new Battery(minSOCPercent, maxChargePowerInWatts, reducedChargePowerInWatts,
+                socPercentWhereReducedChargePowerStarts, capacityInWattHours, /* energyContained */ 0,
+                savingsFunctionInCentsPerWattHourDischarged);
+    }
+
+    private static void replayChunk(Chunk chunk, Battery battery) {
+        for (int step = 0; step < chunk.getNumberOfSteps(); step++) {
+            battery.charge(chunk.stepPowersInWatts[step], chunk.getStepStartInMillis(step), chunk.getStepDurationInMillis(step));
+        }
+    }
+
+    /**
+     * @return the chunk's end energies for start energies at {@link #getSampleEnergy(int)}; savings aren't sampled as
+     *         they are taken from the exact replay of each chunk
+     */
+    private double[] sampleTransferFunction(Chunk chunk) {
+        final BatteryBank bank = new BatteryBank(SAMPLES);
+        for (int i = 0; i < SAMPLES; i++) {
+            bank.set(i, minSOCPercent, maxChargePowerInWatts, reducedChargePowerInWatts,
+                    socPercentWhereReducedChargePowerStarts, capacityInWattHours, getSampleEnergy(i));
+        }
+        final int numberOfSteps = chunk.getNumberOfSteps();
+        final long[] durationsInSeconds = new long[numberOfSteps];
+        for (int step = 0; step < numberOfSteps; step++) {
+            durationsInSeconds[step] = Math.floorDiv(chunk.getStepDurationInMillis(step), 1000l);
+        }
+        bank.charge(0, SAMPLES, chunk.stepPowersInWatts, durationsInSeconds,
+                /* savingsInCentsPerWattHourDischarged */ new double[numberOfSteps], numberOfSteps);
+        final double[] endEnergiesInWattHours = new double[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            endEnergiesInWattHours[i] = bank.getEnergyContainedInWattHours(i);
+        }
+        return endEnergiesInWattHours;
+    }
+
+    private double getSampleEnergy(int sample) {
+        return capacityInWattHours * sample / (SAMPLES - 1);
+    }
+
+    private double clamp(double energyInWattHours) {
+        return Math.max(0, Math.min(capacityInWattHours, energyInWattHours));
+    }
+
+    /**
+     * Linearly interpolates between the samples taken at {@link #getSampleEnergy(int)}
+     */
+    private double interpolate(double[] samples, double startEnergyInWattHours) {
+        final double position = clamp(startEnergyInWattHours) / capacityInWattHours * (SAMPLES - 1);
+        final int lower = Math.min(SAMPLES - 2, (int) position);
+        final double fraction = position - lower;
+        return samples[lower] + fraction * (samples[lower + 1] - samples[lower]);
+    }
+}
@@ -0,0 +1,422 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the text format of {@link ReadingParser} from a file or from all files of a directory, such as archived daily
+ * dumps, decompressing files in gzip format transparently. Reading and decompressing, parsing, and the simulation
+ * consuming this source run as three stages on separate threads, so a replay takes about as long as its slowest stage
+ * instead of the sum of all three:
+ *
+ * <ol>
+ * <li>a decompressing thread fills byte chunks with the (decompressed) contents of one file after the other;</li>
+ * <li>a parsing thread parses these chunks into {@link ReadingBatch batches} of primitive readings;</li>
+ * <li>the thread calling {@link #next()} replays the batches.</li>
+ * </ol>
+ *
+ * The chunks and batches are allocated once and handed back to the stage filling them when consumed, so no garbage is
+ * created per chunk or batch, and memory use is bounded by the pool sizes: a stage running ahead blocks until the next
+ * stage returns a buffer.
+ * <p>
+ *
+ * Files are replayed in the order of the time stamp of their first reading, so the readings come in time order as
+ * long as the files don't overlap, regardless of their names. Blank files are skipped. Each file is parsed on its own,
+ * so a last line without a terminating line feed doesn't run into the first line of the next file. A failure in one of
+ * the stages is thrown by {@link #next()}; in lenient mode, malformed lines are skipped as by a
+ * {@link ReadingParser#setLenient(boolean) lenient} parser.
+ */
+public class PipelinedFileReadingSource implements LineCountingSource {
+    public static final int DEFAULT_CHUNK_SIZE_IN_BYTES = 1 << 18;
+
+    public static final int DEFAULT_NUMBER_OF_CHUNKS = 8;
+
+    public static final int DEFAULT_READINGS_PER_BATCH = 8192;
+
+    public static final int DEFAULT_NUMBER_OF_BATCHES = 4;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    /**
+     * A buffer of bytes read from a file; {@link #length} is the number of valid bytes
+     */
+    private static class Chunk {
+        private final byte[] bytes;
+
+        private int length;
+
+        Chunk(int size) {
+            bytes = new byte[size];
+        }
+    }
+
+    /**
+     * Passed from the decompressing to the parsing stage after the last chunk of each file
+     */
+    private static final Chunk END_OF_FILE = new Chunk(0);
+
+    /**
+     * Passed from the decompressing to the parsing stage instead of further chunks when the decompressing stage failed
+     */
+    private static final Chunk FAILED = new Chunk(0);
+
+    /**
+     * Passed from the parsing stage to the consumer after the last batch, or when a stage failed
+     */
+    private static final ReadingBatch END_OF_INPUT = new ReadingBatch(0);
+
+    private final List<Path> files;
+
+    private final BlockingQueue<Chunk> freeChunks;
+
+    /**
+     * The queues between the stages need no bound of their own: the number of buffers in them is bounded by the pools
+     */
+    private final BlockingQueue<Chunk> filledChunks = new LinkedBlockingQueue<>();
+
+    private final BlockingQueue<ReadingBatch> freeBatches;
+
+    private final BlockingQueue<ReadingBatch> filledBatches = new LinkedBlockingQueue<>();
+
+    private final int readingsPerBatch;
+
+    private final boolean lenient;
+
+    private final Thread decompressor;
+
+    private final Thread parser;
+
+    private volatile Throwable failure;
+
+    /**
+     * Sums of the counts of the parsers of the files parsed completely; written by the parsing stage only
+     */
+    private volatile long numberOfLines;
+
+    private volatile long numberOfMalformedLines;
+
+    private volatile boolean closed;
+
+    private ReadingBatch currentBatch;
+
+    /**
+     * Uses the default chunk and batch sizes and pool sizes
+     *
+     * @param fileOrDirectory
+     *            a file, or a directory all of whose regular files not starting with "." are read
+     * @param lenient
+     *            whether to skip malformed lines
+     */
+    public PipelinedFileReadingSource(Path fileOrDirectory, boolean lenient) throws IOException {
+        this(listFiles(fileOrDirectory), lenient, DEFAULT_CHUNK_SIZE_IN_BYTES, DEFAULT_NUMBER_OF_CHUNKS,
+                DEFAULT_READINGS_PER_BATCH, DEFAULT_NUMBER_OF_BATCHES);
+    }
+
+    /**
+     * Starts the decompressing and parsing stages
+     *
+     * @param files
+     *            the files to read, in any order
+     */
+    public PipelinedFileReadingSource(List<Path> files, boolean lenient, int chunkSizeInBytes, int numberOfChunks,
+            int readingsPerBatch, int numberOfBatches) throws IOException {
+        if (chunkSizeInBytes <= 0 || numberOfChunks <= 0 || readingsPerBatch <= 0 || numberOfBatches <= 0) {
+            throw new IllegalArgumentException("Buffer and pool sizes must be positive");
+        }
+        this.lenient = lenient;
+        this.files = sortByFirstReading(files, lenient);
+        this.readingsPerBatch = readingsPerBatch;
+        freeChunks = new ArrayBlockingQueue<>(numberOfChunks);
+        for (int i = 0; i < numberOfChunks; i++) {
+            freeChunks.add(new Chunk(chunkSizeInBytes));
+        }
+        freeBatches = new ArrayBlockingQueue<>(numberOfBatches);
+        for (int i = 0; i < numberOfBatches; i++) {
+            freeBatches.add(new ReadingBatch(readingsPerBatch));
+        }
+        decompressor = new Thread(this::decompress, getClass().getSimpleName() + "-decompress");
+        parser = new Thread(this::parse, getClass().getSimpleName() + "-parse");
+        decompressor.setDaemon(true);
+        parser.setDaemon(true);
+        decompressor.start();
+        parser.start();
+    }
+
+    /**
+     * @return the regular files of {@code fileOrDirectory} not starting with ".", or {@code fileOrDirectory} itself if
+     *         it isn't a directory
+     */
+    static List<Path> listFiles(Path fileOrDirectory) throws IOException {
+        final List<Path> result = new ArrayList<>();
+        if (Files.isDirectory(fileOrDirectory)) {
+            try (final DirectoryStream<Path> entries = Files.newDirectoryStream(fileOrDirectory)) {
+                for (final Path entry : entries) {
+                    if (Files.isRegularFile(entry) && !entry.getFileName().toString().startsWith(".")) {
+                        result.add(entry);
+                    }
+                }
+            }
+        } else {
+            result.add(fileOrDirectory);
+        }
+        return result;
+    }
+
+    /**
+     * Opens {@code file} for reading, decompressing it if it starts with the gzip magic number
+     */
+    static InputStream open(Path file) throws IOException {
+        final PushbackInputStream in = new PushbackInputStream(Files.newInputStream(file), 2);
+        final int first = in.read();
+        final int second = first < 0 ? -1 : in.read();
+        if (second >= 0) {
+            in.unread(second);
+        }
+        if (first >= 0) {
+            in.unread(first);
+        }
+        return (second << 8 | first) == GZIP_MAGIC ? new GZIPInputStream(in, 1 << 16) : in;
+    }
+
+    private static List<Path> sortByFirstReading(List<Path> files, boolean lenient) throws IOException {
+        final Map<Path, Long> firstTimesInMillis = new HashMap<>();
+        for (final Path file : files) {
+            try (final ReadingParser readings = new ReadingParser(open(file), 4096)) {
+                readings.setLenient(lenient);
+                firstTimesInMillis.put(file, readings.next() ? readings.getTimeInMillis() : Long.MAX_VALUE);
+            }
+        }
+        final List<Path> result = new ArrayList<>(files);
+        result.removeIf(file -> firstTimesInMillis.get(file) == Long.MAX_VALUE);
+        Collections.sort(result, Comparator.comparing(firstTimesInMillis::get));
+        return result;
+    }
+
+    /**
+     * The first stage
+     */
+    private void decompress() {
+        try {
+            for (final Path file : files) {
+                try (final InputStream in = open(file)) {
+                    while (true) {
+                        final Chunk chunk = freeChunks.take();
+                        final int read = readFully(in, chunk.bytes);
+                        if (read == 0) {
+                            freeChunks.add(chunk);
+                            break;
+                        }
+                        chunk.length = read;
+                        filledChunks.add(chunk);
+                    }
+                }
+                filledChunks.add(END_OF_FILE);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (Throwable e) {
+            failure = e;
+            filledChunks.add(FAILED);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] bytes) throws IOException {
+        int length = 0;
+        int read;
+        while (length < bytes.length && (read = in.read(bytes, length, bytes.length - length)) >= 0) {
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Presents the chunks of one file to a {@link ReadingParser}, handing them back to the decompressing stage as soon
+     * as they have been copied
+     */
+    private class ChunkInputStream extends InputStream {
+        private Chunk chunk;
+
+        private int position;
+
+        private boolean endOfFile;
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (chunk == null || position == chunk.length) {
+                if (chunk != null) {
+                    freeChunks.add(chunk);
+                    chunk = null;
+                }
+                if (endOfFile) {
+                    return -1;
+                }
+                final Chunk next;
+                try {
+                    next = filledChunks.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (next == FAILED) {
+                    throw new IOException("Reading " + PipelinedFileReadingSource.this + " failed", failure);
+                } else if (next == END_OF_FILE) {
+                    endOfFile = true;
+                } else {
+                    chunk = next;
+                    position = 0;
+                }
+            }
+            final int length = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk.bytes, position, b, off, length);
+            position += length;
+            return length;
+        }
+    }
+
+    /**
+     * The second stage
+     */
+    private void parse() {
+        try {
+            ReadingBatch batch = freeBatches.take();
+            batch.clear();
+            for (int i = 0; i < files.size(); i++) {
+                final ReadingParser readings = new ReadingParser(new ChunkInputStream());
+                readings.setLenient(lenient);
+                while (readings.next()) {
+                    batch.append(readings.getTimeInMillis(), readings.getHomeOwnConsumptionInWatts(),
+                            readings.getPvProductionInWatts(), readings.getTotalActivePowerInWatts(),
+                            readings.getBatterySOC(), readings.getBatteryChargeInWatts());
+                    if (batch.size() == readingsPerBatch) {
+                        filledBatches.add(batch);
+                        batch = freeBatches.take();
+                        batch.clear();
+                    }
+                }
+                numberOfLines += readings.getNumberOfLines();
+                numberOfMalformedLines += readings.getNumberOfMalformedLines();
+            }
+            filledBatches.add(batch);
+            filledBatches.add(END_OF_INPUT);
+        } catch (InterruptedException | InterruptedIOException e) {
+            // closed
+        } catch (Throwable e) {
+            if (failure == null) {
+                failure = e;
+            }
+            filledBatches.add(END_OF_INPUT);
+        }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (closed) {
+            return false;
+        }
+        while (currentBatch == null || !currentBatch.next()) {
+            if (currentBatch == END_OF_INPUT) {
+                return false;
+            }
+            if (currentBatch != null) {
+                freeBatches.add(currentBatch);
+            }
+            try {
+                currentBatch = filledBatches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for readings from " + this);
+            }
+            if (currentBatch == END_OF_INPUT && failure != null) {
+                if (failure instanceof IOException) {
+                    throw new IOException(failure.getMessage(), failure);
+                } else if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+                throw new IOException(failure);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long getTimeInMillis() {
+        return currentBatch.getTimeInMillis();
+    }
+
+    @Override
+    public double getHomeOwnConsumptionInWatts() {
+        return currentBatch.getHomeOwnConsumptionInWatts();
+    }
+
+    @Override
+    public double getPvProductionInWatts() {
+        return currentBatch.getPvProductionInWatts();
+    }
+
+    @Override
+    public double getTotalActivePowerInWatts() {
+        return currentBatch.getTotalActivePowerInWatts();
+    }
+
+    @Override
+    public int getBatterySOC() {
+        return currentBatch.getBatterySOC();
+    }
+
+    @Override
+    public double getBatteryChargeInWatts() {
+        return currentBatch.getBatteryChargeInWatts();
+    }
+
+    /**
+     * Stops the decompressing and parsing stages
+     */
+    /**
+     * @return the number of lines of the files parsed completely so far, i.e., of all files once {@link #next()} has
+     *         returned {@code false}
+     */
+    @Override
+    public long getNumberOfLines() {
+        return numberOfLines;
+    }
+
+    /**
+     * @return the number of malformed lines skipped in lenient mode in the files parsed completely so far
+     */
+    @Override
+    public long getNumberOfMalformedLines() {
+        return numberOfMalformedLines;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        decompressor.interrupt();
+        parser.interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return files.size() == 1 ? files.get(0).toString() : files.size() + " files";
+    }
+}
@@ -0,0 +1,22 @@
+package de.axeluhl.kostal;
+
+/**
+ * A price per energy that varies over time, such as an electricity {@link Tariff} or an
+ * {@link IngestionCompensation}. Time points are passed as primitive milliseconds since the epoch so that looking up a
+ * price for each reading of a long history doesn't create objects.
+ */
+@FunctionalInterface
+public interface PriceCurve {
+    /**
+     * @param timeInMillis
+     *            time point in milliseconds since the epoch
+     * @return the price in effect at {@code timeInMillis}
+     * @throws IllegalArgumentException
+     *             if the curve doesn't define a price for the time point
+     */
+    double getCentsPerKWh(long timeInMillis);
+
+    default double getCents(long timeInMillis, double energyInWattHours) {
+        return energyInWattHours / 1000.0 * getCentsPerKWh(timeInMillis);
+    }
+}
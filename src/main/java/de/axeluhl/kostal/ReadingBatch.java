@@ -0,0 +1,141 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A growable batch of readings held in primitive arrays, one per column. A batch is filled by one thread, e.g. one
+ * that downloads and parses a chunk of the history, and then handed over to the thread consuming it as a
+ * {@link ReadingSource}. Like the {@link ReadingSource} cursors, it creates no objects per reading.
+ * <p>
+ *
+ * After {@link #clear()} a batch can be filled again, re-using its arrays.
+ */
+public class ReadingBatch implements ReadingSource {
+    private static final int DEFAULT_CAPACITY = 17280; // a day at 5s resolution
+
+    private long[] timesInMillis;
+
+    private double[] homeOwnConsumptionInWatts;
+
+    private double[] pvProductionInWatts;
+
+    private double[] totalActivePowerInWatts;
+
+    private int[] batterySOC;
+
+    private double[] batteryChargeInWatts;
+
+    private int size;
+
+    /**
+     * Index of the current reading when used as a {@link ReadingSource}; -1 before the first call to {@link #next()}
+     */
+    private int index = -1;
+
+    public ReadingBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ReadingBatch(int initialCapacity) {
+        timesInMillis = new long[initialCapacity];
+        homeOwnConsumptionInWatts = new double[initialCapacity];
+        pvProductionInWatts = new double[initialCapacity];
+        totalActivePowerInWatts = new double[initialCapacity];
+        batterySOC = new int[initialCapacity];
+        batteryChargeInWatts = new double[initialCapacity];
+    }
+
+    public void append(long timeInMillis, double homeOwnConsumptionInWatts, double pvProductionInWatts,
+            double totalActivePowerInWatts, int batterySOC, double batteryChargeInWatts) {
+        if (size == timesInMillis.length) {
+            final int newCapacity = Math.max(16, 2 * size);
+            timesInMillis = Arrays.copyOf(timesInMillis, newCapacity);
+            this.homeOwnConsumptionInWatts = Arrays.copyOf(this.homeOwnConsumptionInWatts, newCapacity);
+            this.pvProductionInWatts = Arrays.copyOf(this.pvProductionInWatts, newCapacity);
+            this.totalActivePowerInWatts = Arrays.copyOf(this.totalActivePowerInWatts, newCapacity);
+            this.batterySOC = Arrays.copyOf(this.batterySOC, newCapacity);
+            this.batteryChargeInWatts = Arrays.copyOf(this.batteryChargeInWatts, newCapacity);
+        }
+        timesInMillis[size] = timeInMillis;
+        this.homeOwnConsumptionInWatts[size] = homeOwnConsumptionInWatts;
+        this.pvProductionInWatts[size] = pvProductionInWatts;
+        this.totalActivePowerInWatts[size] = totalActivePowerInWatts;
+        this.batterySOC[size] = batterySOC;
+        this.batteryChargeInWatts[size] = batteryChargeInWatts;
+        size++;
+    }
+
+    /**
+     * Appends all remaining readings from {@code readings}
+     */
+    public void append(ReadingSource readings) throws IOException {
+        while (readings.next()) {
+            append(readings.getTimeInMillis(), readings.getHomeOwnConsumptionInWatts(), readings.getPvProductionInWatts(),
+                    readings.getTotalActivePowerInWatts(), readings.getBatterySOC(), readings.getBatteryChargeInWatts());
+        }
+    }
+
+    /**
+     * Removes all readings, keeping the arrays for re-use
+     */
+    public void clear() {
+        size = 0;
+        index = -1;
+    }
+
+    /**
+     * Moves the cursor back to before the first reading
+     */
+    public void rewind() {
+        index = -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean next() {
+        if (index + 1 < size) {
+            index++;
+            return true;
+        }
+        index = size;
+        return false;
+    }
+
+    @Override
+    public long getTimeInMillis() {
+        return timesInMillis[index];
+    }
+
+    @Override
+    public double getHomeOwnConsumptionInWatts() {
+        return homeOwnConsumptionInWatts[index];
+    }
+
+    @Override
+    public double getPvProductionInWatts() {
+        return pvProductionInWatts[index];
+    }
+
+    @Override
+    public double getTotalActivePowerInWatts() {
+        return totalActivePowerInWatts[index];
+    }
+
+    @Override
+    public int getBatterySOC() {
+        return batterySOC[index];
+    }
+
+    @Override
+    public double getBatteryChargeInWatts() {
+        return batteryChargeInWatts[index];
+    }
+
+    @Override
+    public void close() {
+    }
+}
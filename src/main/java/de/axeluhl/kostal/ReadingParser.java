@@ -0,0 +1,396 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses the whitespace-separated column format described in {@link AggregateBatteryDischarge} directly from a byte
+ * buffer. Lines are tokenized in place, and the columns are decoded into primitive fields, so no {@link String}, array
+ * or boxed number is created per line. Blank lines are skipped; columns beyond the sixth are ignored.
+ * <p>
+ *
+ * The columns are mapped as follows:
+ *
+ * <ol>
+ * <li>time stamp in nanoseconds since the epoch</li>
+ * <li>home own consumption in Watts</li>
+ * <li>PV production in Watts</li>
+ * <li>total active power (powermeter) in Watts</li>
+ * <li>battery SOC in percent</li>
+ * <li>battery charge in Watts</li>
+ * </ol>
+ *
+ * The input is expected to be ASCII. When constructed for a {@link Reader}, characters are narrowed to bytes; this is
+ * only provided for compatibility with callers that already have a {@link Reader}, and reading from an
+ * {@link InputStream} is the faster option.
+ * <p>
+ *
+ * {@link #forInfluxDbCsv(InputStream)} creates a parser for the CSV format returned by the InfluxDB 1.x HTTP API for
+ * {@code Accept: application/csv}, where each line starts with the measurement name and tags, followed by the same
+ * columns. Header lines, which InfluxDB repeats for each chunk of a chunked response, are skipped; so are lines with a
+ * {@code null} (empty) column, which are counted in {@link #getNumberOfLinesWithNullValues()}.
+ * <p>
+ *
+ * By default, a line that is neither blank nor well-formed causes a {@link NumberFormatException}. In
+ * {@link #setLenient(boolean) lenient} mode, such lines are skipped and counted instead; see
+ * {@link #getNumberOfMalformedLines()}.
+ */
+public class ReadingParser implements LineCountingSource {
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    private static final int NUMBER_OF_COLUMNS = 6;
+
+    private static final long NANOS_PER_MILLI = 1000000l;
+
+    /**
+     * Number of columns preceding the time stamp in InfluxDB CSV output: measurement name and tags
+     */
+    private static final int INFLUX_DB_CSV_PREFIX_COLUMNS = 2;
+
+    private final InputStream in;
+
+    private final Reader reader;
+
+    private char[] charBuffer;
+
+    private byte[] buffer;
+
+    /**
+     * Start of the unconsumed part of {@link #buffer}
+     */
+    private int position;
+
+    /**
+     * End of the valid part of {@link #buffer}
+     */
+    private int limit;
+
+    /**
+     * Position up to which {@link #buffer} has already been searched for a line end without finding one
+     */
+    private int scanPosition;
+
+    private boolean endOfInput;
+
+    /**
+     * Whether the input is InfluxDB CSV rather than whitespace-separated columns
+     */
+    private final boolean influxDbCsv;
+
+    private boolean lenient;
+
+    private boolean terminatedLinesOnly;
+
+    private long numberOfLines;
+
+    private long numberOfMalformedLines;
+
+    private long numberOfLinesWithNullValues;
+
+    private long timeInMillis;
+
+    private double homeOwnConsumptionInWatts;
+
+    private double pvProductionInWatts;
+
+    private double totalActivePowerInWatts;
+
+    private int batterySOC;
+
+    private double batteryChargeInWatts;
+
+    /**
+     * Column boundaries of the line currently being parsed; even indices hold start, odd indices end positions
+     */
+    private final int[] columnBounds = new int[2 * NUMBER_OF_COLUMNS];
+
+    public ReadingParser(InputStream in) {
+        this(in, null, DEFAULT_BUFFER_SIZE, /* influxDbCsv */ false);
+    }
+
+    public ReadingParser(InputStream in, int bufferSize) {
+        this(in, null, bufferSize, /* influxDbCsv */ false);
+    }
+
+    public ReadingParser(Reader reader) {
+        this(null, reader, DEFAULT_BUFFER_SIZE, /* influxDbCsv */ false);
+    }
+
+    private ReadingParser(InputStream in, Reader reader, int bufferSize, boolean influxDbCsv) {
+        this.in = in;
+        this.reader = reader;
+        this.influxDbCsv = influxDbCsv;
+        this.buffer = new byte[bufferSize];
+        this.charBuffer = reader == null ? null : new char[bufferSize];
+    }
+
+    /**
+     * Creates a parser for InfluxDB CSV output of a query selecting the six columns in the order described in the class
+     * comment, with the time stamp in nanoseconds ({@code epoch=ns}).
+     */
+    public static ReadingParser forInfluxDbCsv(InputStream in) {
+        return new ReadingParser(in, null, DEFAULT_BUFFER_SIZE, /* influxDbCsv */ true);
+    }
+
+    /**
+     * In lenient mode, lines that are neither blank nor well-formed are skipped rather than causing a
+     * {@link NumberFormatException}
+     */
+    public void setLenient(boolean lenient) {
+        this.lenient = lenient;
+    }
+
+    /**
+     * When set, a last line not terminated by a line feed is ignored rather than parsed, e.g., because the input is
+     * a file still being written and may end in the middle of a line
+     */
+    public void setTerminatedLinesOnly(boolean terminatedLinesOnly) {
+        this.terminatedLinesOnly = terminatedLinesOnly;
+    }
+
+    /**
+     * @return the number of lines read so far, including blank, header and malformed lines
+     */
+    @Override
+    public long getNumberOfLines() {
+        return numberOfLines;
+    }
+
+    /**
+     * @return the number of lines skipped so far in {@link #setLenient(boolean) lenient} mode because they were
+     *         malformed
+     */
+    @Override
+    public long getNumberOfMalformedLines() {
+        return numberOfMalformedLines;
+    }
+
+    /**
+     * @return the number of lines of {@link #forInfluxDbCsv(InputStream) InfluxDB CSV} skipped so far because a column
+     *         was {@code null}
+     */
+    public long getNumberOfLinesWithNullValues() {
+        return numberOfLinesWithNullValues;
+    }
+
+    /**
+     * @return the number of lines that were neither blank nor header lines, but skipped so far because they were
+     *         {@link #getNumberOfMalformedLines() malformed} or {@link #getNumberOfLinesWithNullValues() had a
+     *         null value}
+     */
+    public long getNumberOfSkippedLines() {
+        return numberOfMalformedLines + numberOfLinesWithNullValues;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (true) {
+            int lineEnd = findLineEnd();
+            if (lineEnd < 0) {
+                if (!endOfInput) {
+                    fill();
+                    continue;
+                }
+                if (position >= limit || terminatedLinesOnly) {
+                    return false;
+                }
+                lineEnd = limit; // last line without terminating line feed
+            }
+            final int lineStart = position;
+            position = Math.min(lineEnd + 1, limit);
+            scanPosition = position;
+            numberOfLines++;
+            if (lenient) {
+                try {
+                    if (parseLine(lineStart, lineEnd)) {
+                        return true;
+                    }
+                } catch (NumberFormatException e) {
+                    numberOfMalformedLines++;
+                }
+            } else if (parseLine(lineStart, lineEnd)) {
+                return true;
+            }
+        }
+    }
+
+    private int findLineEnd() {
+        for (int i = scanPosition; i < limit; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        scanPosition = limit;
+        return -1;
+    }
+
+    /**
+     * Moves the unconsumed bytes to the start of the buffer, growing it if a single line doesn't fit, and appends as
+     * many bytes from the input as available.
+     */
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            scanPosition -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            final byte[] newBuffer = new byte[2 * buffer.length];
+            System.arraycopy(buffer, 0, newBuffer, 0, limit);
+            buffer = newBuffer;
+        }
+        final int read;
+        if (in != null) {
+            read = in.read(buffer, limit, buffer.length - limit);
+        } else {
+            if (charBuffer.length < buffer.length - limit) {
+                charBuffer = new char[buffer.length];
+            }
+            read = reader.read(charBuffer, 0, buffer.length - limit);
+            for (int i = 0; i < read; i++) {
+                buffer[limit + i] = (byte) charBuffer[i];
+            }
+        }
+        if (read < 0) {
+            endOfInput = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * @return {@code false} if the line was blank, {@code true} if a reading was parsed from it
+     * @throws NumberFormatException
+     *             if the line is not blank but doesn't have the expected number of numeric columns
+     */
+    private boolean parseLine(int from, int to) {
+        if (influxDbCsv) {
+            return parseCsvLine(from, to);
+        }
+        int column = 0;
+        int i = from;
+        while (column < NUMBER_OF_COLUMNS) {
+            while (i < to && isWhitespace(buffer[i])) {
+                i++;
+            }
+            if (i >= to) {
+                break;
+            }
+            columnBounds[2 * column] = i;
+            while (i < to && !isWhitespace(buffer[i])) {
+                i++;
+            }
+            columnBounds[2 * column + 1] = i;
+            column++;
+        }
+        if (column == 0) {
+            return false;
+        }
+        if (column < NUMBER_OF_COLUMNS) {
+            throw new NumberFormatException("Expected " + NUMBER_OF_COLUMNS + " columns but found " + column
+                    + " in line \"" + new String(buffer, from, to - from, StandardCharsets.US_ASCII).trim() + "\"");
+        }
+        decodeColumns();
+        return true;
+    }
+
+    /**
+     * @return {@code false} if the line was blank, a header line or had an empty column, {@code true} if a reading was
+     *         parsed from it
+     */
+    private boolean parseCsvLine(int from, int to) {
+        if (to > from && buffer[to - 1] == '\r') {
+            to--;
+        }
+        if (to == from) {
+            return false;
+        }
+        int column = -INFLUX_DB_CSV_PREFIX_COLUMNS;
+        int columnStart = from;
+        for (int i = from; i <= to && column < NUMBER_OF_COLUMNS; i++) {
+            if (i == to || buffer[i] == ',') {
+                if (column >= 0) {
+                    if (i == columnStart) {
+                        numberOfLinesWithNullValues++;
+                        return false;
+                    }
+                    columnBounds[2 * column] = columnStart;
+                    columnBounds[2 * column + 1] = i;
+                }
+                column++;
+                columnStart = i + 1;
+            }
+        }
+        if (column < NUMBER_OF_COLUMNS) {
+            throw new NumberFormatException("Expected " + (INFLUX_DB_CSV_PREFIX_COLUMNS + NUMBER_OF_COLUMNS)
+                    + " columns in line \"" + new String(buffer, from, to - from, StandardCharsets.US_ASCII) + "\"");
+        }
+        if (!AsciiNumbers.isDigit(buffer[columnBounds[0]])) {
+            return false; // header line
+        }
+        decodeColumns();
+        return true;
+    }
+
+    private void decodeColumns() {
+        timeInMillis = AsciiNumbers.parseLong(buffer, columnBounds[0], columnBounds[1]) / NANOS_PER_MILLI;
+        homeOwnConsumptionInWatts = AsciiNumbers.parseDouble(buffer, columnBounds[2], columnBounds[3]);
+        pvProductionInWatts = AsciiNumbers.parseDouble(buffer, columnBounds[4], columnBounds[5]);
+        totalActivePowerInWatts = AsciiNumbers.parseDouble(buffer, columnBounds[6], columnBounds[7]);
+        batterySOC = (int) Math.round(AsciiNumbers.parseDouble(buffer, columnBounds[8], columnBounds[9]));
+        batteryChargeInWatts = AsciiNumbers.parseDouble(buffer, columnBounds[10], columnBounds[11]);
+    }
+
+    @Override
+    public long getTimeInMillis() {
+        return timeInMillis;
+    }
+
+    @Override
+    public double getHomeOwnConsumptionInWatts() {
+        return homeOwnConsumptionInWatts;
+    }
+
+    @Override
+    public double getPvProductionInWatts() {
+        return pvProductionInWatts;
+    }
+
+    @Override
+    public double getTotalActivePowerInWatts() {
+        return totalActivePowerInWatts;
+    }
+
+    @Override
+    public int getBatterySOC() {
+        return batterySOC;
+    }
+
+    @Override
+    public double getBatteryChargeInWatts() {
+        return batteryChargeInWatts;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        } else {
+            reader.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReadingParser [timeInMillis=" + timeInMillis + ", homeOwnConsumptionInWatts=" + homeOwnConsumptionInWatts
+                + ", pvProductionInWatts=" + pvProductionInWatts + ", totalActivePowerInWatts=" + totalActivePowerInWatts
+                + ", batterySOC=" + batterySOC + ", batteryChargeInWatts=" + batteryChargeInWatts + "]";
+    }
+}
@@ -0,0 +1,38 @@
+package de.axeluhl.kostal;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A cursor over a time-ordered sequence of inverter readings. Unlike an {@link java.util.Iterator} it does not produce
+ * an object per reading; instead, {@link #next()} advances the cursor, and the getters return the primitive values of
+ * the reading the cursor currently points to. This keeps the per-reading cost of consumers such as
+ * {@link AggregateBatteryDischarge#aggregateBatteryDischarge(Battery, ReadingSource)} free of allocations.
+ * <p>
+ *
+ * The getters must only be called after {@link #next()} has returned {@code true}; their results are undefined
+ * otherwise.
+ */
+public interface ReadingSource extends Closeable {
+    /**
+     * Advances to the next reading.
+     *
+     * @return {@code false} if there are no more readings, {@code true} if the getters now describe the next reading
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return the time point of the current reading in milliseconds since the epoch
+     */
+    long getTimeInMillis();
+
+    double getHomeOwnConsumptionInWatts();
+
+    double getPvProductionInWatts();
+
+    double getTotalActivePowerInWatts();
+
+    int getBatterySOC();
+
+    double getBatteryChargeInWatts();
+}
@@ -0,0 +1,134 @@
+package de.axeluhl.kostal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Flight Recorder events emitted by {@link ReplayMetrics}. All references to the {@code jdk.jfr} API are confined
+ * to this class, which {@link ReplayMetrics} only touches after checking that Flight Recorder is available, so the
+ * rest of the code keeps running on JVMs without it. Compiling this class, however, requires a JDK with the
+ * {@code jdk.jfr} API, i.e., 8u262 or later. To record the events, start the JVM with, e.g.,
+ * {@code -XX:StartFlightRecording=filename=replay.jfr}.
+ * <p>
+ *
+ * Creating the first event initializes Flight Recorder, which takes a noticeable fraction of a second. Therefore no
+ * events are created unless Flight Recorder has already been initialized, e.g., by a recording.
+ */
+final class ReplayEvents {
+    private ReplayEvents() {
+    }
+
+    @Name("de.axeluhl.kostal.ReplayThroughput")
+    @Label("Replay Throughput")
+    @Category({ "Kostal", "Replay" })
+    @Description("Readings replayed in an interval, and the estimated time spent reading and parsing them")
+    @StackTrace(false)
+    static class ThroughputEvent extends Event {
+        @Label("Readings")
+        long readings;
+
+        @Label("Estimated Reading Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long estimatedReadingTime;
+    }
+
+    @Name("de.axeluhl.kostal.ReplaySummary")
+    @Label("Replay Summary")
+    @Category({ "Kostal", "Replay" })
+    @Description("Throughput and data quality metrics of a complete replay")
+    @StackTrace(false)
+    static class SummaryEvent extends Event {
+        @Label("Readings")
+        long readings;
+
+        @Label("Malformed Lines")
+        long malformedLines;
+
+        @Label("Readings per Second")
+        double readingsPerSecond;
+
+        @Label("Estimated Reading Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long estimatedReadingTime;
+
+        @Label("Out-of-Order Steps")
+        long outOfOrderSteps;
+
+        @Label("Duplicate Time Stamps")
+        long duplicateTimestamps;
+
+        @Label("Longest Gap")
+        @Timespan(Timespan.MILLISECONDS)
+        long maxGap;
+
+        @Label("Max Power Clamps")
+        long maxPowerClamps;
+
+        @Label("Reduced Charge Power Clamps")
+        long reducedChargePowerClamps;
+
+        @Label("Capacity Clamps")
+        long capacityClamps;
+
+        @Label("Min SOC Clamps")
+        long minSOCClamps;
+
+        @Label("Energy Lost to Truncation in Wh")
+        double truncatedEnergyInWattHours;
+    }
+
+    /**
+     * @return a {@link ThroughputEvent} whose duration has started, or {@code null} if it isn't enabled
+     */
+    static Object beginThroughput() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        final ThroughputEvent event = new ThroughputEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void endThroughput(Object event, long readings, long estimatedReadingNanos) {
+        if (event != null) {
+            final ThroughputEvent throughputEvent = (ThroughputEvent) event;
+            throughputEvent.end();
+            if (throughputEvent.shouldCommit()) {
+                throughputEvent.readings = readings;
+                throughputEvent.estimatedReadingTime = estimatedReadingNanos;
+                throughputEvent.commit();
+            }
+        }
+    }
+
+    static void commitSummary(ReplayMetrics metrics) {
+        if (!FlightRecorder.isInitialized()) {
+            return;
+        }
+        final SummaryEvent event = new SummaryEvent();
+        if (event.shouldCommit()) {
+            event.readings = metrics.getReadings();
+            event.malformedLines = metrics.getMalformedLines();
+            event.readingsPerSecond = metrics.getReadingsPerSecond();
+            event.estimatedReadingTime = metrics.getEstimatedReadingNanos();
+            event.outOfOrderSteps = metrics.getOutOfOrderSteps();
+            event.duplicateTimestamps = metrics.getDuplicateTimestamps();
+            event.maxGap = metrics.getMaxGapInMillis();
+            event.maxPowerClamps = metrics.getMaxPowerClamps();
+            event.reducedChargePowerClamps = metrics.getReducedChargePowerClamps();
+            event.capacityClamps = metrics.getCapacityClamps();
+            event.minSOCClamps = metrics.getMinSOCClamps();
+            event.truncatedEnergyInWattHours = metrics.getTruncatedEnergyInWattHours();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package de.axeluhl.kostal;
+
+/**
+ * Observes the steps of a replay by {@link AggregateBatteryDischarge}, e.g. to roll up statistics in the same pass over
+ * the history that computes the total savings. A step covers the time between two consecutive readings; the power values
+ * are those of the earlier reading, as this is what the virtual battery was charged or discharged with.
+ */
+@FunctionalInterface
+public interface ReplayListener {
+    /**
+     * Called after the {@code virtualBattery} has been charged or discharged for a step
+     *
+     * @param energyAddedInWattHours
+     *            the change of the energy contained in the battery caused by the step; negative for a discharge
+     * @param savingsInCents
+     *            the savings the step's discharge produced
+     */
+    void stepReplayed(long startInMillis, long durationInMillis, double pvProductionInWatts,
+            double homeOwnConsumptionInWatts, double energyAddedInWattHours, double savingsInCents, Battery virtualBattery);
+
+    /**
+     * @return a listener notifying this listener and then {@code next}, or this listener if {@code next} is
+     *         {@code null}
+     */
+    default ReplayListener andThen(ReplayListener next) {
+        if (next == null) {
+            return this;
+        }
+        return (startInMillis, durationInMillis, pvProductionInWatts, homeOwnConsumptionInWatts, energyAddedInWattHours,
+                savingsInCents, virtualBattery) -> {
+            stepReplayed(startInMillis, durationInMillis, pvProductionInWatts, homeOwnConsumptionInWatts,
+                    energyAddedInWattHours, savingsInCents, virtualBattery);
+            next.stepReplayed(startInMillis, durationInMillis, pvProductionInWatts, homeOwnConsumptionInWatts,
+                    energyAddedInWattHours, savingsInCents, virtualBattery);
+        };
+    }
+}
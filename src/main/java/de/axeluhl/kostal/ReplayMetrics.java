@@ -0,0 +1,368 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Collects throughput and data quality metrics of a replay by {@link AggregateBatteryDischarge}. It is enabled by
+ * {@link #meter(ReadingSource) wrapping} the reading source and {@link AggregateBatteryDischarge#setReplayListener
+ * listening} to the replay; when neither is done, the replay runs exactly as without metrics. When enabled, the cost
+ * per reading is a few counter increments and comparisons; the time spent reading and parsing is measured only for
+ * every {@value #PARSE_TIME_SAMPLING_INTERVAL}th reading and extrapolated, so that {@link System#nanoTime()} isn't
+ * called for each reading.
+ * <p>
+ *
+ * The metrics comprise:
+ *
+ * <ul>
+ * <li>the number of readings and, for a {@link LineCountingSource} such as a {@link ReadingParser}, of lines and of
+ * malformed lines skipped in {@link ReadingParser#setLenient(boolean) lenient} mode</li>
+ * <li>wall time, readings per second, and the estimated split of the time into reading/parsing and simulating</li>
+ * <li>the distribution of the time between consecutive readings in power-of-two buckets of seconds, the longest gap,
+ * and the number of out-of-order and duplicate time stamps</li>
+ * <li>how often the battery's charge or discharge was clamped by its maximum power, its reduced charge power, its
+ * capacity or its minimum SOC, as {@link Battery#getLastClamping() reported} by the battery</li>
+ * <li>the time and energy {@link Battery#charge(double, long, long)} drops by truncating step durations to full
+ * seconds; the energy is that of the power the battery applied, and none for steps in which it ran full or empty</li>
+ * </ul>
+ *
+ * {@link #writeJson(Writer)} produces a summary. If the JVM supports Flight Recorder, metered sources additionally emit
+ * a throughput event per {@value #THROUGHPUT_EVENT_INTERVAL} readings, and {@link #commitSummaryEvent()} emits the
+ * summary as an event; see {@link ReplayEvents}. Committing events costs next to nothing unless a recording enables
+ * them.
+ * <p>
+ *
+ * Instances are not safe for concurrent use.
+ */
+public class ReplayMetrics implements ReplayListener {
+    /**
+     * Must be a power of two
+     */
+    public static final int PARSE_TIME_SAMPLING_INTERVAL = 64;
+
+    /**
+     * Must be a power of two
+     */
+    public static final int THROUGHPUT_EVENT_INTERVAL = 1 << 16;
+
+    private static final int GAP_BUCKETS = 64;
+
+    static final boolean FLIGHT_RECORDER_AVAILABLE = isFlightRecorderAvailable();
+
+    private long startNanos;
+
+    private long endNanos;
+
+    private long readings;
+
+    private long sampledReadings;
+
+    private long sampledReadingNanos;
+
+    private long lines = -1;
+
+    private long malformedLines = -1;
+
+    private long steps;
+
+    private long outOfOrderSteps;
+
+    private long duplicateTimestamps;
+
+    private long maxGapInMillis;
+
+    /**
+     * Bucket 0 counts gaps shorter than a second, bucket {@code i>0} those of at least 2<sup>i-1</sup> and less than
+     * 2<sup>i</sup> seconds
+     */
+    private final long[] gapHistogram = new long[GAP_BUCKETS];
+
+    private long maxPowerClamps;
+
+    private long reducedChargePowerClamps;
+
+    private long capacityClamps;
+
+    private long minSOCClamps;
+
+    private long truncatedMillis;
+
+    private double truncatedEnergyInWattHours;
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * A source counting and timing the readings of the source it wraps
+     */
+    private class MeteredReadingSource extends ForwardingReadingSource {
+        /**
+         * The Flight Recorder event of the current throughput interval; typed as {@link Object} so that this class
+         * can be loaded without Flight Recorder
+         */
+        private Object throughputEvent;
+
+        private long readingsAtThroughputEventStart;
+
+        private long sampledReadingNanosAtThroughputEventStart;
+
+        private long sampledReadingsAtThroughputEventStart;
+
+        MeteredReadingSource(ReadingSource source) {
+            super(source);
+            if (FLIGHT_RECORDER_AVAILABLE) {
+                throughputEvent = ReplayEvents.beginThroughput();
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            final boolean result;
+            if ((readings & (PARSE_TIME_SAMPLING_INTERVAL - 1)) == 0) {
+                final long before = System.nanoTime();
+                result = source.next();
+                sampledReadingNanos += System.nanoTime() - before;
+                sampledReadings++;
+            } else {
+                result = source.next();
+            }
+            if (result) {
+                readings++;
+                if ((readings & (THROUGHPUT_EVENT_INTERVAL - 1)) == 0 && FLIGHT_RECORDER_AVAILABLE) {
+                    endThroughputEvent();
+                    throughputEvent = ReplayEvents.beginThroughput();
+                }
+            } else {
+                finish();
+            }
+            return result;
+        }
+
+        private void endThroughputEvent() {
+            final long sampled = sampledReadings - sampledReadingsAtThroughputEventStart;
+            final long intervalReadings = readings - readingsAtThroughputEventStart;
+            ReplayEvents.endThroughput(throughputEvent, intervalReadings, sampled == 0 ? 0
+                    : (sampledReadingNanos - sampledReadingNanosAtThroughputEventStart) * intervalReadings / sampled);
+            readingsAtThroughputEventStart = readings;
+            sampledReadingsAtThroughputEventStart = sampledReadings;
+            sampledReadingNanosAtThroughputEventStart = sampledReadingNanos;
+        }
+
+        private void finish() {
+            if (endNanos == 0) {
+                endNanos = System.nanoTime();
+                if (FLIGHT_RECORDER_AVAILABLE && readings > readingsAtThroughputEventStart) {
+                    endThroughputEvent();
+                }
+                if (source instanceof LineCountingSource) {
+                    lines = ((LineCountingSource) source).getNumberOfLines();
+                    malformedLines = ((LineCountingSource) source).getNumberOfMalformedLines();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            source.close();
+        }
+    }
+
+    /**
+     * @return a source delivering the readings of {@code source} while counting and timing them; wall time is measured
+     *         from this call to the end of the readings
+     */
+    public ReadingSource meter(ReadingSource source) {
+        startNanos = System.nanoTime();
+        return new MeteredReadingSource(source);
+    }
+
+    @Override
+    public void stepReplayed(long startInMillis, long durationInMillis, double pvProductionInWatts,
+            double homeOwnConsumptionInWatts, double energyAddedInWattHours, double savingsInCents, Battery virtualBattery) {
+        steps++;
+        if (durationInMillis < 0) {
+            outOfOrderSteps++;
+        } else {
+            if (durationInMillis == 0) {
+                duplicateTimestamps++;
+            }
+            gapHistogram[64 - Long.numberOfLeadingZeros(durationInMillis / 1000l)]++;
+            if (durationInMillis > maxGapInMillis) {
+                maxGapInMillis = durationInMillis;
+            }
+        }
+        final int clamping = virtualBattery.getLastClamping();
+        if ((clamping & Battery.CLAMPED_BY_MAX_POWER) != 0) {
+            maxPowerClamps++;
+        } else if ((clamping & Battery.CLAMPED_BY_REDUCED_CHARGE_POWER) != 0) {
+            reducedChargePowerClamps++;
+        }
+        if ((clamping & Battery.CLAMPED_BY_CAPACITY) != 0) {
+            capacityClamps++;
+        } else if ((clamping & Battery.CLAMPED_BY_MIN_SOC) != 0) {
+            minSOCClamps++;
+        }
+        final double powerInWatts = pvProductionInWatts - homeOwnConsumptionInWatts;
+        final long fractionOfSecondInMillis = Math.floorMod(durationInMillis, 1000l);
+        if (fractionOfSecondInMillis != 0 && powerInWatts != 0) {
+            truncatedMillis += fractionOfSecondInMillis;
+            // a full or empty battery would have taken nothing more, and a capped power no more than the cap
+            if ((clamping & (Battery.CLAMPED_BY_CAPACITY | Battery.CLAMPED_BY_MIN_SOC)) == 0) {
+                final double appliedPowerInWatts = (clamping & Battery.CLAMPED_BY_MAX_POWER) != 0 ? virtualBattery.getMaxChargePowerInWatts()
+                        : (clamping & Battery.CLAMPED_BY_REDUCED_CHARGE_POWER) != 0 ? virtualBattery.getReducedChargePowerInWatts()
+                        : Math.abs(powerInWatts);
+                truncatedEnergyInWattHours += appliedPowerInWatts * fractionOfSecondInMillis / 3600000.0;
+            }
+        }
+    }
+
+    public long getReadings() {
+        return readings;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public long getOutOfOrderSteps() {
+        return outOfOrderSteps;
+    }
+
+    public long getDuplicateTimestamps() {
+        return duplicateTimestamps;
+    }
+
+    public long getMaxGapInMillis() {
+        return maxGapInMillis;
+    }
+
+    /**
+     * @return the number of steps whose duration was at least 2<sup>bucket-1</sup> and less than 2<sup>bucket</sup>
+     *         seconds, or less than a second for bucket 0
+     */
+    public long getGaps(int bucket) {
+        return gapHistogram[bucket];
+    }
+
+    public long getMaxPowerClamps() {
+        return maxPowerClamps;
+    }
+
+    public long getReducedChargePowerClamps() {
+        return reducedChargePowerClamps;
+    }
+
+    public long getCapacityClamps() {
+        return capacityClamps;
+    }
+
+    public long getMinSOCClamps() {
+        return minSOCClamps;
+    }
+
+    public double getTruncatedEnergyInWattHours() {
+        return truncatedEnergyInWattHours;
+    }
+
+    /**
+     * @return the number of lines read by a metered {@link LineCountingSource}, or -1 if the metered source wasn't one
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the number of malformed lines skipped by a metered {@link LineCountingSource}, or -1 if the metered
+     *         source wasn't one
+     */
+    public long getMalformedLines() {
+        return malformedLines;
+    }
+
+    public long getWallNanos() {
+        return (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+    }
+
+    /**
+     * @return the time spent in the metered source's {@link ReadingSource#next()}, extrapolated from the sampled
+     *         readings
+     */
+    public long getEstimatedReadingNanos() {
+        return sampledReadings == 0 ? 0 : sampledReadingNanos * (readings + 1) / sampledReadings;
+    }
+
+    public double getReadingsPerSecond() {
+        final long wallNanos = getWallNanos();
+        return wallNanos == 0 ? 0 : readings * 1e9 / wallNanos;
+    }
+
+    /**
+     * Emits the summary as a Flight Recorder event if Flight Recorder is available
+     */
+    public void commitSummaryEvent() {
+        if (FLIGHT_RECORDER_AVAILABLE) {
+            ReplayEvents.commitSummary(this);
+        }
+    }
+
+    public void writeJson(Writer out) throws IOException {
+        final long wallNanos = getWallNanos();
+        final long readingNanos = Math.min(wallNanos, getEstimatedReadingNanos());
+        out.write("{\n");
+        writeField(out, "readings", readings);
+        writeField(out, "lines", lines);
+        writeField(out, "malformedLines", malformedLines);
+        writeField(out, "wallSeconds", wallNanos / 1e9);
+        writeField(out, "readingsPerSecond", getReadingsPerSecond());
+        writeField(out, "estimatedReadingSeconds", readingNanos / 1e9);
+        writeField(out, "estimatedSimulationSeconds", (wallNanos - readingNanos) / 1e9);
+        writeField(out, "steps", steps);
+        writeField(out, "outOfOrderSteps", outOfOrderSteps);
+        writeField(out, "duplicateTimestamps", duplicateTimestamps);
+        writeField(out, "maxGapSeconds", maxGapInMillis / 1000.0);
+        out.write("  \"gapHistogram\": {");
+        boolean first = true;
+        for (int bucket = 0; bucket < GAP_BUCKETS; bucket++) {
+            if (gapHistogram[bucket] != 0) {
+                out.write(first ? "\"" : ", \"");
+                out.write(bucket == 0 ? "<1s" : ">=" + (1l << (bucket - 1)) + "s");
+                out.write("\": ");
+                out.write(Long.toString(gapHistogram[bucket]));
+                first = false;
+            }
+        }
+        out.write("},\n");
+        writeField(out, "maxPowerClamps", maxPowerClamps);
+        writeField(out, "reducedChargePowerClamps", reducedChargePowerClamps);
+        writeField(out, "capacityClamps", capacityClamps);
+        writeField(out, "minSOCClamps", minSOCClamps);
+        writeField(out, "truncatedSeconds", truncatedMillis / 1000.0);
+        out.write("  \"truncatedEnergyInWattHours\": ");
+        out.write(Double.toString(truncatedEnergyInWattHours));
+        out.write("\n}\n");
+        out.flush();
+    }
+
+    private static void writeField(Writer out, String name, long value) throws IOException {
+        out.write("  \"");
+        out.write(name);
+        out.write("\": ");
+        out.write(Long.toString(value));
+        out.write(",\n");
+    }
+
+    private static void writeField(Writer out, String name, double value) throws IOException {
+        out.write("  \"");
+        out.write(name);
+        out.write("\": ");
+        out.write(Double.toString(value));
+        out.write(",\n");
+    }
+}
@@ -0,0 +1,249 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+
+/**
+ * Rolls up the steps of a replay per hour, day and month of a time zone, in a single pass and without keeping any
+ * per-reading state. For each period, the following sums are accumulated in primitive arrays, as if the virtual battery
+ * had been installed:
+ *
+ * <ul>
+ * <li>{@code seconds}: the time covered by readings, for computing means such as the average grid power</li>
+ * <li>{@code savingsInCents}: the discharge savings</li>
+ * <li>{@code chargedInWattHours}/{@code dischargedInWattHours}: the energy added to/removed from the battery</li>
+ * <li>{@code gridImportInWattHours}/{@code gridExportInWattHours}: the energy obtained from/ingested into the grid</li>
+ * <li>{@code pvProductionInWattHours} and {@code homeOwnConsumptionInWattHours}</li>
+ * <li>{@code pvSelfConsumptionInWattHours}: PV energy consumed directly or charged into the battery</li>
+ * <li>{@code equivalentFullCycles}: energy discharged relative to the battery capacity</li>
+ * <li>{@code secondsAtMinSOC}/{@code secondsFull}: time the battery ended a step at its minimum SOC or full</li>
+ * </ul>
+ *
+ * The battery's energy flows follow the loss model of {@link Battery}: charging the battery with {@code x} Wh takes
+ * {@code x/}{@link Battery#CHARGE_LOSS_FACTOR} Wh of surplus, and removing {@code x} Wh from it delivers
+ * {@code x/}{@link Battery#DISCHARGE_LOSS_FACTOR} Wh. A step is accounted for entirely in the periods in which it
+ * starts. Steps are expected in ascending time order; periods without readings are not reported.
+ */
+public class Rollups implements ReplayListener {
+    /**
+     * Tolerance for considering the battery empty or full, accounting for rounding in {@link Battery#charge}
+     */
+    private static final double TOLERANCE_IN_WATT_HOURS = 1e-6;
+
+    public static enum Granularity {
+        HOUR {
+            @Override
+            ZonedDateTime getPeriodStart(ZonedDateTime time) {
+                return time.truncatedTo(ChronoUnit.HOURS);
+            }
+
+            @Override
+            ZonedDateTime getNextPeriodStart(ZonedDateTime periodStart) {
+                return periodStart.plusHours(1);
+            }
+        },
+        DAY {
+            @Override
+            ZonedDateTime getPeriodStart(ZonedDateTime time) {
+                return time.truncatedTo(ChronoUnit.DAYS);
+            }
+
+            @Override
+            ZonedDateTime getNextPeriodStart(ZonedDateTime periodStart) {
+                return periodStart.plusDays(1);
+            }
+        },
+        MONTH {
+            @Override
+            ZonedDateTime getPeriodStart(ZonedDateTime time) {
+                return time.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS);
+            }
+
+            @Override
+            ZonedDateTime getNextPeriodStart(ZonedDateTime periodStart) {
+                return periodStart.plusMonths(1);
+            }
+        };
+
+        abstract ZonedDateTime getPeriodStart(ZonedDateTime time);
+
+        abstract ZonedDateTime getNextPeriodStart(ZonedDateTime periodStart);
+    }
+
+    /**
+     * The rows of one {@link Granularity}, one per period, with the sums of the period in progress in the last row.
+     * Calendar arithmetic is only done when a step starts at or after the end of the period in progress.
+     */
+    private static class Level {
+        private final Granularity granularity;
+
+        private long[] periodStartsInMillis = new long[16];
+
+        /**
+         * Row-major sums; row {@code r} occupies the {@link StepMetrics#NUMBER_OF_METRICS} elements starting at
+         * {@code r*StepMetrics.NUMBER_OF_METRICS}
+         */
+        private double[] sums = new double[16 * StepMetrics.NUMBER_OF_METRICS];
+
+        private int rows;
+
+        private long periodEndInMillis = Long.MIN_VALUE;
+
+        Level(Granularity granularity) {
+            this.granularity = granularity;
+        }
+
+        /**
+         * @return the offset into {@link #sums} of the row of the period in which {@code timeInMillis} falls
+         */
+        int getRowOffset(long timeInMillis, ZoneId zone) {
+            if (timeInMillis >= periodEndInMillis || rows == 0) {
+                final ZonedDateTime periodStart = granularity.getPeriodStart(Instant.ofEpochMilli(timeInMillis).atZone(zone));
+                periodEndInMillis = granularity.getNextPeriodStart(periodStart).toInstant().toEpochMilli();
+                if (rows == periodStartsInMillis.length) {
+                    periodStartsInMillis = Arrays.copyOf(periodStartsInMillis, 2 * rows);
+                    sums = Arrays.copyOf(sums, 2 * rows * StepMetrics.NUMBER_OF_METRICS);
+                }
+                periodStartsInMillis[rows++] = periodStart.toInstant().toEpochMilli();
+            }
+            return (rows - 1) * StepMetrics.NUMBER_OF_METRICS;
+        }
+    }
+
+    private final ZoneId zone;
+
+    private final Level[] levels;
+
+    /**
+     * Sums of the current step, added to the current row of each level
+     */
+    private final double[] step = new double[StepMetrics.NUMBER_OF_METRICS];
+
+    public Rollups(ZoneId zone) {
+        this.zone = zone;
+        this.levels = new Level[Granularity.values().length];
+        for (final Granularity granularity : Granularity.values()) {
+            levels[granularity.ordinal()] = new Level(granularity);
+        }
+    }
+
+    @Override
+    public void stepReplayed(long startInMillis, long durationInMillis, double pvProductionInWatts,
+            double homeOwnConsumptionInWatts, double energyAddedInWattHours, double savingsInCents, Battery virtualBattery) {
+        StepMetrics.accountFlows(step, durationInMillis, pvProductionInWatts, homeOwnConsumptionInWatts, energyAddedInWattHours, savingsInCents);
+        final double seconds = step[StepMetrics.SECONDS];
+        final double energyContainedInWattHours = virtualBattery.getEnergyContainedInWattHours();
+        step[StepMetrics.PV_SELF_CONSUMPTION] = Math.max(0, Math.min(pvProductionInWatts, homeOwnConsumptionInWatts)) * (seconds / 3600.0)
+                + StepMetrics.getChargeTakenInWattHours(step);
+        step[StepMetrics.EQUIVALENT_FULL_CYCLES] = step[StepMetrics.DISCHARGED] / virtualBattery.getCapacityInWattHours();
+        step[StepMetrics.SECONDS_AT_MIN_SOC] = energyContainedInWattHours <= virtualBattery.getMinEnergyContainedInWattHours()
+                + TOLERANCE_IN_WATT_HOURS ? seconds : 0;
+        step[StepMetrics.SECONDS_FULL] = energyContainedInWattHours >= virtualBattery.getCapacityInWattHours() - TOLERANCE_IN_WATT_HOURS ? seconds : 0;
+        for (final Level level : levels) {
+            final int offset = level.getRowOffset(startInMillis, zone);
+            for (int metric = 0; metric < StepMetrics.NUMBER_OF_METRICS; metric++) {
+                level.sums[offset + metric] += step[metric];
+            }
+        }
+    }
+
+    public int getNumberOfPeriods(Granularity granularity) {
+        return levels[granularity.ordinal()].rows;
+    }
+
+    public long getPeriodStartInMillis(Granularity granularity, int period) {
+        return levels[granularity.ordinal()].periodStartsInMillis[period];
+    }
+
+    public double getSavingsInCents(Granularity granularity, int period) {
+        return get(granularity, period, StepMetrics.SAVINGS_IN_CENTS);
+    }
+
+    public double getGridImportInWattHours(Granularity granularity, int period) {
+        return get(granularity, period, StepMetrics.GRID_IMPORT);
+    }
+
+    public double getGridExportInWattHours(Granularity granularity, int period) {
+        return get(granularity, period, StepMetrics.GRID_EXPORT);
+    }
+
+    public double getEquivalentFullCycles(Granularity granularity, int period) {
+        return get(granularity, period, StepMetrics.EQUIVALENT_FULL_CYCLES);
+    }
+
+    public double getSecondsAtMinSOC(Granularity granularity, int period) {
+        return get(granularity, period, StepMetrics.SECONDS_AT_MIN_SOC);
+    }
+
+    private double get(Granularity granularity, int period, int metric) {
+        return levels[granularity.ordinal()].sums[period * StepMetrics.NUMBER_OF_METRICS + metric];
+    }
+
+    /**
+     * Writes one line per period, hours first, then days, then months, preceded by a header line. The first two columns
+     * are the granularity and the period's start as ISO-8601 date-time with offset.
+     */
+    public void writeCsv(Writer out) throws IOException {
+        out.write("granularity,start");
+        for (final String metricName : StepMetrics.METRIC_NAMES) {
+            out.write(',');
+            out.write(metricName);
+        }
+        out.write('\n');
+        for (final Level level : levels) {
+            for (int row = 0; row < level.rows; row++) {
+                out.write(level.granularity.name().toLowerCase());
+                out.write(',');
+                out.write(formatPeriodStart(level, row));
+                for (int metric = 0; metric < StepMetrics.NUMBER_OF_METRICS; metric++) {
+                    out.write(',');
+                    out.write(Double.toString(level.sums[row * StepMetrics.NUMBER_OF_METRICS + metric]));
+                }
+                out.write('\n');
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes a JSON object with one array per granularity, named {@code hour}, {@code day} and {@code month}, holding
+     * one object per period with the period's {@code start} and the sums
+     */
+    public void writeJson(Writer out) throws IOException {
+        out.write('{');
+        for (final Level level : levels) {
+            if (level.granularity.ordinal() > 0) {
+                out.write(',');
+            }
+            out.write("\n  \"");
+            out.write(level.granularity.name().toLowerCase());
+            out.write("\": [");
+            for (int row = 0; row < level.rows; row++) {
+                out.write(row > 0 ? ",\n    {\"start\": \"" : "\n    {\"start\": \"");
+                out.write(formatPeriodStart(level, row));
+                out.write('"');
+                for (int metric = 0; metric < StepMetrics.NUMBER_OF_METRICS; metric++) {
+                    out.write(", \"");
+                    out.write(StepMetrics.METRIC_NAMES[metric]);
+                    out.write("\": ");
+                    final double value = level.sums[row * StepMetrics.NUMBER_OF_METRICS + metric];
+                    out.write(Double.isFinite(value) ? Double.toString(value) : "null");
+                }
+                out.write('}');
+            }
+            out.write(level.rows > 0 ? "\n  ]" : "]");
+        }
+        out.write("\n}\n");
+        out.flush();
+    }
+
+    private String formatPeriodStart(Level level, int row) {
+        return DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(Instant.ofEpochMilli(level.periodStartsInMillis[row]).atZone(zone));
+    }
+}
@@ -1,10 +1,26 @@
 package de.axeluhl.kostal;
 
-import java.time.Instant;
-import java.util.function.BiFunction;
-
+/**
+ * Maps energy discharged from a {@link Battery} at some point in time to the cost saved by not having to obtain that
+ * energy from the grid, minus the compensation that would have been paid for feeding it into the grid instead.
+ */
+@FunctionalInterface
 public interface SavingsPerDischarge {
-    BiFunction<Instant, Double, Double> FUNCTION = (when, energyInWattHours) -> {
-        return Tariff.getCents(when, energyInWattHours) - IngestionCompensation.COMPENSATION_2020.getCompensationInCents(energyInWattHours);
-    };
+    /**
+     * Savings based on the fixed {@link Tariff tariffs} and {@link IngestionCompensation compensations}; safe for
+     * concurrent use
+     */
+    SavingsPerDischarge FUNCTION = forPriceCurves(Tariff.CURVE, IngestionCompensation.CURVE);
+
+    double getSavingsInCents(long whenInMillis, double energyInWattHours);
+
+    /**
+     * Computes savings from a price curve for energy obtained from the grid and one for energy fed into the grid. For
+     * replaying a history, pass {@link SortedPriceCurve#cursor() cursors}; the resulting function is then as safe for
+     * concurrent use as the cursors are, so each {@link Battery} should get its own.
+     */
+    static SavingsPerDischarge forPriceCurves(PriceCurve tariff, PriceCurve compensation) {
+        return (whenInMillis, energyInWattHours) -> tariff.getCents(whenInMillis, energyInWattHours)
+                - compensation.getCents(whenInMillis, energyInWattHours);
+    }
 }
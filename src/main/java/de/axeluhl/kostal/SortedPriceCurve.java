@@ -0,0 +1,131 @@
+package de.axeluhl.kostal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A {@link PriceCurve} defined by a sorted array of time points at which a price starts to be in effect. A price
+ * stays in effect until the next one starts; the last one stays in effect forever. Time points before the first start
+ * have no price.
+ * <p>
+ *
+ * {@link #getCentsPerKWh(long)} uses a binary search and is safe for concurrent use. Callers that query with
+ * non-decreasing time points, such as a {@link Battery} replaying a history, should obtain their own
+ * {@link #cursor()} instead, which remembers the interval found last and usually answers in constant time. This makes
+ * dynamic tariffs with tens of thousands of price intervals per year as cheap to evaluate as a handful of fixed ones.
+ */
+public class SortedPriceCurve implements PriceCurve {
+    private final long[] startsInMillis;
+
+    private final double[] centsPerKWh;
+
+    /**
+     * A view on the enclosing curve that answers queries with non-decreasing time points without a binary search. It
+     * falls back to a binary search when time goes backwards. Not safe for concurrent use.
+     */
+    private class Cursor implements PriceCurve {
+        private int index;
+
+        @Override
+        public double getCentsPerKWh(long timeInMillis) {
+            int i = index;
+            if (timeInMillis < startsInMillis[i]) {
+                i = find(timeInMillis);
+            } else {
+                while (i + 1 < startsInMillis.length && startsInMillis[i + 1] <= timeInMillis) {
+                    i++;
+                }
+            }
+            index = i;
+            return centsPerKWh[i];
+        }
+    }
+
+    /**
+     * @param startsInMillis
+     *            the time points at which the respective prices start to be in effect, in milliseconds since the
+     *            epoch; must be strictly ascending and not empty
+     */
+    public SortedPriceCurve(long[] startsInMillis, double[] centsPerKWh) {
+        if (startsInMillis.length == 0 || startsInMillis.length != centsPerKWh.length) {
+            throw new IllegalArgumentException("Need the same, non-zero number of start time points and prices");
+        }
+        for (int i = 1; i < startsInMillis.length; i++) {
+            if (startsInMillis[i - 1] >= startsInMillis[i]) {
+                throw new IllegalArgumentException("Start time points must be strictly ascending but "
+                        + startsInMillis[i - 1] + " is followed by " + startsInMillis[i]);
+            }
+        }
+        this.startsInMillis = startsInMillis.clone();
+        this.centsPerKWh = centsPerKWh.clone();
+    }
+
+    /**
+     * Loads a curve from a text file with one price interval per line, consisting of the start time point, either as
+     * ISO-8601 instant, UTC date (yyyy-mm-dd) or in seconds since the epoch, followed by whitespace and the price in
+     * cents per kWh. Empty lines and lines starting with {@code #} are ignored. Lines must be in ascending time order.
+     */
+    public static SortedPriceCurve load(Path file) throws IOException {
+        long[] starts = new long[1024];
+        double[] prices = new double[1024];
+        int size = 0;
+        try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String trimmed = line.trim();
+                if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                    final String[] fields = trimmed.split("[ \t]+");
+                    if (fields.length < 2) {
+                        throw new IOException("Expected start time point and price in line \"" + line + "\" of " + file);
+                    }
+                    if (size == starts.length) {
+                        starts = Arrays.copyOf(starts, 2 * size);
+                        prices = Arrays.copyOf(prices, 2 * size);
+                    }
+                    starts[size] = fields[0].matches("-?[0-9]+") ? Long.parseLong(fields[0]) * 1000l
+                            : AggregateBatteryDischarge.parseTimeInMillis(fields[0]);
+                    prices[size] = Double.parseDouble(fields[1]);
+                    size++;
+                }
+            }
+        }
+        return new SortedPriceCurve(Arrays.copyOf(starts, size), Arrays.copyOf(prices, size));
+    }
+
+    private int find(long timeInMillis) {
+        final int searchResult = Arrays.binarySearch(startsInMillis, timeInMillis);
+        final int index = searchResult >= 0 ? searchResult : -searchResult - 2;
+        if (index < 0) {
+            throw new IllegalArgumentException("No price defined for time point " + timeInMillis);
+        }
+        return index;
+    }
+
+    @Override
+    public double getCentsPerKWh(long timeInMillis) {
+        return centsPerKWh[find(timeInMillis)];
+    }
+
+    /**
+     * @return a new cursor on this curve, to be used by a single thread
+     */
+    public PriceCurve cursor() {
+        return new Cursor();
+    }
+
+    public int size() {
+        return startsInMillis.length;
+    }
+
+    /**
+     * @return a hash of this curve's price intervals, which differs between curves with different intervals or
+     *         prices with high probability, e.g., to recognize results computed with a different curve
+     */
+    public long getFingerprint() {
+        return 31l * Arrays.hashCode(startsInMillis) + Arrays.hashCode(centsPerKWh);
+    }
+}
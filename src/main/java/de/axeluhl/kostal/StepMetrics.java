@@ -0,0 +1,73 @@
+package de.axeluhl.kostal;
+
+/**
+ * The per-step sums accumulated by {@link Rollups} and {@link LiveWindows}, as indices into a {@code double[]} of
+ * metrics, and the energy flows of a {@link ReplayListener#stepReplayed replayed step} that both derive them from. The
+ * first {@link #NUMBER_OF_FLOW_METRICS} metrics are the energy flows filled by
+ * {@link #accountFlows(double[], long, double, double, double, double)}; the others depend on the battery's state and
+ * are only kept by {@link Rollups}.
+ *
+ */
+final class StepMetrics {
+    static final String[] METRIC_NAMES = { "seconds", "savingsInCents", "chargedInWattHours",
+            "dischargedInWattHours", "gridImportInWattHours", "gridExportInWattHours", "pvProductionInWattHours",
+            "homeOwnConsumptionInWattHours", "pvSelfConsumptionInWattHours", "equivalentFullCycles", "secondsAtMinSOC",
+            "secondsFull" };
+
+    static final int SECONDS = 0;
+    static final int SAVINGS_IN_CENTS = 1;
+    static final int CHARGED = 2;
+    static final int DISCHARGED = 3;
+    static final int GRID_IMPORT = 4;
+    static final int GRID_EXPORT = 5;
+    static final int PV_PRODUCTION = 6;
+    static final int HOME_OWN_CONSUMPTION = 7;
+    static final int PV_SELF_CONSUMPTION = 8;
+    static final int EQUIVALENT_FULL_CYCLES = 9;
+    static final int SECONDS_AT_MIN_SOC = 10;
+    static final int SECONDS_FULL = 11;
+
+    static final int NUMBER_OF_METRICS = METRIC_NAMES.length;
+
+    static final int NUMBER_OF_FLOW_METRICS = HOME_OWN_CONSUMPTION + 1;
+
+    private StepMetrics() {
+    }
+
+    /**
+     * Fills the first {@link #NUMBER_OF_FLOW_METRICS} elements of {@code step} with the energy flows of a step. The
+     * battery's energy flows follow the loss model of {@link Battery}: charging the battery with {@code x} Wh takes
+     * {@code x/}{@link Battery#CHARGE_LOSS_FACTOR} Wh of surplus, and removing {@code x} Wh from it delivers
+     * {@code x/}{@link Battery#DISCHARGE_LOSS_FACTOR} Wh; like {@link Battery#charge}, only whole seconds count.
+     */
+    static void accountFlows(double[] step, long durationInMillis, double pvProductionInWatts,
+            double homeOwnConsumptionInWatts, double energyAddedInWattHours, double savingsInCents) {
+        final long seconds = Math.floorDiv(durationInMillis, 1000l); // like Battery.charge
+        final double hours = seconds / 3600.0;
+        final double surplusInWattHours = (pvProductionInWatts - homeOwnConsumptionInWatts) * hours;
+        step[SECONDS] = seconds;
+        step[SAVINGS_IN_CENTS] = savingsInCents;
+        step[CHARGED] = Math.max(0, energyAddedInWattHours);
+        step[DISCHARGED] = Math.max(0, -energyAddedInWattHours);
+        step[GRID_IMPORT] = Math.max(0, -surplusInWattHours - getDischargeDeliveredInWattHours(step));
+        step[GRID_EXPORT] = Math.max(0, surplusInWattHours - getChargeTakenInWattHours(step));
+        step[PV_PRODUCTION] = pvProductionInWatts * hours;
+        step[HOME_OWN_CONSUMPTION] = homeOwnConsumptionInWatts * hours;
+    }
+
+    /**
+     * @return the surplus energy the battery took for the {@link #CHARGED} energy of an
+     *         {@link #accountFlows accounted} {@code step}
+     */
+    static double getChargeTakenInWattHours(double[] step) {
+        return step[CHARGED] / Battery.CHARGE_LOSS_FACTOR;
+    }
+
+    /**
+     * @return the energy the battery delivered for the {@link #DISCHARGED} energy of an {@link #accountFlows
+     *         accounted} {@code step}
+     */
+    static double getDischargeDeliveredInWattHours(double[] step) {
+        return step[DISCHARGED] / Battery.DISCHARGE_LOSS_FACTOR;
+    }
+}
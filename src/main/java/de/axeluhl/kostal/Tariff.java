@@ -4,7 +4,8 @@ import java.time.Instant;
 
 /**
  * Models the tariff structure, giving electrical power prices per time range. Literals are ascending in their
- * {@link #getStartsAt()} time points.
+ * {@link #getStartsAt()} time points. A tariff is in effect from its {@link #getStartsAt() start} until the next one
+ * starts; {@link #CURVE} provides the indexed lookup of the tariff in effect at a given time.
  */
 public enum Tariff {
     MAINGAU_OLD(Instant.ofEpochSecond(0), 31),
@@ -12,11 +13,27 @@ public enum Tariff {
     MAINGAU_NEW(Instant.ofEpochSecond(1677657603), 54.09),
     GRUENWELT(Instant.ofEpochSecond(1701244803), 36.77);
 
+    /**
+     * The price curve formed by all tariffs; safe for concurrent use
+     */
+    public static final SortedPriceCurve CURVE = createCurve();
+
     private Tariff(Instant startsAt, double centsPerKWh) {
         this.startsAt = startsAt;
         this.centsPerKWh = centsPerKWh;
     }
 
+    private static SortedPriceCurve createCurve() {
+        final Tariff[] tariffs = values();
+        final long[] startsInMillis = new long[tariffs.length];
+        final double[] centsPerKWh = new double[tariffs.length];
+        for (int i = 0; i < tariffs.length; i++) {
+            startsInMillis[i] = tariffs[i].getStartsAt().toEpochMilli();
+            centsPerKWh[i] = tariffs[i].getCentsPerKWh();
+        }
+        return new SortedPriceCurve(startsInMillis, centsPerKWh);
+    }
+
     public Instant getStartsAt() {
         return startsAt;
     }
@@ -26,12 +43,11 @@ public enum Tariff {
     }
     
     public static double getCents(Instant when, double energyInWattHours) {
-        for (final Tariff tariff : Tariff.values()) {
-            if (!tariff.getStartsAt().isAfter(when)) {
-                return energyInWattHours / 1000.0 * tariff.getCentsPerKWh();
-            }
-        }
-        throw new InternalError("Couldn't find tariff for time point "+when);
+        return getCents(when.toEpochMilli(), energyInWattHours);
+    }
+
+    public static double getCents(long whenInMillis, double energyInWattHours) {
+        return CURVE.getCents(whenInMillis, energyInWattHours);
     }
 
     private final Instant startsAt;
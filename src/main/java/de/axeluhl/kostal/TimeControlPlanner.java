@@ -0,0 +1,847 @@
+package de.axeluhl.kostal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Plans the inverter's battery time control: for each 15-minute slot, whether the battery may charge and discharge
+ * freely ({@link #FREE}), must not charge ({@link #NO_CHARGING}), or must not discharge ({@link #NO_DISCHARGING}), the
+ * same digits {@code kostal-RESTAPI -SetBatteryTimeControl} and {@code kostal-interval.py} write to the
+ * {@code Battery:TimeControl:Conf*} settings. Blocking discharge pays off with a time-dependent tariff: energy not
+ * discharged while grid power is cheap is still available when it is expensive.
+ * <p>
+ *
+ * Given a forecast of PV production and home own consumption per slot, {@link #plan(long, double[], double[], double)}
+ * maximizes the savings of a {@link Battery} by dynamic programming over the energy contained, discretized into
+ * {@link #DEFAULT_NUMBER_OF_SOC_STEPS} equal steps between empty and full. Each slot is simulated by a single
+ * {@link Battery#charge(double, long, long)} with the slot's average surplus, so the planner uses exactly the
+ * battery's power limits, losses and savings function. A slot either lets the battery follow the surplus or keeps it
+ * idle; which of {@link #NO_CHARGING} and {@link #NO_DISCHARGING} keeps it idle depends on the sign of the surplus.
+ * The backward pass computes the best savings achievable from each discrete energy at the start of each slot; the
+ * forward pass then follows the actual energy from the start, interpolating between the discrete ones, and picks the
+ * better choice for each slot, preferring {@link #FREE} in case of a tie. Energy left at the end of the plan has no
+ * value. A week of slots at the default resolution takes a few tens of milliseconds, so the plan can be recomputed
+ * every slot.
+ * <p>
+ *
+ * The {@link #main(String[])} method either plans from a forecast file and prints the settings as the JSON document
+ * {@code kostal-RESTAPI -SetBatteryTimeControlJson} expects, or backtests the planner over a history. For the backtest,
+ * the history is split into weeks starting on Mondays, each planned from the week's own readings as a perfect
+ * forecast or from the previous week's readings, and replayed with and without the plan. Weeks are read one at a time
+ * and processed in parallel, in batches of as many weeks as there are processors. Each week starts
+ * at the SOC recorded in its first reading, which makes the weeks independent of each other.
+ */
+public class TimeControlPlanner {
+    public static final long SLOT_LENGTH_IN_MILLIS = 15l * 60l * 1000l;
+
+    public static final int SLOTS_PER_DAY = 96;
+
+    /**
+     * Allow charging and discharging
+     */
+    public static final byte FREE = 0;
+
+    /**
+     * Disallow charging
+     */
+    public static final byte NO_CHARGING = 1;
+
+    /**
+     * Disallow discharging
+     */
+    public static final byte NO_DISCHARGING = 2;
+
+    public static final int DEFAULT_NUMBER_OF_SOC_STEPS = 1000;
+
+    static final String DEFAULT_ZONE = "Europe/Berlin";
+
+    private static final String[] WEEKDAYS = { "Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun" };
+
+    private static final String PROPERTY_NAME_PREFIX = "Battery:TimeControl:Conf";
+
+    /**
+     * Savings differences below this are considered a tie, resolved in favor of {@link #FREE}
+     */
+    private static final double TIE_TOLERANCE_IN_CENTS = 1e-9;
+
+    private final int minSOCPercent;
+
+    private final double maxChargePowerInWatts;
+
+    private final double reducedChargePowerInWatts;
+
+    private final double socPercentWhereReducedChargePowerStarts;
+
+    private final double capacityInWattHours;
+
+    private final SavingsPerDischarge savingsFunctionInCentsPerWattHourDischarged;
+
+    private final int numberOfSOCSteps;
+
+    /**
+     * The time control states planned for consecutive slots
+     */
+    public static class Plan {
+        private final long startInMillis;
+
+        private final byte[] states;
+
+        private final double expectedSavingsInCents;
+
+        Plan(long startInMillis, byte[] states, double expectedSavingsInCents) {
+            this.startInMillis = startInMillis;
+            this.states = states;
+            this.expectedSavingsInCents = expectedSavingsInCents;
+        }
+
+        public long getStartInMillis() {
+            return startInMillis;
+        }
+
+        public int getNumberOfSlots() {
+            return states.length;
+        }
+
+        /**
+         * @return one of {@link TimeControlPlanner#FREE}, {@link TimeControlPlanner#NO_CHARGING} and
+         *         {@link TimeControlPlanner#NO_DISCHARGING}
+         */
+        public byte getState(int slot) {
+            return states[slot];
+        }
+
+        /**
+         * @return the state of the slot containing {@code timeInMillis}, or {@link TimeControlPlanner#FREE} outside
+         *         of the plan
+         */
+        public byte getStateAt(long timeInMillis) {
+            final long slot = Math.floorDiv(timeInMillis - startInMillis, SLOT_LENGTH_IN_MILLIS);
+            return slot < 0 || slot >= states.length ? FREE : states[(int) slot];
+        }
+
+        /**
+         * @return the savings the plan achieves if the forecast it was computed from comes true
+         */
+        public double getExpectedSavingsInCents() {
+            return expectedSavingsInCents;
+        }
+
+        /**
+         * Maps the plan to the inverter's weekly settings, one string of {@value TimeControlPlanner#SLOTS_PER_DAY}
+         * digits per day of the week, keyed by property name from Monday to Sunday. Slots are placed by their local
+         * time in {@code zone}. Digits not covered by the plan are {@code 0}; if the plan is longer than a week, the
+         * earliest slot for each digit wins, as that is the one the inverter applies next.
+         */
+        public Map<String, String> toTimeControlConf(ZoneId zone) {
+            final char[][] digits = new char[WEEKDAYS.length][SLOTS_PER_DAY];
+            final boolean[][] assigned = new boolean[WEEKDAYS.length][SLOTS_PER_DAY];
+            for (final char[] day : digits) {
+                Arrays.fill(day, (char) ('0' + FREE));
+            }
+            for (int slot = 0; slot < states.length; slot++) {
+                final ZonedDateTime slotStart = Instant.ofEpochMilli(startInMillis + slot * SLOT_LENGTH_IN_MILLIS).atZone(zone);
+                final int day = slotStart.getDayOfWeek().getValue() - 1;
+                final int index = (int) ((slotStart.getHour() * 60 + slotStart.getMinute()) * 60000l / SLOT_LENGTH_IN_MILLIS);
+                if (!assigned[day][index]) {
+                    digits[day][index] = (char) ('0' + states[slot]);
+                    assigned[day][index] = true;
+                }
+            }
+            final Map<String, String> result = new LinkedHashMap<>();
+            for (int day = 0; day < WEEKDAYS.length; day++) {
+                result.put(PROPERTY_NAME_PREFIX + WEEKDAYS[day], new String(digits[day]));
+            }
+            return result;
+        }
+
+        /**
+         * Writes {@link #toTimeControlConf(ZoneId)} as a JSON object, as {@code kostal-RESTAPI -ReadBatteryTimeControl}
+         * prints it and {@code kostal-RESTAPI -SetBatteryTimeControlJson} accepts it
+         */
+        public void writeJson(Writer out, ZoneId zone) throws IOException {
+            out.write("{");
+            String separator = "";
+            for (final Map.Entry<String, String> e : toTimeControlConf(zone).entrySet()) {
+                out.write(separator + "\"" + e.getKey() + "\": \"" + e.getValue() + "\"");
+                separator = ", ";
+            }
+            out.write("}\n");
+            out.flush();
+        }
+    }
+
+    /**
+     * The readings of one week, at twelve bytes per reading, with the first reading of the next week appended to end
+     * the week's last step. A week is filled by reading through it: created when the source is positioned at the
+     * week's first reading, it delivers and records the readings of the source up to and including the first reading
+     * of the next week, at which it leaves the source positioned. Readings earlier than the one recorded before are
+     * skipped and counted, so that the slots of a week are visited in ascending order.
+     */
+    private static class Week extends ForwardingReadingSource {
+        private final long startInMillis;
+
+        private final long endInMillis;
+
+        private final int numberOfSlots;
+
+        private final int initialSOCPercent;
+
+        private int[] offsetsInMillis = new int[1024];
+
+        private float[] pvProductionInWatts = new float[1024];
+
+        private float[] homeOwnConsumptionInWatts = new float[1024];
+
+        private int size;
+
+        private boolean started;
+
+        private boolean ended;
+
+        private boolean sourceExhausted;
+
+        private long outOfOrderReadings;
+
+        /**
+         * @param source
+         *            positioned at the first reading of the week, which starts on Monday midnight in {@code zone}
+         */
+        Week(ReadingSource source, ZoneId zone) {
+            super(source);
+            final ZonedDateTime weekStart = Instant.ofEpochMilli(source.getTimeInMillis()).atZone(zone)
+                    .with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).truncatedTo(ChronoUnit.DAYS);
+            this.startInMillis = weekStart.toInstant().toEpochMilli();
+            this.endInMillis = weekStart.plusWeeks(1).toInstant().toEpochMilli();
+            this.numberOfSlots = Math.toIntExact((endInMillis - startInMillis) / SLOT_LENGTH_IN_MILLIS);
+            this.initialSOCPercent = source.getBatterySOC();
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (!started) {
+                started = true; // the source is positioned at the first reading already
+            } else if (ended) {
+                return false;
+            } else {
+                while (true) {
+                    if (!source.next()) {
+                        ended = true;
+                        sourceExhausted = true;
+                        return false;
+                    }
+                    if (source.getTimeInMillis() >= startInMillis + offsetsInMillis[size - 1]) {
+                        break;
+                    }
+                    outOfOrderReadings++;
+                }
+                if (source.getTimeInMillis() >= endInMillis) {
+                    ended = true;
+                    if (source.getTimeInMillis() - startInMillis > Integer.MAX_VALUE) {
+                        return false; // too far away to end the last step
+                    }
+                }
+            }
+            add(source.getTimeInMillis(), source.getPvProductionInWatts(), source.getHomeOwnConsumptionInWatts());
+            return true;
+        }
+
+        /**
+         * @return whether, after this week has been read through, the source is positioned at the first reading of
+         *         a later week
+         */
+        boolean hasNextWeek() {
+            return ended && !sourceExhausted;
+        }
+
+        long getOutOfOrderReadings() {
+            return outOfOrderReadings;
+        }
+
+        void add(long timeInMillis, double pvProductionInWatts, double homeOwnConsumptionInWatts) {
+            if (size == offsetsInMillis.length) {
+                offsetsInMillis = Arrays.copyOf(offsetsInMillis, 2 * size);
+                this.pvProductionInWatts = Arrays.copyOf(this.pvProductionInWatts, 2 * size);
+                this.homeOwnConsumptionInWatts = Arrays.copyOf(this.homeOwnConsumptionInWatts, 2 * size);
+            }
+            offsetsInMillis[size] = Math.toIntExact(timeInMillis - startInMillis);
+            this.pvProductionInWatts[size] = (float) pvProductionInWatts;
+            this.homeOwnConsumptionInWatts[size] = (float) homeOwnConsumptionInWatts;
+            size++;
+        }
+
+        /**
+         * @return the time-weighted average PV production (index 0) and home own consumption (index 1) per slot of
+         *         this week; slots without readings get zeroes
+         */
+        double[][] getSlotAverages() {
+            final double[][] result = new double[2][numberOfSlots];
+            final double[] seconds = new double[numberOfSlots];
+            for (int i = 0; i + 1 < size; i++) {
+                long time = offsetsInMillis[i];
+                final long endInMillis = Math.min(offsetsInMillis[i + 1], numberOfSlots * SLOT_LENGTH_IN_MILLIS);
+                while (time < endInMillis) {
+                    final int slot = (int) (time / SLOT_LENGTH_IN_MILLIS);
+                    final long partEndInMillis = Math.min(endInMillis, (slot + 1) * SLOT_LENGTH_IN_MILLIS);
+                    final double partSeconds = (partEndInMillis - time) / 1000.0;
+                    result[0][slot] += pvProductionInWatts[i] * partSeconds;
+                    result[1][slot] += homeOwnConsumptionInWatts[i] * partSeconds;
+                    seconds[slot] += partSeconds;
+                    time = partEndInMillis;
+                }
+            }
+            for (int slot = 0; slot < numberOfSlots; slot++) {
+                if (seconds[slot] > 0) {
+                    result[0][slot] /= seconds[slot];
+                    result[1][slot] /= seconds[slot];
+                }
+            }
+            return result;
+        }
+
+        ReadingSource readings() {
+            return new ReadingSource() {
+                private int index = -1;
+
+                @Override
+                public boolean next() {
+                    return ++index < size;
+                }
+
+                @Override
+                public long getTimeInMillis() {
+                    return startInMillis + offsetsInMillis[index];
+                }
+
+                @Override
+                public double getHomeOwnConsumptionInWatts() {
+                    return homeOwnConsumptionInWatts[index];
+                }
+
+                @Override
+                public double getPvProductionInWatts() {
+                    return pvProductionInWatts[index];
+                }
+
+                @Override
+                public double getTotalActivePowerInWatts() {
+                    return 0;
+                }
+
+                @Override
+                public int getBatterySOC() {
+                    return initialSOCPercent;
+                }
+
+                @Override
+                public double getBatteryChargeInWatts() {
+                    return 0;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+    /**
+     * Average PV production and home own consumption per slot, starting at a slot boundary
+     */
+    static class Forecast {
+        private final long startInMillis;
+
+        private final double[] pvProductionInWatts;
+
+        private final double[] homeOwnConsumptionInWatts;
+
+        Forecast(long startInMillis, double[] pvProductionInWatts, double[] homeOwnConsumptionInWatts) {
+            this.startInMillis = startInMillis;
+            this.pvProductionInWatts = pvProductionInWatts;
+            this.homeOwnConsumptionInWatts = homeOwnConsumptionInWatts;
+        }
+
+        long getStartInMillis() {
+            return startInMillis;
+        }
+
+        double[] getPvProductionInWatts() {
+            return pvProductionInWatts;
+        }
+
+        double[] getHomeOwnConsumptionInWatts() {
+            return homeOwnConsumptionInWatts;
+        }
+    }
+
+    /**
+     * @param savingsFunctionInCentsPerWattHourDischarged
+     *            must be safe for concurrent use if {@link #plan} is to be called concurrently
+     * @param numberOfSOCSteps
+     *            the number of equal steps between an empty and a full battery at which the dynamic program evaluates
+     *            the savings achievable
+     */
+    public TimeControlPlanner(int minSOCPercent, double maxChargePowerInWatts, double reducedChargePowerInWatts,
+            double socPercentWhereReducedChargePowerStarts, double capacityInWattHours,
+            SavingsPerDischarge savingsFunctionInCentsPerWattHourDischarged, int numberOfSOCSteps) {
+        if (numberOfSOCSteps < 1) {
+            throw new IllegalArgumentException("Need at least one SOC step but got " + numberOfSOCSteps);
+        }
+        this.minSOCPercent = minSOCPercent;
+        this.maxChargePowerInWatts = maxChargePowerInWatts;
+        this.reducedChargePowerInWatts = reducedChargePowerInWatts;
+        this.socPercentWhereReducedChargePowerStarts = socPercentWhereReducedChargePowerStarts;
+        this.capacityInWattHours = capacityInWattHours;
+        this.savingsFunctionInCentsPerWattHourDischarged = savingsFunctionInCentsPerWattHourDischarged;
+        this.numberOfSOCSteps = numberOfSOCSteps;
+    }
+
+    private Battery createBattery() {
+        return new Battery(minSOCPercent, maxChargePowerInWatts, reducedChargePowerInWatts,
+                socPercentWhereReducedChargePowerStarts, capacityInWattHours, /* energyContained */ 0,
+                savingsFunctionInCentsPerWattHourDischarged);
+    }
+
+    /**
+     * Computes the plan maximizing the savings for the forecast given
+     *
+     * @param startInMillis
+     *            the start of the first slot; must be a multiple of {@link #SLOT_LENGTH_IN_MILLIS} since the epoch
+     * @param pvProductionInWatts
+     *            the forecast average PV production per slot
+     * @param homeOwnConsumptionInWatts
+     *            the forecast average home own consumption per slot
+     * @param initialEnergyInWattHours
+     *            the energy contained in the battery at {@code startInMillis}
+     */
+    public Plan plan(long startInMillis, double[] pvProductionInWatts, double[] homeOwnConsumptionInWatts,
+            double initialEnergyInWattHours) {
+        if (Math.floorMod(startInMillis, SLOT_LENGTH_IN_MILLIS) != 0) {
+            throw new IllegalArgumentException("Plan start " + Instant.ofEpochMilli(startInMillis) + " is not at a slot boundary");
+        }
+        if (pvProductionInWatts.length != homeOwnConsumptionInWatts.length) {
+            throw new IllegalArgumentException("Need the same number of PV production and home own consumption values");
+        }
+        final int numberOfSlots = pvProductionInWatts.length;
+        final int stride = numberOfSOCSteps + 1;
+        final double stepInWattHours = capacityInWattHours / numberOfSOCSteps;
+        // values[slot * stride + k]: the best savings achievable from slot on, starting with k steps of energy
+        final double[] values = new double[(numberOfSlots + 1) * stride];
+        final Battery battery = createBattery();
+        for (int slot = numberOfSlots - 1; slot >= 0; slot--) {
+            final int row = slot * stride;
+            final double powerInWatts = pvProductionInWatts[slot] - homeOwnConsumptionInWatts[slot];
+            final long whenInMillis = startInMillis + slot * SLOT_LENGTH_IN_MILLIS;
+            for (int k = 0; k < stride; k++) {
+                final double idle = values[row + stride + k];
+                if (powerInWatts == 0) {
+                    values[row + k] = idle;
+                } else {
+                    battery.setEnergyContainedInWattHours(k * stepInWattHours);
+                    battery.setSavingsInCents(0);
+                    battery.charge(powerInWatts, whenInMillis, SLOT_LENGTH_IN_MILLIS);
+                    values[row + k] = Math.max(idle, battery.getSavingsInCents()
+                            + interpolate(values, row + stride, stepInWattHours, battery.getEnergyContainedInWattHours()));
+                }
+            }
+        }
+        final byte[] states = new byte[numberOfSlots];
+        double energyInWattHours = initialEnergyInWattHours;
+        double savingsInCents = 0;
+        for (int slot = 0; slot < numberOfSlots; slot++) {
+            final double powerInWatts = pvProductionInWatts[slot] - homeOwnConsumptionInWatts[slot];
+            if (powerInWatts != 0) {
+                final int nextRow = (slot + 1) * stride;
+                battery.setEnergyContainedInWattHours(energyInWattHours);
+                battery.setSavingsInCents(0);
+                battery.charge(powerInWatts, startInMillis + slot * SLOT_LENGTH_IN_MILLIS, SLOT_LENGTH_IN_MILLIS);
+                final double act = battery.getSavingsInCents()
+                        + interpolate(values, nextRow, stepInWattHours, battery.getEnergyContainedInWattHours());
+                final double idle = interpolate(values, nextRow, stepInWattHours, energyInWattHours);
+                if (act >= idle - TIE_TOLERANCE_IN_CENTS) {
+                    energyInWattHours = battery.getEnergyContainedInWattHours();
+                    savingsInCents += battery.getSavingsInCents();
+                } else {
+                    states[slot] = powerInWatts > 0 ? NO_CHARGING : NO_DISCHARGING;
+                }
+            }
+        }
+        return new Plan(startInMillis, states, savingsInCents);
+    }
+
+    /**
+     * Linearly interpolates the values of one slot, given at multiples of {@code stepInWattHours} starting at
+     * {@code row}, at {@code energyInWattHours}; energies outside of the battery's range are clamped to it.
+     */
+    private double interpolate(double[] values, int row, double stepInWattHours, double energyInWattHours) {
+        final double x = energyInWattHours / stepInWattHours;
+        if (x <= 0) {
+            return values[row];
+        }
+        if (x >= numberOfSOCSteps) {
+            return values[row + numberOfSOCSteps];
+        }
+        final int k = (int) x;
+        final double fraction = x - k;
+        return values[row + k] + fraction * (values[row + k + 1] - values[row + k]);
+    }
+
+    /**
+     * Replays the {@code readings} through the {@code battery} like
+     * {@link AggregateBatteryDischarge#aggregateBatteryDischarge(Battery, ReadingSource)}, but honors the
+     * {@code plan}: a step starting in a {@link #NO_CHARGING} slot doesn't charge, and one starting in a
+     * {@link #NO_DISCHARGING} slot doesn't discharge. Pass {@code null} as {@code plan} to replay without
+     * restrictions.
+     */
+    public static Battery replay(Battery battery, ReadingSource readings, Plan plan) throws IOException {
+        boolean initialized = false;
+        long lastTimestampInMillis = 0;
+        double lastPowerAvailableForChargingInWatts = 0;
+        while (readings.next()) {
+            if (!initialized) {
+                battery.setSOCPercent(readings.getBatterySOC());
+                initialized = true;
+            } else {
+                final byte state = plan == null ? FREE : plan.getStateAt(lastTimestampInMillis);
+                if (!(state == NO_CHARGING && lastPowerAvailableForChargingInWatts > 0
+                        || state == NO_DISCHARGING && lastPowerAvailableForChargingInWatts < 0)) {
+                    battery.charge(lastPowerAvailableForChargingInWatts, lastTimestampInMillis,
+                            readings.getTimeInMillis() - lastTimestampInMillis);
+                }
+            }
+            lastTimestampInMillis = readings.getTimeInMillis();
+            lastPowerAvailableForChargingInWatts = readings.getPvProductionInWatts() - readings.getHomeOwnConsumptionInWatts();
+        }
+        return battery;
+    }
+
+    /**
+     * Plans and replays each week of the {@code readings} and prints, per week, the savings without and with the plan,
+     * and the savings the plan expected, as CSV. With {@code persistence}, each week is planned from the readings of
+     * the week before, and the first week isn't restricted; otherwise each week is planned from its own readings,
+     * which bounds what a perfect forecast could achieve. The readings are read one week at a time, and only as many
+     * weeks as there are processors to plan and replay them in parallel are held in memory at once.
+     *
+     * @return the number of readings skipped because they were earlier than the reading before them
+     */
+    public long backtest(ReadingSource readings, ZoneId zone, boolean persistence, PrintStream out) throws IOException {
+        final int weeksInParallel = Runtime.getRuntime().availableProcessors();
+        final List<Week> weeks = new ArrayList<>(weeksInParallel);
+        double[][] previousSlotAverages = null;
+        double totalBaselineInCents = 0;
+        double totalPlannedInCents = 0;
+        long outOfOrderReadings = 0;
+        out.println("weekStart,baselineSavingsInEUR,plannedSavingsInEUR,expectedSavingsInEUR,gainInEUR,planningMillis");
+        boolean more = readings.next();
+        while (more) {
+            weeks.clear();
+            while (more && weeks.size() < weeksInParallel) {
+                final Week week = new Week(readings, zone);
+                while (week.next()) {
+                    // recording the week's readings
+                }
+                weeks.add(week);
+                outOfOrderReadings += week.getOutOfOrderReadings();
+                more = week.hasNextWeek();
+            }
+            final double[][][] slotAverages = new double[weeks.size()][][];
+            IntStream.range(0, weeks.size()).parallel().forEach(w -> slotAverages[w] = weeks.get(w).getSlotAverages());
+            final double[][] slotAveragesBefore = previousSlotAverages;
+            final double[] baselineSavingsInCents = new double[weeks.size()];
+            final double[] plannedSavingsInCents = new double[weeks.size()];
+            final double[] expectedSavingsInCents = new double[weeks.size()];
+            final double[] planningMillis = new double[weeks.size()];
+            IntStream.range(0, weeks.size()).parallel().forEach(w -> {
+                final Week week = weeks.get(w);
+                try {
+                    baselineSavingsInCents[w] = replay(createBattery(), week.readings(), null).getSavingsInCents();
+                    final double[][] forecastAverages = persistence ? (w == 0 ? slotAveragesBefore : slotAverages[w - 1]) : slotAverages[w];
+                    if (forecastAverages == null) {
+                        plannedSavingsInCents[w] = baselineSavingsInCents[w];
+                        expectedSavingsInCents[w] = Double.NaN;
+                    } else {
+                        final double[][] forecast = persistence ? resize(forecastAverages, week.numberOfSlots) : forecastAverages;
+                        final long start = System.nanoTime();
+                        final Plan plan = plan(week.startInMillis, forecast[0], forecast[1],
+                                week.initialSOCPercent * capacityInWattHours / 100.0);
+                        planningMillis[w] = (System.nanoTime() - start) / 1e6;
+                        plannedSavingsInCents[w] = replay(createBattery(), week.readings(), plan).getSavingsInCents();
+                        expectedSavingsInCents[w] = plan.getExpectedSavingsInCents();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e); // not thrown by in-memory readings
+                }
+            });
+            for (int w = 0; w < weeks.size(); w++) {
+                out.println(String.format(Locale.US, "%s,%1.2f,%1.2f,%1.2f,%1.2f,%1.3f",
+                        Instant.ofEpochMilli(weeks.get(w).startInMillis).atZone(zone).toLocalDate(),
+                        baselineSavingsInCents[w] / 100.0, plannedSavingsInCents[w] / 100.0, expectedSavingsInCents[w] / 100.0,
+                        (plannedSavingsInCents[w] - baselineSavingsInCents[w]) / 100.0, planningMillis[w]));
+                totalBaselineInCents += baselineSavingsInCents[w];
+                totalPlannedInCents += plannedSavingsInCents[w];
+            }
+            previousSlotAverages = slotAverages[weeks.size() - 1];
+        }
+        out.println(String.format(Locale.US, "total,%1.2f,%1.2f,,%1.2f,", totalBaselineInCents / 100.0,
+                totalPlannedInCents / 100.0, (totalPlannedInCents - totalBaselineInCents) / 100.0));
+        return outOfOrderReadings;
+    }
+
+    /**
+     * Adapts slot averages of one week to a week with a different number of slots, as happens when daylight saving
+     * time starts or ends, by repeating or dropping the last slots
+     */
+    private static double[][] resize(double[][] slotAverages, int numberOfSlots) {
+        final double[][] result = new double[2][];
+        for (int i = 0; i < 2; i++) {
+            result[i] = Arrays.copyOf(slotAverages[i], numberOfSlots);
+            for (int slot = slotAverages[i].length; slot < numberOfSlots; slot++) {
+                result[i][slot] = slotAverages[i][slotAverages[i].length - 1];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads a forecast with one line per forecast interval, consisting of the start time point, either as ISO-8601
+     * instant, UTC date (yyyy-mm-dd) or in seconds since the epoch, followed by whitespace, the PV production and the
+     * home own consumption in Watts. Empty lines and lines starting with {@code #} are ignored. Values are averaged
+     * per slot, starting with the slot of the first line; slots without a line get zeroes.
+     */
+    static Forecast loadForecast(BufferedReader reader) throws IOException {
+        long startInMillis = Long.MIN_VALUE;
+        double[] pv = new double[SLOTS_PER_DAY * 7];
+        double[] home = new double[SLOTS_PER_DAY * 7];
+        int[] counts = new int[SLOTS_PER_DAY * 7];
+        int numberOfSlots = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final String trimmed = line.trim();
+            if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                final String[] fields = trimmed.split("[ \t]+");
+                if (fields.length < 3) {
+                    throw new IOException("Expected time point, PV production and home own consumption in line \"" + line + "\"");
+                }
+                final long timeInMillis = fields[0].matches("-?[0-9]+") ? Long.parseLong(fields[0]) * 1000l
+                        : AggregateBatteryDischarge.parseTimeInMillis(fields[0]);
+                if (startInMillis == Long.MIN_VALUE) {
+                    startInMillis = Math.floorDiv(timeInMillis, SLOT_LENGTH_IN_MILLIS) * SLOT_LENGTH_IN_MILLIS;
+                }
+                final long slot = Math.floorDiv(timeInMillis - startInMillis, SLOT_LENGTH_IN_MILLIS);
+                if (slot < 0) {
+                    throw new IOException("Forecast lines must be in ascending time order; found \"" + line + "\"");
+                }
+                if (slot >= pv.length) {
+                    final int newCapacity = Math.max(2 * pv.length, Math.toIntExact(slot) + 1);
+                    pv = Arrays.copyOf(pv, newCapacity);
+                    home = Arrays.copyOf(home, newCapacity);
+                    counts = Arrays.copyOf(counts, newCapacity);
+                }
+                pv[(int) slot] += Double.parseDouble(fields[1]);
+                home[(int) slot] += Double.parseDouble(fields[2]);
+                counts[(int) slot]++;
+                numberOfSlots = Math.max(numberOfSlots, (int) slot + 1);
+            }
+        }
+        if (numberOfSlots == 0) {
+            throw new IOException("Forecast is empty");
+        }
+        for (int slot = 0; slot < numberOfSlots; slot++) {
+            if (counts[slot] > 0) {
+                pv[slot] /= counts[slot];
+                home[slot] /= counts[slot];
+            }
+        }
+        return new Forecast(startInMillis, Arrays.copyOf(pv, numberOfSlots), Arrays.copyOf(home, numberOfSlots));
+    }
+
+    public static void main(String[] args) throws IOException {
+        final Option minSOCPercent = Option.builder("m")
+                .longOpt("minSOCPercent")
+                .hasArg()
+                .argName("minSOCPercent")
+                .type(Number.class)
+                .desc("minimum state of charge (SOC) in percent; defaults to "+AggregateBatteryDischarge.DEFAULT_MIN_SOC_PERCENT)
+                .build();
+        final Option maxChargePowerInWatts = Option.builder("x")
+                .longOpt("maxChargePowerInWatts")
+                .hasArg()
+                .argName("maxChargePowerInWatts")
+                .type(Number.class)
+                .desc("maximum charge power in Watts; defaults to "+AggregateBatteryDischarge.DEFAULT_MAX_CHARGE_POWER_IN_WATTS)
+                .build();
+        final Option capacityInWattHours = Option.builder("c")
+                .longOpt("capacityInWattHours")
+                .hasArg()
+                .argName("capacityInWattHours")
+                .type(Number.class)
+                .desc("capacity in Watt-Hours; defaults to "+AggregateBatteryDischarge.DEFAULT_CAPACITY_IN_WATT_HOURS)
+                .build();
+        final Option reducedChargePowerInWatts = Option.builder("r")
+                .longOpt("reducedChargePowerInWatts")
+                .hasArg()
+                .argName("reducedChargePowerInWatts")
+                .type(Number.class)
+                .desc("reduced charge power in Watts; defaults to "+AggregateBatteryDischarge.DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS)
+                .build();
+        final Option socPercentWhereReducedChargePowerStarts = Option.builder("s")
+                .longOpt("socPercentWhereReducedChargePowerStarts")
+                .hasArg()
+                .argName("socPercentWhereReducedChargePowerStarts")
+                .type(Number.class)
+                .desc("state of charge (SOC, in percent) where reduced charge power starts; defaults to "+AggregateBatteryDischarge.DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS)
+                .build();
+        final Option forecastFile = Option.builder()
+                .longOpt("forecast")
+                .hasArg()
+                .argName("forecastFile")
+                .desc("file with one line per forecast interval, giving start time, PV production and home own consumption in Watts; use - for stdin")
+                .build();
+        final Option socPercent = Option.builder()
+                .longOpt("soc")
+                .hasArg()
+                .argName("socPercent")
+                .type(Number.class)
+                .desc("the battery's state of charge (SOC) in percent at the start of the forecast; required with --forecast")
+                .build();
+        final Option inputFile = Option.builder("f")
+                .longOpt("file")
+                .hasArg()
+                .argName("inputFile")
+                .desc("input file from which to read inverter states for a backtest; use - for stdin")
+                .build();
+        final Option binaryFile = Option.builder("b")
+                .longOpt("binaryFile")
+                .hasArg()
+                .argName("binaryFile")
+                .desc("binary history file as written by "+BinaryHistoryWriter.class.getName()+"; used instead of --file")
+                .build();
+        final Option persistence = Option.builder()
+                .longOpt("persistence")
+                .desc("in a backtest, plan each week from the readings of the week before instead of its own")
+                .build();
+        final Option socSteps = Option.builder()
+                .longOpt("socSteps")
+                .hasArg()
+                .argName("socSteps")
+                .type(Number.class)
+                .desc("number of steps between empty and full battery for the planner; defaults to "+DEFAULT_NUMBER_OF_SOC_STEPS)
+                .build();
+        final Option zone = Option.builder()
+                .longOpt("zone")
+                .hasArg()
+                .argName("zoneId")
+                .desc("time zone of the inverter's time control settings and of the backtest's weeks; defaults to "+DEFAULT_ZONE)
+                .build();
+        final Option tariffFile = Option.builder()
+                .longOpt("tariffFile")
+                .hasArg()
+                .argName("tariffFile")
+                .desc("file with one line per price interval, giving start time and price in cents per kWh; defaults to the built-in tariffs")
+                .build();
+        final Option compensationFile = Option.builder()
+                .longOpt("compensationFile")
+                .hasArg()
+                .argName("compensationFile")
+                .desc("file with one line per compensation interval, giving start time and compensation in cents per kWh; defaults to the built-in compensation")
+                .build();
+        final Option helpOption = Option.builder("h")
+                .longOpt("help")
+                .desc("display help message")
+                .build();
+        final Options options = new Options()
+                .addOption(minSOCPercent)
+                .addOption(maxChargePowerInWatts)
+                .addOption(capacityInWattHours)
+                .addOption(reducedChargePowerInWatts)
+                .addOption(socPercentWhereReducedChargePowerStarts)
+                .addOption(forecastFile)
+                .addOption(socPercent)
+                .addOption(inputFile)
+                .addOption(binaryFile)
+                .addOption(persistence)
+                .addOption(socSteps)
+                .addOption(zone)
+                .addOption(tariffFile)
+                .addOption(compensationFile)
+                .addOption(helpOption);
+        final CommandLineParser commandLineParser = new DefaultParser();
+        try {
+            final CommandLine commandLine = commandLineParser.parse(options, args);
+            if (commandLine.hasOption(helpOption)) {
+                new HelpFormatter().printHelp(TimeControlPlanner.class.getName(), options);
+                return;
+            }
+            final boolean backtest = commandLine.hasOption(inputFile) || commandLine.hasOption(binaryFile);
+            if (backtest == commandLine.hasOption(forecastFile)) {
+                throw new IllegalArgumentException("Need either a --forecast to plan from, or readings from --file or --binaryFile to backtest");
+            }
+            final double capacity = commandLine.hasOption(capacityInWattHours) ? ((Number) commandLine.getParsedOptionValue(capacityInWattHours)).doubleValue() : AggregateBatteryDischarge.DEFAULT_CAPACITY_IN_WATT_HOURS;
+            final TimeControlPlanner planner = new TimeControlPlanner(
+                    commandLine.hasOption(minSOCPercent) ? ((Number) commandLine.getParsedOptionValue(minSOCPercent)).intValue() : AggregateBatteryDischarge.DEFAULT_MIN_SOC_PERCENT,
+                    commandLine.hasOption(maxChargePowerInWatts) ? ((Number) commandLine.getParsedOptionValue(maxChargePowerInWatts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_MAX_CHARGE_POWER_IN_WATTS,
+                    commandLine.hasOption(reducedChargePowerInWatts) ? ((Number) commandLine.getParsedOptionValue(reducedChargePowerInWatts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_REDUCED_CHARGE_POWER_IN_WATTS,
+                    commandLine.hasOption(socPercentWhereReducedChargePowerStarts) ? ((Number) commandLine.getParsedOptionValue(socPercentWhereReducedChargePowerStarts)).doubleValue() : AggregateBatteryDischarge.DEFAULT_SOC_PERCENT_WHERE_REDUCED_CHARGE_POWER_STARTS,
+                    capacity,
+                    AggregateBatteryDischarge.createSavingsFunction(commandLine.getOptionValue(tariffFile),
+                            commandLine.getOptionValue(compensationFile), /* forConcurrentUse */ true),
+                    commandLine.hasOption(socSteps) ? ((Number) commandLine.getParsedOptionValue(socSteps)).intValue() : DEFAULT_NUMBER_OF_SOC_STEPS);
+            final ZoneId zoneId = ZoneId.of(commandLine.getOptionValue(zone, DEFAULT_ZONE));
+            if (backtest) {
+                try (final ReadingSource readings = commandLine.hasOption(binaryFile)
+                        ? new BinaryHistoryReader(Paths.get(commandLine.getOptionValue(binaryFile)))
+                        : new ReadingParser("-".equals(commandLine.getOptionValue(inputFile)) ? System.in : Files.newInputStream(Paths.get(commandLine.getOptionValue(inputFile))))) {
+                    final long outOfOrderReadings = planner.backtest(readings, zoneId, commandLine.hasOption(persistence), System.out);
+                    if (outOfOrderReadings > 0) {
+                        System.err.println("Skipped " + outOfOrderReadings + " readings earlier than the reading before them");
+                    }
+                }
+            } else {
+                if (!commandLine.hasOption(socPercent)) {
+                    throw new IllegalArgumentException("Planning from a --forecast needs the current --soc");
+                }
+                final Forecast forecast;
+                try (final BufferedReader reader = "-".equals(commandLine.getOptionValue(forecastFile))
+                        ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                        : Files.newBufferedReader(Paths.get(commandLine.getOptionValue(forecastFile)), StandardCharsets.UTF_8)) {
+                    forecast = loadForecast(reader);
+                }
+                final long start = System.nanoTime();
+                final Plan plan = planner.plan(forecast.getStartInMillis(), forecast.getPvProductionInWatts(), forecast.getHomeOwnConsumptionInWatts(),
+                        ((Number) commandLine.getParsedOptionValue(socPercent)).doubleValue() * capacity / 100.0);
+                System.err.println(String.format(Locale.US, "Planned %d slots in %1.1fms; expected savings %1.2f EUR",
+                        plan.getNumberOfSlots(), (System.nanoTime() - start) / 1e6, plan.getExpectedSavingsInCents() / 100.0));
+                plan.writeJson(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), zoneId);
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package de.axeluhl.kostal;
+
+import java.io.IOException;
+
+/**
+ * Merges inverter readings and {@link WallboxReadingSource wallbox readings}, such as the two halves of a
+ * {@link CarChargeBehaviorParser}, each in ascending time order but taken
+ * at independent time points, such as every five seconds and every minute, into a single sequence. There is one
+ * reading per distinct time stamp of either series, and at each of them, the last reading of each series at or before
+ * that time stamp is carried forward. The join looks ahead by exactly one reading per series, so it runs in one pass
+ * and in constant memory regardless of the length of the histories.
+ * <p>
+ *
+ * The join starts with the first inverter reading and ends after the last one; wallbox readings before the first
+ * inverter reading only initialize the carried wallbox state. A wallbox reading older than
+ * {@code maxWallboxAgeInMillis}, e.g., because the wallbox poller was down, is no longer carried forward: until the
+ * next wallbox reading, no vehicle is connected and the charge power is zero.
+ * <p>
+ *
+ * As a {@link ReadingSource}, the join delivers the carried inverter values, so it can be replayed by anything that
+ * replays inverter readings. Powers are step-wise constant between readings, but the additional steps at wallbox time
+ * stamps split inverter steps, which changes the result of replays that truncate step durations to full seconds, such
+ * as {@link Battery#charge(double, long, long)}, unless they carry the truncated remainder from one step to the next
+ * until the next {@link #isInverterReading() inverter reading}, as
+ * {@link CarChargingSimulation#replay(WallboxJoin, CarChargingSimulation...)} does.
+ */
+public class WallboxJoin implements ReadingSource {
+    /**
+     * Five times the wallbox polling interval of one minute
+     */
+    public static final long DEFAULT_MAX_WALLBOX_AGE_IN_MILLIS = 5 * 60 * 1000;
+
+    private final ReadingSource inverter;
+
+    private final WallboxReadingSource wallbox;
+
+    private final long maxWallboxAgeInMillis;
+
+    /**
+     * Whether {@link #inverter}/{@link #wallbox} point to a reading not consumed yet, i.e., the look-ahead
+     */
+    private boolean inverterPending;
+
+    private boolean wallboxPending;
+
+    private boolean inverterStarted;
+
+    private boolean started;
+
+    private boolean inverterReading;
+
+    private long timeInMillis;
+
+    private double homeOwnConsumptionInWatts;
+
+    private double pvProductionInWatts;
+
+    private double totalActivePowerInWatts;
+
+    private int batterySOC;
+
+    private double batteryChargeInWatts;
+
+    private long wallboxTimeInMillis = Long.MIN_VALUE;
+
+    private double wallboxChargePowerInWatts;
+
+    private boolean wallboxVehicleConnected;
+
+    public WallboxJoin(ReadingSource inverter, WallboxReadingSource wallbox) {
+        this(inverter, wallbox, DEFAULT_MAX_WALLBOX_AGE_IN_MILLIS);
+    }
+
+    public WallboxJoin(ReadingSource inverter, WallboxReadingSource wallbox, long maxWallboxAgeInMillis) {
+        this.inverter = inverter;
+        this.wallbox = wallbox;
+        this.maxWallboxAgeInMillis = maxWallboxAgeInMillis;
+    }
+
+    private void takeInverterReading() {
+        timeInMillis = inverter.getTimeInMillis();
+        homeOwnConsumptionInWatts = inverter.getHomeOwnConsumptionInWatts();
+        pvProductionInWatts = inverter.getPvProductionInWatts();
+        totalActivePowerInWatts = inverter.getTotalActivePowerInWatts();
+        batterySOC = inverter.getBatterySOC();
+        batteryChargeInWatts = inverter.getBatteryChargeInWatts();
+        inverterPending = false;
+        inverterStarted = true;
+        inverterReading = true;
+    }
+
+    private void takeWallboxReading() {
+        wallboxTimeInMillis = wallbox.getTimeInMillis();
+        wallboxChargePowerInWatts = wallbox.getChargePowerInWatts();
+        wallboxVehicleConnected = wallbox.isVehicleConnected();
+        wallboxPending = false;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (!started) {
+            started = true;
+            wallboxPending = wallbox.next();
+        }
+        if (!inverterPending) {
+            inverterPending = inverter.next();
+        }
+        if (!inverterPending) {
+            return false; // nothing left to replay the wallbox readings with
+        }
+        if (!inverterStarted) {
+            while (wallboxPending && wallbox.getTimeInMillis() <= inverter.getTimeInMillis()) {
+                takeWallboxReading();
+                wallboxPending = wallbox.next();
+            }
+            takeInverterReading();
+            return true;
+        }
+        if (wallboxPending && wallbox.getTimeInMillis() <= inverter.getTimeInMillis()) {
+            final long wallboxNextTimeInMillis = wallbox.getTimeInMillis();
+            takeWallboxReading();
+            wallboxPending = wallbox.next();
+            if (wallboxNextTimeInMillis == inverter.getTimeInMillis()) {
+                takeInverterReading();
+            } else {
+                timeInMillis = wallboxNextTimeInMillis;
+                inverterReading = false;
+            }
+        } else {
+            takeInverterReading();
+        }
+        return true;
+    }
+
+    @Override
+    public long getTimeInMillis() {
+        return timeInMillis;
+    }
+
+    @Override
+    public double getHomeOwnConsumptionInWatts() {
+        return homeOwnConsumptionInWatts;
+    }
+
+    @Override
+    public double getPvProductionInWatts() {
+        return pvProductionInWatts;
+    }
+
+    @Override
+    public double getTotalActivePowerInWatts() {
+        return totalActivePowerInWatts;
+    }
+
+    @Override
+    public int getBatterySOC() {
+        return batterySOC;
+    }
+
+    @Override
+    public double getBatteryChargeInWatts() {
+        return batteryChargeInWatts;
+    }
+
+    /**
+     * @return whether the current time stamp is that of an inverter reading, as opposed to one inserted for a wallbox
+     *         reading only
+     */
+    public boolean isInverterReading() {
+        return inverterReading;
+    }
+
+    private boolean isWallboxReadingCurrent() {
+        return wallboxTimeInMillis != Long.MIN_VALUE && timeInMillis - wallboxTimeInMillis <= maxWallboxAgeInMillis;
+    }
+
+    /**
+     * @return the car charge power of the wallbox reading carried forward, or 0 if there is no current one
+     */
+    public double getCarChargePowerInWatts() {
+        return isWallboxReadingCurrent() ? wallboxChargePowerInWatts : 0;
+    }
+
+    /**
+     * @return whether the wallbox reading carried forward has a vehicle connected; {@code false} if there is no
+     *         current wallbox reading
+     */
+    public boolean isVehicleConnected() {
+        return isWallboxReadingCurrent() && wallboxVehicleConnected;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            inverter.close();
+        } finally {
+            wallbox.close();
+        }
+    }
+}
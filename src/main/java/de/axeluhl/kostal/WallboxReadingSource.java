@@ -0,0 +1,52 @@
+package de.axeluhl.kostal;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A cursor over readings of the wallbox, in ascending time order, like {@link ReadingSource} is for inverter readings.
+ * After {@link #next()} has returned {@code true}, the getters describe the current reading.
+ */
+public interface WallboxReadingSource extends Closeable {
+    /**
+     * The phase voltage assumed for converting currents into power
+     */
+    double VOLTAGE_IN_VOLTS = 230;
+
+    /**
+     * Advances to the next reading
+     *
+     * @return {@code false} if there are no more readings
+     */
+    boolean next() throws IOException;
+
+    long getTimeInMillis();
+
+    double getCurrentPhase1InAmperes();
+
+    double getCurrentPhase2InAmperes();
+
+    double getCurrentPhase3InAmperes();
+
+    int getCableState();
+
+    /**
+     * @return the IEC 61851 state as a letter from {@code A} (no vehicle) to {@code F} (error)
+     */
+    char getMode3State();
+
+    /**
+     * @return the sum of the phase currents times {@link #VOLTAGE_IN_VOLTS}
+     */
+    default double getChargePowerInWatts() {
+        return (getCurrentPhase1InAmperes() + getCurrentPhase2InAmperes() + getCurrentPhase3InAmperes()) * VOLTAGE_IN_VOLTS;
+    }
+
+    /**
+     * @return whether a vehicle is connected and could be charged, i.e., whether the {@link #getMode3State() Mode 3
+     *         state} is {@code B}, {@code C} or {@code D}
+     */
+    default boolean isVehicleConnected() {
+        return getMode3State() >= 'B' && getMode3State() <= 'D';
+    }
+}
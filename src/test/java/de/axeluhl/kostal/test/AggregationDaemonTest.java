@@ -0,0 +1,191 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.AggregateBatteryDischarge;
+import de.axeluhl.kostal.AggregationDaemon;
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.LiveWindows;
+import de.axeluhl.kostal.ReadingBatch;
+
+public class AggregationDaemonTest {
+    private static final long START = 1706482800000l; // 2024-01-29T00:00:00+01:00
+
+    private static final ZoneId ZONE = ZoneId.of("Europe/Berlin");
+
+    /**
+     * Identifies the savings function of {@link #createBattery()}, which isn't derived from a tariff
+     */
+    private static final long SAVINGS_FINGERPRINT = 1;
+
+    private static Battery createBattery() {
+        return new Battery(/* minSOCPercent */ 0, /* maxChargePowerInWatts */ 5000,
+                /* reducedChargePowerInWatts */ 5000, /* socPercentWhereReducedChargePowerStarts */ 100,
+                /* capacityInWattHours */ 10000000, /* energyContainedWh */ 0, (when, energy) -> energy);
+    }
+
+    /**
+     * A reading with a constant deficit of 1kW, discharging the battery and saving one cent per Wh
+     */
+    private static String line(long timeInMillis) {
+        return timeInMillis + "000000 1000 0 1000 50 0\n";
+    }
+
+    private static String get(int port) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+        try (final InputStream in = connection.getInputStream()) {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                body.write(buffer, 0, read);
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void waitForSteps(LiveWindows windows, long steps) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (windows.getSteps() < steps && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(steps, windows.getSteps());
+    }
+
+    @Test
+    public void testWindows() throws IOException {
+        final ReadingBatch readings = new ReadingBatch();
+        // one reading per minute over two months and a day, crossing the end of January and of February
+        final long minutes = (29 + 31 + 1) * 24 * 60;
+        for (long minute = 0; minute <= minutes; minute++) {
+            readings.append(START + minute * 60000, 1000, 0, 1000, 50, 0);
+        }
+        final LiveWindows windows = new LiveWindows(ZONE);
+        final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge();
+        aggregator.setReplayListener(windows);
+        final Battery battery = aggregator.aggregateBatteryDischarge(createBattery(), readings);
+        // the last reading is at 2024-03-30T00:00+01:00: the day has just begun, and the month has 29 days
+        assertEquals(battery.getSavingsInCents(), windows.getTotalSavingsInCents(), 1e-6);
+        assertEquals(0, windows.getSavingsInCentsToday(), 1e-9);
+        assertEquals(29 * 24 * 1000 * Battery.DISCHARGE_LOSS_FACTOR, windows.getSavingsInCentsMonthToDate(), 1e-4); // float sums
+        assertEquals(15 * 1000 / 60.0 * Battery.DISCHARGE_LOSS_FACTOR, windows.getSavingsInCentsLast15Minutes(), 1e-6);
+        assertTrue(windows.toJson().contains("\"lastReading\": \"2024-03-30T00:00:00+01:00\""));
+        // windows saved with a checkpoint are restored unchanged
+        final Path file = Files.createTempFile("windows", ".bin");
+        try {
+            windows.save(file);
+            final LiveWindows restored = new LiveWindows(ZONE);
+            restored.restore(file);
+            assertEquals(windows.toJson(), restored.toJson());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testJsonOmitsNonFiniteValues() throws IOException {
+        final ReadingBatch readings = new ReadingBatch();
+        readings.append(START, 1000, Double.NaN, 1000, 50, 0);
+        readings.append(START + 60000, 1000, 0, 1000, 50, 0);
+        readings.append(START + 120000, 1000, 0, 1000, 50, 0);
+        final LiveWindows windows = new LiveWindows(ZONE);
+        final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge();
+        aggregator.setReplayListener(windows);
+        aggregator.aggregateBatteryDischarge(createBattery(), readings);
+        final String json = windows.toJson();
+        assertFalse(json, json.contains("NaN") || json.contains("Infinity"));
+        assertTrue(json, json.contains("\"today\": {\"") && json.contains("\"steps\": 2"));
+    }
+
+    @Test
+    public void testFollowFile() throws Exception {
+        final Path file = Files.createTempFile("readings", ".txt");
+        final LiveWindows windows = new LiveWindows(ZONE);
+        final Battery battery = createBattery();
+        final Thread follower;
+        try (final AggregationDaemon daemon = new AggregationDaemon(new AggregateBatteryDischarge(SAVINGS_FINGERPRINT), battery, windows, 0)) {
+            Files.write(file, (line(START) + line(START + 60000)).getBytes(StandardCharsets.US_ASCII));
+            follower = new Thread(() -> {
+                try {
+                    daemon.follow(file);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            follower.start();
+            waitForSteps(windows, 1);
+            // append a line in two parts, as a writer may flush in the middle of a line
+            final String third = line(START + 120000);
+            Files.write(file, third.substring(0, 10).getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+            Thread.sleep(50);
+            Files.write(file, third.substring(10).getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+            waitForSteps(windows, 2);
+            // truncate and start over, as log rotation with copytruncate does
+            Files.write(file, line(START + 180000).getBytes(StandardCharsets.US_ASCII), StandardOpenOption.TRUNCATE_EXISTING);
+            waitForSteps(windows, 3);
+            assertEquals(3 * 1000 / 60.0 * Battery.DISCHARGE_LOSS_FACTOR, battery.getSavingsInCents(), 1e-6);
+            assertTrue(get(daemon.getHttpPort()).contains("\"steps\": 3,"));
+            // a line still being written when closing is not replayed with a truncated last column
+            Files.write(file, ((START + 240000) + "000000 1000 0 1000 50 12").getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+            Thread.sleep(1000);
+        } finally {
+            Files.delete(file);
+        }
+        // closing the daemon ends the following
+        follower.join(5000);
+        assertTrue(!follower.isAlive());
+        assertEquals(3, windows.getSteps());
+    }
+
+    @Test
+    public void testSocket() throws Exception {
+        final LiveWindows windows = new LiveWindows(ZONE);
+        final Thread server;
+        try (final AggregationDaemon daemon = new AggregationDaemon(new AggregateBatteryDischarge(SAVINGS_FINGERPRINT), createBattery(), windows, 0)) {
+            final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            server = new Thread(() -> {
+                try {
+                    daemon.serve(serverSocket);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            server.start();
+            for (int connection = 0; connection < 2; connection++) {
+                try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+                        final OutputStream out = socket.getOutputStream()) {
+                    for (int minute = 0; minute < 5; minute++) {
+                        out.write(line(START + (connection * 5 + minute) * 60000).getBytes(StandardCharsets.US_ASCII));
+                    }
+                    out.write("garbage\n".getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+            // the replay continues across connections, so there are nine steps between the ten readings
+            waitForSteps(windows, 9);
+            final String json = get(daemon.getHttpPort());
+            assertTrue(json, json.contains("\"today\": {\"seconds\": 540.0,"));
+        }
+        // closing the daemon ends serving
+        server.join(5000);
+        assertTrue(!server.isAlive());
+    }
+}
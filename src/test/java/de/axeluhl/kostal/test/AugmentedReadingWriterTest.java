@@ -0,0 +1,194 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.AggregateBatteryDischarge;
+import de.axeluhl.kostal.AugmentedReadingWriter;
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.BatteryCheckpoint;
+import de.axeluhl.kostal.PriceCurve;
+import de.axeluhl.kostal.ReadingBatch;
+import de.axeluhl.kostal.ReadingParser;
+import de.axeluhl.kostal.ReadingSource;
+import de.axeluhl.kostal.SavingsPerDischarge;
+
+public class AugmentedReadingWriterTest {
+    private static final long START = 1717372800000l; // 2024-06-03T00:00:00Z
+
+    private static final PriceCurve TARIFF = timeInMillis -> 30;
+
+    private static final PriceCurve COMPENSATION = timeInMillis -> 8;
+
+    private static Battery battery() {
+        return new Battery(5, 5600, 3400, 100, 10240, 0, SavingsPerDischarge.forPriceCurves(TARIFF, COMPENSATION));
+    }
+
+    @Test
+    public void testRoundTripThroughParser() throws IOException {
+        final ReadingBatch readings = new ReadingBatch();
+        try (final SyntheticHistory history = new SyntheticHistory(3, START, 2, 5000)) {
+            readings.append(history);
+        }
+        final Battery expected = new AggregateBatteryDischarge().aggregateBatteryDischarge(battery(), readings);
+        readings.rewind();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Battery battery = battery();
+        final AugmentedReadingWriter writer = new AugmentedReadingWriter(out, battery);
+        new AggregateBatteryDischarge().aggregateBatteryDischarge(battery, writer.augment(readings));
+        assertEquals(expected.getSavingsInCents(), battery.getSavingsInCents(), 0.0);
+        readings.rewind();
+        final ReadingParser parser = new ReadingParser(new ByteArrayInputStream(out.toByteArray()));
+        final String[] lines = new String(out.toByteArray(), StandardCharsets.US_ASCII).split("\n");
+        assertEquals(readings.size(), lines.length);
+        double lastEnergyInWattHours = 0;
+        for (int i = 0; i < lines.length; i++) {
+            assertTrue(readings.next());
+            assertTrue(parser.next());
+            assertEquals(readings.getTimeInMillis(), parser.getTimeInMillis());
+            assertEquals(readings.getHomeOwnConsumptionInWatts(), parser.getHomeOwnConsumptionInWatts(), 5e-4);
+            assertEquals(readings.getPvProductionInWatts(), parser.getPvProductionInWatts(), 5e-4);
+            assertEquals(readings.getTotalActivePowerInWatts(), parser.getTotalActivePowerInWatts(), 5e-4);
+            assertEquals(readings.getBatterySOC(), parser.getBatterySOC());
+            assertEquals(readings.getBatteryChargeInWatts(), parser.getBatteryChargeInWatts(), 5e-4);
+            final String[] columns = lines[i].split(" ");
+            assertEquals(10, columns.length);
+            final double energyInWattHours = Double.parseDouble(columns[6]);
+            assertEquals(100 * energyInWattHours / 10240, Double.parseDouble(columns[7]), 1e-3);
+            if (i > 0) {
+                // five seconds per step
+                assertEquals((energyInWattHours - lastEnergyInWattHours) * 720, Double.parseDouble(columns[8]), 1);
+            }
+            lastEnergyInWattHours = energyInWattHours;
+        }
+        assertFalse(parser.next());
+        final String[] lastColumns = lines[lines.length - 1].split(" ");
+        assertEquals(expected.getEnergyContainedInWattHours(), Double.parseDouble(lastColumns[6]), 5e-4);
+        assertEquals(expected.getSavingsInCents(), Double.parseDouble(lastColumns[9]), 5e-4);
+    }
+
+    @Test
+    public void testNumberFormatting() throws IOException {
+        final Random random = new Random(17);
+        final ReadingBatch readings = new ReadingBatch();
+        final double[] values = { 0, -0.0, 0.0004, -0.0004, 0.0005, 1500, -1500.25, 0.1, 1e-9, 123456789.123, 1e20, -3.5e18,
+                Double.NaN, Double.POSITIVE_INFINITY };
+        for (int i = 0; i < values.length; i++) {
+            readings.append(START + i * 1000, values[i], 0, 0, 50, 0);
+        }
+        for (int i = 0; i < 1000; i++) {
+            readings.append(START + (values.length + i) * 1000, (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12)), 0, 0, 50, 0);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final AugmentedReadingWriter writer = new AugmentedReadingWriter(out, battery())) {
+            while (readings.next()) {
+                writer.write(readings);
+            }
+        }
+        final String[] lines = new String(out.toByteArray(), StandardCharsets.US_ASCII).split("\n");
+        assertEquals("0", lines[0].split(" ")[1]);
+        assertEquals("0", lines[1].split(" ")[1]);
+        assertEquals("0", lines[2].split(" ")[1]);
+        assertEquals("0", lines[3].split(" ")[1]);
+        assertEquals("0.001", lines[4].split(" ")[1]);
+        assertEquals("1500", lines[5].split(" ")[1]);
+        assertEquals("-1500.25", lines[6].split(" ")[1]);
+        assertEquals("0.1", lines[7].split(" ")[1]);
+        assertEquals("0", lines[8].split(" ")[1]);
+        assertEquals("123456789.123", lines[9].split(" ")[1]);
+        assertEquals(1e20, Double.parseDouble(lines[10].split(" ")[1]), 0.0);
+        assertEquals(-3.5e18, Double.parseDouble(lines[11].split(" ")[1]), 0.0);
+        assertEquals("NaN", lines[12].split(" ")[1]);
+        assertEquals("Infinity", lines[13].split(" ")[1]);
+        readings.rewind();
+        for (final String line : lines) {
+            assertTrue(readings.next());
+            final double value = readings.getHomeOwnConsumptionInWatts();
+            final String formatted = line.split(" ")[1];
+            assertEquals(line, Long.toString(readings.getTimeInMillis() * 1000000l), line.split(" ")[0]);
+            assertFalse(formatted, formatted.contains(".") && !formatted.contains("E") && formatted.endsWith("0"));
+            if (Double.isFinite(value)) {
+                assertEquals(formatted, value, Double.parseDouble(formatted), Math.max(5e-4, Math.abs(value) * 1e-15));
+            }
+        }
+    }
+
+    @Test
+    public void testLineProtocol() throws IOException {
+        final ReadingBatch readings = new ReadingBatch();
+        readings.append(START, 500, 2500.5, -2000, 42, 0);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Battery battery = battery();
+        battery.setEnergyContainedInWattHours(2560);
+        battery.setSavingsInCents(12.5);
+        try (final AugmentedReadingWriter writer = new AugmentedReadingWriter(out, battery, "virtual battery,test")) {
+            assertTrue(readings.next());
+            writer.write(readings);
+        }
+        assertEquals("virtual\\ battery\\,test Home\\ own\\ consumption=500,PV\\ production=2500.5,"
+                + "Total\\ active\\ power\\ (powermeter)=-2000,Battery\\ actual\\ SOC=42,Battery\\ Charge=0,"
+                + "Virtual\\ battery\\ energy=2560,Virtual\\ battery\\ SOC=25,Virtual\\ battery\\ power=0,"
+                + "Virtual\\ battery\\ savings=12.5 1717372800000000000\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLineProtocolOmitsNonFiniteFields() throws IOException {
+        final ReadingBatch readings = new ReadingBatch();
+        readings.append(START, Double.NaN, Double.POSITIVE_INFINITY, -2000, 42, Double.NEGATIVE_INFINITY);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Battery battery = battery();
+        battery.setEnergyContainedInWattHours(2560);
+        battery.setSavingsInCents(12.5);
+        try (final AugmentedReadingWriter writer = new AugmentedReadingWriter(out, battery, "virtualBattery")) {
+            assertTrue(readings.next());
+            writer.write(readings);
+        }
+        assertEquals("virtualBattery Total\\ active\\ power\\ (powermeter)=-2000,Battery\\ actual\\ SOC=42,"
+                + "Virtual\\ battery\\ energy=2560,Virtual\\ battery\\ SOC=25,Virtual\\ battery\\ power=0,"
+                + "Virtual\\ battery\\ savings=12.5 1717372800000000000\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testResumedReplayWritesOnlyReplayedReadings() throws IOException {
+        final ReadingBatch readings = new ReadingBatch();
+        try (final SyntheticHistory history = new SyntheticHistory(5, START, 2, 5000)) {
+            readings.append(history);
+        }
+        final ByteArrayOutputStream uninterrupted = new ByteArrayOutputStream();
+        final Battery battery = battery();
+        new AggregateBatteryDischarge().aggregateBatteryDischarge(battery, new AugmentedReadingWriter(uninterrupted, battery).augment(readings));
+        // the second part starts ten readings before the end of the first, as after a restart with overlapping input
+        final int split = readings.size() / 2;
+        final ReadingBatch first = new ReadingBatch();
+        final ReadingBatch second = new ReadingBatch();
+        readings.rewind();
+        for (int i = 0; readings.next(); i++) {
+            final ReadingBatch part = i < split ? first : second;
+            part.append(readings.getTimeInMillis(), readings.getHomeOwnConsumptionInWatts(), readings.getPvProductionInWatts(),
+                    readings.getTotalActivePowerInWatts(), readings.getBatterySOC(), readings.getBatteryChargeInWatts());
+            if (i >= split - 10 && i < split) {
+                second.append(readings.getTimeInMillis(), readings.getHomeOwnConsumptionInWatts(), readings.getPvProductionInWatts(),
+                        readings.getTotalActivePowerInWatts(), readings.getBatterySOC(), readings.getBatteryChargeInWatts());
+            }
+        }
+        final ByteArrayOutputStream resumed = new ByteArrayOutputStream();
+        final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge(/* savingsFingerprint */ 1);
+        final Battery firstBattery = battery();
+        final BatteryCheckpoint checkpoint = aggregator.aggregateBatteryDischarge(firstBattery,
+                new AugmentedReadingWriter(resumed, firstBattery).augment(first), null);
+        final Battery secondBattery = battery();
+        try (final ReadingSource augmented = new AugmentedReadingWriter(resumed, secondBattery).augment(second, checkpoint)) {
+            aggregator.aggregateBatteryDischarge(secondBattery, augmented, checkpoint);
+        }
+        assertEquals(new String(uninterrupted.toByteArray(), StandardCharsets.US_ASCII), new String(resumed.toByteArray(), StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,107 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.AggregateBatteryDischarge;
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.BatteryCheckpoint;
+import de.axeluhl.kostal.IngestionCompensation;
+import de.axeluhl.kostal.ReadingParser;
+import de.axeluhl.kostal.SavingsPerDischarge;
+import de.axeluhl.kostal.SortedPriceCurve;
+import de.axeluhl.kostal.Tariff;
+
+public class BatteryCheckpointTest {
+    private static final long SAVINGS_FINGERPRINT = BatteryCheckpoint.savingsFingerprint(Tariff.CURVE, IngestionCompensation.CURVE);
+
+    private static Battery createBattery(double capacityInWattHours) {
+        return new Battery(/* minSOCPercent */ 5, /* maxChargePowerInWatts */ 5600,
+                /* reducedChargePowerInWatts */ 3400, /* socPercentWhereReducedChargePowerStarts */ 99.5,
+                capacityInWattHours, /* energyContainedWh */ 0, SavingsPerDischarge.FUNCTION);
+    }
+
+    private static String createHistory(int days) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SyntheticHistory(42, 1704067200000l, days, 5000).writeText(out);
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testResumedReplayEqualsUninterruptedReplay() throws IOException {
+        final String history = createHistory(4);
+        final Battery uninterrupted = createBattery(10240);
+        new AggregateBatteryDischarge(SAVINGS_FINGERPRINT).aggregateBatteryDischarge(uninterrupted,
+                new ByteArrayInputStream(history.getBytes(StandardCharsets.US_ASCII)));
+        // split after three days, with the first reading of the fourth day also in the first part to test overlap
+        final int split = history.indexOf('\n', history.length() * 3 / 4) + 1;
+        final int overlapEnd = history.indexOf('\n', split) + 1;
+        final Path checkpointFile = Files.createTempFile("checkpoint", ".properties");
+        try {
+            final Battery firstRun = createBattery(10240);
+            new AggregateBatteryDischarge(SAVINGS_FINGERPRINT).aggregateBatteryDischarge(firstRun, parser(history.substring(0, overlapEnd)), null)
+                    .save(checkpointFile);
+            final Battery secondRun = createBattery(10240);
+            new AggregateBatteryDischarge(SAVINGS_FINGERPRINT).aggregateBatteryDischarge(secondRun, parser(history.substring(split)),
+                    BatteryCheckpoint.load(checkpointFile));
+            assertEquals(uninterrupted.getEnergyContainedInWattHours(), secondRun.getEnergyContainedInWattHours(), 0.0);
+            assertEquals(uninterrupted.getSavingsInCents(), secondRun.getSavingsInCents(), 0.0);
+        } finally {
+            Files.deleteIfExists(checkpointFile);
+        }
+    }
+
+    @Test
+    public void testAggregatorReusedForIndependentReplays() throws IOException {
+        final String history = createHistory(2);
+        final Battery expected = createBattery(10240);
+        new AggregateBatteryDischarge(SAVINGS_FINGERPRINT).aggregateBatteryDischarge(expected, parser(history));
+        final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge(SAVINGS_FINGERPRINT);
+        aggregator.aggregateBatteryDischarge(createBattery(10240), parser(history));
+        final Battery second = aggregator.aggregateBatteryDischarge(createBattery(10240), parser(history));
+        assertEquals(expected.getEnergyContainedInWattHours(), second.getEnergyContainedInWattHours(), 0.0);
+        assertEquals(expected.getSavingsInCents(), second.getSavingsInCents(), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParameterMismatch() throws IOException {
+        final BatteryCheckpoint checkpoint = new AggregateBatteryDischarge(SAVINGS_FINGERPRINT).aggregateBatteryDischarge(createBattery(10240),
+                parser(createHistory(1)), null);
+        new AggregateBatteryDischarge(SAVINGS_FINGERPRINT).aggregateBatteryDischarge(createBattery(15000), parser(createHistory(1)), checkpoint);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSavingsFingerprintMismatch() throws IOException {
+        final BatteryCheckpoint checkpoint = new AggregateBatteryDischarge(SAVINGS_FINGERPRINT)
+                .aggregateBatteryDischarge(createBattery(10240), parser(createHistory(1)), null);
+        final AggregateBatteryDischarge second = new AggregateBatteryDischarge(BatteryCheckpoint.savingsFingerprint(
+                new SortedPriceCurve(new long[] { 0 }, new double[] { 30 }), IngestionCompensation.CURVE));
+        second.aggregateBatteryDischarge(createBattery(10240), parser(createHistory(1)), checkpoint);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonRoundMinSOCMismatch() throws IOException {
+        // 7% and 6% of 10240Wh differ, even though a percentage recomputed from the energy would round 7% down to 6%
+        final Battery battery = new Battery(7, 5600, 3400, 99.5, 10240, 0, SavingsPerDischarge.FUNCTION);
+        final BatteryCheckpoint checkpoint = new AggregateBatteryDischarge(SAVINGS_FINGERPRINT)
+                .aggregateBatteryDischarge(battery, parser(createHistory(1)), null);
+        checkpoint.restore(new Battery(6, 5600, 3400, 99.5, 10240, 0, SavingsPerDischarge.FUNCTION), SAVINGS_FINGERPRINT);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCheckpointsRequireSavingsFingerprint() throws IOException {
+        new AggregateBatteryDischarge().aggregateBatteryDischarge(createBattery(10240), parser(createHistory(1)), null);
+    }
+
+    private static ReadingParser parser(String readings) {
+        return new ReadingParser(new ByteArrayInputStream(readings.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
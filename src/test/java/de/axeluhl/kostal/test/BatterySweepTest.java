@@ -0,0 +1,66 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.AggregateBatteryDischarge;
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.BatteryBank;
+import de.axeluhl.kostal.BatterySweep;
+import de.axeluhl.kostal.ReadingParser;
+import de.axeluhl.kostal.SavingsPerDischarge;
+
+public class BatterySweepTest {
+    private static String createReadings(int count) {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            // alternate between PV surplus and deficit every few hours, with some variation in the time steps
+            final double pv = Math.max(0, 6000 * Math.sin(i / 3000.0));
+            final double home = 400 + (i * 7919) % 2500;
+            result.append(1702236023000000000l + i * 5000000000l + (i % 3) * 1000000l).append(' ').append(home)
+                    .append(' ').append(pv).append(" 0 30 0\n");
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void testSweepMatchesIndividualReplays() throws IOException {
+        final String readings = createReadings(150000);
+        final double[] minSOCPercents = { 5, 10 };
+        final double[] maxChargePowersInWatts = { 3000, 5600 };
+        final double[] reducedChargePowersInWatts = { 2000 };
+        final double[] socPercentsWhereReducedChargePowerStarts = { 90, 99.5 };
+        final double[] capacitiesInWattHours = { 5000, 10240, 15000 };
+        final BatteryBank bank = BatterySweep.createBank(minSOCPercents, maxChargePowersInWatts,
+                reducedChargePowersInWatts, socPercentsWhereReducedChargePowerStarts, capacitiesInWattHours);
+        assertEquals(24, bank.size());
+        new BatterySweep(bank, SavingsPerDischarge.FUNCTION).sweep(new ReadingParser(new StringReader(readings)));
+        for (int i = 0; i < bank.size(); i++) {
+            final Battery battery = new Battery(bank.getMinSOCPercent(i), bank.getMaxChargePowerInWatts(i),
+                    bank.getReducedChargePowerInWatts(i), bank.getSocPercentWhereReducedChargePowerStarts(i),
+                    bank.getCapacityInWattHours(i), 0, SavingsPerDischarge.FUNCTION);
+            new AggregateBatteryDischarge().aggregateBatteryDischarge(battery, new StringReader(readings));
+            assertEquals(battery.getEnergyContainedInWattHours(), bank.getEnergyContainedInWattHours(i), 1e-6);
+            assertEquals(battery.getSavingsInCents(), bank.getSavingsInCents(i), 1e-6 * battery.getSavingsInCents());
+        }
+    }
+
+    @Test
+    public void testParseRange() {
+        assertArrayEquals(new double[] { 5000, 7500, 10000 }, BatterySweep.parseRange("5000:10000:2500"), 0.0);
+        assertArrayEquals(new double[] { 0.1, 0.2, 0.3 }, BatterySweep.parseRange("0.1:0.3:0.1"), 1e-12);
+        assertArrayEquals(new double[] { 3, 1, 2 }, BatterySweep.parseRange("3, 1,2"), 0.0);
+        assertArrayEquals(new double[] { 99.5 }, BatterySweep.parseRange("99.5"), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFractionalMinSOCRejected() {
+        BatterySweep.createBank(new double[] { 5, 7.5 }, new double[] { 5600 }, new double[] { 3400 }, new double[] { 99.5 },
+                new double[] { 10240 });
+    }
+}
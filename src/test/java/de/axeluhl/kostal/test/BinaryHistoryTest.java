@@ -0,0 +1,147 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.axeluhl.kostal.AggregateBatteryDischarge;
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.BinaryHistoryReader;
+import de.axeluhl.kostal.BinaryHistoryWriter;
+import de.axeluhl.kostal.ReadingParser;
+import de.axeluhl.kostal.SavingsPerDischarge;
+
+public class BinaryHistoryTest {
+    private static final long START = 1702166400000l; // 2023-12-10T00:00:00Z
+
+    private static final long STEP = 5000l;
+
+    private static final int DAYS = 3;
+
+    private static final int READINGS_PER_DAY = 17280;
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("history", ".kbh");
+        try (final BinaryHistoryWriter writer = new BinaryHistoryWriter(file)) {
+            for (int i = 0; i < DAYS * READINGS_PER_DAY; i++) {
+                writer.append(START + i * STEP, 500 + i % 1000, 3000 * Math.sin(i / 2000.0), -i % 700, i % 101, i % 5600);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        try (final BinaryHistoryReader reader = new BinaryHistoryReader(file)) {
+            assertEquals(DAYS, reader.getNumberOfBlocks());
+            assertEquals(DAYS * READINGS_PER_DAY, reader.getNumberOfReadings());
+            for (int i = 0; i < DAYS * READINGS_PER_DAY; i++) {
+                assertTrue(reader.next());
+                assertEquals(START + i * STEP, reader.getTimeInMillis());
+                assertEquals(500 + i % 1000, reader.getHomeOwnConsumptionInWatts(), 0.0);
+                assertEquals((float) (3000 * Math.sin(i / 2000.0)), reader.getPvProductionInWatts(), 0.0);
+                assertEquals(-i % 700, reader.getTotalActivePowerInWatts(), 0.0);
+                assertEquals(i % 101, reader.getBatterySOC());
+                assertEquals(i % 5600, reader.getBatteryChargeInWatts(), 0.0);
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void testRange() throws IOException {
+        try (final BinaryHistoryReader reader = new BinaryHistoryReader(file)) {
+            final long from = START + READINGS_PER_DAY * STEP + 12 * 3600 * 1000; // noon of the second day
+            final long to = START + 2 * READINGS_PER_DAY * STEP + 3600 * 1000; // 1am of the third day
+            reader.setRange(from, to);
+            int count = 0;
+            while (reader.next()) {
+                assertEquals(from + count * STEP, reader.getTimeInMillis());
+                count++;
+            }
+            assertEquals((to - from) / STEP, count);
+            reader.setRange(START + 10 * DAYS * READINGS_PER_DAY * STEP, Long.MAX_VALUE);
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void testAggregationFromBinaryMatchesText() throws IOException {
+        final String text = "1702236023000000000 545 0 544.8 9 0\n"
+                + "1702236028000000000 545 0 544.8 9 0\n"
+                + "1702236033000000000 200 4000 -3000 9 0\n"
+                + "1702236038000000000 200 4000 -3000 9 0\n";
+        final Path textHistory = Files.createTempFile("history", ".kbh");
+        try {
+            try (final BinaryHistoryWriter writer = new BinaryHistoryWriter(textHistory)) {
+                writer.append(new ReadingParser(new StringReader(text)));
+            }
+            final Battery fromText = createBattery();
+            new AggregateBatteryDischarge().aggregateBatteryDischarge(fromText, new StringReader(text));
+            final Battery fromBinary = createBattery();
+            try (final BinaryHistoryReader reader = new BinaryHistoryReader(textHistory)) {
+                new AggregateBatteryDischarge().aggregateBatteryDischarge(fromBinary, reader);
+            }
+            assertEquals(fromText.getEnergyContainedInWattHours(), fromBinary.getEnergyContainedInWattHours(), 0.001);
+            assertEquals(fromText.getSavingsInCents(), fromBinary.getSavingsInCents(), 0.001);
+        } finally {
+            Files.deleteIfExists(textHistory);
+        }
+    }
+
+    private Battery createBattery() {
+        return new Battery(/* minSOCPercent */ 5, /* maxChargePowerInWatts */ 5600,
+                /* reducedChargePowerInWatts */ 3000, /* socPercentWhereReducedChargePowerStarts */ 99.5,
+                /* capacityInWattHours */ 10600, /* energyContainedWh */ 0, SavingsPerDischarge.FUNCTION);
+    }
+
+    @Test
+    public void testAbortedFileIsRejected() throws IOException {
+        try (final BinaryHistoryWriter writer = new BinaryHistoryWriter(file)) {
+            writer.append(START, 500, 0, 0, 50, 0);
+            writer.abort();
+        }
+        try {
+            new BinaryHistoryReader(file).close();
+            fail("Expected an aborted file to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMalformedInputLeavesNoOutput() throws IOException {
+        final Path input = Files.createTempFile("history", ".txt");
+        try {
+            Files.write(input, ((START * 1000000l) + " 500 0 0 50 0\ngarbage\n" + ((START + STEP) * 1000000l) + " 500 0 0 50 0\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            try {
+                BinaryHistoryWriter.main(new String[] { "-f", input.toString(), "-o", file.toString() });
+                fail("Expected the malformed line to be reported");
+            } catch (NumberFormatException e) {
+                // expected
+            }
+            assertFalse(Files.exists(file));
+        } finally {
+            Files.delete(input);
+        }
+    }
+}
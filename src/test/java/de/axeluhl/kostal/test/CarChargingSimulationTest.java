@@ -0,0 +1,314 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.AggregateBatteryDischarge;
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.CarChargeBehaviorParser;
+import de.axeluhl.kostal.CarChargingSimulation;
+import de.axeluhl.kostal.CarChargingSimulation.Priority;
+import de.axeluhl.kostal.PriceCurve;
+import de.axeluhl.kostal.ReadingBatch;
+import de.axeluhl.kostal.ReadingSource;
+import de.axeluhl.kostal.SavingsPerDischarge;
+import de.axeluhl.kostal.WallboxJoin;
+import de.axeluhl.kostal.WallboxReadingSource;
+
+public class CarChargingSimulationTest {
+    private static final long START = 1717372800000l; // 2024-06-03T00:00:00Z
+
+    private static final long MINUTE = 60000l;
+
+    private static final long HOUR = 60 * MINUTE;
+
+    private static final long DAY = 24 * HOUR;
+
+    private static final PriceCurve TARIFF = timeInMillis -> 30;
+
+    private static final PriceCurve COMPENSATION = timeInMillis -> 8;
+
+    /**
+     * Three phases at 6A
+     */
+    private static final double CAR_POWER_IN_WATTS = 3 * 6 * WallboxReadingSource.VOLTAGE_IN_VOLTS;
+
+    private static final String HEADER = "time                Home own consumption PV production Total active power (powermeter)"
+            + " Battery actual SOC Battery Charge CurrentPhase1 CurrentPhase2 CurrentPhase3 Socket1CableState Socket1Mode3State\n"
+            + "----                -------------------- ------------- ------------------------------- ------------------"
+            + " -------------- ------------- ------------- ------------- ----------------- -----------------\n";
+
+    private static CarChargeBehaviorParser parser(String dump) {
+        return new CarChargeBehaviorParser(new ByteArrayInputStream(dump.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Assembles what {@code kostal-dumpCarChargeBehavior} prints for the rows added, querying one day at a time: per
+     * day, the block of the wallbox rows and then that of the inverter rows, each named and headed as by the
+     * {@code influx} client, but without the first three lines of each query's output
+     */
+    private static class Dump {
+        private final SortedMap<Long, StringBuilder> wallboxRowsByDay = new TreeMap<>();
+
+        private final SortedMap<Long, StringBuilder> inverterRowsByDay = new TreeMap<>();
+
+        private static StringBuilder rows(SortedMap<Long, StringBuilder> rowsByDay, long timeInMillis) {
+            return rowsByDay.computeIfAbsent(Math.floorDiv(timeInMillis, DAY), day -> new StringBuilder());
+        }
+
+        Dump wallbox(long timeInMillis, double currentInAmperes, char mode3State) {
+            rows(wallboxRowsByDay, timeInMillis).append(timeInMillis * 1000000l + " " + currentInAmperes + " "
+                    + currentInAmperes + " " + currentInAmperes + " 1 " + mode3State + "\n");
+            return this;
+        }
+
+        Dump inverter(ReadingSource readings) throws IOException {
+            while (readings.next()) {
+                rows(inverterRowsByDay, readings.getTimeInMillis()).append(readings.getTimeInMillis() * 1000000l + " "
+                        + readings.getHomeOwnConsumptionInWatts() + " " + readings.getPvProductionInWatts() + " "
+                        + readings.getTotalActivePowerInWatts() + " " + readings.getBatterySOC() + " "
+                        + readings.getBatteryChargeInWatts() + "\n");
+            }
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            final SortedSet<Long> days = new TreeSet<>(wallboxRowsByDay.keySet());
+            days.addAll(inverterRowsByDay.keySet());
+            final StringBuilder result = new StringBuilder();
+            for (final Long day : days) {
+                final StringBuilder query = new StringBuilder();
+                if (wallboxRowsByDay.containsKey(day)) {
+                    query.append("name: ebox\n").append(HEADER).append(wallboxRowsByDay.get(day));
+                }
+                if (inverterRowsByDay.containsKey(day)) {
+                    if (query.length() > 0) {
+                        query.append('\n');
+                    }
+                    query.append("name: pv\n").append(HEADER).append(inverterRowsByDay.get(day));
+                }
+                int start = 0;
+                for (int line = 0; line < 3; line++) {
+                    start = query.indexOf("\n", start) + 1;
+                }
+                result.append(query, start, query.length());
+            }
+            return result.toString();
+        }
+
+        WallboxJoin join() {
+            final CarChargeBehaviorParser parser = parser(toString());
+            return new WallboxJoin(parser.getInverterReadings(), parser.getWallboxReadings());
+        }
+    }
+
+    @Test
+    public void testParser() throws IOException {
+        try (final CarChargeBehaviorParser parser = parser("1717372800000000000 6.5 6 0 1 C\n\n"
+                + "1717372805000000000 500 2500.5 -2000 42 0\n"
+                + "1717372860000000000 0 0 0 0 A\n"
+                + "\nname: pv\n" + HEADER
+                + "1717372810000000000 510 2400 -1890 42.4 0\n"
+                + "1717372815000000000 520 2300 -1780 43 0\n"
+                + "\nname: ebox\n" + HEADER
+                + "1717372920000000000 0 0 0 1 2\n"
+                + "1717372980000000000 600 2200 -1600 43 0 7 7 7 1 C")) {
+            final ReadingSource inverter = parser.getInverterReadings();
+            final WallboxReadingSource wallbox = parser.getWallboxReadings();
+            assertTrue(wallbox.next());
+            assertEquals(START, wallbox.getTimeInMillis());
+            assertEquals(12.5 * WallboxReadingSource.VOLTAGE_IN_VOLTS, wallbox.getChargePowerInWatts(), 1e-9);
+            assertEquals(1, wallbox.getCableState());
+            assertTrue(wallbox.isVehicleConnected());
+            // the unnamed wallbox block ends with the first row without a Mode 3 letter
+            assertTrue(inverter.next());
+            assertEquals(START + 5000, inverter.getTimeInMillis());
+            assertEquals(500, inverter.getHomeOwnConsumptionInWatts(), 0.0);
+            assertEquals(2500.5, inverter.getPvProductionInWatts(), 0.0);
+            assertEquals(-2000, inverter.getTotalActivePowerInWatts(), 0.0);
+            assertEquals(42, inverter.getBatterySOC());
+            assertTrue(wallbox.next());
+            assertEquals('A', wallbox.getMode3State());
+            assertFalse(wallbox.isVehicleConnected());
+            // the wallbox reads ahead across the named inverter block, which is queued
+            assertTrue(wallbox.next());
+            assertEquals(START + 120000, wallbox.getTimeInMillis());
+            assertEquals('C', wallbox.getMode3State());
+            assertTrue(inverter.next());
+            assertEquals(START + 10000, inverter.getTimeInMillis());
+            assertTrue(inverter.next());
+            assertEquals(43, inverter.getBatterySOC());
+            assertTrue(inverter.next());
+            assertEquals(START + 180000, inverter.getTimeInMillis());
+            assertEquals(600, inverter.getHomeOwnConsumptionInWatts(), 0.0);
+            assertFalse(inverter.next());
+            assertTrue(wallbox.next());
+            assertEquals(START + 180000, wallbox.getTimeInMillis());
+            assertEquals(21 * WallboxReadingSource.VOLTAGE_IN_VOLTS, wallbox.getChargePowerInWatts(), 1e-9);
+            assertFalse(wallbox.next());
+        }
+    }
+
+    @Test
+    public void testMalformedLines() throws IOException {
+        final String dump = "1717372800000000000 6 6 0 1 C\n1717372860000000000 6 6 0 1 X\n1717372920000000000 6 6\n"
+                + "1717372980000000000 6 6 0 1 B\n";
+        try (final CarChargeBehaviorParser parser = parser(dump)) {
+            assertTrue(parser.getWallboxReadings().next());
+            try {
+                parser.getWallboxReadings().next();
+                fail("Expected a NumberFormatException");
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+        try (final CarChargeBehaviorParser parser = parser(dump)) {
+            parser.setLenient(true);
+            final WallboxReadingSource wallbox = parser.getWallboxReadings();
+            assertTrue(wallbox.next());
+            assertTrue(wallbox.next());
+            assertEquals('B', wallbox.getMode3State());
+            assertFalse(wallbox.next());
+            assertEquals(2, parser.getNumberOfMalformedLines());
+        }
+    }
+
+    @Test
+    public void testJoin() throws IOException {
+        final ReadingBatch inverter = new ReadingBatch();
+        for (int i = 0; i <= 40; i++) {
+            inverter.append(START + i * 15000, 100 + i, 0, 0, 50, 0); // every 15s for ten minutes
+        }
+        // every minute, offset by 20s, starting before the inverter; a gap of six minutes from 00:03:20
+        final Dump dump = new Dump().inverter(inverter).wallbox(START - 40000, 1, 'C');
+        for (int minute = 0; minute <= 3; minute++) {
+            dump.wallbox(START + 20000 + minute * MINUTE, 2 + minute, 'C');
+        }
+        dump.wallbox(START + 20000 + 9 * MINUTE, 0, 'B');
+        try (final WallboxJoin join = dump.join()) {
+            int count = 0;
+            long lastTimeInMillis = Long.MIN_VALUE;
+            while (join.next()) {
+                assertTrue(join.getTimeInMillis() > lastTimeInMillis);
+                lastTimeInMillis = join.getTimeInMillis();
+                final long offsetInMillis = join.getTimeInMillis() - START;
+                // the inverter value carried forward is that of the last 15s boundary
+                assertEquals(100 + offsetInMillis / 15000, join.getHomeOwnConsumptionInWatts(), 0.0);
+                if (offsetInMillis < 20000) {
+                    assertEquals(3 * WallboxReadingSource.VOLTAGE_IN_VOLTS, join.getCarChargePowerInWatts(), 1e-9);
+                } else if (offsetInMillis < 3 * MINUTE + 20000 + WallboxJoin.DEFAULT_MAX_WALLBOX_AGE_IN_MILLIS) {
+                    final long minute = Math.min(3, (offsetInMillis - 20000) / MINUTE);
+                    assertEquals(3 * (2 + minute) * WallboxReadingSource.VOLTAGE_IN_VOLTS, join.getCarChargePowerInWatts(), 1e-9);
+                    assertTrue(join.isVehicleConnected());
+                } else if (offsetInMillis < 9 * MINUTE + 20000) {
+                    // too old to carry forward
+                    assertEquals(0, join.getCarChargePowerInWatts(), 0.0);
+                    assertFalse(join.isVehicleConnected());
+                } else {
+                    assertEquals(0, join.getCarChargePowerInWatts(), 0.0);
+                    assertTrue(join.isVehicleConnected());
+                }
+                count++;
+            }
+            // 41 inverter readings plus the five wallbox readings within their range
+            assertEquals(41 + 5, count);
+        }
+    }
+
+    @Test
+    public void testRecordedMatchesReplayWithoutWallbox() throws IOException {
+        final ReadingBatch readings = new ReadingBatch();
+        try (final SyntheticHistory history = new SyntheticHistory(42, START, 3, 5000)) {
+            readings.append(history);
+        }
+        final Dump inverterOnly = new Dump().inverter(readings);
+        readings.rewind();
+        // off the inverter's whole seconds, so the join splits inverter steps at sub-second offsets
+        final Dump dump = new Dump().inverter(readings);
+        for (long time = START + 2500; time < START + 3 * DAY; time += MINUTE + 700) {
+            dump.wallbox(time, 0, 'A');
+        }
+        final SavingsPerDischarge savings = SavingsPerDischarge.forPriceCurves(TARIFF, COMPENSATION);
+        final Battery expected;
+        try (final CarChargeBehaviorParser parser = parser(inverterOnly.toString())) {
+            expected = new AggregateBatteryDischarge().aggregateBatteryDischarge(
+                    new Battery(5, 5600, 3400, 100, 10240, 0, savings), parser.getInverterReadings());
+        }
+        final CarChargingSimulation simulation = new CarChargingSimulation(Priority.RECORDED,
+                new Battery(5, 5600, 3400, 100, 10240, 0, savings), CarChargingSimulation.DEFAULT_MAX_CAR_CHARGE_POWER_IN_WATTS,
+                CarChargingSimulation.DEFAULT_CAR_BUFFER_IN_WATT_HOURS, /* batteryDischargesIntoCar */ true, TARIFF, COMPENSATION);
+        try (final WallboxJoin join = dump.join()) {
+            CarChargingSimulation.replay(join, simulation);
+        }
+        assertEquals(expected.getSavingsInCents(), simulation.getBattery().getSavingsInCents(), 1e-6);
+        assertEquals(expected.getEnergyContainedInWattHours(), simulation.getBattery().getEnergyContainedInWattHours(), 1e-6);
+        assertEquals(0, simulation.getCarRecordedInWattHours(), 0.0);
+    }
+
+    /**
+     * A day with two hours of 3kW surplus before noon and two hours of recorded car charging in the evening, with the
+     * car connected all day and a battery that can't charge
+     */
+    private static CarChargingSimulation[] simulateDay(double carBufferInWattHours) throws IOException {
+        final ReadingBatch inverter = new ReadingBatch();
+        final Dump dump = new Dump();
+        for (long time = START; time <= START + 24 * HOUR; time += MINUTE / 2) {
+            final boolean sunny = time >= START + 10 * HOUR && time < START + 12 * HOUR;
+            final boolean charging = time >= START + 20 * HOUR && time < START + 22 * HOUR;
+            inverter.append(time, charging ? CAR_POWER_IN_WATTS : 0, sunny ? 3000 : 0, 0, 50, 0);
+            if ((time - START) % MINUTE == 0) {
+                dump.wallbox(time, charging ? 6 : 0, 'C');
+            }
+        }
+        final Priority[] priorities = Priority.values();
+        final CarChargingSimulation[] simulations = new CarChargingSimulation[priorities.length];
+        for (int i = 0; i < priorities.length; i++) {
+            simulations[i] = new CarChargingSimulation(priorities[i],
+                    new Battery(0, 0, 0, 100, 10000, 0, SavingsPerDischarge.forPriceCurves(TARIFF, COMPENSATION)),
+                    CarChargingSimulation.DEFAULT_MAX_CAR_CHARGE_POWER_IN_WATTS, carBufferInWattHours,
+                    /* batteryDischargesIntoCar */ true, TARIFF, COMPENSATION);
+        }
+        dump.inverter(inverter);
+        try (final WallboxJoin join = dump.join()) {
+            CarChargingSimulation.replay(join, simulations);
+        }
+        return simulations;
+    }
+
+    @Test
+    public void testSurplusDivertedToCar() throws IOException {
+        final double carInWattHours = 2 * CAR_POWER_IN_WATTS;
+        final CarChargingSimulation[] simulations = simulateDay(10000);
+        final CarChargingSimulation recorded = simulations[Priority.RECORDED.ordinal()];
+        assertEquals(carInWattHours, recorded.getCarRecordedInWattHours(), 1e-6);
+        assertEquals(carInWattHours, recorded.getGridImportInWattHours(), 1e-6);
+        assertEquals(6000, recorded.getGridExportInWattHours(), 1e-6);
+        assertEquals((carInWattHours * 30 - 6000 * 8) / 1000, recorded.getNetGridCostInCents(), 1e-6);
+        // the surplus pre-charges the car, which then only needs the rest of its evening demand from the grid
+        for (final Priority priority : new Priority[] { Priority.CAR_FIRST, Priority.BATTERY_FIRST }) {
+            final CarChargingSimulation simulation = simulations[priority.ordinal()];
+            assertEquals(6000, simulation.getCarFromSurplusInWattHours(), 1e-6);
+            assertEquals(carInWattHours - 6000, simulation.getCarFromGridOrBatteryInWattHours(), 1e-6);
+            assertEquals(carInWattHours - 6000, simulation.getGridImportInWattHours(), 1e-6);
+            assertEquals(0, simulation.getGridExportInWattHours(), 1e-6);
+            assertEquals(0, simulation.getCarEnergyOwedInWattHours(), 1e-6);
+        }
+        // without a buffer, the car can't take energy ahead of its demand
+        final CarChargingSimulation withoutBuffer = simulateDay(0)[Priority.CAR_FIRST.ordinal()];
+        assertEquals(0, withoutBuffer.getCarFromSurplusInWattHours(), 1e-6);
+        assertEquals(recorded.getGridImportInWattHours(), withoutBuffer.getGridImportInWattHours(), 1e-6);
+    }
+}
@@ -0,0 +1,114 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.AggregateBatteryDischarge;
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.EnergyPyramid;
+import de.axeluhl.kostal.ReadingBatch;
+import de.axeluhl.kostal.SavingsPerDischarge;
+
+public class EnergyPyramidTest {
+    private static final long START = 1704067200000l; // 2024-01-01T00:00:00Z
+
+    private static Battery createBattery(double capacityInWattHours) {
+        return createBattery(capacityInWattHours, SavingsPerDischarge.FUNCTION);
+    }
+
+    private static Battery createBattery(double capacityInWattHours, SavingsPerDischarge savingsFunction) {
+        return new Battery(/* minSOCPercent */ 5, /* maxChargePowerInWatts */ 5600,
+                /* reducedChargePowerInWatts */ 3400, /* socPercentWhereReducedChargePowerStarts */ 99.5,
+                capacityInWattHours, /* energyContainedWh */ 0, savingsFunction);
+    }
+
+    @Test
+    public void testLevelsPreserveEnergy() throws IOException {
+        final ReadingBatch readings = new ReadingBatch();
+        readings.append(new SyntheticHistory(5, START, 3, 5000));
+        readings.append(START + 3 * 24 * 3600000l + 7200500, 0, 0, 0, 50, 0); // a gap spanning buckets, not a full second
+        double surplusInWattHours = 0;
+        double deficitInWattHours = 0;
+        readings.rewind();
+        readings.next();
+        long lastTimeInMillis = readings.getTimeInMillis();
+        double lastPowerInWatts = readings.getPvProductionInWatts() - readings.getHomeOwnConsumptionInWatts();
+        while (readings.next()) {
+            final double energyInWattHours = lastPowerInWatts * Math.floorDiv(readings.getTimeInMillis() - lastTimeInMillis, 1000l) / 3600.0;
+            if (energyInWattHours > 0) {
+                surplusInWattHours += energyInWattHours;
+            } else {
+                deficitInWattHours -= energyInWattHours;
+            }
+            lastTimeInMillis = readings.getTimeInMillis();
+            lastPowerInWatts = readings.getPvProductionInWatts() - readings.getHomeOwnConsumptionInWatts();
+        }
+        readings.rewind();
+        final EnergyPyramid pyramid = new EnergyPyramid().addAll(readings);
+        assertEquals(3 * 24 + 3, pyramid.getNumberOfBuckets(2));
+        for (int level = 0; level < pyramid.getNumberOfLevels(); level++) {
+            double levelSurplusInWattHours = 0;
+            double levelDeficitInWattHours = 0;
+            for (int bucket = 0; bucket < pyramid.getNumberOfBuckets(level); bucket++) {
+                levelSurplusInWattHours += pyramid.getSurplusInWattHours(level, bucket);
+                levelDeficitInWattHours += pyramid.getDeficitInWattHours(level, bucket);
+            }
+            assertEquals(surplusInWattHours, levelSurplusInWattHours, 1e-6 * surplusInWattHours); // float sums
+            assertEquals(deficitInWattHours, levelDeficitInWattHours, 1e-6 * deficitInWattHours);
+        }
+    }
+
+    @Test
+    public void testDeviationFromFullResolution() throws IOException {
+        final EnergyPyramid pyramid = new EnergyPyramid().addAll(new SyntheticHistory(5, START, 30, 5000));
+        for (final double capacity : new double[] { 5000, 10000, 20000 }) {
+            final Battery fullResolution = new AggregateBatteryDischarge().aggregateBatteryDischarge(createBattery(capacity),
+                    new SyntheticHistory(5, START, 30, 5000));
+            for (int level = 0; level < pyramid.getNumberOfLevels(); level++) {
+                final Battery approximation = pyramid.replay(level, createBattery(capacity));
+                assertTrue(EnergyPyramid.isWithinTolerance(approximation.getSavingsInCents(),
+                        fullResolution.getSavingsInCents(), 0.02));
+            }
+        }
+    }
+
+    @Test
+    public void testZeroSavingsAreWithinTolerance() throws IOException {
+        final SavingsPerDischarge noSavings = (whenInMillis, energyInWattHours) -> 0;
+        final EnergyPyramid pyramid = new EnergyPyramid().addAll(new SyntheticHistory(5, START, 3, 5000));
+        final Battery fullResolution = new AggregateBatteryDischarge().aggregateBatteryDischarge(createBattery(10000, noSavings),
+                new SyntheticHistory(5, START, 3, 5000));
+        assertEquals(0, fullResolution.getSavingsInCents(), 0.0);
+        for (int level = 0; level < pyramid.getNumberOfLevels(); level++) {
+            assertTrue(EnergyPyramid.isWithinTolerance(pyramid.replay(level, createBattery(10000, noSavings)).getSavingsInCents(),
+                    fullResolution.getSavingsInCents(), 0.02));
+        }
+        assertTrue(EnergyPyramid.isWithinTolerance(EnergyPyramid.ABSOLUTE_TOLERANCE_IN_CENTS, 0, 0.02));
+        assertFalse(EnergyPyramid.isWithinTolerance(2 * EnergyPyramid.ABSOLUTE_TOLERANCE_IN_CENTS, 0, 0.02));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        final EnergyPyramid pyramid = new EnergyPyramid().addAll(new SyntheticHistory(6, START, 5, 5000));
+        final Path file = Files.createTempFile("pyramid", ".kep");
+        try {
+            pyramid.save(file);
+            final EnergyPyramid loaded = EnergyPyramid.load(file);
+            assertEquals(pyramid.getInitialSOCPercent(), loaded.getInitialSOCPercent());
+            for (int level = 0; level < pyramid.getNumberOfLevels(); level++) {
+                assertEquals(pyramid.getNumberOfBuckets(level), loaded.getNumberOfBuckets(level));
+                assertEquals(pyramid.replay(level, createBattery(10240)).getSavingsInCents(),
+                        loaded.replay(level, createBattery(10240)).getSavingsInCents(), 0.0);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.axeluhl.kostal.InfluxDbReadingSource;
+import de.axeluhl.kostal.ReadingSource;
+
+public class InfluxDbReadingSourceTest {
+    private static final long START = 1704067200000l; // 2024-01-01T00:00:00Z
+
+    private static final long DAY = 24l * 3600l * 1000l;
+
+    private static final long STEP = 60000;
+
+    private static final Pattern TIME_RANGE = Pattern.compile("time >= ([0-9]+)ms AND time < ([0-9]+)ms");
+
+    private HttpServer server;
+
+    private final AtomicInteger requestsInProgress = new AtomicInteger();
+
+    private final AtomicInteger maxRequestsInProgress = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/query", this::handleQuery);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    /**
+     * Answers with one reading per minute in the requested time range, repeating the CSV header every 500 lines like a
+     * chunked InfluxDB response, and with a row containing a {@code null} value at each midnight
+     */
+    private void handleQuery(HttpExchange exchange) throws IOException {
+        final int inProgress = requestsInProgress.incrementAndGet();
+        maxRequestsInProgress.accumulateAndGet(inProgress, Math::max);
+        try {
+            final String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), StandardCharsets.UTF_8.name());
+            final Matcher matcher = TIME_RANGE.matcher(query);
+            if (!query.contains("db=kostal") || !query.contains("FROM \"pv\"") || !matcher.find()) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            final StringBuilder body = new StringBuilder();
+            int lines = 0;
+            for (long time = Long.parseLong(matcher.group(1)); time < Long.parseLong(matcher.group(2)); time += STEP) {
+                if (lines++ % 500 == 0) {
+                    body.append("name,tags,time,Home own consumption,PV production,Total active power (powermeter),Battery actual SOC,Battery Charge\r\n");
+                }
+                body.append("pv,,").append(time * 1000000l).append(',').append(time % 1000).append('.').append(5).append(',')
+                    .append(time % DAY == 0 ? "" : "1200").append(',').append(-42.25).append(',').append(time % 100).append(',')
+                    .append(17).append("\r\n");
+            }
+            Thread.sleep(20); // make the requests overlap
+            final boolean gzip = "gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            if (gzip) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/csv");
+            exchange.sendResponseHeaders(200, 0);
+            try (final OutputStream out = gzip ? new GZIPOutputStream(exchange.getResponseBody()) : exchange.getResponseBody()) {
+                out.write(body.toString().getBytes(StandardCharsets.US_ASCII));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+            requestsInProgress.decrementAndGet();
+        }
+    }
+
+    private String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Test
+    public void testReadingsInOrderAcrossChunks() throws IOException {
+        final int days = 10;
+        try (final InfluxDbReadingSource readings = new InfluxDbReadingSource(getBaseUrl(), "kostal", "pv", START,
+                START + days * DAY + 3600000, DAY, 3)) {
+            long expectedTime = START + STEP; // the first reading of each day has a null value and is skipped
+            long count = 0;
+            while (readings.next()) {
+                if (expectedTime % DAY == 0) {
+                    expectedTime += STEP;
+                }
+                assertEquals(expectedTime, readings.getTimeInMillis());
+                assertEquals(expectedTime % 1000 + 0.5, readings.getHomeOwnConsumptionInWatts(), 0.0);
+                assertEquals(1200, readings.getPvProductionInWatts(), 0.0);
+                assertEquals(-42.25, readings.getTotalActivePowerInWatts(), 0.0);
+                assertEquals(expectedTime % 100, readings.getBatterySOC());
+                assertEquals(17, readings.getBatteryChargeInWatts(), 0.0);
+                expectedTime += STEP;
+                count++;
+            }
+            assertFalse(readings.next());
+            assertEquals((days * DAY + 3600000) / STEP - (days + 1), count); // one null value per midnight
+            assertEquals(days + 1, readings.getNumberOfSkippedLines());
+        }
+        assertTrue(maxRequestsInProgress.get() > 1);
+        assertTrue(maxRequestsInProgress.get() <= 3);
+    }
+
+    @Test(expected = IOException.class)
+    public void testErrorStatus() throws IOException {
+        try (final ReadingSource readings = new InfluxDbReadingSource(getBaseUrl(), "kostal", "unknown", START,
+                START + DAY, DAY, 1)) {
+            readings.next();
+        }
+    }
+}
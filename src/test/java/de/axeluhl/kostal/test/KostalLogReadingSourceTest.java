@@ -0,0 +1,150 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.axeluhl.kostal.KostalLogReadingSource;
+
+public class KostalLogReadingSourceTest {
+    private static final long START_IN_SECONDS = 1702166400l; // 2023-12-10T00:00:00Z
+
+    private static final long STEP_IN_SECONDS = 300;
+
+    private static final int NUMBER_OF_COLUMNS = 52;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("logs");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (final String name : directory.toFile().list()) {
+            Files.delete(directory.resolve(name));
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * The header of an export, naming the home consumption columns 43 to 45
+     */
+    private static String header() {
+        final StringBuilder result = new StringBuilder("Wechselrichter Typ:\tPLENTICORE plus 10\r\nName:\tkostal\r\n"
+                + "Logdaten U[V], I[mA], P[W], E[kWh], F[Hz], R[kOhm], Ain T[digit], Zeit[sec]\r\n\r\n\r\nZeit");
+        for (int column = 2; column <= NUMBER_OF_COLUMNS; column++) {
+            result.append('\t');
+            result.append(column == 4 ? "DC1 P" : column == 9 ? "DC2 P" : column == 43 ? "HC1 P" : column == 44 ? "HC2 P"
+                    : column == 45 ? "HC3 P" : column == 48 ? "SOC H" : "C" + column);
+        }
+        return result.append("\r\n").toString();
+    }
+
+    /**
+     * A line of an export where every column holds a value derived from the reading's index and the column number;
+     * the battery SOC is missing for odd indices
+     */
+    private static String line(int i) {
+        final StringBuilder result = new StringBuilder().append(START_IN_SECONDS + i * STEP_IN_SECONDS);
+        for (int column = 2; column <= NUMBER_OF_COLUMNS; column++) {
+            result.append('\t');
+            if (column == 48) {
+                result.append(i % 2 == 0 ? String.valueOf(i % 100) : "-");
+            } else if (column != 45 || i % 3 != 0) {
+                result.append(i * 10 + column);
+            }
+        }
+        return result.append("\r\n").toString();
+    }
+
+    private void write(String name, int from, int to, boolean gzip) throws IOException {
+        final StringBuilder content = new StringBuilder(header());
+        for (int i = from; i < to; i++) {
+            content.append(line(i));
+        }
+        try (final OutputStream out = gzip ? new GZIPOutputStream(Files.newOutputStream(directory.resolve(name)))
+                : Files.newOutputStream(directory.resolve(name))) {
+            out.write(content.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Test
+    public void testOverlappingExports() throws IOException {
+        write("logdata-2.dat", 100, 300, /* gzip */ false);
+        write("logdata-1.dat.gz", 0, 150, /* gzip */ true);
+        write("logdata-3.dat", 300, 400, /* gzip */ false);
+        try (final KostalLogReadingSource readings = new KostalLogReadingSource(Arrays.asList(
+                directory.resolve("logdata-2.dat"), directory.resolve("logdata-1.dat.gz"), directory.resolve("logdata-3.dat")),
+                Collections.emptyMap())) {
+            for (int i = 0; i < 400; i++) {
+                assertTrue(readings.next());
+                assertEquals((START_IN_SECONDS + i * STEP_IN_SECONDS) * 1000, readings.getTimeInMillis());
+                assertEquals(2 * i * 10 + 4 + 9, readings.getPvProductionInWatts(), 0.0);
+                // HC3 P is empty for every third reading
+                assertEquals(2 * i * 10 + 43 + 44 + (i % 3 == 0 ? 0 : i * 10 + 45), readings.getHomeOwnConsumptionInWatts(), 0.0);
+                // the SOC is carried forward where it is missing
+                assertEquals((i - i % 2) % 100, readings.getBatterySOC());
+                assertEquals(0, readings.getTotalActivePowerInWatts(), 0.0);
+            }
+            assertFalse(readings.next());
+            assertEquals(50, readings.getNumberOfSkippedReadings());
+        }
+    }
+
+    @Test
+    public void testSOCCarriedForwardAcrossFiles() throws IOException {
+        write("logdata-1.dat", 0, 91, /* gzip */ false);
+        write("logdata-2.dat", 91, 200, /* gzip */ false); // starts without a SOC
+        try (final KostalLogReadingSource readings = new KostalLogReadingSource(Arrays.asList(
+                directory.resolve("logdata-2.dat"), directory.resolve("logdata-1.dat")), Collections.emptyMap())) {
+            for (int i = 0; i < 200; i++) {
+                assertTrue(readings.next());
+                assertEquals((i - i % 2) % 100, readings.getBatterySOC());
+            }
+            assertFalse(readings.next());
+        }
+    }
+
+    @Test
+    public void testCustomColumns() throws IOException {
+        write("logdata.dat", 0, 10, /* gzip */ false);
+        try (final KostalLogReadingSource readings = new KostalLogReadingSource(Collections.singletonList(directory.resolve("logdata.dat")),
+                KostalLogReadingSource.parseColumns("pv=DC1 P+DC2 P+#14, battery=-#14, grid=#30"))) {
+            for (int i = 0; i < 10; i++) {
+                assertTrue(readings.next());
+                assertEquals(3 * i * 10 + 4 + 9 + 14, readings.getPvProductionInWatts(), 0.0);
+                assertEquals(-(i * 10 + 14), readings.getBatteryChargeInWatts(), 0.0);
+                assertEquals(i * 10 + 30, readings.getTotalActivePowerInWatts(), 0.0);
+            }
+            assertFalse(readings.next());
+        }
+    }
+
+    @Test
+    public void testUnknownColumn() throws IOException {
+        write("logdata.dat", 0, 10, /* gzip */ false);
+        try {
+            new KostalLogReadingSource(Collections.singletonList(directory.resolve("logdata.dat")),
+                    KostalLogReadingSource.parseColumns("home=Home P"));
+            fail("Expected the unknown column to be reported");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Home P"));
+        }
+    }
+}
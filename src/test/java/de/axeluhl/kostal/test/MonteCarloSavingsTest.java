@@ -0,0 +1,97 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.EnergyPyramid;
+import de.axeluhl.kostal.MonteCarloSavings;
+import de.axeluhl.kostal.PriceCurve;
+import de.axeluhl.kostal.SavingsPerDischarge;
+
+public class MonteCarloSavingsTest {
+    private static final long START = 1704067200000l; // 2024-01-01T00:00:00Z
+
+    private static final long DAY = 24 * 3600 * 1000l;
+
+    private static final PriceCurve TARIFF = timeInMillis -> 30;
+
+    private static final PriceCurve COMPENSATION = timeInMillis -> 8;
+
+    private static final Supplier<Battery> BATTERIES = () -> new Battery(5, 5600, 3400, 100, 10240, 0,
+            SavingsPerDischarge.forPriceCurves(TARIFF, COMPENSATION));
+
+    /**
+     * A history where every day looks the same: a constant home consumption of 500W and a PV production peaking at
+     * 4kW at noon, with a reading every minute from {@code fromInMillis} up to and including {@code toInMillis}
+     */
+    private static EnergyPyramid sameEveryDay(long fromInMillis, long toInMillis) {
+        final EnergyPyramid pyramid = new EnergyPyramid(900);
+        for (long time = fromInMillis; time <= toInMillis; time += 60000) {
+            final double hourOfDay = (time % DAY) / 3600000.0;
+            pyramid.add(time, Math.max(0, 4000 * Math.sin((hourOfDay - 6) / 12 * Math.PI)), 500, 50);
+        }
+        return pyramid;
+    }
+
+    @Test
+    public void testIdenticalDaysReproduceReplay() {
+        final MonteCarloSavings monteCarlo = new MonteCarloSavings(sameEveryDay(START, START + 14 * DAY), 0, ZoneOffset.UTC, 3);
+        assertEquals(14, monteCarlo.getNumberOfDays());
+        final double[] savingsInCents = monteCarlo.simulate(2023, 20, 42, BATTERIES);
+        // however the days are drawn, the year consists of the same day 365 times
+        final long yearStart = LocalDate.of(2023, 1, 1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        final Battery expected = sameEveryDay(yearStart, yearStart + 365 * DAY).replay(0, BATTERIES.get());
+        assertTrue(expected.getSavingsInCents() > 0);
+        for (final double savings : savingsInCents) {
+            assertEquals(expected.getSavingsInCents(), savings, 1e-6);
+        }
+    }
+
+    @Test
+    public void testDeterministicForSeed() throws IOException {
+        final EnergyPyramid pyramid = new EnergyPyramid(900);
+        try (final SyntheticHistory history = new SyntheticHistory(7, START, 90, 60000)) {
+            pyramid.addAll(history);
+        }
+        final MonteCarloSavings monteCarlo = new MonteCarloSavings(pyramid, 0, ZoneId.of("Europe/Berlin"), 5);
+        final double[] savingsInCents = monteCarlo.simulate(2024, 50, 1, BATTERIES);
+        assertArrayEquals(savingsInCents, monteCarlo.simulate(2024, 50, 1, BATTERIES), 0.0);
+        assertFalse(Arrays.equals(savingsInCents, monteCarlo.simulate(2024, 50, 2, BATTERIES)));
+        final double[] sorted = savingsInCents.clone();
+        Arrays.sort(sorted);
+        assertTrue(sorted[0] < sorted[sorted.length - 1]);
+        double last = Double.NEGATIVE_INFINITY;
+        for (final double percent : MonteCarloSavings.DEFAULT_PERCENTILES) {
+            final double percentile = MonteCarloSavings.percentile(sorted, percent);
+            assertTrue(percentile >= last);
+            last = percentile;
+        }
+        assertEquals(sorted[0], MonteCarloSavings.percentile(sorted, 0), 0.0);
+        assertEquals(sorted[sorted.length - 1], MonteCarloSavings.percentile(sorted, 100), 0.0);
+    }
+
+    @Test
+    public void testPercentile() {
+        assertEquals(2.5, MonteCarloSavings.percentile(new double[] { 1, 2, 3, 4 }, 50), 1e-9);
+        assertEquals(Double.POSITIVE_INFINITY, MonteCarloSavings.percentile(new double[] { 1, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY }, 75), 0.0);
+    }
+
+    @Test
+    public void testPercentileAtIntegralPosition() {
+        assertEquals(3, MonteCarloSavings.percentile(new double[] { 1, 2, 3, 4, 5 }, 50), 0.0);
+        assertEquals(2, MonteCarloSavings.percentile(new double[] { 1, 2, Double.POSITIVE_INFINITY }, 50), 0.0);
+        assertEquals(Double.POSITIVE_INFINITY, MonteCarloSavings.percentile(new double[] { 1, 2, Double.POSITIVE_INFINITY }, 100), 0.0);
+    }
+}
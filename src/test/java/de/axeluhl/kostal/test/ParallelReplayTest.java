@@ -0,0 +1,131 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.AggregateBatteryDischarge;
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.BinaryHistoryReader;
+import de.axeluhl.kostal.BinaryHistoryWriter;
+import de.axeluhl.kostal.ParallelReplay;
+import de.axeluhl.kostal.PriceCurve;
+import de.axeluhl.kostal.SavingsPerDischarge;
+
+public class ParallelReplayTest {
+    private static final long START = 1704067200000l; // 2024-01-01T00:00:00Z
+
+    private static Battery replaySequentially(double capacityInWattHours, int days) throws IOException {
+        final Battery battery = new Battery(/* minSOCPercent */ 5, /* maxChargePowerInWatts */ 5600,
+                /* reducedChargePowerInWatts */ 3400, /* socPercentWhereReducedChargePowerStarts */ 99.5,
+                capacityInWattHours, /* energyContainedWh */ 0, SavingsPerDischarge.FUNCTION);
+        new AggregateBatteryDischarge().aggregateBatteryDischarge(battery, new SyntheticHistory(7, START, days, 5000));
+        return battery;
+    }
+
+    private static ParallelReplay.Result replayInParallel(double capacityInWattHours, int days, double tolerance) throws IOException {
+        final ParallelReplay.History history = ParallelReplay.History.load(new SyntheticHistory(7, START, days, 5000));
+        assertEquals(days, history.getNumberOfChunks());
+        return new ParallelReplay(/* minSOCPercent */ 5, /* maxChargePowerInWatts */ 5600,
+                /* reducedChargePowerInWatts */ 3400, /* socPercentWhereReducedChargePowerStarts */ 99.5,
+                capacityInWattHours, SavingsPerDischarge.FUNCTION, tolerance).replay(history);
+    }
+
+    @Test
+    public void testExactParallelReplayEqualsSequentialReplay() throws IOException {
+        for (final double capacity : new double[] { 5000, 20000, 60000 }) {
+            final Battery sequential = replaySequentially(capacity, 20);
+            final ParallelReplay.Result parallel = replayInParallel(capacity, 20, 0);
+            assertEquals(sequential.getEnergyContainedInWattHours(), parallel.getEnergyContainedInWattHours(), 0.0);
+            assertEquals(sequential.getSavingsInCents(), parallel.getSavingsInCents(), 1e-6);
+        }
+    }
+
+    @Test
+    public void testDefaultToleranceConverges() throws IOException {
+        final Battery sequential = replaySequentially(10240, 20);
+        final ParallelReplay.Result parallel = replayInParallel(10240, 20, ParallelReplay.DEFAULT_TOLERANCE_IN_WATT_HOURS);
+        assertEquals(sequential.getEnergyContainedInWattHours(), parallel.getEnergyContainedInWattHours(), 1e-6);
+        assertEquals(sequential.getSavingsInCents(), parallel.getSavingsInCents(), 1e-4);
+        assertTrue(parallel.getIterations() < 20);
+    }
+
+    @Test
+    public void testToleranceBoundOnClampingHistory() throws IOException {
+        final PriceCurve tariff = timeInMillis -> 30;
+        final PriceCurve compensation = timeInMillis -> 8;
+        final SavingsPerDischarge savings = SavingsPerDischarge.forPriceCurves(tariff, compensation);
+        final double capacity = 4000;
+        final int days = 30;
+        final double tolerance = 1;
+        final Battery sequential = new Battery(5, 5600, 3400, 99.5, capacity, 0, savings);
+        final double[] minAndMaxEnergy = { Double.MAX_VALUE, -Double.MAX_VALUE };
+        final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge();
+        aggregator.setReplayListener((startInMillis, durationInMillis, pvProductionInWatts, homeOwnConsumptionInWatts,
+                energyAddedInWattHours, savingsInCents, virtualBattery) -> {
+            minAndMaxEnergy[0] = Math.min(minAndMaxEnergy[0], virtualBattery.getEnergyContainedInWattHours());
+            minAndMaxEnergy[1] = Math.max(minAndMaxEnergy[1], virtualBattery.getEnergyContainedInWattHours());
+        });
+        aggregator.aggregateBatteryDischarge(sequential, new SyntheticHistory(11, START, days, 5000));
+        // the battery is clamped both at full and at the minimum SOC
+        assertEquals(capacity, minAndMaxEnergy[1], 1e-9);
+        assertEquals(0.05 * capacity, minAndMaxEnergy[0], 1e-9);
+        final ParallelReplay.Result parallel = new ParallelReplay(5, 5600, 3400, 99.5, capacity, savings, tolerance)
+                .replay(ParallelReplay.History.load(new SyntheticHistory(11, START, days, 5000)));
+        // each chunk starts within the tolerance of the exact energy, which bounds its deviation in savings
+        assertEquals(sequential.getEnergyContainedInWattHours(), parallel.getEnergyContainedInWattHours(), tolerance);
+        assertEquals(sequential.getSavingsInCents(), parallel.getSavingsInCents(),
+                days * tolerance * Battery.DISCHARGE_LOSS_FACTOR * savings.getSavingsInCents(START, 1.0));
+    }
+
+    @Test
+    public void testParallelReplayWithNonRoundMinSOCEqualsSequentialReplay() throws IOException {
+        // 7% of 10240Wh, divided by the capacity again, is slightly less than 7%
+        final Battery sequential = new Battery(7, 5600, 3400, 99.5, 10240, 0, SavingsPerDischarge.FUNCTION);
+        assertEquals(7, sequential.getMinSOCPercent());
+        new AggregateBatteryDischarge().aggregateBatteryDischarge(sequential, new SyntheticHistory(7, START, 20, 5000));
+        // built from the battery's parameters, as AggregateBatteryDischarge does for --parallel
+        final ParallelReplay.Result parallel = new ParallelReplay(sequential.getMinSOCPercent(), sequential.getMaxChargePowerInWatts(),
+                sequential.getReducedChargePowerInWatts(), sequential.getSocPercentWhereReducedChargePowerStarts(),
+                sequential.getCapacityInWattHours(), SavingsPerDischarge.FUNCTION, 0)
+                .replay(ParallelReplay.History.load(new SyntheticHistory(7, START, 20, 5000)));
+        assertEquals(sequential.getEnergyContainedInWattHours(), parallel.getEnergyContainedInWattHours(), 0.0);
+        assertEquals(sequential.getSavingsInCents(), parallel.getSavingsInCents(), 1e-6);
+    }
+
+    @Test
+    public void testMappedHistoryEqualsSequentialReplay() throws IOException {
+        final Path file = Files.createTempFile("history", ".kbh");
+        try {
+            try (final BinaryHistoryWriter writer = new BinaryHistoryWriter(file)) {
+                writer.append(new SyntheticHistory(3, START, 12, 5000));
+            }
+            // a range starting and ending in the middle of a day
+            final long from = START + 36 * 3600000l + 2500;
+            final long to = START + 250 * 3600000l;
+            final Battery sequential = new Battery(5, 5600, 3400, 99.5, 10240, 0, SavingsPerDischarge.FUNCTION);
+            try (final BinaryHistoryReader reader = new BinaryHistoryReader(file)) {
+                reader.setRange(from, to);
+                new AggregateBatteryDischarge().aggregateBatteryDischarge(sequential, reader);
+            }
+            final BinaryHistoryReader reader = new BinaryHistoryReader(file);
+            reader.setRange(from, to);
+            try (final ParallelReplay.History history = ParallelReplay.History.map(reader)) {
+                assertEquals(10, history.getNumberOfChunks());
+                final ParallelReplay.Result parallel = new ParallelReplay(5, 5600, 3400, 99.5, 10240, SavingsPerDischarge.FUNCTION, 0)
+                        .replay(history);
+                assertEquals(sequential.getEnergyContainedInWattHours(), parallel.getEnergyContainedInWattHours(), 0.0);
+                assertEquals(sequential.getSavingsInCents(), parallel.getSavingsInCents(), 1e-6);
+                assertTrue(parallel.getLastTimestampInMillis() < to);
+                assertTrue(parallel.getLastTimestampInMillis() >= to - 5000);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.axeluhl.kostal.PipelinedFileReadingSource;
+
+public class PipelinedFileReadingSourceTest {
+    private static final long START = 1702166400000l; // 2023-12-10T00:00:00Z
+
+    private static final long STEP = 5000l;
+
+    private static final int READINGS_PER_FILE = 1000;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("archive");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (final String name : directory.toFile().list()) {
+            Files.delete(directory.resolve(name));
+        }
+        Files.delete(directory);
+    }
+
+    private static String lines(int file) {
+        final StringBuilder result = new StringBuilder();
+        for (int i = file * READINGS_PER_FILE; i < (file + 1) * READINGS_PER_FILE; i++) {
+            result.append((START + i * STEP) * 1000000l).append(' ').append(500 + i % 1000).append(' ').append(i % 3000)
+                    .append(' ').append(-i % 700).append(' ').append(i % 101).append(' ').append(i % 5600).append('\n');
+        }
+        return result.toString();
+    }
+
+    private void write(String name, String content, boolean gzip) throws IOException {
+        try (final OutputStream out = gzip ? new GZIPOutputStream(Files.newOutputStream(directory.resolve(name)))
+                : Files.newOutputStream(directory.resolve(name))) {
+            out.write(content.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void assertReadings(PipelinedFileReadingSource readings, int numberOfFiles) throws IOException {
+        for (int i = 0; i < numberOfFiles * READINGS_PER_FILE; i++) {
+            assertTrue(readings.next());
+            assertEquals(START + i * STEP, readings.getTimeInMillis());
+            assertEquals(500 + i % 1000, readings.getHomeOwnConsumptionInWatts(), 0.0);
+            assertEquals(i % 3000, readings.getPvProductionInWatts(), 0.0);
+            assertEquals(-i % 700, readings.getTotalActivePowerInWatts(), 0.0);
+            assertEquals(i % 101, readings.getBatterySOC());
+            assertEquals(i % 5600, readings.getBatteryChargeInWatts(), 0.0);
+        }
+        assertFalse(readings.next());
+    }
+
+    @Test
+    public void testDirectoryInTimeOrder() throws IOException {
+        // names sort differently from the time stamps; the last line of the uncompressed file has no line feed
+        write("b.gz", lines(0), /* gzip */ true);
+        write("a", lines(1).trim(), /* gzip */ false);
+        write("c.gz", lines(2), /* gzip */ true);
+        write("empty", "\n", /* gzip */ false);
+        write(".hidden", "garbage", /* gzip */ false);
+        // tiny buffers and pools, so that lines span chunks and all buffers are re-used many times
+        try (final PipelinedFileReadingSource readings = new PipelinedFileReadingSource(
+                Arrays.asList(directory.resolve("c.gz"), directory.resolve("a"), directory.resolve("b.gz"), directory.resolve("empty")),
+                /* lenient */ false, /* chunkSizeInBytes */ 100, /* numberOfChunks */ 2, /* readingsPerBatch */ 7, /* numberOfBatches */ 2)) {
+            assertReadings(readings, 3);
+        }
+        try (final PipelinedFileReadingSource readings = new PipelinedFileReadingSource(directory, /* lenient */ false)) {
+            assertReadings(readings, 3);
+        }
+    }
+
+    @Test
+    public void testLenient() throws IOException {
+        write("a.gz", lines(0) + "garbage\n" + lines(1), /* gzip */ true);
+        write("b", lines(2) + "more garbage\n\n" + lines(3), /* gzip */ false);
+        try (final PipelinedFileReadingSource readings = new PipelinedFileReadingSource(directory, /* lenient */ true)) {
+            assertReadings(readings, 4);
+            // the counts of both files' parsers add up
+            assertEquals(4 * READINGS_PER_FILE + 3, readings.getNumberOfLines());
+            assertEquals(2, readings.getNumberOfMalformedLines());
+        }
+        try (final PipelinedFileReadingSource readings = new PipelinedFileReadingSource(directory, /* lenient */ false)) {
+            while (readings.next()) {
+            }
+            fail("Expected the malformed line to be reported");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCorruptArchive() throws IOException {
+        final byte[] compressed;
+        write("a.gz", lines(0) + lines(1), /* gzip */ true);
+        compressed = Files.readAllBytes(directory.resolve("a.gz"));
+        Files.write(directory.resolve("a.gz"), Arrays.copyOf(compressed, compressed.length / 2));
+        try (final PipelinedFileReadingSource readings = new PipelinedFileReadingSource(directory, /* lenient */ false)) {
+            while (readings.next()) {
+            }
+            fail("Expected the truncated archive to be reported");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCloseEarly() throws IOException {
+        write("a.gz", lines(0) + lines(1), /* gzip */ true);
+        final PipelinedFileReadingSource readings = new PipelinedFileReadingSource(
+                Arrays.asList(directory.resolve("a.gz")), /* lenient */ false, 100, 2, 7, 2);
+        assertTrue(readings.next());
+        readings.close();
+        assertFalse(readings.next());
+    }
+}
@@ -0,0 +1,96 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.PriceCurve;
+import de.axeluhl.kostal.SavingsPerDischarge;
+import de.axeluhl.kostal.SortedPriceCurve;
+import de.axeluhl.kostal.Tariff;
+
+public class PriceCurveTest {
+    private static final long FIFTEEN_MINUTES = 15l * 60l * 1000l;
+
+    private static final long START = 1704067200000l; // 2024-01-01T00:00:00Z
+
+    private static SortedPriceCurve createSpotPrices(int intervals) {
+        final long[] starts = new long[intervals];
+        final double[] prices = new double[intervals];
+        for (int i = 0; i < intervals; i++) {
+            starts[i] = START + i * FIFTEEN_MINUTES;
+            prices[i] = 20 + 15 * Math.sin(i / 10.0);
+        }
+        return new SortedPriceCurve(starts, prices);
+    }
+
+    @Test
+    public void testTariffInEffect() {
+        assertEquals(31, Tariff.CURVE.getCentsPerKWh(Instant.parse("2022-12-31T00:00:00Z").toEpochMilli()), 0.0);
+        assertEquals(71.4, Tariff.CURVE.getCentsPerKWh(Tariff.MAINGAU_WAR.getStartsAt().toEpochMilli()), 0.0);
+        assertEquals(54.09, Tariff.CURVE.getCentsPerKWh(Tariff.GRUENWELT.getStartsAt().toEpochMilli() - 1), 0.0);
+        assertEquals(36.77 * 2, Tariff.getCents(Instant.parse("2024-06-01T00:00:00Z"), 2000), 1e-9);
+    }
+
+    @Test
+    public void testCursorMatchesBinarySearch() {
+        final SortedPriceCurve curve = createSpotPrices(35040);
+        final PriceCurve cursor = curve.cursor();
+        final Random random = new Random(4711);
+        long time = START;
+        for (int i = 0; i < 100000; i++) {
+            // mostly forward in small steps, occasionally jumping backwards or far ahead
+            final int move = random.nextInt(100);
+            time = move == 0 ? START + (long) (random.nextDouble() * 365 * 24 * 3600 * 1000)
+                    : time + random.nextInt(10000);
+            assertEquals(curve.getCentsPerKWh(time), cursor.getCentsPerKWh(time), 0.0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoPriceBeforeFirstInterval() {
+        createSpotPrices(10).cursor().getCentsPerKWh(START - 1);
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        final Path file = Files.createTempFile("prices", ".txt");
+        try {
+            Files.write(file, Arrays.asList("# spot prices", "2024-01-01T00:00:00Z 20.5", "", "1704068100 21",
+                    "2024-01-02 19.25"), StandardCharsets.UTF_8);
+            final SortedPriceCurve curve = SortedPriceCurve.load(file);
+            assertEquals(3, curve.size());
+            assertEquals(20.5, curve.getCentsPerKWh(START + FIFTEEN_MINUTES - 1), 0.0);
+            assertEquals(21, curve.getCentsPerKWh(START + FIFTEEN_MINUTES), 0.0);
+            assertEquals(19.25, curve.getCentsPerKWh(START + 24 * 3600 * 1000), 0.0);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testBatterySavingsWithDynamicTariff() {
+        final SortedPriceCurve spotPrices = createSpotPrices(96);
+        final PriceCurve compensation = time -> 8;
+        final Battery battery = new Battery(/* minSOCPercent */ 5, /* maxChargePowerInWatts */ 5600,
+                /* reducedChargePowerInWatts */ 3000, /* socPercentWhereReducedChargePowerStarts */ 99.5,
+                /* capacityInWattHours */ 10000, /* energyContainedWh */ 10000,
+                SavingsPerDischarge.forPriceCurves(spotPrices.cursor(), compensation));
+        double expectedSavingsInCents = 0;
+        for (int i = 0; i < 8; i++) {
+            battery.charge(-400, START + i * FIFTEEN_MINUTES, FIFTEEN_MINUTES);
+            expectedSavingsInCents += 400 * Battery.DISCHARGE_LOSS_FACTOR / 4 / 1000
+                    * (spotPrices.getCentsPerKWh(START + i * FIFTEEN_MINUTES) - 8);
+        }
+        assertEquals(expectedSavingsInCents, battery.getSavingsInCents(), 1e-9);
+    }
+}
@@ -0,0 +1,97 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.ReadingParser;
+
+public class ReadingParserTest {
+    @Test
+    public void testColumnMapping() throws IOException {
+        final ReadingParser parser = new ReadingParser(new StringReader(
+                "1702236023000000000 545.5   1234   \t-544.8   9   -1500.25  42\n"));
+        assertTrue(parser.next());
+        assertEquals(1702236023000l, parser.getTimeInMillis());
+        assertEquals(545.5, parser.getHomeOwnConsumptionInWatts(), 0.0);
+        assertEquals(1234, parser.getPvProductionInWatts(), 0.0);
+        assertEquals(-544.8, parser.getTotalActivePowerInWatts(), 0.0);
+        assertEquals(9, parser.getBatterySOC());
+        assertEquals(-1500.25, parser.getBatteryChargeInWatts(), 0.0);
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void testBlankLinesAndMissingTrailingLineFeed() throws IOException {
+        final ReadingParser parser = new ReadingParser(new ByteArrayInputStream((
+                "\n   \r\n1702236023000000000 1 2 3 4 5\r\n\n1702236028000000000 6 7 8 9 10").getBytes(StandardCharsets.US_ASCII)));
+        assertTrue(parser.next());
+        assertEquals(5, parser.getBatteryChargeInWatts(), 0.0);
+        assertTrue(parser.next());
+        assertEquals(1702236028000l, parser.getTimeInMillis());
+        assertEquals(10, parser.getBatteryChargeInWatts(), 0.0);
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void testLinesSpanningBufferBoundaries() throws IOException {
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            input.append(1702236023000000000l + i * 5000000000l).append(' ').append(i).append(".125 ").append(2 * i)
+                    .append(" 1e2 ").append(i % 100).append(' ').append(-i).append('\n');
+        }
+        // a tiny buffer that forces lines to span refills and the buffer to grow
+        final ReadingParser parser = new ReadingParser(
+                new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.US_ASCII)), 7);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(parser.next());
+            assertEquals(1702236023000l + i * 5000l, parser.getTimeInMillis());
+            assertEquals(Double.parseDouble(i + ".125"), parser.getHomeOwnConsumptionInWatts(), 0.0);
+            assertEquals(2 * i, parser.getPvProductionInWatts(), 0.0);
+            assertEquals(100, parser.getTotalActivePowerInWatts(), 0.0);
+            assertEquals(i % 100, parser.getBatterySOC());
+            assertEquals(-i, parser.getBatteryChargeInWatts(), 0.0);
+        }
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void testNumbersParsedLikeJdk() throws IOException {
+        final String[] numbers = { "0.1", "-0.3", "544.8", "12345678.901234", "1.7976931348623157e308", "4.9e-324",
+                "123456789012345678901234567890", "0.000000000000000000000000001", "+7", "2.5E-3" };
+        for (final String number : numbers) {
+            final ReadingParser parser = new ReadingParser(new StringReader("0 " + number + " 0 0 0 0"));
+            assertTrue(parser.next());
+            assertEquals(number, Double.parseDouble(number), parser.getHomeOwnConsumptionInWatts(), 0.0);
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testTooFewColumns() throws IOException {
+        new ReadingParser(new StringReader("1702236023000000000 545 0 544.8 9\n")).next();
+    }
+
+    @Test
+    public void testInfluxDbCsvNullValuesCounted() throws IOException {
+        final ReadingParser parser = ReadingParser.forInfluxDbCsv(new ByteArrayInputStream((
+                "name,tags,time,Home own consumption,PV production,Total active power (powermeter),Battery actual SOC,Battery Charge\r\n"
+                + "pv,,1702236023000000000,1,2,3,4,5\r\n"
+                + "pv,,1702236028000000000,1,,3,4,5\r\n"
+                + "pv,,1702236033000000000,1,2,3,4,\r\n"
+                + "pv,,1702236038000000000,6,7,8,9,10\r\n").getBytes(StandardCharsets.US_ASCII)));
+        assertTrue(parser.next());
+        assertTrue(parser.next());
+        assertEquals(1702236038000l, parser.getTimeInMillis());
+        assertFalse(parser.next());
+        assertEquals(2, parser.getNumberOfLinesWithNullValues());
+        assertEquals(2, parser.getNumberOfSkippedLines());
+        assertEquals(0, parser.getNumberOfMalformedLines());
+    }
+}
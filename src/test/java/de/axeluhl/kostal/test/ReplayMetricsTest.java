@@ -0,0 +1,111 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.AggregateBatteryDischarge;
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.ReadingBatch;
+import de.axeluhl.kostal.ReadingParser;
+import de.axeluhl.kostal.ReplayMetrics;
+
+public class ReplayMetricsTest {
+    private static final long START = 1704067200000l; // 2024-01-01T00:00:00Z
+
+    private static Battery createBattery() {
+        return new Battery(/* minSOCPercent */ 10, /* maxChargePowerInWatts */ 5000,
+                /* reducedChargePowerInWatts */ 2000, /* socPercentWhereReducedChargePowerStarts */ 90,
+                /* capacityInWattHours */ 10000, /* energyContainedWh */ 0, (when, energy) -> 0);
+    }
+
+    private static ReplayMetrics replay(ReadingBatch readings) throws IOException {
+        final ReplayMetrics metrics = new ReplayMetrics();
+        final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge();
+        aggregator.setReplayListener(metrics);
+        aggregator.aggregateBatteryDischarge(createBattery(), metrics.meter(readings));
+        return metrics;
+    }
+
+    @Test
+    public void testGapsAndTruncation() throws IOException {
+        final ReadingBatch readings = new ReadingBatch();
+        readings.append(START, 1000, 1000, 0, 50, 0);
+        readings.append(START + 5000, 1000, 1000, 0, 50, 0);
+        readings.append(START + 5000, 1000, 1000, 0, 50, 0); // duplicate
+        readings.append(START + 4000, 1000, 1000, 0, 50, 0); // out of order
+        readings.append(START + 3600000, 0, 3600, 0, 50, 0); // gap of almost an hour
+        readings.append(START + 3601500, 0, 0, 0, 50, 0); // 1.5s at 3.6kW surplus; 0.5s truncated
+        final ReplayMetrics metrics = replay(readings);
+        assertEquals(6, metrics.getReadings());
+        assertEquals(5, metrics.getSteps());
+        assertEquals(1, metrics.getDuplicateTimestamps());
+        assertEquals(1, metrics.getOutOfOrderSteps());
+        assertEquals(3596000, metrics.getMaxGapInMillis());
+        assertEquals(1, metrics.getGaps(12)); // 2048s <= 3596s < 4096s
+        assertEquals(3600 * 0.5 / 3600, metrics.getTruncatedEnergyInWattHours(), 1e-12);
+        assertEquals(-1, metrics.getLines());
+    }
+
+    @Test
+    public void testClamps() throws IOException {
+        final ReadingBatch readings = new ReadingBatch();
+        readings.append(START, 0, 8000, 0, /* SOC */ 0, 0); // capped to 5kW, fills 4.925kWh
+        readings.append(START + 3600000, 0, 8000, 0, 0, 0); // capped to 5kW, fills up to 9.85kWh
+        readings.append(START + 7200000, 0, 8000, 0, 0, 0); // reduced to 2kW above 90% SOC, then full
+        readings.append(START + 10800000, 10000, 0, 0, 0, 0); // reduced to 2kW discharge above 90% SOC, down to 7.97kWh
+        readings.append(START + 14400000, 10000, 0, 0, 0, 0); // capped to 5kW, down to 2.895kWh
+        readings.append(START + 18000000, 10000, 0, 0, 0, 0); // capped to 5kW, stops at min SOC
+        readings.append(START + 21600000, 0, 0, 0, 0, 0);
+        final ReplayMetrics metrics = replay(readings);
+        assertEquals(4, metrics.getMaxPowerClamps());
+        assertEquals(2, metrics.getReducedChargePowerClamps());
+        assertEquals(1, metrics.getCapacityClamps());
+        assertEquals(1, metrics.getMinSOCClamps());
+    }
+
+    @Test
+    public void testTruncationOfClampedSteps() throws IOException {
+        final ReadingBatch capped = new ReadingBatch();
+        capped.append(START, 0, 8000, 0, /* SOC */ 50, 0);
+        capped.append(START + 1500, 0, 0, 0, 50, 0); // 1.5s at 8kW surplus, capped to 5kW; 0.5s truncated
+        final ReplayMetrics cappedMetrics = replay(capped);
+        assertEquals(1, cappedMetrics.getMaxPowerClamps());
+        assertEquals(5000 * 0.5 / 3600, cappedMetrics.getTruncatedEnergyInWattHours(), 1e-12);
+        final ReadingBatch full = new ReadingBatch();
+        full.append(START, 0, 1000, 0, /* SOC */ 100, 0);
+        full.append(START + 1500, 0, 0, 0, 100, 0); // the full battery wouldn't have taken the truncated 0.5s either
+        final ReplayMetrics fullMetrics = replay(full);
+        assertEquals(1, fullMetrics.getCapacityClamps());
+        assertEquals(0, fullMetrics.getTruncatedEnergyInWattHours(), 0.0);
+    }
+
+    @Test
+    public void testMalformedLinesInLenientMode() throws IOException {
+        final String text = "1704067200000000000 500 0 500 50 0\n"
+                + "not a reading\n"
+                + "\n"
+                + "1704067205000000000 500 x 500 50 0\n"
+                + "1704067210000000000 500 0 500 50 0\n";
+        final ReadingParser parser = new ReadingParser(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+        parser.setLenient(true);
+        final ReplayMetrics metrics = new ReplayMetrics();
+        final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge();
+        aggregator.setReplayListener(metrics);
+        aggregator.aggregateBatteryDischarge(createBattery(), metrics.meter(parser));
+        assertEquals(2, metrics.getReadings());
+        assertEquals(5, metrics.getLines());
+        assertEquals(2, metrics.getMalformedLines());
+        assertEquals(10000, metrics.getMaxGapInMillis());
+        final StringWriter json = new StringWriter();
+        metrics.writeJson(json);
+        assertTrue(json.toString().contains("\"malformedLines\": 2,"));
+        assertTrue(json.toString().contains("\"gapHistogram\": {\">=8s\": 1}"));
+    }
+}
@@ -0,0 +1,91 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.AggregateBatteryDischarge;
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.ReadingBatch;
+import de.axeluhl.kostal.Rollups;
+import de.axeluhl.kostal.Rollups.Granularity;
+import de.axeluhl.kostal.SavingsPerDischarge;
+
+public class RollupsTest {
+    private static final long START = 1704067200000l; // 2024-01-01T00:00:00Z
+
+    private static final long HOUR = 3600000l;
+
+    private static Battery createBattery(double energyContainedInWattHours) {
+        return new Battery(/* minSOCPercent */ 5, /* maxChargePowerInWatts */ 5600,
+                /* reducedChargePowerInWatts */ 3400, /* socPercentWhereReducedChargePowerStarts */ 99.5,
+                /* capacityInWattHours */ 10000, energyContainedInWattHours, (when, energy) -> energy * 0.3);
+    }
+
+    @Test
+    public void testPeriodSumsMatchTotals() throws IOException {
+        final Battery battery = createBattery(0);
+        final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge();
+        final Rollups rollups = new Rollups(ZoneOffset.UTC);
+        aggregator.setReplayListener(rollups);
+        aggregator.aggregateBatteryDischarge(battery, new SyntheticHistory(3, START, 40, 5000));
+        assertEquals(40 * 24, rollups.getNumberOfPeriods(Granularity.HOUR));
+        assertEquals(40, rollups.getNumberOfPeriods(Granularity.DAY));
+        assertEquals(2, rollups.getNumberOfPeriods(Granularity.MONTH));
+        assertEquals(START, rollups.getPeriodStartInMillis(Granularity.MONTH, 0));
+        for (final Granularity granularity : Granularity.values()) {
+            double savingsInCents = 0;
+            for (int period = 0; period < rollups.getNumberOfPeriods(granularity); period++) {
+                savingsInCents += rollups.getSavingsInCents(granularity, period);
+            }
+            assertEquals(battery.getSavingsInCents(), savingsInCents, 1e-6);
+        }
+    }
+
+    @Test
+    public void testEnergyFlows() throws IOException {
+        final ReadingBatch readings = new ReadingBatch();
+        // 8kW PV and 1kW consumption for an hour; the battery charges at its maximum of 5.6kW, the rest is ingested
+        readings.append(START, 1000, 8000, 0, /* SOC */ 0, 0);
+        // 3kW consumption without PV for an hour; the battery covers all of it
+        readings.append(START + HOUR, 3000, 0, 0, 50, 0);
+        readings.append(START + 2 * HOUR, 3000, 0, 0, 50, 0);
+        final Battery battery = createBattery(0);
+        final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge();
+        final Rollups rollups = new Rollups(ZoneId.of("Europe/Berlin"));
+        aggregator.setReplayListener(rollups);
+        aggregator.aggregateBatteryDischarge(battery, readings);
+        assertEquals(2, rollups.getNumberOfPeriods(Granularity.HOUR));
+        assertEquals(1, rollups.getNumberOfPeriods(Granularity.DAY));
+        assertEquals(START - HOUR, rollups.getPeriodStartInMillis(Granularity.DAY, 0)); // midnight in Berlin
+        assertEquals(7000 - 5600, rollups.getGridExportInWattHours(Granularity.HOUR, 0), 1e-9);
+        assertEquals(0, rollups.getGridImportInWattHours(Granularity.HOUR, 0), 1e-9);
+        assertEquals(0, rollups.getGridExportInWattHours(Granularity.HOUR, 1), 1e-9);
+        assertEquals(0, rollups.getGridImportInWattHours(Granularity.HOUR, 1), 1e-9);
+        assertEquals(3000 * Battery.DISCHARGE_LOSS_FACTOR / 10000, rollups.getEquivalentFullCycles(Granularity.DAY, 0), 1e-9);
+        assertEquals(3000 * Battery.DISCHARGE_LOSS_FACTOR * 0.3, rollups.getSavingsInCents(Granularity.MONTH, 0), 1e-9);
+        final StringWriter csv = new StringWriter();
+        rollups.writeCsv(csv);
+        assertEquals(1 + 2 + 1 + 1, csv.toString().split("\n").length);
+    }
+
+    @Test
+    public void testSecondsAtNonRoundMinSOC() throws IOException {
+        // 7% of 10240Wh, which a minimum SOC recomputed from the energy would round down to 6%
+        final Battery battery = new Battery(7, 5600, 3400, 99.5, 10240, 0.07 * 10240, (when, energy) -> energy * 0.3);
+        final ReadingBatch readings = new ReadingBatch();
+        for (int hour = 0; hour <= 2; hour++) {
+            readings.append(START + hour * HOUR, 500, 0, 0, 7, 0);
+        }
+        final AggregateBatteryDischarge aggregator = new AggregateBatteryDischarge();
+        final Rollups rollups = new Rollups(ZoneOffset.UTC);
+        aggregator.setReplayListener(rollups);
+        aggregator.aggregateBatteryDischarge(battery, readings);
+        assertEquals(2 * 3600, rollups.getSecondsAtMinSOC(Granularity.DAY, 0), 1e-9);
+    }
+}
@@ -0,0 +1,172 @@
+package de.axeluhl.kostal.test;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.ReadingParser;
+import de.axeluhl.kostal.ReadingSource;
+
+/**
+ * Generates a deterministic, synthetic history of readings with realistic day curves, for benchmarks and tests that
+ * need years of data without depending on a real InfluxDB dump. The same seed always produces the same readings. It is
+ * part of the test sources and shared with the benchmarks through the project's test jar.
+ * <p>
+ *
+ * PV production follows a sine-shaped day curve whose length and peak vary with the season, scaled by a random
+ * cloudiness per day and a slowly varying random cloud cover within the day. Home consumption consists of a base load,
+ * morning and evening peaks, and randomly occurring appliance runs of a few kW. The inverter's own battery is modeled
+ * by a simple {@link Battery} so that the SOC, battery charge and grid columns are consistent with the other columns.
+ */
+public class SyntheticHistory implements ReadingSource {
+    private static final long MILLIS_PER_DAY = 24l * 3600l * 1000l;
+
+    private static final double PEAK_PV_POWER_IN_WATTS = 9000;
+
+    private static final double BASE_LOAD_IN_WATTS = 250;
+
+    private final SplittableRandom random;
+
+    private final long endInMillis;
+
+    private final long stepInMillis;
+
+    private final Battery battery;
+
+    private long timeInMillis;
+
+    private boolean started;
+
+    private long currentDay = Long.MIN_VALUE;
+
+    private double dayCloudiness;
+
+    private double cloudCover;
+
+    private long applianceRunningUntilInMillis;
+
+    private double appliancePowerInWatts;
+
+    private double homeOwnConsumptionInWatts;
+
+    private double pvProductionInWatts;
+
+    private double totalActivePowerInWatts;
+
+    private double batteryChargeInWatts;
+
+    /**
+     * @param startInMillis
+     *            time of the first reading, in milliseconds since the epoch
+     * @param days
+     *            number of days to generate readings for
+     * @param stepInMillis
+     *            time between two readings; InfluxDB dumps of the inverter have 5s resolution
+     */
+    public SyntheticHistory(long seed, long startInMillis, int days, long stepInMillis) {
+        this.random = new SplittableRandom(seed);
+        this.timeInMillis = startInMillis;
+        this.endInMillis = startInMillis + days * MILLIS_PER_DAY;
+        this.stepInMillis = stepInMillis;
+        this.battery = new Battery(/* minSOCPercent */ 5, /* maxChargePowerInWatts */ 5600,
+                /* reducedChargePowerInWatts */ 3400, /* socPercentWhereReducedChargePowerStarts */ 99.5,
+                /* capacityInWattHours */ 10240, /* energyContainedInWattHours */ 5120, (when, energy) -> 0);
+    }
+
+    @Override
+    public boolean next() {
+        if (started) {
+            final double energyBeforeInWattHours = battery.getEnergyContainedInWattHours();
+            battery.charge(pvProductionInWatts - homeOwnConsumptionInWatts, timeInMillis, stepInMillis);
+            batteryChargeInWatts = (battery.getEnergyContainedInWattHours() - energyBeforeInWattHours) * 3600000.0 / stepInMillis;
+            timeInMillis += stepInMillis;
+        }
+        started = true;
+        if (timeInMillis >= endInMillis) {
+            return false;
+        }
+        final long day = Math.floorDiv(timeInMillis, MILLIS_PER_DAY);
+        if (day != currentDay) {
+            currentDay = day;
+            dayCloudiness = random.nextDouble() < 0.3 ? 0.1 + 0.3 * random.nextDouble() : 0.6 + 0.4 * random.nextDouble();
+        }
+        final double hourOfDay = (double) Math.floorMod(timeInMillis, MILLIS_PER_DAY) / 3600000.0;
+        final double season = Math.cos(2 * Math.PI * (Math.floorMod(day, 365) - 172) / 365.0); // 1 in June, -1 in December
+        final double dayLengthInHours = 12 + 4 * season;
+        final double sunrise = 12.5 - dayLengthInHours / 2;
+        cloudCover = Math.max(0, Math.min(1, cloudCover + 0.02 * (random.nextDouble() - 0.5)));
+        pvProductionInWatts = hourOfDay < sunrise || hourOfDay > sunrise + dayLengthInHours ? 0
+                : PEAK_PV_POWER_IN_WATTS * (0.65 + 0.35 * season) * Math.sin(Math.PI * (hourOfDay - sunrise) / dayLengthInHours)
+                        * dayCloudiness * (1 - 0.7 * cloudCover);
+        if (timeInMillis >= applianceRunningUntilInMillis && random.nextDouble() < 0.0005) {
+            appliancePowerInWatts = 800 + 2500 * random.nextDouble();
+            applianceRunningUntilInMillis = timeInMillis + (5 + random.nextInt(90)) * 60000l;
+        }
+        homeOwnConsumptionInWatts = BASE_LOAD_IN_WATTS + 50 * random.nextDouble()
+                + 400 * Math.exp(-Math.pow(hourOfDay - 7, 2)) + 700 * Math.exp(-Math.pow(hourOfDay - 19, 2) / 2)
+                + (timeInMillis < applianceRunningUntilInMillis ? appliancePowerInWatts : 0);
+        totalActivePowerInWatts = homeOwnConsumptionInWatts - pvProductionInWatts + batteryChargeInWatts;
+        return true;
+    }
+
+    /**
+     * Writes all remaining readings in the text format understood by {@link ReadingParser}
+     *
+     * @return the number of lines written
+     */
+    public long writeText(OutputStream out) throws IOException {
+        final OutputStream bufferedOut = new BufferedOutputStream(out, 1 << 16);
+        final StringBuilder line = new StringBuilder();
+        long count = 0;
+        while (next()) {
+            line.setLength(0);
+            line.append(timeInMillis * 1000000l).append(' ')
+                .append(Math.round(homeOwnConsumptionInWatts * 10) / 10.0).append(' ')
+                .append(Math.round(pvProductionInWatts * 10) / 10.0).append(' ')
+                .append(Math.round(totalActivePowerInWatts * 10) / 10.0).append(' ')
+                .append(getBatterySOC()).append(' ')
+                .append(Math.round(batteryChargeInWatts * 10) / 10.0).append('\n');
+            bufferedOut.write(line.toString().getBytes(StandardCharsets.US_ASCII));
+            count++;
+        }
+        bufferedOut.flush();
+        return count;
+    }
+
+    @Override
+    public long getTimeInMillis() {
+        return timeInMillis;
+    }
+
+    @Override
+    public double getHomeOwnConsumptionInWatts() {
+        return homeOwnConsumptionInWatts;
+    }
+
+    @Override
+    public double getPvProductionInWatts() {
+        return pvProductionInWatts;
+    }
+
+    @Override
+    public double getTotalActivePowerInWatts() {
+        return totalActivePowerInWatts;
+    }
+
+    @Override
+    public int getBatterySOC() {
+        return battery.getSOCPercent();
+    }
+
+    @Override
+    public double getBatteryChargeInWatts() {
+        return batteryChargeInWatts;
+    }
+
+    @Override
+    public void close() {
+    }
+}
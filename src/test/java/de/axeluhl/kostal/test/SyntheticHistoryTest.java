@@ -0,0 +1,33 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SyntheticHistoryTest {
+    private static final long START = 1717372800000l; // 2024-06-03T00:00:00Z
+
+    private static byte[] history(long seed) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final SyntheticHistory history = new SyntheticHistory(seed, START, 3, 5000)) {
+            assertTrue(history.writeText(out) > 0);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testSameSeedReproducesHistory() throws IOException {
+        assertArrayEquals(history(42), history(42));
+    }
+
+    @Test
+    public void testDifferentSeedsDiffer() throws IOException {
+        assertFalse(Arrays.equals(history(42), history(43)));
+    }
+}
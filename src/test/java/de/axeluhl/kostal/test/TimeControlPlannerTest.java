@@ -0,0 +1,173 @@
+package de.axeluhl.kostal.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.axeluhl.kostal.Battery;
+import de.axeluhl.kostal.ReadingBatch;
+import de.axeluhl.kostal.SavingsPerDischarge;
+import de.axeluhl.kostal.SortedPriceCurve;
+import de.axeluhl.kostal.TimeControlPlanner;
+import de.axeluhl.kostal.TimeControlPlanner.Plan;
+
+public class TimeControlPlannerTest {
+    private static final long START = 1704063600000l; // 2024-01-01T00:00:00+01:00, a Monday in Berlin
+
+    private static final long HOUR = 3600000l;
+
+    /**
+     * Grid power costs 10ct/kWh during the first twelve hours and 50ct/kWh afterwards
+     */
+    private static final SavingsPerDischarge SAVINGS = SavingsPerDischarge.forPriceCurves(
+            new SortedPriceCurve(new long[] { START, START + 12 * HOUR }, new double[] { 10, 50 }),
+            new SortedPriceCurve(new long[] { 0 }, new double[] { 5 }));
+
+    private static Battery createBattery() {
+        return new Battery(/* minSOCPercent */ 5, /* maxChargePowerInWatts */ 5600,
+                /* reducedChargePowerInWatts */ 3400, /* socPercentWhereReducedChargePowerStarts */ 99.5,
+                /* capacityInWattHours */ 5000, /* energyContainedWh */ 0, SAVINGS);
+    }
+
+    private static TimeControlPlanner createPlanner() {
+        return new TimeControlPlanner(5, 5600, 3400, 99.5, 5000, SAVINGS, TimeControlPlanner.DEFAULT_NUMBER_OF_SOC_STEPS);
+    }
+
+    /**
+     * Simulates the slots exactly as the planner does, charging or discharging in the slots whose bit is set
+     */
+    private static double simulateFrom(long start, double[] pv, double[] home, double initialEnergyInWattHours, int slotsActing) {
+        final Battery battery = createBattery();
+        battery.setEnergyContainedInWattHours(initialEnergyInWattHours);
+        for (int slot = 0; slot < pv.length; slot++) {
+            if ((slotsActing & 1 << slot) != 0) {
+                battery.charge(pv[slot] - home[slot], start + slot * TimeControlPlanner.SLOT_LENGTH_IN_MILLIS,
+                        TimeControlPlanner.SLOT_LENGTH_IN_MILLIS);
+            }
+        }
+        return battery.getSavingsInCents();
+    }
+
+    @Test
+    public void testSavesEnergyForExpensiveHours() throws IOException {
+        final double[] pv = new double[TimeControlPlanner.SLOTS_PER_DAY];
+        final double[] home = new double[TimeControlPlanner.SLOTS_PER_DAY];
+        Arrays.fill(home, 1000);
+        final Plan plan = createPlanner().plan(START, pv, home, 5000);
+        for (int slot = 0; slot < 48; slot++) {
+            assertEquals("slot " + slot, TimeControlPlanner.NO_DISCHARGING, plan.getState(slot));
+        }
+        for (int slot = 48; slot < plan.getNumberOfSlots(); slot++) {
+            assertEquals("slot " + slot, TimeControlPlanner.FREE, plan.getState(slot));
+        }
+        // 95% of the capacity at 45ct/kWh savings, as Battery accounts for the energy depleted
+        assertEquals(4.75 * 45, plan.getExpectedSavingsInCents(), 1e-6);
+        // replaying readings of the same constant consumption achieves the expected savings; without the plan, the
+        // battery is empty before prices rise
+        final ReadingBatch readings = new ReadingBatch();
+        for (int slot = 0; slot <= TimeControlPlanner.SLOTS_PER_DAY; slot++) {
+            readings.append(START + slot * TimeControlPlanner.SLOT_LENGTH_IN_MILLIS, 1000, 0, 1000, 100, 0);
+        }
+        assertEquals(plan.getExpectedSavingsInCents(),
+                TimeControlPlanner.replay(createBattery(), readings, plan).getSavingsInCents(), 1e-6);
+        readings.rewind();
+        assertEquals(4.75 * 5,
+                TimeControlPlanner.replay(createBattery(), readings, null).getSavingsInCents(), 1e-6);
+    }
+
+    @Test
+    public void testCloseToExhaustiveSearch() {
+        final Random random = new Random(42);
+        final int slots = 16;
+        for (int run = 0; run < 5; run++) {
+            final double[] pv = new double[slots];
+            final double[] home = new double[slots];
+            for (int slot = 0; slot < slots; slot++) {
+                pv[slot] = random.nextDouble() < 0.5 ? random.nextDouble() * 6000 : 0;
+                home[slot] = random.nextDouble() * 4000;
+            }
+            // prices rise after twelve hours, so shift the slots to straddle that point
+            final long start = START + 12 * HOUR - slots / 2 * TimeControlPlanner.SLOT_LENGTH_IN_MILLIS;
+            final double initialEnergyInWattHours = random.nextDouble() * 5000;
+            final Plan plan = createPlanner().plan(start, pv, home, initialEnergyInWattHours);
+            double bestInCents = 0;
+            for (int slotsActing = 0; slotsActing < 1 << slots; slotsActing++) {
+                bestInCents = Math.max(bestInCents, simulateFrom(start, pv, home, initialEnergyInWattHours, slotsActing));
+            }
+            int slotsActing = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                if (plan.getState(slot) == TimeControlPlanner.FREE) {
+                    slotsActing |= 1 << slot;
+                }
+            }
+            final double plannedInCents = simulateFrom(start, pv, home, initialEnergyInWattHours, slotsActing);
+            assertEquals(plannedInCents, plan.getExpectedSavingsInCents(), 1e-9);
+            assertTrue("planned " + plannedInCents + " vs. best " + bestInCents, plannedInCents >= bestInCents * 0.999);
+        }
+    }
+
+    @Test
+    public void testTimeControlConf() {
+        final double[] pv = new double[7 * TimeControlPlanner.SLOTS_PER_DAY];
+        final double[] home = new double[pv.length];
+        Arrays.fill(home, 1000);
+        final Plan plan = createPlanner().plan(START, pv, home, 5000);
+        final Map<String, String> conf = plan.toTimeControlConf(ZoneId.of("Europe/Berlin"));
+        assertEquals(7, conf.size());
+        final StringBuilder monday = new StringBuilder();
+        for (int slot = 0; slot < 48; slot++) {
+            monday.append('2');
+        }
+        for (int slot = 48; slot < 96; slot++) {
+            monday.append('0');
+        }
+        assertEquals(monday.toString(), conf.get("Battery:TimeControl:ConfMon"));
+        for (final String day : new String[] { "Tue", "Wed", "Thu", "Fri", "Sat", "Sun" }) {
+            assertEquals(96, conf.get("Battery:TimeControl:Conf" + day).length());
+        }
+        // a UTC zone shifts the pattern by an hour, starting on Sunday at 23:00
+        final Map<String, String> utcConf = plan.toTimeControlConf(ZoneId.of("UTC"));
+        assertTrue(utcConf.get("Battery:TimeControl:ConfSun").endsWith("2222"));
+        assertTrue(utcConf.get("Battery:TimeControl:ConfMon").startsWith("2222"));
+    }
+
+    private static ReadingBatch createWeeks(int weeks, long outOfOrderAfterInMillis) {
+        final ReadingBatch readings = new ReadingBatch();
+        final long step = 5 * 60000l;
+        for (long time = START; time < START + weeks * 7 * 24 * HOUR; time += step) {
+            final long hourOfDay = (time - START) / HOUR % 24;
+            readings.append(time, 400, hourOfDay >= 8 && hourOfDay < 16 ? 3000 : 0, 0, 20, 0);
+            if (time == START + outOfOrderAfterInMillis) {
+                readings.append(time - HOUR, 5000, 0, 0, 20, 0);
+            }
+        }
+        return readings;
+    }
+
+    @Test
+    public void testBacktestSkipsOutOfOrderReadings() throws IOException {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        assertEquals(0, createPlanner().backtest(createWeeks(3, -1), ZoneId.of("Europe/Berlin"), /* persistence */ true,
+                new PrintStream(expected, true, "US-ASCII")));
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        assertEquals(1, createPlanner().backtest(createWeeks(3, 9 * 24 * HOUR), ZoneId.of("Europe/Berlin"), /* persistence */ true,
+                new PrintStream(actual, true, "US-ASCII")));
+        final String[] expectedLines = expected.toString("US-ASCII").split("\n");
+        final String[] actualLines = actual.toString("US-ASCII").split("\n");
+        assertEquals(5, expectedLines.length); // header, three weeks and the total
+        assertEquals(expectedLines.length, actualLines.length);
+        for (int i = 0; i < expectedLines.length; i++) {
+            // all but the planning time
+            assertEquals(expectedLines[i].replaceAll(",[^,]*$", ""), actualLines[i].replaceAll(",[^,]*$", ""));
+        }
+    }
+}